@@ -0,0 +1,779 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GTSWrapperHelper;
+import io.warp10.continuum.store.Constants;
+import io.warp10.continuum.store.Directory;
+import io.warp10.continuum.store.Store;
+import io.warp10.continuum.store.thrift.data.GTSWrapper;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.crypto.CryptoUtils;
+import io.warp10.crypto.KeyStore;
+import io.warp10.crypto.OSSKeyStore;
+import io.warp10.crypto.SipHashInline;
+import io.warp10.crypto.UnsecureKeyStore;
+import io.warp10.standalone.StandaloneRollups;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.io.hfile.CacheConfig;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.io.hfile.HFileContext;
+import org.apache.hadoop.hbase.io.hfile.HFileContextBuilder;
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.fusesource.leveldbjni.JniDBFactory;
+import org.iq80.leveldb.CompressionType;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.DBIterator;
+import org.iq80.leveldb.Options;
+import org.iq80.leveldb.WriteBatch;
+import org.iq80.leveldb.impl.Iq80DBFactory;
+
+import com.fasterxml.sort.DataReader;
+import com.fasterxml.sort.DataReaderFactory;
+import com.fasterxml.sort.DataWriter;
+import com.fasterxml.sort.DataWriterFactory;
+import com.fasterxml.sort.SortConfig;
+import com.fasterxml.sort.Sorter;
+import com.google.common.base.Charsets;
+import com.google.common.primitives.UnsignedBytes;
+
+/**
+ * Offline bulk import of historical data.
+ *
+ * GTS text (the /update input format) or streams of serialized GTSWrapper are turned into
+ * datapoint records keyed as the store keys them (prefix, classId, labelsId, reversed timestamp),
+ * sorted externally and written out in key order, together with the matching Metadata records:
+ *
+ * - leveldb: the records are written in large sorted batches into the LevelDB of a standalone
+ *   instance which MUST be stopped. Rollups, if enabled, are rebuilt on the next start.
+ * - hbase: HFiles are written under OUTPUT/data/COLFAM for the data table and OUTPUT/metadata/COLFAM
+ *   for the metadata table, to be loaded with LoadIncrementalHFiles. Directories only read the
+ *   metadata table when starting and MUST therefore be restarted after the load.
+ *
+ * When the same datapoint appears several times in the input, a single one of its values is kept.
+ *
+ * Usage: BulkImport [-w] [-p producer] [-o owner] [-a application] [-m sortMB] CONFIG leveldb|hbase OUTPUT INPUT...
+ *
+ * -w indicates the inputs are GTSWrapper streams, inputs ending in .gz are gunzipped, '-' is stdin.
+ */
+public class BulkImport {
+
+  /**
+   * Maximum size of the encoders produced from the input, datapoints are keyed individually
+   */
+  private static final int MAX_ENCODER_SIZE = 1000000;
+
+  /**
+   * Size of the LevelDB write batches
+   */
+  private static final long LEVELDB_BATCH_SIZE = 16 * 1024 * 1024L;
+
+  /**
+   * Size above which a new HFile is started
+   */
+  private static final long HFILE_MAX_SIZE = 1024 * 1024 * 1024L;
+
+  private static final Comparator<byte[][]> RECORD_COMPARATOR = new Comparator<byte[][]>() {
+    private final Comparator<byte[]> comparator = UnsignedBytes.lexicographicalComparator();
+
+    @Override
+    public int compare(byte[][] o1, byte[][] o2) {
+      return comparator.compare(o1[0], o2[0]);
+    }
+  };
+
+  private final boolean hbase;
+
+  private final long[] classKey;
+  private final long[] labelsKey;
+
+  private final byte[] dataAESKey;
+
+  /**
+   * Labels forced on all the imported GTS
+   */
+  private final Map<String,String> extraLabels;
+
+  /**
+   * Metadata of the imported GTS, per 128 bits id
+   */
+  private final Map<BigInteger,Metadata> metadatas = new HashMap<BigInteger,Metadata>();
+
+  private long datapoints = 0L;
+
+  BulkImport(KeyStore keystore, boolean hbase, Map<String,String> extraLabels) {
+    this.hbase = hbase;
+    this.classKey = SipHashInline.getKey(keystore.getKey(KeyStore.SIPHASH_CLASS));
+    this.labelsKey = SipHashInline.getKey(keystore.getKey(KeyStore.SIPHASH_LABELS));
+    this.dataAESKey = keystore.getKey(hbase ? KeyStore.AES_HBASE_DATA : KeyStore.AES_LEVELDB_DATA);
+    this.extraLabels = extraLabels;
+  }
+
+  /**
+   * Reads the inputs and produces one { key, value } record per datapoint
+   */
+  private class InputReader extends DataReader<byte[][]> {
+
+    private final List<String> inputs;
+    private final boolean wrappers;
+    private final long now = TimeSource.getTime();
+
+    private int idx = 0;
+
+    private InputStream in = null;
+    private BufferedReader br = null;
+    private BufferedInputStream bis = null;
+    private TProtocol protocol = null;
+
+    private GTSEncoder lastencoder = null;
+
+    private final ArrayDeque<byte[][]> pending = new ArrayDeque<byte[][]>();
+
+    private final byte[] bytes = new byte[16];
+
+    private InputReader(List<String> inputs, boolean wrappers) {
+      this.inputs = inputs;
+      this.wrappers = wrappers;
+    }
+
+    @Override
+    public byte[][] readNext() throws IOException {
+      while (pending.isEmpty()) {
+        if (!fill()) {
+          return null;
+        }
+      }
+
+      return pending.poll();
+    }
+
+    @Override
+    public int estimateSizeInBytes(byte[][] item) {
+      return item[0].length + item[1].length + 64;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (null != in) {
+        in.close();
+        in = null;
+      }
+    }
+
+    /**
+     * Read the next line or GTSWrapper of the inputs
+     *
+     * @return false when the inputs are exhausted
+     */
+    private boolean fill() throws IOException {
+
+      if (null == in) {
+        if (idx >= inputs.size()) {
+          return false;
+        }
+
+        String input = inputs.get(idx++);
+
+        in = "-".equals(input) ? System.in : new FileInputStream(input);
+
+        if (input.endsWith(".gz")) {
+          in = new GZIPInputStream(in);
+        }
+
+        if (wrappers) {
+          bis = new BufferedInputStream(in);
+          protocol = new TCompactProtocol(new TIOStreamTransport(bis));
+        } else {
+          br = new BufferedReader(new InputStreamReader(in, Charsets.UTF_8));
+        }
+      }
+
+      if (wrappers) {
+        GTSWrapper wrapper = GTSWrapperHelper.readWrapper(bis, protocol);
+
+        if (null == wrapper) {
+          close();
+          return true;
+        }
+
+        for (GTSEncoder encoder: GTSWrapperHelper.fromGTSWrapperToGTSEncoders(wrapper, extraLabels, Long.MAX_VALUE, MAX_ENCODER_SIZE)) {
+          add(encoder);
+        }
+
+        return true;
+      }
+
+      String line = br.readLine();
+
+      if (null == line) {
+        if (null != lastencoder) {
+          add(lastencoder);
+          lastencoder = null;
+        }
+        close();
+        return true;
+      }
+
+      if ("".equals(line)) {
+        return true;
+      }
+
+      GTSEncoder encoder;
+
+      try {
+        encoder = GTSHelper.parse(lastencoder, line, extraLabels, now, Long.MAX_VALUE);
+      } catch (ParseException pe) {
+        throw new IOException("Parse error at '" + line + "'", pe);
+      }
+
+      if (encoder != lastencoder) {
+        if (null != lastencoder) {
+          add(lastencoder);
+        }
+        lastencoder = encoder;
+      } else if (lastencoder.size() > MAX_ENCODER_SIZE) {
+        add(lastencoder);
+        // Reuse Metadata so a continuation line can follow
+        Metadata metadata = lastencoder.getMetadata();
+        lastencoder = new GTSEncoder(0L);
+        lastencoder.setMetadata(metadata);
+      }
+
+      return true;
+    }
+
+    /**
+     * Register the Metadata of 'encoder' and add a record per datapoint to 'pending'
+     */
+    private void add(GTSEncoder encoder) throws IOException {
+      long classId = GTSHelper.classId(classKey, encoder.getMetadata().getName());
+      long labelsId = GTSHelper.labelsId(labelsKey, encoder.getMetadata().getLabels());
+
+      GTSHelper.fillGTSIds(bytes, 0, classId, labelsId);
+      BigInteger id = new BigInteger(bytes);
+
+      if (!metadatas.containsKey(id)) {
+        Metadata metadata = new Metadata();
+        metadata.setName(encoder.getMetadata().getName());
+        metadata.setLabels(new HashMap<String,String>(encoder.getMetadata().getLabels()));
+        metadata.setAttributes(new HashMap<String,String>());
+        metadata.setClassId(classId);
+        metadata.setLabelsId(labelsId);
+        metadata.setSource(Configuration.INGRESS_METADATA_SOURCE);
+        metadatas.put(id, metadata);
+      }
+
+      GTSDecoder decoder = encoder.getDecoder(true);
+
+      while(decoder.next()) {
+        long ts = decoder.getTimestamp();
+
+        //
+        // Key is prefix + classId + labelsId + reversed timestamp, with a reversed timestamp
+        // as column qualifier for HBase if the modulus is not 1, as done by Store
+        //
+
+        boolean qualifier = hbase && 1 != Constants.DEFAULT_MODULUS;
+
+        ByteBuffer bb = ByteBuffer.wrap(new byte[Store.HBASE_RAW_DATA_KEY_PREFIX.length + 8 + 8 + 8 + (qualifier ? 8 : 0)]).order(ByteOrder.BIG_ENDIAN);
+        bb.put(Store.HBASE_RAW_DATA_KEY_PREFIX);
+        bb.putLong(classId);
+        bb.putLong(labelsId);
+
+        if (qualifier) {
+          bb.putLong(Long.MAX_VALUE - (ts - (ts % Constants.DEFAULT_MODULUS)));
+        }
+
+        bb.putLong(Long.MAX_VALUE - ts);
+
+        GTSEncoder enc = new GTSEncoder(ts, dataAESKey);
+        enc.addValue(ts, decoder.getLocation(), decoder.getElevation(), decoder.getValue());
+
+        pending.add(new byte[][] { bb.array(), enc.getBytes() });
+      }
+    }
+  }
+
+  /**
+   * Reader of the sorted runs spilled to disk by the Sorter
+   */
+  private static class RecordReader extends DataReader<byte[][]> {
+    private final DataInputStream in;
+
+    private RecordReader(InputStream in) {
+      this.in = new DataInputStream(new BufferedInputStream(in));
+    }
+
+    @Override
+    public byte[][] readNext() throws IOException {
+      byte[] key;
+
+      try {
+        key = new byte[in.readInt()];
+      } catch (EOFException eofe) {
+        return null;
+      }
+
+      in.readFully(key);
+      byte[] value = new byte[in.readInt()];
+      in.readFully(value);
+
+      return new byte[][] { key, value };
+    }
+
+    @Override
+    public int estimateSizeInBytes(byte[][] item) {
+      return item[0].length + item[1].length + 64;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  private static class RecordWriter extends DataWriter<byte[][]> {
+    private final DataOutputStream out;
+
+    private RecordWriter(OutputStream out) {
+      this.out = new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    @Override
+    public void writeEntry(byte[][] item) throws IOException {
+      out.writeInt(item[0].length);
+      out.write(item[0]);
+      out.writeInt(item[1].length);
+      out.write(item[1]);
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  /**
+   * Writer of the sorted records to the target, records with the same key as the previous one are skipped
+   */
+  private abstract static class TargetWriter extends DataWriter<byte[][]> {
+    private byte[] lastkey = null;
+
+    protected long count = 0L;
+
+    @Override
+    public void writeEntry(byte[][] item) throws IOException {
+      if (null != lastkey && Arrays.equals(lastkey, item[0])) {
+        return;
+      }
+      lastkey = item[0];
+      count++;
+      write(item[0], item[1]);
+    }
+
+    protected abstract void write(byte[] key, byte[] value) throws IOException;
+
+    /**
+     * Write the metadata records, after all data records were written
+     */
+    protected abstract void writeMetadata(List<byte[][]> records) throws IOException;
+
+    @Override
+    public void close() throws IOException {
+    }
+  }
+
+  private static class LevelDBWriter extends TargetWriter {
+    private final DB db;
+    private WriteBatch batch;
+    private long size = 0L;
+
+    private LevelDBWriter(DB db) {
+      this.db = db;
+      this.batch = db.createWriteBatch();
+    }
+
+    @Override
+    protected void write(byte[] key, byte[] value) throws IOException {
+      batch.put(key, value);
+      size += key.length + value.length;
+
+      if (size > LEVELDB_BATCH_SIZE) {
+        flush();
+      }
+    }
+
+    private void flush() throws IOException {
+      db.write(batch);
+      batch.close();
+      batch = db.createWriteBatch();
+      size = 0L;
+    }
+
+    @Override
+    protected void writeMetadata(List<byte[][]> records) throws IOException {
+      for (byte[][] record: records) {
+        // Do not overwrite the attributes of known GTS
+        if (null == db.get(record[0])) {
+          write(record[0], record[1]);
+        }
+      }
+      flush();
+    }
+  }
+
+  private static class HFileWriter extends TargetWriter {
+    private final org.apache.hadoop.conf.Configuration conf;
+    private final FileSystem fs;
+    private final Path dir;
+    private final byte[] colfam;
+    private final long timestamp;
+    private final HFileContext context;
+
+    private HFile.Writer writer = null;
+    private int files = 0;
+    private long size = 0L;
+
+    /**
+     * @param timestamp Timestamp of the cells
+     */
+    private HFileWriter(org.apache.hadoop.conf.Configuration conf, Path dir, byte[] colfam, long timestamp) throws IOException {
+      this.conf = conf;
+      this.fs = dir.getFileSystem(conf);
+      this.dir = new Path(dir, new String(colfam, Charsets.UTF_8));
+      this.colfam = colfam;
+      this.timestamp = timestamp;
+      this.context = new HFileContextBuilder().withBlockSize(64 * 1024).build();
+    }
+
+    @Override
+    protected void write(byte[] key, byte[] value) throws IOException {
+      if (null == writer || size > HFILE_MAX_SIZE) {
+        close();
+        writer = HFile.getWriterFactory(conf, new CacheConfig(conf))
+            .withPath(fs, new Path(dir, String.format("hfile-%06d", files++)))
+            .withFileContext(context)
+            .withComparator(KeyValue.COMPARATOR)
+            .create();
+        size = 0L;
+      }
+
+      // The row is followed by the column qualifier if any
+      int rowlen = Store.HBASE_RAW_DATA_KEY_PREFIX.length + 8 + 8 + 8;
+
+      if (key.length < rowlen) {
+        rowlen = key.length;
+      }
+
+      KeyValue kv = new KeyValue(key, 0, rowlen, colfam, 0, colfam.length, key, rowlen, key.length - rowlen, timestamp, KeyValue.Type.Put, value, 0, value.length);
+      writer.append(kv);
+      size += kv.getLength();
+    }
+
+    @Override
+    protected void writeMetadata(List<byte[][]> records) throws IOException {
+      for (byte[][] record: records) {
+        write(record[0], record[1]);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (null != writer) {
+        writer.close();
+        writer = null;
+      }
+    }
+  }
+
+  /**
+   * Sort the records read from 'inputs' and write them to 'writer'
+   */
+  private void sort(List<String> inputs, boolean wrappers, long maxMemory, TargetWriter writer) throws IOException {
+
+    DataReaderFactory<byte[][]> readerFactory = new DataReaderFactory<byte[][]>() {
+      @Override
+      public DataReader<byte[][]> constructReader(InputStream in) throws IOException {
+        return new RecordReader(in);
+      }
+    };
+
+    DataWriterFactory<byte[][]> writerFactory = new DataWriterFactory<byte[][]>() {
+      @Override
+      public DataWriter<byte[][]> constructWriter(OutputStream out) throws IOException {
+        return new RecordWriter(out);
+      }
+    };
+
+    Sorter<byte[][]> sorter = new Sorter<byte[][]>(new SortConfig().withMaxMemoryUsage(maxMemory), readerFactory, writerFactory, RECORD_COMPARATOR);
+
+    InputReader reader = new InputReader(inputs, wrappers);
+
+    try {
+      sorter.sort(reader, writer);
+    } finally {
+      reader.close();
+    }
+
+    this.datapoints = writer.count;
+  }
+
+  /**
+   * Build the sorted metadata records, keyed as Directory and StandaloneDirectoryClient key them
+   *
+   * @param aesKey Key used to wrap the serialized Metadata, may be null
+   */
+  private List<byte[][]> getMetadataRecords(byte[] aesKey) throws IOException {
+    TSerializer serializer = new TSerializer(new TCompactProtocol.Factory());
+
+    List<byte[][]> records = new ArrayList<byte[][]>(metadatas.size());
+
+    for (Metadata metadata: metadatas.values()) {
+      byte[] key = new byte[Directory.HBASE_METADATA_KEY_PREFIX.length + 8 + 8];
+      ByteBuffer bb = ByteBuffer.wrap(key).order(ByteOrder.BIG_ENDIAN);
+      bb.put(Directory.HBASE_METADATA_KEY_PREFIX);
+      bb.putLong(metadata.getClassId());
+      bb.putLong(metadata.getLabelsId());
+
+      byte[] value;
+
+      try {
+        value = serializer.serialize(metadata);
+      } catch (TException te) {
+        throw new IOException(te);
+      }
+
+      if (null != aesKey) {
+        value = CryptoUtils.wrap(aesKey, value);
+      }
+
+      records.add(new byte[][] { key, value });
+    }
+
+    Collections.sort(records, RECORD_COMPARATOR);
+
+    return records;
+  }
+
+  static void importLevelDB(BulkImport bi, KeyStore keystore, Properties properties, String output, List<String> inputs, boolean wrappers, long maxMemory) throws IOException {
+    Options options = new Options();
+    options.createIfMissing(true);
+
+    if (null != properties.getProperty(Configuration.LEVELDB_CACHE_SIZE)) {
+      options.cacheSize(Long.valueOf(properties.getProperty(Configuration.LEVELDB_CACHE_SIZE)));
+    }
+
+    if ("snappy".equalsIgnoreCase(properties.getProperty(Configuration.LEVELDB_COMPRESSION_TYPE))) {
+      options.compressionType(CompressionType.SNAPPY);
+    } else {
+      options.compressionType(CompressionType.NONE);
+    }
+
+    DB db;
+
+    try {
+      db = JniDBFactory.factory.open(new File(output), options);
+    } catch (UnsatisfiedLinkError ule) {
+      System.out.println("WARNING: falling back to pure java implementation of LevelDB.");
+      db = Iq80DBFactory.factory.open(new File(output), options);
+    }
+
+    try {
+      //
+      // Imported datapoints would be hidden then purged by pending range deletions
+      //
+
+      DBIterator iter = db.iterator();
+
+      try {
+        iter.seek(Store.HBASE_TOMBSTONE_KEY_PREFIX);
+
+        if (iter.hasNext()) {
+          byte[] key = iter.next().getKey();
+          if (key.length >= Store.HBASE_TOMBSTONE_KEY_PREFIX.length && Arrays.equals(Store.HBASE_TOMBSTONE_KEY_PREFIX, Arrays.copyOf(key, Store.HBASE_TOMBSTONE_KEY_PREFIX.length))) {
+            throw new IOException("Range deletions are pending, let them complete before importing data.");
+          }
+        }
+      } finally {
+        iter.close();
+      }
+
+      LevelDBWriter writer = new LevelDBWriter(db);
+
+      bi.sort(inputs, wrappers, maxMemory, writer);
+
+      writer.writeMetadata(bi.getMetadataRecords(keystore.getKey(KeyStore.AES_LEVELDB_METADATA)));
+
+      // Rollups do not account for the imported datapoints, have them rebuilt
+      if (bi.datapoints > 0) {
+        StandaloneRollups.disable(db);
+      }
+    } finally {
+      db.close();
+    }
+  }
+
+  private static void importHBase(BulkImport bi, KeyStore keystore, Properties properties, String output, List<String> inputs, boolean wrappers, long maxMemory) throws IOException {
+    org.apache.hadoop.conf.Configuration conf = HBaseConfiguration.create();
+
+    long now = System.currentTimeMillis();
+
+    HFileWriter writer = new HFileWriter(conf, new Path(output, "data"), properties.getProperty(Configuration.STORE_HBASE_DATA_COLFAM).getBytes(Charsets.UTF_8), now);
+
+    try {
+      bi.sort(inputs, wrappers, maxMemory, writer);
+    } finally {
+      writer.close();
+    }
+
+    //
+    // Metadata cells are written with a timestamp of 0 so the existing Metadata of known GTS,
+    // and their attributes, take precedence
+    //
+
+    writer = new HFileWriter(conf, new Path(output, "metadata"), properties.getProperty(Configuration.DIRECTORY_HBASE_METADATA_COLFAM).getBytes(Charsets.UTF_8), 0L);
+
+    try {
+      writer.writeMetadata(bi.getMetadataRecords(keystore.getKey(KeyStore.AES_HBASE_METADATA)));
+    } finally {
+      writer.close();
+    }
+  }
+
+  private static void setKey(KeyStore keystore, Properties properties, String name, String property) {
+    if (null != properties.getProperty(property)) {
+      byte[] key = keystore.decodeKey(properties.getProperty(property));
+      if (16 != key.length && 24 != key.length && 32 != key.length) {
+        throw new RuntimeException("Key " + property + " MUST be 128, 192 or 256 bits long.");
+      }
+      keystore.setKey(name, key);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+
+    boolean wrappers = false;
+    long maxMemory = 256 * 1024 * 1024L;
+    Map<String,String> extraLabels = new HashMap<String,String>();
+
+    int idx = 0;
+
+    while(idx < args.length && args[idx].startsWith("-") && args[idx].length() > 1) {
+      String opt = args[idx++];
+
+      if ("-w".equals(opt)) {
+        wrappers = true;
+      } else if ("-p".equals(opt)) {
+        extraLabels.put(Constants.PRODUCER_LABEL, args[idx++]);
+      } else if ("-o".equals(opt)) {
+        extraLabels.put(Constants.OWNER_LABEL, args[idx++]);
+      } else if ("-a".equals(opt)) {
+        extraLabels.put(Constants.APPLICATION_LABEL, args[idx++]);
+      } else if ("-m".equals(opt)) {
+        maxMemory = Long.parseLong(args[idx++]) * 1024L * 1024L;
+      } else {
+        throw new IOException("Unknown option " + opt);
+      }
+    }
+
+    if (args.length - idx < 4 || (!"leveldb".equals(args[idx + 1]) && !"hbase".equals(args[idx + 1]))) {
+      throw new IOException("Usage: BulkImport [-w] [-p producer] [-o owner] [-a application] [-m sortMB] CONFIG leveldb|hbase OUTPUT INPUT...");
+    }
+
+    WarpConfig.setProperties(args[idx]);
+
+    Properties properties = WarpConfig.getProperties();
+
+    boolean hbase = "hbase".equals(args[idx + 1]);
+    String output = args[idx + 2];
+    List<String> inputs = Arrays.asList(args).subList(idx + 3, args.length);
+
+    //
+    // Initialize KeyStore
+    //
+
+    KeyStore keystore;
+
+    if (properties.containsKey(Configuration.OSS_MASTER_KEY)) {
+      keystore = new OSSKeyStore(properties.getProperty(Configuration.OSS_MASTER_KEY));
+    } else {
+      keystore = new UnsecureKeyStore();
+    }
+
+    keystore.setKey(KeyStore.SIPHASH_CLASS, keystore.decodeKey(properties.getProperty(Configuration.WARP_HASH_CLASS)));
+    keystore.setKey(KeyStore.SIPHASH_LABELS, keystore.decodeKey(properties.getProperty(Configuration.WARP_HASH_LABELS)));
+
+    if (hbase) {
+      setKey(keystore, properties, KeyStore.AES_HBASE_DATA, Configuration.STORE_HBASE_DATA_AES);
+      setKey(keystore, properties, KeyStore.AES_HBASE_METADATA, Configuration.DIRECTORY_HBASE_METADATA_AES);
+    } else {
+      setKey(keystore, properties, KeyStore.AES_LEVELDB_DATA, Configuration.LEVELDB_DATA_AES);
+      setKey(keystore, properties, KeyStore.AES_LEVELDB_METADATA, Configuration.LEVELDB_METADATA_AES);
+    }
+
+    BulkImport bi = new BulkImport(keystore, hbase, extraLabels);
+
+    long nano = System.nanoTime();
+
+    if (hbase) {
+      importHBase(bi, keystore, properties, output, inputs, wrappers, maxMemory);
+    } else {
+      importLevelDB(bi, keystore, properties, output, inputs, wrappers, maxMemory);
+    }
+
+    System.out.println("Imported " + bi.datapoints + " datapoints of " + bi.metadatas.size() + " GTS in " + ((System.nanoTime() - nano) / 1000000.0D) + " ms");
+  }
+}
@@ -68,6 +68,39 @@ public class Configuration {
   public static final String WARPSCRIPT_URLFETCH_LIMIT_HARD = "warpscript.urlfetch.limit.hard";
   public static final String WARPSCRIPT_URLFETCH_MAXSIZE_HARD = "warpscript.urlfetch.maxsize.hard";
 
+  /**
+   * Directory where FETCH spills encoded Geo Time Series when called with the 'spill' parameter.
+   * Defaults to java.io.tmpdir
+   */
+  public static final String WARPSCRIPT_FETCH_SPILL_DIR = "warpscript.fetch.spill.dir";
+
+  /**
+   * Number of values above which Geo Time Series are sorted in parallel, 0 disables parallel sorting
+   */
+  public static final String WARPSCRIPT_SORT_PARALLEL_THRESHOLD = "warpscript.sort.parallel.threshold";
+
+  /**
+   * Parallelism of the ForkJoinPool shared by the WarpScript functions which run in parallel
+   * (parallel sort, CORRELATE, OPTDTW). Defaults to the number of available processors
+   */
+  public static final String WARPSCRIPT_FORKJOIN_PARALLELISM = "warpscript.forkjoin.parallelism";
+
+  /**
+   * Number of subsequences above which OPTDTW scans the sequence in parallel, 0 disables parallel scanning
+   */
+  public static final String WARPSCRIPT_OPTDTW_PARALLEL_THRESHOLD = "warpscript.optdtw.parallel.threshold";
+
+  /**
+   * Set to 'false' to create a new engine for each call to a JSR 223 scripting function (PYTHON, JS, RUBY, LUA)
+   * instead of reusing engines until the end of the WarpScript execution. Defaults to true
+   */
+  public static final String WARPSCRIPT_SCRIPTENGINE_REUSE = "warpscript.scriptengine.reuse";
+
+  /**
+   * Maximum number of compiled scripts cached by each reused JSR 223 engine
+   */
+  public static final String WARPSCRIPT_SCRIPTENGINE_CACHE_SIZE = "warpscript.scriptengine.cache.size";
+  
   public static final String WEBCALL_USER_AGENT = "webcall.user.agent";
 
   /**
@@ -97,6 +130,21 @@ public class Configuration {
    */
   public static final String CONFIG_WARPSCRIPT_BOOTSTRAP_PERIOD = "warpscript.bootstrap.period";
 
+  /**
+   * Maximum size in bytes of the results of /exec requests kept in the result cache, the cache is disabled if unset or 0
+   */
+  public static final String CONFIG_WARPSCRIPT_CACHE_SIZE = "warpscript.cache.size";
+  
+  /**
+   * Maximum TTL in ms scripts can request for their cached result
+   */
+  public static final String CONFIG_WARPSCRIPT_CACHE_MAXTTL = "warpscript.cache.maxttl";
+
+  /**
+   * Maximum time in ms a request waits for an identical request being executed before executing its script itself
+   */
+  public static final String CONFIG_WARPSCRIPT_CACHE_MAXWAIT = "warpscript.cache.maxwait";
+
   /**
    * Path of the 'bootstrap' Einstein code for Mobius
    */
@@ -107,6 +155,16 @@ public class Configuration {
    */
   public static final String CONFIG_WARPSCRIPT_MOBIUS_BOOTSTRAP_PERIOD = "warpscript.mobius.bootstrap.period";
 
+  /**
+   * Maximum number of Mobius executions running concurrently
+   */
+  public static final String CONFIG_WARPSCRIPT_MOBIUS_POOL = "warpscript.mobius.pool";
+  
+  /**
+   * Set to 'true' to have Mobius executions keep the series they fetch between runs and only retrieve newer datapoints
+   */
+  public static final String CONFIG_WARPSCRIPT_MOBIUS_INCREMENTAL = "warpscript.mobius.incremental";
+
   /**
    * Path of the 'bootstrap' Einstein code for Runner
    */
@@ -342,6 +400,12 @@ public class Configuration {
    */
   public static final String INGRESS_VALUE_MAXSIZE = "ingress.value.maxsize";
   
+  /**
+   * Maximum size in bytes of the encoded content (and of each string) of a GTSWrapper submitted
+   * to the update endpoints with Content-Type application/x-gts-wrapper. Defaults to 10000000.
+   */
+  public static final String INGRESS_WRAPPER_MAXSIZE = "ingress.wrapper.maxsize";
+  
   /**
    * Identification of Ingress as the Metadata source
    */
@@ -502,6 +566,22 @@ public class Configuration {
    */
   public static final String INGRESS_KAFKA_METADATA_MAXSIZE = "ingress.kafka.metadata.maxsize";
 
+  /**
+   * Number of lanes (and sender threads) of the pipelined Kafka producers. If unset or 0,
+   * request threads send their messages to Kafka themselves.
+   */
+  public static final String INGRESS_KAFKA_PIPELINE_LANES = "ingress.kafka.pipeline.lanes";
+
+  /**
+   * Number of messages each pipeline lane can hold before submitting threads block
+   */
+  public static final String INGRESS_KAFKA_PIPELINE_QUEUESIZE = "ingress.kafka.pipeline.queuesize";
+
+  /**
+   * Maximum time (in ms) a request will wait for its messages to be acknowledged by Kafka, 0 means wait forever
+   */
+  public static final String INGRESS_KAFKA_PIPELINE_TIMEOUT = "ingress.kafka.pipeline.timeout";
+
   /**
    * ZK Connect String for the archive kafka cluster
    */
@@ -964,6 +1044,28 @@ public class Configuration {
    */
   public static final String STANDALONE_SNAPSHOT_SIGNAL = "standalone.snapshot.signal";
   
+  /**
+   * Comma separated list of bucket spans (in time units) for which the standalone backend maintains
+   * pre-aggregated rollups, e.g. 60000000,3600000000,86400000000 for 1m, 1h and 1d buckets
+   */
+  public static final String STANDALONE_ROLLUPS = "standalone.rollups";
+  
+  /**
+   * Comma separated list of aggregators (among min, max, sum, count and last) maintained for each
+   * rollup bucket span, defaults to all of them
+   */
+  public static final String STANDALONE_ROLLUPS_AGGREGATORS = "standalone.rollups.aggregators";
+  
+  /**
+   * Maximum number of deleted datapoints the standalone backend purges per second, 0 for no limit
+   */
+  public static final String STANDALONE_DELETE_PURGE_RATE = "standalone.delete.purge.rate";
+  
+  /**
+   * Number of deleted datapoints the standalone backend removes in each write batch
+   */
+  public static final String STANDALONE_DELETE_PURGE_BATCHSIZE = "standalone.delete.purge.batchsize";
+  
   /**
    * Set to 'true' to indicate the instance will use memory only for storage. This type of instance is non persistent.
    */
@@ -1085,6 +1187,26 @@ public class Configuration {
    */
   public static final String EGRESS_HBASE_FILTER = "egress.hbase.filter";
   
+  /**
+   * Number of threads scanning HBase regions in parallel on behalf of fetches, 0 (the default) disables parallel scanning
+   */
+  public static final String EGRESS_HBASE_PARALLEL_SCANNERS = "egress.hbase.parallel.scanners";
+  
+  /**
+   * Maximum number of regions scanned concurrently for a single fetch
+   */
+  public static final String EGRESS_HBASE_PARALLEL_PERREQUEST = "egress.hbase.parallel.perrequest";
+  
+  /**
+   * Maximum number of bytes of encoded datapoints a region scan may buffer before its reader catches up
+   */
+  public static final String EGRESS_HBASE_PARALLEL_BUFFER = "egress.hbase.parallel.buffer";
+  
+  /**
+   * Minimum number of GTS a fetch must target to be scanned in parallel
+   */
+  public static final String EGRESS_HBASE_PARALLEL_MINGTS = "egress.hbase.parallel.mingts";
+  
   //
   // T H R O T T L I N G    M A N A G E R
   //
@@ -0,0 +1,226 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum;
+
+import io.warp10.sensision.Sensision;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import kafka.producer.KeyedMessage;
+
+/**
+ * Pipelined Kafka production stage.
+ *
+ * Messages are dispatched to a set of lanes according to the hash of their key, so
+ * all messages for a given key (i.e. a given GTS) go through the same lane and are sent
+ * in the order in which they were submitted. Each lane has a bounded queue and a
+ * dedicated sender thread which coalesces pending messages into batches of up to
+ * 'maxsize' bytes.
+ *
+ * Submitting threads do not wait for Kafka, they register their messages against an
+ * {@link Ack} and wait for it when they need the messages to be acknowledged.
+ */
+public class KafkaProducerPipeline {
+
+  /**
+   * Abstraction of the actual Kafka send so the pipeline can be fed to a stub producer
+   */
+  public static interface Sender {
+    public void send(List<KeyedMessage<byte[],byte[]>> messages) throws Exception;
+  }
+
+  /**
+   * Acknowledgement of a group of messages. An Ack is completed when all the messages
+   * registered against it have been sent (or failed to be sent).
+   */
+  public static class Ack {
+    private int pending = 0;
+    private Throwable error = null;
+
+    private synchronized void register() {
+      this.pending++;
+    }
+
+    private synchronized void done(Throwable t) {
+      if (null != t && null == this.error) {
+        this.error = t;
+      }
+      this.pending--;
+      if (0 == this.pending) {
+        this.notifyAll();
+      }
+    }
+
+    /**
+     * Wait for all registered messages to be sent.
+     *
+     * @param timeout Maximum number of ms to wait for, 0 to wait forever
+     * @throws IOException if one of the messages could not be sent or if the timeout expired
+     */
+    public synchronized void await(long timeout) throws IOException {
+      long deadline = System.currentTimeMillis() + timeout;
+
+      while (this.pending > 0) {
+        long wait = 0L;
+
+        if (timeout > 0) {
+          wait = deadline - System.currentTimeMillis();
+          if (wait <= 0) {
+            throw new IOException("Timed out while waiting for Kafka acknowledgement of " + this.pending + " messages.");
+          }
+        }
+
+        try {
+          this.wait(wait);
+        } catch (InterruptedException ie) {
+          throw new IOException("Interrupted while waiting for Kafka acknowledgement.");
+        }
+      }
+
+      if (null != this.error) {
+        Throwable t = this.error;
+        this.error = null;
+        throw new IOException("Error while sending messages to Kafka.", t);
+      }
+    }
+
+    public synchronized int getPending() {
+      return this.pending;
+    }
+  }
+
+  private static final class Entry {
+    private final KeyedMessage<byte[],byte[]> message;
+    private final Ack ack;
+
+    private Entry(KeyedMessage<byte[],byte[]> message, Ack ack) {
+      this.message = message;
+      this.ack = ack;
+    }
+  }
+
+  private final BlockingQueue<Entry>[] lanes;
+
+  private final Sender sender;
+
+  /**
+   * Maximum number of bytes (keys + values) to send in a single batch
+   */
+  private final long maxsize;
+
+  private final String SEND_METRIC_CLASS;
+
+  public KafkaProducerPipeline(final String name, Sender sender, int nlanes, int queuesize, long maxsize, String SEND_METRIC) {
+    this.sender = sender;
+    this.maxsize = maxsize;
+    this.SEND_METRIC_CLASS = SEND_METRIC;
+    this.lanes = new BlockingQueue[nlanes];
+
+    for (int i = 0; i < nlanes; i++) {
+      final BlockingQueue<Entry> lane = new ArrayBlockingQueue<Entry>(queuesize);
+      this.lanes[i] = lane;
+
+      Thread t = new Thread() {
+        @Override
+        public void run() {
+          drain(lane);
+        }
+      };
+
+      t.setDaemon(true);
+      t.setName("[" + name + " Kafka Sender #" + i + "]");
+      t.start();
+    }
+  }
+
+  /**
+   * Submit a message to the pipeline. This will block if the lane the message
+   * is assigned to is full.
+   *
+   * @param message Message to send
+   * @param ack Ack against which the message is registered
+   */
+  public void submit(KeyedMessage<byte[],byte[]> message, Ack ack) throws IOException {
+    int lane = (Arrays.hashCode(message.key()) & 0x7fffffff) % this.lanes.length;
+
+    ack.register();
+
+    try {
+      this.lanes[lane].put(new Entry(message, ack));
+    } catch (InterruptedException ie) {
+      ack.done(ie);
+      throw new IOException("Interrupted while submitting message to Kafka pipeline.");
+    }
+  }
+
+  private void drain(BlockingQueue<Entry> lane) {
+    List<Entry> entries = new ArrayList<Entry>();
+    List<KeyedMessage<byte[],byte[]>> messages = new ArrayList<KeyedMessage<byte[],byte[]>>();
+
+    while (true) {
+      try {
+        //
+        // Wait for a first entry then coalesce whatever is pending
+        //
+
+        Entry entry = lane.take();
+        long size = 0L;
+
+        do {
+          entries.add(entry);
+          messages.add(entry.message);
+          size += entry.message.key().length + entry.message.message().length;
+
+          if (size >= this.maxsize) {
+            break;
+          }
+
+          entry = lane.peek();
+
+          if (null == entry || size + entry.message.key().length + entry.message.message().length > this.maxsize) {
+            break;
+          }
+
+          entry = lane.poll();
+        } while (null != entry);
+
+        Throwable error = null;
+
+        try {
+          this.sender.send(messages);
+          Sensision.update(this.SEND_METRIC_CLASS, Sensision.EMPTY_LABELS, 1);
+        } catch (Throwable t) {
+          error = t;
+        }
+
+        for (Entry e: entries) {
+          e.ack.done(error);
+        }
+      } catch (InterruptedException ie) {
+        // Ignore, we will wait again
+      } finally {
+        entries.clear();
+        messages.clear();
+      }
+    }
+  }
+}
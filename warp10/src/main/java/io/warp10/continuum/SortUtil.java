@@ -16,8 +16,393 @@
 
 package io.warp10.continuum;
 
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+
 public class SortUtil {
   
+  /**
+   * Scratch arrays larger than this number of elements are not kept between calls,
+   * this bounds the retained scratch space to 384kB per thread
+   */
+  private static final int MAX_RETAINED_SCRATCH = 1 << 14;
+  
+  /**
+   * Insertion sort is used below this size
+   */
+  private static final int INSERTION_SORT_THRESHOLD = 32;
+  
+  /**
+   * Scratch arrays reused by a thread across calls so sorting or selecting values in
+   * aggregators does not allocate. Arrays are grown as needed and may be larger than requested.
+   * Callers MUST NOT retain them.
+   */
+  public static final class Scratch {
+    private int[] ints = new int[0];
+    private int[] tmp = new int[0];
+    private long[] longs = new long[0];
+    private double[] doubles = new double[0];
+    
+    private Scratch() {}
+    
+    public int[] ints(int n) {
+      if (n > MAX_RETAINED_SCRATCH) {
+        return new int[n];
+      }
+      if (ints.length < n) {
+        ints = new int[grow(ints.length, n)];
+      }
+      return ints;
+    }
+    
+    /**
+     * Second int array, distinct from the one returned by {@link #ints(int)}
+     */
+    public int[] tmp(int n) {
+      if (n > MAX_RETAINED_SCRATCH) {
+        return new int[n];
+      }
+      if (tmp.length < n) {
+        tmp = new int[grow(tmp.length, n)];
+      }
+      return tmp;
+    }
+    
+    public long[] longs(int n) {
+      if (n > MAX_RETAINED_SCRATCH) {
+        return new long[n];
+      }
+      if (longs.length < n) {
+        longs = new long[grow(longs.length, n)];
+      }
+      return longs;
+    }
+    
+    public double[] doubles(int n) {
+      if (n > MAX_RETAINED_SCRATCH) {
+        return new double[n];
+      }
+      if (doubles.length < n) {
+        doubles = new double[grow(doubles.length, n)];
+      }
+      return doubles;
+    }
+    
+    private static int grow(int length, int n) {
+      return Math.min(MAX_RETAINED_SCRATCH, Math.max(n, length + (length >> 1)));
+    }
+  }
+  
+  /**
+   * Scratch arrays are softly referenced so idle threads do not pin them under memory pressure
+   */
+  private static final ThreadLocal<SoftReference<Scratch>> SCRATCH = new ThreadLocal<SoftReference<Scratch>>();
+  
+  /**
+   * Return the scratch arrays of the current thread
+   */
+  public static Scratch scratch() {
+    SoftReference<Scratch> ref = SCRATCH.get();
+    
+    Scratch scratch = null != ref ? ref.get() : null;
+    
+    if (null == scratch) {
+      scratch = new Scratch();
+      SCRATCH.set(new SoftReference<Scratch>(scratch));
+    }
+    
+    return scratch;
+  }
+  
+  /**
+   * Map a double to a long so that comparing the longs orders the doubles as Double.compare does
+   */
+  public static long sortableBits(double d) {
+    long bits = Double.doubleToLongBits(d);
+    return bits ^ ((bits >> 63) & 0x7fffffffffffffffL);
+  }
+  
+  /**
+   * Return the k-th (0 based) smallest value of values[from,to[, partially reordering it.
+   * Quickselect with a median of three pivot, falling back to sorting the remaining range when
+   * partitioning does not shrink it fast enough, so the worst case is O(n log n).
+   */
+  public static long select(long[] values, int from, int to, int k) {
+    int lo = from;
+    int hi = to - 1;
+    int target = from + k;
+    int budget = 2 * (32 - Integer.numberOfLeadingZeros(to - from));
+    
+    while (lo < hi) {
+      if (0 == budget--) {
+        Arrays.sort(values, lo, hi + 1);
+        break;
+      }
+      
+      int mid = (lo + hi) >>> 1;
+      
+      if (values[mid] < values[lo]) {
+        swap(values, mid, lo);
+      }
+      if (values[hi] < values[lo]) {
+        swap(values, hi, lo);
+      }
+      if (values[hi] < values[mid]) {
+        swap(values, hi, mid);
+      }
+      
+      long pivot = values[mid];
+      
+      int i = lo;
+      int j = hi;
+      
+      while (i <= j) {
+        while (values[i] < pivot) {
+          i++;
+        }
+        while (values[j] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          swap(values, i, j);
+          i++;
+          j--;
+        }
+      }
+      
+      if (target <= j) {
+        hi = j;
+      } else if (target >= i) {
+        lo = i;
+      } else {
+        break;
+      }
+    }
+    
+    return values[target];
+  }
+  
+  /**
+   * Return the k-th (0 based) smallest value of values[from,to[, partially reordering it.
+   * Values are compared using Double.compare, the worst case is O(n log n).
+   */
+  public static double select(double[] values, int from, int to, int k) {
+    int lo = from;
+    int hi = to - 1;
+    int target = from + k;
+    int budget = 2 * (32 - Integer.numberOfLeadingZeros(to - from));
+    
+    while (lo < hi) {
+      if (0 == budget--) {
+        // Arrays.sort orders doubles as Double.compare does
+        Arrays.sort(values, lo, hi + 1);
+        break;
+      }
+      
+      int mid = (lo + hi) >>> 1;
+      
+      if (Double.compare(values[mid], values[lo]) < 0) {
+        swap(values, mid, lo);
+      }
+      if (Double.compare(values[hi], values[lo]) < 0) {
+        swap(values, hi, lo);
+      }
+      if (Double.compare(values[hi], values[mid]) < 0) {
+        swap(values, hi, mid);
+      }
+      
+      double pivot = values[mid];
+      
+      int i = lo;
+      int j = hi;
+      
+      while (i <= j) {
+        while (Double.compare(values[i], pivot) < 0) {
+          i++;
+        }
+        while (Double.compare(values[j], pivot) > 0) {
+          j--;
+        }
+        if (i <= j) {
+          swap(values, i, j);
+          i++;
+          j--;
+        }
+      }
+      
+      if (target <= j) {
+        hi = j;
+      } else if (target >= i) {
+        lo = i;
+      } else {
+        break;
+      }
+    }
+    
+    return values[target];
+  }
+  
+  /**
+   * Return the largest value of values[from,to[
+   */
+  public static long max(long[] values, int from, int to) {
+    long max = values[from];
+    for (int i = from + 1; i < to; i++) {
+      if (values[i] > max) {
+        max = values[i];
+      }
+    }
+    return max;
+  }
+  
+  /**
+   * Return the largest value of values[from,to[ according to Double.compare
+   */
+  public static double max(double[] values, int from, int to) {
+    double max = values[from];
+    for (int i = from + 1; i < to; i++) {
+      if (Double.compare(values[i], max) > 0) {
+        max = values[i];
+      }
+    }
+    return max;
+  }
+  
+  /**
+   * Stable sort of indices[from,to[ by increasing keys[index].
+   * 
+   * @param tmp Scratch array of at least 'to' elements
+   */
+  public static void sortIndices(int[] indices, long[] keys, int from, int to, int[] tmp) {
+    if (to - from <= INSERTION_SORT_THRESHOLD) {
+      for (int i = from + 1; i < to; i++) {
+        int idx = indices[i];
+        long key = keys[idx];
+        int j = i - 1;
+        while (j >= from && keys[indices[j]] > key) {
+          indices[j + 1] = indices[j];
+          j--;
+        }
+        indices[j + 1] = idx;
+      }
+      return;
+    }
+    
+    int mid = (from + to) >>> 1;
+    
+    sortIndices(indices, keys, from, mid, tmp);
+    sortIndices(indices, keys, mid, to, tmp);
+    
+    // Both halves are already in order
+    if (keys[indices[mid - 1]] <= keys[indices[mid]]) {
+      return;
+    }
+    
+    System.arraycopy(indices, from, tmp, from, mid - from);
+    
+    int i = from;
+    int j = mid;
+    int k = from;
+    
+    while (i < mid && j < to) {
+      if (keys[indices[j]] < keys[tmp[i]]) {
+        indices[k++] = indices[j++];
+      } else {
+        indices[k++] = tmp[i++];
+      }
+    }
+    
+    while (i < mid) {
+      indices[k++] = tmp[i++];
+    }
+  }
+  
+  /**
+   * Return the index at rank k (0 based) of indices[from,to[ if it were sorted by
+   * {@link #sortIndices(int[], long[], int, int, int[])}, i.e. ordered by increasing key
+   * then by increasing index. indices[from,to[ is partially reordered, the worst case is O(n log n).
+   * 
+   * @param tmp Scratch array of at least 'to' elements
+   */
+  public static int selectIndex(int[] indices, long[] keys, int from, int to, int k, int[] tmp) {
+    int lo = from;
+    int hi = to - 1;
+    int target = from + k;
+    int budget = 2 * (32 - Integer.numberOfLeadingZeros(to - from));
+    
+    while (lo < hi) {
+      if (0 == budget--) {
+        // Sort the remaining range by index first so the stable sort breaks ties by index
+        Arrays.sort(indices, lo, hi + 1);
+        sortIndices(indices, keys, lo, hi + 1, tmp);
+        break;
+      }
+      
+      int mid = (lo + hi) >>> 1;
+      
+      if (before(keys, indices[mid], indices[lo])) {
+        swap(indices, mid, lo);
+      }
+      if (before(keys, indices[hi], indices[lo])) {
+        swap(indices, hi, lo);
+      }
+      if (before(keys, indices[hi], indices[mid])) {
+        swap(indices, hi, mid);
+      }
+      
+      int pivot = indices[mid];
+      
+      int i = lo;
+      int j = hi;
+      
+      while (i <= j) {
+        while (before(keys, indices[i], pivot)) {
+          i++;
+        }
+        while (before(keys, pivot, indices[j])) {
+          j--;
+        }
+        if (i <= j) {
+          swap(indices, i, j);
+          i++;
+          j--;
+        }
+      }
+      
+      if (target <= j) {
+        hi = j;
+      } else if (target >= i) {
+        lo = i;
+      } else {
+        break;
+      }
+    }
+    
+    return indices[target];
+  }
+  
+  private static boolean before(long[] keys, int idx1, int idx2) {
+    return keys[idx1] < keys[idx2] || (keys[idx1] == keys[idx2] && idx1 < idx2);
+  }
+  
+  private static void swap(long[] values, int i, int j) {
+    long tmp = values[i];
+    values[i] = values[j];
+    values[j] = tmp;
+  }
+  
+  private static void swap(double[] values, int i, int j) {
+    double tmp = values[i];
+    values[i] = values[j];
+    values[j] = tmp;
+  }
+  
+  private static void swap(int[] values, int i, int j) {
+    int tmp = values[i];
+    values[i] = values[j];
+    values[j] = tmp;
+  }
+  
   public static interface Sorter {
     /**
      * Exchange two indices
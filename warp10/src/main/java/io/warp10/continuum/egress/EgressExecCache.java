@@ -0,0 +1,231 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.egress;
+
+import io.warp10.continuum.sensision.SensisionConstants;
+import io.warp10.sensision.Sensision;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.util.encoders.Hex;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Cache of the results of /exec requests whose script declared a TTL with CACHERESULT.
+ *
+ * Requests are identified by a hash of their path and script, tokens are therefore part of the key.
+ * Results expire at the end of the period of length TTL during which they were produced, so identical
+ * requests are all refreshed at the same time. The cache is bounded by the size of the results and
+ * evicts the least recently used ones first.
+ *
+ * Once a request is known to be cacheable, identical requests arriving while it is executed wait for
+ * its result instead of executing it as well. They wait at most 'maxwait' ms, then execute the script
+ * themselves, so a slow execution does not hold on to more request threads than it would uncached.
+ */
+public class EgressExecCache {
+  
+  /**
+   * Estimated memory used by an entry in addition to its result
+   */
+  private static final long ENTRY_OVERHEAD = 256L;
+  
+  private static final class Result {
+    /**
+     * Result content, null if it was too large to be kept
+     */
+    private final byte[] content;
+    private final long expiry;
+    
+    private Result(byte[] content, long expiry) {
+      this.content = content;
+      this.expiry = expiry;
+    }
+    
+    private long size() {
+      return ENTRY_OVERHEAD + (null == content ? 0 : content.length);
+    }
+  }
+  
+  /**
+   * Execution of a cacheable request other identical requests can wait for
+   */
+  public static final class Flight {
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private volatile byte[] result = null;
+  }
+  
+  private final long maxsize;
+  private final long maxttl;
+  private final long maxwait;
+  
+  /**
+   * Results in access order. Expired results are kept until evicted as they indicate that the request is cacheable.
+   * Guarded by 'this'.
+   */
+  private final LinkedHashMap<String,Result> results = new LinkedHashMap<String,Result>(16, 0.75F, true);
+  
+  private long size = 0L;
+  
+  private final ConcurrentHashMap<String,Flight> flights = new ConcurrentHashMap<String,Flight>();
+  
+  /**
+   * @param maxsize Maximum size in bytes of the cached results
+   * @param maxttl Maximum TTL in ms of the cached results
+   * @param maxwait Maximum time in ms to wait for an identical request being executed
+   */
+  public EgressExecCache(long maxsize, long maxttl, long maxwait) {
+    this.maxsize = maxsize;
+    this.maxttl = maxttl;
+    this.maxwait = maxwait;
+  }
+  
+  public static String key(String path, String script) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update(String.valueOf(path).getBytes(Charsets.UTF_8));
+      md.update((byte) '\n');
+      md.update(script.getBytes(Charsets.UTF_8));
+      return new String(Hex.encode(md.digest()), Charsets.US_ASCII);
+    } catch (NoSuchAlgorithmException nsae) {
+      throw new RuntimeException(nsae);
+    }
+  }
+  
+  /**
+   * @return The unexpired result of the request or null
+   */
+  public synchronized byte[] get(String key) {
+    Result result = this.results.get(key);
+    
+    if (null == result || System.currentTimeMillis() >= result.expiry) {
+      return null;
+    }
+    
+    return result.content;
+  }
+  
+  /**
+   * @return true if a result was cached for the request, even if it has expired since
+   */
+  public synchronized boolean isCacheable(String key) {
+    return this.results.containsKey(key);
+  }
+  
+  /**
+   * Cache the result of a request
+   * 
+   * @param ttl TTL in ms requested by the script, capped to the maximum TTL
+   * @param timestamp Time in ms at which the request was received
+   */
+  public void put(String key, long ttl, long timestamp, byte[] content) {
+    ttl = Math.min(ttl, this.maxttl);
+    
+    if (ttl <= 0) {
+      return;
+    }
+    
+    long expiry = (timestamp / ttl + 1) * ttl;
+    
+    // Do not let a single result flush a large part of the cache, only remember the request is cacheable
+    Result result = new Result(content.length > this.maxsize / 10 ? null : content, expiry);
+    
+    long evictions = 0L;
+    
+    synchronized(this) {
+      Result previous = this.results.put(key, result);
+      
+      if (null != previous) {
+        this.size -= previous.size();
+      }
+      
+      this.size += result.size();
+      
+      Iterator<Result> iter = this.results.values().iterator();
+      
+      while(this.size > this.maxsize && iter.hasNext()) {
+        this.size -= iter.next().size();
+        iter.remove();
+        evictions++;
+      }
+      
+      Sensision.set(SensisionConstants.SENSISION_CLASS_EINSTEIN_RESULTCACHE_ENTRIES, Sensision.EMPTY_LABELS, this.results.size());
+      Sensision.set(SensisionConstants.SENSISION_CLASS_EINSTEIN_RESULTCACHE_BYTES, Sensision.EMPTY_LABELS, this.size);
+    }
+    
+    if (evictions > 0) {
+      Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_RESULTCACHE_EVICTIONS, Sensision.EMPTY_LABELS, evictions);
+    }
+  }
+  
+  /**
+   * Register the execution of a request
+   * 
+   * @return The Flight to complete once the request was executed, or null if an identical request is already being executed
+   */
+  public Flight lead(String key) {
+    Flight flight = new Flight();
+    
+    if (null != this.flights.putIfAbsent(key, flight)) {
+      return null;
+    }
+    
+    return flight;
+  }
+  
+  /**
+   * Wait at most 'maxwait' ms for the identical request being executed
+   * 
+   * @return Its result or null if there was none, it could not be cached or it took too long
+   */
+  public byte[] follow(String key) {
+    Flight flight = this.flights.get(key);
+    
+    if (null == flight) {
+      return null;
+    }
+    
+    try {
+      if (!flight.latch.await(this.maxwait, TimeUnit.MILLISECONDS)) {
+        Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_RESULTCACHE_TIMEOUTS, Sensision.EMPTY_LABELS, 1);
+        return null;
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    
+    return flight.result;
+  }
+  
+  /**
+   * Release the requests waiting for 'flight'
+   * 
+   * @param result Result of the request, null if it failed or could not be cached
+   */
+  public void complete(String key, Flight flight, byte[] result) {
+    flight.result = result;
+    this.flights.remove(key);
+    flight.latch.countDown();
+  }
+}
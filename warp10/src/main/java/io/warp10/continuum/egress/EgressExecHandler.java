@@ -30,6 +30,7 @@ import io.warp10.crypto.KeyStore;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptLib;
+import io.warp10.script.WarpScriptProfiler;
 import io.warp10.script.WarpScriptStack;
 import io.warp10.script.WarpScriptStopException;
 import io.warp10.script.MemoryWarpScriptStack;
@@ -43,6 +44,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.util.EmptyStackException;
@@ -77,6 +80,11 @@ public class EgressExecHandler extends AbstractHandler {
 
   private final BootstrapManager bootstrapManager;
   
+  /**
+   * Cache of the results of cacheable requests, null if disabled
+   */
+  private final EgressExecCache cache;
+  
   public EgressExecHandler(KeyStore keyStore, Properties properties, DirectoryClient directoryClient, GeoDirectoryClient geoDirectoryClient, StoreClient storeClient) {
     this.keyStore = keyStore;
     this.storeClient = storeClient;
@@ -96,6 +104,16 @@ public class EgressExecHandler extends AbstractHandler {
     } else {
       this.bootstrapManager = new BootstrapManager();
     }
+    
+    long cachesize = Long.parseLong(properties.getProperty(Configuration.CONFIG_WARPSCRIPT_CACHE_SIZE, "0"));
+    
+    if (cachesize > 0) {
+      this.cache = new EgressExecCache(cachesize,
+          Long.parseLong(properties.getProperty(Configuration.CONFIG_WARPSCRIPT_CACHE_MAXTTL, "60000")),
+          Long.parseLong(properties.getProperty(Configuration.CONFIG_WARPSCRIPT_CACHE_MAXWAIT, "10000")));
+    } else {
+      this.cache = null;
+    }
   }
   
   
@@ -126,6 +144,55 @@ public class EgressExecHandler extends AbstractHandler {
     
     UUID uuid = UUID.randomUUID();
     
+    long now = System.nanoTime();
+    long received = System.currentTimeMillis();
+    
+    //
+    // When the result cache is enabled, read the whole script so we can check if an
+    // identical request was recently executed or is currently being executed
+    //
+    
+    String script = null;
+    String cacheKey = null;
+    EgressExecCache.Flight flight = null;
+    
+    if (null != this.cache) {
+      StringBuilder sb = new StringBuilder();
+      BufferedReader br = req.getReader();
+      
+      while(true) {
+        String line = br.readLine();
+        if (null == line) {
+          break;
+        }
+        sb.append(line).append("\n");
+      }
+      
+      script = sb.toString();
+      cacheKey = EgressExecCache.key(req.getPathInfo(), script);
+      
+      byte[] result = this.cache.get(cacheKey);
+      
+      if (null == result && this.cache.isCacheable(cacheKey)) {
+        flight = this.cache.lead(cacheKey);
+        
+        if (null == flight) {
+          Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_RESULTCACHE_COALESCED, Sensision.EMPTY_LABELS, 1);
+          // A null result means the script has to be executed, this request then does not lead
+          result = this.cache.follow(cacheKey);
+        }
+      }
+      
+      if (null != result) {
+        Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_RESULTCACHE_HITS, Sensision.EMPTY_LABELS, 1);
+        resp.setHeader(Constants.getHeader(Configuration.HTTP_HEADER_ELAPSEDX), Long.toString(System.nanoTime() - now));
+        resp.getOutputStream().write(result);
+        return;
+      }
+      
+      Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_RESULTCACHE_MISSES, Sensision.EMPTY_LABELS, 1);
+    }
+    
     //
     // Create EinsteinExecutionReport
     //
@@ -152,7 +219,8 @@ public class EgressExecHandler extends AbstractHandler {
     // Labels for Sensision
     Map<String,String> labels = new HashMap<String,String>();
 
-    long now = System.nanoTime();
+    // Result to hand to the requests waiting for this one
+    byte[] cached = null;
     
     try {
       //
@@ -204,7 +272,7 @@ public class EgressExecHandler extends AbstractHandler {
       // Now read lines of the body, interpreting them
       //
       
-      BufferedReader br = req.getReader();
+      BufferedReader br = null != script ? new BufferedReader(new StringReader(script)) : req.getReader();
                   
       labels.put(SensisionConstants.SENSISION_LABEL_THREAD, Long.toHexString(Thread.currentThread().getId()));
       
@@ -278,7 +346,20 @@ public class EgressExecHandler extends AbstractHandler {
         stack.push(exports);
       }
       
-      StackUtils.toJSON(resp.getWriter(), stack);
+      Object ttl = stack.getAttribute(WarpScriptStack.ATTRIBUTE_RESULT_CACHE_TTL);
+      
+      if (null != cacheKey && ttl instanceof Long && ((Long) ttl) > 0) {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        StackUtils.toJSON(pw, stack);
+        pw.flush();
+        // Use the encoding resp.getWriter() would have used so cached and uncached results are identical
+        cached = sw.toString().getBytes(resp.getCharacterEncoding());
+        this.cache.put(cacheKey, (Long) ttl, received, cached);
+        resp.getOutputStream().write(cached);
+      } else {
+        StackUtils.toJSON(resp.getWriter(), stack);
+      }
     } catch (Exception e) {
       t = e;      
       
@@ -322,6 +403,13 @@ public class EgressExecHandler extends AbstractHandler {
         throw new IOException("ERROR line #" + lineno + ": " + t.getMessage() + (null != t.getCause() ? " (" + t.getCause().getMessage() + ")" : ""));
       }
     } finally {
+      if (null != flight) {
+        this.cache.complete(cacheKey, flight, cached);
+      }
+      
+      // Release the resources (spill files, ...) allocated by the script
+      StackUtils.closeResources(stack);
+      
       // Clear this metric in case there was an exception
       Sensision.clear(SensisionConstants.SENSISION_CLASS_EINSTEIN_CURRENTEXEC_TIMESTAMP, labels);
       Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_REQUESTS, Sensision.EMPTY_LABELS, 1);
@@ -334,6 +422,16 @@ public class EgressExecHandler extends AbstractHandler {
       
       Sensision.set(SensisionConstants.SENSISION_CLASS_EINSTEIN_JVM_FREEMEMORY, Sensision.EMPTY_LABELS, Runtime.getRuntime().freeMemory());
       
+      //
+      // Export the profile of the script if it was profiled
+      //
+      
+      Object profiler = stack.getAttribute(WarpScriptStack.ATTRIBUTE_PROFILER);
+      
+      if (profiler instanceof WarpScriptProfiler) {
+        ((WarpScriptProfiler) profiler).export();
+      }
+      
       LoggingEvent event = LogUtil.setLoggingEventAttribute(null, LogUtil.WARPSCRIPT_SCRIPT, scriptSB.toString());
       event = LogUtil.setLoggingEventAttribute(event, LogUtil.WARPSCRIPT_TIMES, timeSB.toString());
       
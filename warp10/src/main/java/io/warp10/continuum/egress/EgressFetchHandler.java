@@ -23,6 +23,7 @@ import io.warp10.continuum.gts.GTSEncoder;
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.GTSWrapperHelper;
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.BinaryFrames;
 import io.warp10.continuum.store.Constants;
 import io.warp10.continuum.store.DirectoryClient;
 import io.warp10.continuum.store.GTSDecoderIterator;
@@ -38,11 +39,16 @@ import io.warp10.crypto.SipHashInline;
 import io.warp10.quasar.token.thrift.data.ReadToken;
 import io.warp10.script.WarpScriptException;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
@@ -89,6 +95,11 @@ public class EgressFetchHandler extends AbstractHandler {
 
   private static final Logger LOG = LoggerFactory.getLogger(EgressFetchHandler.class);
   
+  /**
+   * MAC of the binary frames of unsigned wrappers
+   */
+  private static final byte[] NO_MAC = new byte[0];
+  
   private DateTimeFormatter fmt = ISODateTimeFormat.dateTimeParser();
 
   private final StoreClient storeClient;
@@ -131,6 +142,7 @@ public class EgressFetchHandler extends AbstractHandler {
     boolean fromArchive = false;
     boolean splitFetch = false;
     boolean writeTimestamp = false;
+    boolean binary = false;
     
     if (Constants.API_ENDPOINT_FETCH.equals(target)) {
       baseRequest.setHandled(true);
@@ -141,6 +153,7 @@ public class EgressFetchHandler extends AbstractHandler {
     } else if (Constants.API_ENDPOINT_SFETCH.equals(target)) {
       baseRequest.setHandled(true);
       splitFetch = true;
+      binary = Constants.BINARY_FRAMES_FORMAT.equals(req.getParameter(Constants.HTTP_PARAM_FORMAT));
     } else {
       return;
     }
@@ -354,8 +367,16 @@ public class EgressFetchHandler extends AbstractHandler {
       }
       
       BufferedReader br = null;
-          
-      if (gzipped) {
+      DataInputStream dis = null;
+      
+      //
+      // In binary mode the splits are sent as <length><split> frames
+      //
+      
+      if (binary) {
+        InputStream is = gzipped ? new GZIPInputStream(req.getInputStream()) : req.getInputStream();
+        dis = new DataInputStream(new BufferedInputStream(is));
+      } else if (gzipped) {
         GZIPInputStream is = new GZIPInputStream(req.getInputStream());
         br = new BufferedReader(new InputStreamReader(is));
       } else {    
@@ -363,7 +384,8 @@ public class EgressFetchHandler extends AbstractHandler {
       }
 
       final BufferedReader fbr = br;
-      
+      final DataInputStream fdis = dis;
+
 
       MetadataIterator iterator = new MetadataIterator() {
         
@@ -375,7 +397,11 @@ public class EgressFetchHandler extends AbstractHandler {
         
         @Override
         public void close() throws Exception {
-          fbr.close();
+          if (null != fdis) {
+            fdis.close();
+          } else {
+            fbr.close();
+          }
         }
         
         @Override
@@ -403,24 +429,50 @@ public class EgressFetchHandler extends AbstractHandler {
             return false;            
           }
           
-          String line = null;
+          byte[] data = null;
           
-          try {
-            line = fbr.readLine();
-          } catch (IOException ioe) {
-            throw new RuntimeException(ioe);
-          }
-          
-          if (null == line) {
-            done = true;
-            return false;
+          if (null != fdis) {
+            try {
+              int len;
+              
+              try {
+                len = BinaryFrames.readLength(fdis);
+              } catch (EOFException eofe) {
+                done = true;
+                return false;
+              }
+              
+              if (BinaryFrames.END == len) {
+                done = true;
+                return false;
+              }
+              
+              data = new byte[len];
+              fdis.readFully(data);
+            } catch (IOException ioe) {
+              throw new RuntimeException(ioe);
+            }
+          } else {
+            String line = null;
+            
+            try {
+              line = fbr.readLine();
+            } catch (IOException ioe) {
+              throw new RuntimeException(ioe);
+            }
+            
+            if (null == line) {
+              done = true;
+              return false;
+            }
+            
+            data = OrderPreservingBase64.decode(line.getBytes(Charsets.US_ASCII));
           }
           
           //
-          // Decode/Unwrap/Deserialize the split
+          // Unwrap/Deserialize the split
           //
           
-          byte[] data = OrderPreservingBase64.decode(line.getBytes(Charsets.US_ASCII));
           if (null != fetchAES) {
             data = CryptoUtils.unwrap(fetchAES, data);
           }
@@ -618,7 +670,7 @@ public class EgressFetchHandler extends AbstractHandler {
             } else if ("raw".equals(format)) {
               rawDump(resp, iter, dedup, signed);
             } else if ("wrapper".equals(format)) {
-              wrapperDump(resp, iter, dedup, signed, fetchPSK);
+              wrapperDump(resp, iter, dedup, signed, fetchPSK, binary);
             } else if ("json".equals(format)) {
               jsonDump(resp, iter, now, timespan, dedup, signed);
             } else {
@@ -650,7 +702,17 @@ public class EgressFetchHandler extends AbstractHandler {
         } catch (Exception e) {          
         }
       }
-    }    
+    }
+    
+    //
+    // Mark the end of the frames so truncated responses can be detected
+    //
+    
+    if (binary) {
+      DataOutputStream out = new DataOutputStream(resp.getOutputStream());
+      BinaryFrames.writeEnd(out);
+      out.flush();
+    }
   }
   
   private static void rawDump(HttpServletResponse resp, GTSDecoderIterator iter, boolean dedup, boolean signed) throws IOException {
@@ -736,15 +798,23 @@ public class EgressFetchHandler extends AbstractHandler {
     }        
   }
 
-  private static void wrapperDump(HttpServletResponse resp, GTSDecoderIterator iter, boolean dedup, boolean signed, byte[] fetchPSK) throws IOException {
+  /**
+   * Output serialized GTSWrappers, either as lines or as binary frames.
+   * 
+   * Binary frames are <key><mac><GTSWrapper> records (see BinaryFrames) where the key is the hex
+   * encoded GTSWrapper id and the MAC is empty when no fetch PSK is set.
+   */
+  private static void wrapperDump(HttpServletResponse resp, GTSDecoderIterator iter, boolean dedup, boolean signed, byte[] fetchPSK, boolean binary) throws IOException {
 
     if (!signed) {
       throw new IOException("Unsigned request.");
     }
     
-    StringBuilder sb = new StringBuilder();
-    
     OutputStream out = resp.getOutputStream();
+    
+    DataOutputStream dos = binary ? new DataOutputStream(out) : null;
+    
+    TSerializer serializer = new TSerializer(new TCompactProtocol.Factory());
 
     while(iter.hasNext()) {
       GTSDecoder decoder = iter.next();
@@ -775,7 +845,6 @@ public class EgressFetchHandler extends AbstractHandler {
       // Serialize the wrapper
       //
       
-      TSerializer serializer = new TSerializer(new TCompactProtocol.Factory());
       byte[] data = null;
       
       try {
@@ -784,6 +853,12 @@ public class EgressFetchHandler extends AbstractHandler {
         throw new IOException(te);
       }
       
+      if (binary) {
+        byte[] mac = null != fetchPSK ? Longs.toByteArray(SipHashInline.hash24(fetchPSK, data)) : NO_MAC;
+        BinaryFrames.writeWrapper(dos, Hex.encode(GTSWrapperHelper.getId(wrapper)), mac, data);
+        continue;
+      }
+      
       //
       // Output is GTSWrapperId <WSP> HASH <WSP> GTSWrapper
       //
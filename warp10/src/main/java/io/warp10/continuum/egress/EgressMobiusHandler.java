@@ -33,12 +33,15 @@ import io.warp10.script.functions.EVERY;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Properties;
-import java.util.concurrent.Executor;
+import java.util.Set;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -63,116 +66,150 @@ import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
 /**
  * Mobius allows Einstein scripts to be periodically executed and their result
  * to be pushed back to the caller.
- * 
-  */
+ *
+ * Sessions submitting the same script share a single execution whose results are
+ * pushed to all of them, as long as the script does not carry a context over.
+ *
+ * In incremental mode, the series fetched by an execution are kept between runs so
+ * only the datapoints more recent than the previous run are retrieved.
+ */
 public class EgressMobiusHandler extends WebSocketHandler.Simple implements Runnable {
-  
+
   private final StoreClient storeClient;
   private final DirectoryClient directoryClient;
   private final BootstrapManager bootstrapManager;
-  
+
+  private final boolean incremental;
+
+  private final ThreadPoolExecutor executor;
+
   private static final String CONTEXT_SYMBOL = "context";
-  
-  private static final Comparator<Session> DEADLINE_COMPARATOR = new Comparator<Session>() {
-    @Override
-    public int compare(Session session1, Session session2) {
-      Long deadline1 = deadlines.get(session1);
-      Long deadline2 = deadlines.get(session2);
-      
-      if(null == deadline1) {
-        if (null == deadline2) {
-          return 0;
-        } else {
-          return -1;
-        }
-      } else if (null == deadline2) {
-        if (null == deadline1) {
-          return 0;
-        } else {
-          return 1;
-        }
-      } else {
-        return Long.signum((long) deadline1 - (long) deadline2);
-      }
-    }      
-  };
-  
-  private static final PriorityQueue<Session> scheduledRuns = new PriorityQueue<Session>(1024, DEADLINE_COMPARATOR);
-  
+
+  /**
+   * Delay (in ms) before retrying to run an execution the executor rejected
+   */
+  private static final long REJECTED_DELAY = 100L;
+
   /**
-   * Macros to be scheduled
+   * Periodic execution of a macro, shared by the sessions which submitted the same script
    */
-  private static final Map<Session,Macro> macros = new HashMap<Session, Macro>();
-  
+  static final class Execution {
+
+    final Macro macro;
+
+    /**
+     * Script the macro was built from, null once the execution can no longer be shared
+     */
+    String script;
+
+    final Set<Session> sessions = new HashSet<Session>();
+
+    /**
+     * Deadline of the next run
+     */
+    long deadline;
+
+    /**
+     * Is the execution waiting in 'scheduledRuns'
+     */
+    boolean scheduled = false;
+
+    /**
+     * Context carried over from run to run
+     */
+    Object context = null;
+
+    /**
+     * Store client caching the fetched series, null if not in incremental mode
+     */
+    final IncrementalStoreClient storeClient;
+
+    private Execution(Macro macro, String script, IncrementalStoreClient storeClient) {
+      this.macro = macro;
+      this.script = script;
+      this.storeClient = storeClient;
+    }
+  }
+
+  private static final Comparator<Execution> DEADLINE_COMPARATOR = new Comparator<Execution>() {
+    @Override
+    public int compare(Execution execution1, Execution execution2) {
+      return Long.compare(execution1.deadline, execution2.deadline);
+    }
+  };
+
+  //
+  // The following structures are guarded by 'executions'
+  //
+
+  static final PriorityQueue<Execution> scheduledRuns = new PriorityQueue<Execution>(1024, DEADLINE_COMPARATOR);
+
   /**
-   * Deadline of the next run
+   * Execution each session is attached to
    */
-  private static final Map<Session,Long> deadlines = new HashMap<Session, Long>();
-  
+  static final Map<Session,Execution> executions = new HashMap<Session, Execution>();
+
   /**
-   * Context carried over from run to run
+   * Executions which new sessions may share, by script
    */
-  private static final Map<Session,Object> contexts = new HashMap<Session, Object>();
+  static final Map<String,Execution> shared = new HashMap<String, Execution>();
 
   @WebSocket
   public static class MobiusWebSocket {
-    
+
     private EgressMobiusHandler mobius = null;
-    
+
     @OnWebSocketConnect
     public void onWebSocketConnect(Session session) {
     }
-    
+
     @OnWebSocketMessage
     public void onWebSocketMessage(Session session, String message) throws Exception {
-      
+
       if("ABORT".equals(message)) {
         //
         // Abort current background Einstein execution
         //
-        
-        synchronized(macros) {
-          scheduledRuns.remove(session);
-          macros.remove(session);
-          deadlines.remove(session);
-          contexts.remove(session);
+
+        synchronized(executions) {
+          detach(session);
         }
-        
+
         return;
       }
-      
+
       //
       // Build a macro
       //
-      
+
       StringBuilder sb = new StringBuilder();
       sb.append(WarpScriptStack.MACRO_START);
       sb.append(" ");
       sb.append(message);
       sb.append("\n");
       sb.append(WarpScriptStack.MACRO_END);
-      
+
       //
       // Execute Einstein so we retrieve the macro
       //
-      
-      WarpScriptStack stack = new MemoryWarpScriptStack(null, null);           
+
+      WarpScriptStack stack = new MemoryWarpScriptStack(null, null);
 
       boolean error = false;
-      
+
       try {
         //
         // Replace the context with the bootstrap one
         //
-        
+
         if (null != this.mobius) {
           StackContext context = this.mobius.bootstrapManager.getBootstrapContext();
-              
+
           if (null != context) {
             stack.push(context);
             stack.restore();
           }
-              
+
           //
           // Execute the bootstrap code
           //
@@ -188,9 +225,9 @@ public class EgressMobiusHandler extends WebSocketHandler.Simple implements Runn
       //
       // Pop the resulting macro off the stack
       //
-      
+
       Macro macro = null;
-      
+
       if (stack.peek() instanceof Macro) {
         macro = (Macro) stack.pop();
       }
@@ -199,75 +236,183 @@ public class EgressMobiusHandler extends WebSocketHandler.Simple implements Runn
       // Return content of the stack post macro parsing
       // This may contain an error, otherwise will be []
       //
-      
+
       StringWriter sw = new StringWriter();
       PrintWriter pw = new PrintWriter(sw);
-      
+
       StackUtils.toJSON(pw, stack);
 
       pw.flush();
       session.getRemote().sendStringByFuture(sw.toString());
-      
+
       if (null != macro) {
         //
-        // Schedule macro        
+        // Schedule macro, sharing the execution of the same script if possible
         //
-        synchronized(macros) {
-          macros.put(session, macro);
-          deadlines.put(session, System.currentTimeMillis());
-          contexts.put(session, null);
-          scheduledRuns.add(session);
+
+        boolean incremental = null != this.mobius && this.mobius.incremental;
+
+        synchronized(executions) {
+          attach(session, message, macro, incremental ? this.mobius.storeClient : null);
         }
-      }      
+      }
     }
-    
-    @OnWebSocketClose    
+
+    @OnWebSocketClose
     public void onWebSocketClose(Session session, int statusCode, String reason) {
-      synchronized(macros) {
-        scheduledRuns.remove(session);
-        macros.remove(session);
-        deadlines.remove(session);
-        contexts.remove(session);
+      synchronized(executions) {
+        detach(session);
       }
     }
-    
+
     public void setMobiusHandler(EgressMobiusHandler mobius) {
       this.mobius = mobius;
     }
   }
-  
+
+  /**
+   * Attach a session to the execution of 'script', shared with the sessions which submitted the same
+   * script if possible. The execution is run now so the new session gets a result, unless it is currently
+   * running in which case the session will receive the result of the current run.
+   * MUST be called while holding the lock on 'executions'.
+   *
+   * @param storeClient Store client to wrap in an IncrementalStoreClient if a new execution is created, null if not in incremental mode
+   * @return The execution the session was attached to
+   */
+  static Execution attach(Session session, String script, Macro macro, StoreClient storeClient) {
+    detach(session);
+
+    Execution execution = shared.get(script);
+
+    if (null == execution) {
+      execution = new Execution(macro, script, null != storeClient ? new IncrementalStoreClient(storeClient) : null);
+      shared.put(script, execution);
+    }
+
+    execution.sessions.add(session);
+    executions.put(session, execution);
+
+    if (execution.scheduled) {
+      scheduledRuns.remove(execution);
+    }
+
+    if (execution.scheduled || 1 == execution.sessions.size()) {
+      execution.deadline = System.currentTimeMillis();
+      execution.scheduled = true;
+      scheduledRuns.add(execution);
+      executions.notifyAll();
+    }
+
+    return execution;
+  }
+
+  /**
+   * Reschedule 'execution' once a run started at 'now' is over. An execution with a context
+   * cannot be shared with new sessions as their results would differ.
+   * MUST be called while holding the lock on 'executions'.
+   *
+   * @param every Period set by the run, null if the execution should not be run again
+   * @return The sessions the result of the run must be sent to
+   */
+  static List<Session> complete(Execution execution, long now, Long every) {
+    if (null != execution.context) {
+      unshare(execution);
+    }
+
+    if (execution.sessions.isEmpty()) {
+      return new ArrayList<Session>();
+    }
+
+    if (null != every) {
+      execution.deadline = now + every;
+      execution.scheduled = true;
+      scheduledRuns.add(execution);
+      executions.notifyAll();
+    } else {
+      unshare(execution);
+    }
+
+    return new ArrayList<Session>(execution.sessions);
+  }
+
+  /**
+   * Detach a session from its execution, the execution is dropped if it has no more sessions.
+   * MUST be called while holding the lock on 'executions'.
+   */
+  static void detach(Session session) {
+    Execution execution = executions.remove(session);
+
+    if (null == execution) {
+      return;
+    }
+
+    execution.sessions.remove(session);
+
+    if (execution.sessions.isEmpty()) {
+      if (execution.scheduled) {
+        scheduledRuns.remove(execution);
+        execution.scheduled = false;
+      }
+      unshare(execution);
+    }
+  }
+
+  /**
+   * Prevent new sessions from sharing 'execution'.
+   * MUST be called while holding the lock on 'executions'.
+   */
+  private static void unshare(Execution execution) {
+    if (null != execution.script) {
+      if (execution == shared.get(execution.script)) {
+        shared.remove(execution.script);
+      }
+      execution.script = null;
+    }
+  }
+
   public EgressMobiusHandler(StoreClient storeClient, DirectoryClient directoryClient, Properties properties) {
     super(MobiusWebSocket.class);
-    
+
     this.storeClient = storeClient;
     this.directoryClient = directoryClient;
-    
+
     //
     // Check if we have a 'bootstrap' property
     //
-    
+
     if (properties.containsKey(Configuration.CONFIG_WARPSCRIPT_MOBIUS_BOOTSTRAP_PATH)) {
-      
+
       final String path = properties.getProperty(Configuration.CONFIG_WARPSCRIPT_MOBIUS_BOOTSTRAP_PATH);
-      
+
       long period = properties.containsKey(Configuration.CONFIG_WARPSCRIPT_MOBIUS_BOOTSTRAP_PERIOD) ?  Long.parseLong(properties.getProperty(Configuration.CONFIG_WARPSCRIPT_MOBIUS_BOOTSTRAP_PERIOD)) : 0L;
-      this.bootstrapManager = new BootstrapManager(path, period);      
+      this.bootstrapManager = new BootstrapManager(path, period);
     } else {
       this.bootstrapManager = new BootstrapManager();
     }
 
+    this.incremental = "true".equals(properties.getProperty(Configuration.CONFIG_WARPSCRIPT_MOBIUS_INCREMENTAL));
+
+    //
+    // Configure executor
+    //
+
+    int poolsize = Integer.parseInt(properties.getProperty(Configuration.CONFIG_WARPSCRIPT_MOBIUS_POOL, "16"));
+
+    this.executor = new ThreadPoolExecutor(poolsize, poolsize, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(poolsize));
+    this.executor.allowCoreThreadTimeOut(true);
+
     configure(super.getWebSocketFactory());
-    
+
     Thread t = new Thread(this);
     t.setDaemon(true);
     t.setName("[MobiusHandler]");
     t.start();
   }
-        
+
   public DirectoryClient getDirectoryClient() {
     return this.directoryClient;
   }
-  
+
   @Override
   public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
     if (Constants.API_ENDPOINT_MOBIUS.equals(target)) {
@@ -275,14 +420,14 @@ public class EgressMobiusHandler extends WebSocketHandler.Simple implements Runn
       super.handle(target, baseRequest, request, response);
     }
   }
-  
+
   @Override
   public void configure(final WebSocketServletFactory factory) {
-    
+
     final EgressMobiusHandler self = this;
 
     final WebSocketCreator oldcreator = factory.getCreator();
-    
+
     WebSocketCreator creator = new WebSocketCreator() {
       @Override
       public Object createWebSocket(UpgradeRequest req, UpgradeResponse resp) {
@@ -295,151 +440,130 @@ public class EgressMobiusHandler extends WebSocketHandler.Simple implements Runn
     factory.setCreator(creator);
     super.configure(factory);
   }
-  
-  
+
+
   @Override
   public void run() {
-    
-    //
-    // Configure executor
-    //
-    
-    Executor executor = new ThreadPoolExecutor(8, 16, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(16));
-    
+
     while (true) {
-      
-      try {
-        Long deadline = deadlines.get(scheduledRuns.peek());
-        
-        if (null == deadline || deadline - System.currentTimeMillis() > 100L) {
-          Thread.sleep(99L);
-        } else {
-          long delay = deadline - System.currentTimeMillis() - 1L;
-          if (delay > 0) {
-            Thread.sleep(delay);
-          }
-        }
-      } catch (InterruptedException ie) {        
-      }
-      
-      //
-      // Retrieve the head of the priority queue
-      // We don't do a peek because we would not be able to
-      // remove efficiently 'session' from the queue if it
-      // must indeed be run now
-      //
-      
-      Session session = scheduledRuns.poll();
-      
-      if (null == session) {
-        continue;
-      }
-      
+
       //
-      // Check deadline
+      // Wait for the earliest deadline, we are notified when an execution is scheduled
       //
-      
-      Macro macro = null;
-      Long deadline = null;
-      
-      synchronized(macros) {
-        macro = macros.get(session);
-        deadline = deadlines.get(session);
-      }
-      
-      if(null == macro || null == deadline) {
-        continue;
+
+      Execution execution = null;
+
+      synchronized(executions) {
+        execution = scheduledRuns.peek();
+
+        long delay = null == execution ? 0L : execution.deadline - System.currentTimeMillis();
+
+        if (null == execution || delay > 0) {
+          try {
+            executions.wait(delay);
+          } catch (InterruptedException ie) {
+          }
+          continue;
+        }
+
+        scheduledRuns.poll();
+        execution.scheduled = false;
       }
 
       final long now = System.currentTimeMillis();
-      
-      if (deadline > now) {
-        // Reschedule the session, it's too early for now
-        scheduledRuns.add(session);
-        continue;
-      }
-      
+
       //
-      // Schedule run of 'macro'
+      // Schedule run of 'execution'
       //
-      
-      final Macro fmacro = macro;
-      final Session fsession = session;
-      
+
+      final Execution fexecution = execution;
+
       Runnable runner = new Runnable() {
         @Override
         public void run() {
           //
           // Create a stack
           //
-          
-          WarpScriptStack stack = new MemoryWarpScriptStack(storeClient, directoryClient);
-          
+
+          WarpScriptStack stack = new MemoryWarpScriptStack(null != fexecution.storeClient ? fexecution.storeClient : storeClient, directoryClient);
+
           try {
             //
             // Push context
             //
-            
-            Object o = contexts.get(fsession);
-            
+
+            Object o = fexecution.context;
+
             if (null != o) {
               stack.store(CONTEXT_SYMBOL, o);
             }
-            
+
             //
             // Execute macro
             //
-            
-            stack.exec(fmacro);
-            
+
+            stack.exec(fexecution.macro);
+
           } catch (Exception e) {
             try { stack.push(e.getMessage()); } catch (WarpScriptException ee) {}
           }
 
+          if (null != fexecution.storeClient) {
+            fexecution.storeClient.commit();
+          }
+
           //
           // Save context if needed
           //
+
+          fexecution.context = stack.load(CONTEXT_SYMBOL);
           
-          if (null != stack.load(CONTEXT_SYMBOL)) {
-            contexts.put(fsession, stack.load(CONTEXT_SYMBOL));
-          } else {
-            contexts.remove(fsession);
-          }
-          
+          StackUtils.closeResources(stack);
+
           //
           // Reschedule macro if needed
           //
-    
-          if (null != stack.getAttribute(EVERY.EVERY_STACK_ATTRIBUTE)) {
-            synchronized(macros) {
-              macros.put(fsession, fmacro);
-              deadlines.put(fsession, now + (long) stack.getAttribute(EVERY.EVERY_STACK_ATTRIBUTE));
-              scheduledRuns.add(fsession);                
-            }
+
+          List<Session> sessions;
+
+          synchronized(executions) {
+            sessions = complete(fexecution, now, (Long) stack.getAttribute(EVERY.EVERY_STACK_ATTRIBUTE));
+          }
+
+          if (sessions.isEmpty()) {
+            return;
           }
 
           //
           // Output result
           //
-          
+
           StringWriter sw = new StringWriter();
           PrintWriter pw = new PrintWriter(sw);
-          
+
           try { StackUtils.toJSON(pw, stack); } catch (WarpScriptException ee) {}
-          
+
           pw.flush();
-          
-          fsession.getRemote().sendStringByFuture(sw.toString());
+
+          String result = sw.toString();
+
+          for (Session session: sessions) {
+            session.getRemote().sendStringByFuture(result);
+          }
         }
       };
-      
+
       try {
         executor.execute(runner);
       } catch (RejectedExecutionException ree) {
-        synchronized(macros) {
-          scheduledRuns.add(session);
+        synchronized(executions) {
+          if (!execution.sessions.isEmpty()) {
+            execution.deadline = System.currentTimeMillis() + REJECTED_DELAY;
+            execution.scheduled = true;
+            scheduledRuns.add(execution);
+          }
         }
       }
     }
-  }    
+  }
 }
@@ -17,6 +17,7 @@
 package io.warp10.continuum.egress;
 
 import io.warp10.continuum.Tokens;
+import io.warp10.continuum.store.BinaryFrames;
 import io.warp10.continuum.store.Constants;
 import io.warp10.continuum.store.DirectoryClient;
 import io.warp10.continuum.store.MetadataIterator;
@@ -30,6 +31,8 @@ import io.warp10.quasar.token.thrift.data.ReadToken;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.functions.PARSESELECTOR;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.InetAddress;
@@ -55,6 +58,9 @@ import com.google.common.base.Charsets;
 /**
  * This handler will generate splits from a selector and a token, those
  * splits will then be used by the InputFormat to retrieve data for MR job
+ * 
+ * Splits are output as lines 'fetcher region split' where the split is base64 encoded or,
+ * if the 'format' parameter is 'binary', as <fetcher><region><split> records (see BinaryFrames).
  */
 public class EgressSplitsHandler extends AbstractHandler {
   
@@ -86,6 +92,7 @@ public class EgressSplitsHandler extends AbstractHandler {
     String token = request.getParameter(Constants.HTTP_PARAM_TOKEN);
     String selector = request.getParameter(Constants.HTTP_PARAM_SELECTOR);
     String now = request.getParameter(Constants.HTTP_PARAM_NOW);
+    boolean binary = Constants.BINARY_FRAMES_FORMAT.equals(request.getParameter(Constants.HTTP_PARAM_FORMAT));
     
     //
     // Validate token
@@ -160,7 +167,16 @@ public class EgressSplitsHandler extends AbstractHandler {
       byte[] row = new byte[Store.HBASE_RAW_DATA_KEY_PREFIX.length + 8 + 8 + 8];
       System.arraycopy(Store.HBASE_RAW_DATA_KEY_PREFIX, 0, row, 0, Store.HBASE_RAW_DATA_KEY_PREFIX.length);           
       
-      PrintWriter pw = response.getWriter();
+      PrintWriter pw = null;
+      DataOutputStream out = null;
+      
+      if (binary) {
+        out = new DataOutputStream(new BufferedOutputStream(response.getOutputStream()));
+      } else {
+        pw = response.getWriter();
+      }
+      
+      TSerializer serializer = new TSerializer(new TCompactProtocol.Factory());
       
       while(metadatas.hasNext()) {
         Metadata metadata = metadatas.next();
@@ -220,7 +236,6 @@ public class EgressSplitsHandler extends AbstractHandler {
         // Serialize and encrypt Split
         //
         
-        TSerializer serializer = new TSerializer(new TCompactProtocol.Factory());
         byte[] data = null;
         
         try {
@@ -233,12 +248,24 @@ public class EgressSplitsHandler extends AbstractHandler {
           data = CryptoUtils.wrap(fetcherKey, data);
         }
         
+        if (binary) {
+          byte[] fetcher = InetAddress.getByName(loc.getHostname()).getHostAddress().getBytes(Charsets.US_ASCII);
+          byte[] region = loc.getRegionInfo().getEncodedName().getBytes(Charsets.US_ASCII);
+          BinaryFrames.writeSplit(out, fetcher, region, data);
+          continue;
+        }
+        
         pw.print(InetAddress.getByName(loc.getHostname()).getHostAddress());
         pw.print(" ");
         pw.print(loc.getRegionInfo().getEncodedName());
         pw.print(" ");
         pw.println(new String(OrderPreservingBase64.encode(data), Charsets.US_ASCII));
       }
+      
+      if (binary) {
+        BinaryFrames.writeEnd(out);
+        out.flush();
+      }
     } catch (Exception e) {
       throw new IOException(e);
     } finally {
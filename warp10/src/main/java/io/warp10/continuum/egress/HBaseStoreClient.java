@@ -42,6 +42,10 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.Cell;
@@ -76,6 +80,34 @@ public class HBaseStoreClient implements StoreClient {
   
   private final long blockcacheThreshold;
   
+  /**
+   * Executor running region scans in parallel, null if parallel scanning is disabled
+   */
+  private final ExecutorService executor;
+  
+  /**
+   * Maximum number of regions scanned concurrently on behalf of a single fetch
+   */
+  private final int parallelPerRequest;
+  
+  /**
+   * Number of bytes a region scan may buffer ahead of its reader
+   */
+  private final long parallelBuffer;
+  
+  /**
+   * Minimum number of GTS a fetch must target to be performed in parallel
+   */
+  private final int parallelMinGTS;
+  
+  /**
+   * Cached region start keys, used to group GTS per region
+   */
+  private byte[][] regionStartKeys = null;
+  private long regionStartKeysTimestamp = 0L;
+  
+  private static final long REGION_START_KEYS_TTL = 60000L;
+  
   public HBaseStoreClient(KeyStore keystore, Properties properties) throws IOException {
     
     this.keystore = keystore;
@@ -90,6 +122,18 @@ public class HBaseStoreClient implements StoreClient {
     
     this.useHBaseFilter = "true".equals(properties.getProperty(io.warp10.continuum.Configuration.EGRESS_HBASE_FILTER));
     
+    int nthreads = Integer.parseInt(properties.getProperty(io.warp10.continuum.Configuration.EGRESS_HBASE_PARALLEL_SCANNERS, "0"));
+    
+    if (nthreads > 0) {
+      this.executor = new ThreadPoolExecutor(nthreads, nthreads, 60000L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(nthreads * 64));
+    } else {
+      this.executor = null;
+    }
+    
+    this.parallelPerRequest = Integer.parseInt(properties.getProperty(io.warp10.continuum.Configuration.EGRESS_HBASE_PARALLEL_PERREQUEST, "4"));
+    this.parallelBuffer = Long.parseLong(properties.getProperty(io.warp10.continuum.Configuration.EGRESS_HBASE_PARALLEL_BUFFER, "1000000"));
+    this.parallelMinGTS = Integer.parseInt(properties.getProperty(io.warp10.continuum.Configuration.EGRESS_HBASE_PARALLEL_MINGTS, "2"));
+    
     Configuration conf = new Configuration();
     conf.set("hbase.zookeeper.quorum", properties.getProperty(io.warp10.continuum.Configuration.EGRESS_HBASE_DATA_ZKCONNECT));
     if (!"".equals(properties.getProperty(io.warp10.continuum.Configuration.EGRESS_HBASE_DATA_ZNODE))) {
@@ -124,6 +168,15 @@ public class HBaseStoreClient implements StoreClient {
     
     Collections.sort(metadatas, MetadataIdComparator.COMPARATOR);
 
+    //
+    // Scan the regions hosting the GTS in parallel if enabled
+    //
+    
+    if (null != this.executor && metadatas.size() >= this.parallelMinGTS && this.parallelPerRequest > 0) {
+      return new ParallelScanGTSDecoderIterator(token, metadatas, now, timespan, fromArchive, writeTimestamp, this.conn, this.tableName, this.colfam, this.hbaseKey,
+          metadatas.size() <= blockcacheThreshold, useHBaseFilter, getRegionStartKeys(), this.executor, this.parallelPerRequest, this.parallelBuffer);
+    }
+
     // TODO(hbs): convert metadatas into a list of Get/Scan ops with potential filters, those ops will be
     // applied in order and the results returned by calls to 'next'.
 
@@ -231,42 +284,6 @@ public class HBaseStoreClient implements StoreClient {
         
         Metadata metadata = metadatas.get(idx++);
         
-        //
-        // Build start / end key
-        //
-        // CAUTION, the following code might seem wrong, but remember, timestamp
-        // are reversed so the most recent (end) appears first (startkey)
-        //
-        
-        byte[] startkey = new byte[Store.HBASE_RAW_DATA_KEY_PREFIX.length + 8 + 8 + 8];
-        byte[] endkey = new byte[startkey.length];
-        
-        ByteBuffer bb = ByteBuffer.wrap(startkey).order(ByteOrder.BIG_ENDIAN);
-        bb.put(Store.HBASE_RAW_DATA_KEY_PREFIX);
-        bb.putLong(metadata.getClassId());
-        bb.putLong(metadata.getLabelsId());
-        // FIXME(hbs): modulus should be extracted from metadata as it depends on GTS and auth
-        long modulus = now - (now % Constants.DEFAULT_MODULUS);
-        
-        bb.putLong(Long.MAX_VALUE - modulus);
-        
-        bb = ByteBuffer.wrap(endkey).order(ByteOrder.BIG_ENDIAN);
-        bb.put(Store.HBASE_RAW_DATA_KEY_PREFIX);
-        bb.putLong(metadata.getClassId());
-        bb.putLong(metadata.getLabelsId());
-        //
-        // We need to stop on the modulus boundary that precedes the last valid boundary
-        //
-        
-        if (timespan >= 0) {
-          modulus = (now - timespan);
-          modulus = (modulus - (modulus % Constants.DEFAULT_MODULUS)) - Constants.DEFAULT_MODULUS;
-        
-          bb.putLong(Long.MAX_VALUE - modulus);
-        } else {
-          bb.putLong(0xffffffffffffffffL);
-        }
-        
         //
         // Reset number of values retrieved since we just skipped to a new GTS.
         // If 'timespan' is negative this is the opposite of the number of values to retrieve
@@ -275,32 +292,7 @@ public class HBaseStoreClient implements StoreClient {
         
         nvalues = timespan < 0 ? -timespan : Long.MAX_VALUE;
 
-        Scan scan = new Scan();
-        // Retrieve the whole column family
-        scan.addFamily(colfam);
-        scan.setStartRow(startkey);
-        scan.setStopRow(endkey);
-
-        //
-        // Set batch/cache parameters
-        //
-        // FIXME(hbs): when using the HBase >= 0.96, use setMaxResultSize instead, and use setPrefetching
-        
-        if (timespan > 0) {
-          scan.setMaxResultSize(1000000L);
-        }
-        // Setting 'batch' too high when DEFAULT_MODULUS is != 1 will decrease performance when no filter is in use as extraneous cells may be fetched per row
-        // Setting it too low will increase the number of roundtrips. A good heuristic is to set it to -timespan if timespan is < 0
-        scan.setBatch((int) (timespan < 0 ? Math.min(-timespan, 100000) : 100000));
-        
-        // Number of rows to cache can be set arbitrarly high as the end row will stop the scanner caching anyway
-        scan.setCaching((int) (timespan < 0 ? Math.min(-timespan, 100000) : 100000));
-        
-        if (metadatas.size() <= blockcacheThreshold) {
-          scan.setCacheBlocks(true);
-        } else {
-          scan.setCacheBlocks(false);
-        }
+        Scan scan = getScan(colfam, metadata, now, timespan, metadatas.size() <= blockcacheThreshold);
         
         try {
           this.scanner = htable.getScanner(scan);
@@ -370,34 +362,7 @@ public class HBaseStoreClient implements StoreClient {
               // This is true even for packed readings, those have a base timestamp of 0L
               //
 
-              long basets = Long.MAX_VALUE;
-              
-              if (1 == Constants.DEFAULT_MODULUS) {
-                byte[] data = cell.getRowArray();
-                int offset = cell.getRowOffset();
-                offset += Store.HBASE_RAW_DATA_KEY_PREFIX.length + 8 + 8; // Add 'prefix' + 'classId' + 'labelsId' to row key offset
-                long delta = data[offset] & 0xFF;
-                delta <<= 8; delta |= (data[offset + 1] & 0xFFL);
-                delta <<= 8; delta |= (data[offset + 2] & 0xFFL);
-                delta <<= 8; delta |= (data[offset + 3] & 0xFFL);
-                delta <<= 8; delta |= (data[offset + 4] & 0xFFL);
-                delta <<= 8; delta |= (data[offset + 5] & 0xFFL);
-                delta <<= 8; delta |= (data[offset + 6] & 0xFFL);
-                delta <<= 8; delta |= (data[offset + 7] & 0xFFL);
-                basets -= delta;              
-              } else {
-                byte[] data = cell.getQualifierArray();
-                int offset = cell.getQualifierOffset();
-                long delta = data[offset] & 0xFFL;
-                delta <<= 8; delta |= (data[offset + 1] & 0xFFL);
-                delta <<= 8; delta |= (data[offset + 2] & 0xFFL);
-                delta <<= 8; delta |= (data[offset + 3] & 0xFFL);
-                delta <<= 8; delta |= (data[offset + 4] & 0xFFL);
-                delta <<= 8; delta |= (data[offset + 5] & 0xFFL);
-                delta <<= 8; delta |= (data[offset + 6] & 0xFFL);
-                delta <<= 8; delta |= (data[offset + 7] & 0xFFL);
-                basets -= delta;                            
-              }
+              long basets = getBaseTimestamp(cell);
               
               byte[] value = cell.getValueArray();
               int valueOffset = cell.getValueOffset();
@@ -479,58 +444,7 @@ public class HBaseStoreClient implements StoreClient {
         //
         
         if (null != token) {
-          Map<String,String> labels = new HashMap<String,String>();
-          
-          Map<String,String> metadataLabels = metadatas.get(idx-1).getLabels();
-          
-          String billedCustomerId = Tokens.getUUID(token.getBilledId());
-
-          if (null != billedCustomerId) {
-            labels.put(SensisionConstants.SENSISION_LABEL_CONSUMERID, billedCustomerId);
-          }
-          
-          if (metadataLabels.containsKey(Constants.APPLICATION_LABEL)) {
-            labels.put(SensisionConstants.SENSISION_LABEL_APPLICATION, metadataLabels.get(Constants.APPLICATION_LABEL));
-          }
-          
-          if (metadataLabels.containsKey(Constants.OWNER_LABEL)) {
-            labels.put(SensisionConstants.SENSISION_LABEL_OWNER, metadataLabels.get(Constants.OWNER_LABEL));
-          }
-          
-          if (null != token.getAppName()) {
-            labels.put(SensisionConstants.SENSISION_LABEL_CONSUMERAPP, token.getAppName());
-          }
-          
-          //
-          // Update per owner statistics, use a TTL for those
-          //
-          
-          if (fromArchive) {
-            Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_AFETCH_BYTES_VALUES_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, valueBytes);
-            Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_AFETCH_BYTES_KEYS_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, keyBytes);
-            Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_AFETCH_DATAPOINTS_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, datapoints);                    
-          } else {
-            Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_BYTES_VALUES_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, valueBytes);
-            Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_BYTES_KEYS_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, keyBytes);
-            Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_DATAPOINTS_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, datapoints);          
-          }
-                 
-          //
-          // Update summary statistics
-          //
-
-          // Remove 'owner' label
-          labels.remove(SensisionConstants.SENSISION_LABEL_OWNER);
-
-          if (fromArchive) {
-            Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_AFETCH_BYTES_VALUES, labels, valueBytes);
-            Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_AFETCH_BYTES_KEYS, labels, keyBytes);
-            Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_AFETCH_DATAPOINTS, labels, datapoints);          
-          } else {
-            Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_BYTES_VALUES, labels, valueBytes);
-            Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_BYTES_KEYS, labels, keyBytes);
-            Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_DATAPOINTS, labels, datapoints);          
-          }
+          updateFetchMetrics(token, metadatas.get(idx-1), fromArchive, valueBytes, keyBytes, datapoints);
         }
         
         return encoder.getDecoder();
@@ -592,4 +506,184 @@ public class HBaseStoreClient implements StoreClient {
   public RegionLocator getRegionLocator() throws IOException {
     return this.conn.getRegionLocator(this.tableName);
   }
+
+  /**
+   * Return the start keys of the regions of the data table. Those are cached for a short while as they are only used
+   * to group the scans, a split occurring in the meantime has no impact on correctness.
+   */
+  private synchronized byte[][] getRegionStartKeys() throws IOException {
+    if (null == this.regionStartKeys || System.currentTimeMillis() - this.regionStartKeysTimestamp > REGION_START_KEYS_TTL) {
+      RegionLocator locator = getRegionLocator();
+      try {
+        this.regionStartKeys = locator.getStartKeys();
+        this.regionStartKeysTimestamp = System.currentTimeMillis();
+      } finally {
+        locator.close();
+      }
+    }
+    return this.regionStartKeys;
+  }
+  
+  /**
+   * Build the Scan retrieving the datapoints of a single GTS
+   */
+  static Scan getScan(byte[] colfam, Metadata metadata, long now, long timespan, boolean cacheBlocks) {
+    //
+    // Build start / end key
+    //
+    // CAUTION, the following code might seem wrong, but remember, timestamp
+    // are reversed so the most recent (end) appears first (startkey)
+    //
+    
+    byte[] startkey = new byte[Store.HBASE_RAW_DATA_KEY_PREFIX.length + 8 + 8 + 8];
+    byte[] endkey = new byte[startkey.length];
+    
+    ByteBuffer bb = ByteBuffer.wrap(startkey).order(ByteOrder.BIG_ENDIAN);
+    bb.put(Store.HBASE_RAW_DATA_KEY_PREFIX);
+    bb.putLong(metadata.getClassId());
+    bb.putLong(metadata.getLabelsId());
+    // FIXME(hbs): modulus should be extracted from metadata as it depends on GTS and auth
+    long modulus = now - (now % Constants.DEFAULT_MODULUS);
+    
+    bb.putLong(Long.MAX_VALUE - modulus);
+    
+    bb = ByteBuffer.wrap(endkey).order(ByteOrder.BIG_ENDIAN);
+    bb.put(Store.HBASE_RAW_DATA_KEY_PREFIX);
+    bb.putLong(metadata.getClassId());
+    bb.putLong(metadata.getLabelsId());
+    //
+    // We need to stop on the modulus boundary that precedes the last valid boundary
+    //
+    
+    if (timespan >= 0) {
+      modulus = (now - timespan);
+      modulus = (modulus - (modulus % Constants.DEFAULT_MODULUS)) - Constants.DEFAULT_MODULUS;
+    
+      bb.putLong(Long.MAX_VALUE - modulus);
+    } else {
+      bb.putLong(0xffffffffffffffffL);
+    }
+    
+    Scan scan = new Scan();
+    // Retrieve the whole column family
+    scan.addFamily(colfam);
+    scan.setStartRow(startkey);
+    scan.setStopRow(endkey);
+
+    //
+    // Set batch/cache parameters
+    //
+    // FIXME(hbs): when using the HBase >= 0.96, use setMaxResultSize instead, and use setPrefetching
+    
+    if (timespan > 0) {
+      scan.setMaxResultSize(1000000L);
+    }
+    // Setting 'batch' too high when DEFAULT_MODULUS is != 1 will decrease performance when no filter is in use as extraneous cells may be fetched per row
+    // Setting it too low will increase the number of roundtrips. A good heuristic is to set it to -timespan if timespan is < 0
+    scan.setBatch((int) (timespan < 0 ? Math.min(-timespan, 100000) : 100000));
+    
+    // Number of rows to cache can be set arbitrarly high as the end row will stop the scanner caching anyway
+    scan.setCaching((int) (timespan < 0 ? Math.min(-timespan, 100000) : 100000));
+    
+    scan.setCacheBlocks(cacheBlocks);
+    
+    return scan;
+  }
+    
+
+  
+  /**
+   * Extract the base timestamp of a cell, from its row key or its qualifier depending on DEFAULT_MODULUS.
+   * This is true even for packed readings, those have a base timestamp of 0L
+   */
+  static long getBaseTimestamp(Cell cell) {
+    long basets = Long.MAX_VALUE;
+    
+    if (1 == Constants.DEFAULT_MODULUS) {
+      byte[] data = cell.getRowArray();
+      int offset = cell.getRowOffset();
+      offset += Store.HBASE_RAW_DATA_KEY_PREFIX.length + 8 + 8; // Add 'prefix' + 'classId' + 'labelsId' to row key offset
+      long delta = data[offset] & 0xFF;
+      delta <<= 8; delta |= (data[offset + 1] & 0xFFL);
+      delta <<= 8; delta |= (data[offset + 2] & 0xFFL);
+      delta <<= 8; delta |= (data[offset + 3] & 0xFFL);
+      delta <<= 8; delta |= (data[offset + 4] & 0xFFL);
+      delta <<= 8; delta |= (data[offset + 5] & 0xFFL);
+      delta <<= 8; delta |= (data[offset + 6] & 0xFFL);
+      delta <<= 8; delta |= (data[offset + 7] & 0xFFL);
+      basets -= delta;              
+    } else {
+      byte[] data = cell.getQualifierArray();
+      int offset = cell.getQualifierOffset();
+      long delta = data[offset] & 0xFFL;
+      delta <<= 8; delta |= (data[offset + 1] & 0xFFL);
+      delta <<= 8; delta |= (data[offset + 2] & 0xFFL);
+      delta <<= 8; delta |= (data[offset + 3] & 0xFFL);
+      delta <<= 8; delta |= (data[offset + 4] & 0xFFL);
+      delta <<= 8; delta |= (data[offset + 5] & 0xFFL);
+      delta <<= 8; delta |= (data[offset + 6] & 0xFFL);
+      delta <<= 8; delta |= (data[offset + 7] & 0xFFL);
+      basets -= delta;                            
+    }
+    
+    return basets;
+  }
+  
+  /**
+   * Update the per owner and summary fetch statistics
+   */
+  static void updateFetchMetrics(ReadToken token, Metadata metadata, boolean fromArchive, long valueBytes, long keyBytes, long datapoints) {
+    Map<String,String> labels = new HashMap<String,String>();
+    
+    Map<String,String> metadataLabels = metadata.getLabels();
+    
+    String billedCustomerId = Tokens.getUUID(token.getBilledId());
+
+    if (null != billedCustomerId) {
+      labels.put(SensisionConstants.SENSISION_LABEL_CONSUMERID, billedCustomerId);
+    }
+    
+    if (metadataLabels.containsKey(Constants.APPLICATION_LABEL)) {
+      labels.put(SensisionConstants.SENSISION_LABEL_APPLICATION, metadataLabels.get(Constants.APPLICATION_LABEL));
+    }
+    
+    if (metadataLabels.containsKey(Constants.OWNER_LABEL)) {
+      labels.put(SensisionConstants.SENSISION_LABEL_OWNER, metadataLabels.get(Constants.OWNER_LABEL));
+    }
+    
+    if (null != token.getAppName()) {
+      labels.put(SensisionConstants.SENSISION_LABEL_CONSUMERAPP, token.getAppName());
+    }
+    
+    //
+    // Update per owner statistics, use a TTL for those
+    //
+    
+    if (fromArchive) {
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_AFETCH_BYTES_VALUES_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, valueBytes);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_AFETCH_BYTES_KEYS_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, keyBytes);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_AFETCH_DATAPOINTS_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, datapoints);                    
+    } else {
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_BYTES_VALUES_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, valueBytes);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_BYTES_KEYS_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, keyBytes);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_DATAPOINTS_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, datapoints);          
+    }
+           
+    //
+    // Update summary statistics
+    //
+
+    // Remove 'owner' label
+    labels.remove(SensisionConstants.SENSISION_LABEL_OWNER);
+
+    if (fromArchive) {
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_AFETCH_BYTES_VALUES, labels, valueBytes);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_AFETCH_BYTES_KEYS, labels, keyBytes);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_AFETCH_DATAPOINTS, labels, datapoints);          
+    } else {
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_BYTES_VALUES, labels, valueBytes);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_BYTES_KEYS, labels, keyBytes);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_DATAPOINTS, labels, datapoints);          
+    }
+  }
 }
@@ -0,0 +1,362 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.egress;
+
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.RollupStoreClient;
+import io.warp10.continuum.store.StoreClient;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.quasar.token.thrift.data.ReadToken;
+import io.warp10.quasar.token.thrift.data.WriteToken;
+import io.warp10.standalone.StandalonePlasmaHandlerInterface;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * StoreClient used by incremental Mobius executions. The series fetched during a run are
+ * cached so the next run only retrieves the datapoints more recent than the previous fetch,
+ * merges them with the cached ones and drops those which left the requested window.
+ *
+ * Datapoints stored after a fetch with timestamps at or before its 'now' are not seen by
+ * the following runs, incremental mode is therefore meant for series updated in order.
+ *
+ * An instance is used by a single execution, runs of an execution never overlap.
+ */
+public class IncrementalStoreClient implements StoreClient, RollupStoreClient {
+
+  private final StoreClient storeClient;
+
+  private static final class CachedSeries {
+    /**
+     * 'now' of the fetch which produced the series
+     */
+    private long now;
+    private GTSEncoder encoder;
+    private boolean used;
+  }
+
+  /**
+   * Cached series, per GTS and fetch parameters
+   */
+  private final Map<String,CachedSeries> cache = new HashMap<String,CachedSeries>();
+
+  public IncrementalStoreClient(StoreClient storeClient) {
+    this.storeClient = storeClient;
+  }
+
+  @Override
+  public GTSDecoderIterator fetch(ReadToken token, List<Metadata> metadatas, long now, long timespan, boolean fromArchive, boolean writeTimestamp) throws IOException {
+
+    //
+    // Fetches without an explicit end cannot be made incremental
+    //
+
+    if (fromArchive || Long.MAX_VALUE == now) {
+      return this.storeClient.fetch(token, metadatas, now, timespan, fromArchive, writeTimestamp);
+    }
+
+    //
+    // Split the GTS between those which must be fetched fully and those for which only
+    // the datapoints after the previous fetch are needed, grouped by previous 'now'
+    //
+
+    List<Metadata> full = new ArrayList<Metadata>();
+    Map<Long,List<Metadata>> incremental = new HashMap<Long,List<Metadata>>();
+
+    final Map<String,GTSEncoder> encoders = new HashMap<String,GTSEncoder>();
+
+    for (Metadata metadata: metadatas) {
+      CachedSeries cached = this.cache.get(key(metadata, timespan, writeTimestamp));
+
+      if (null == cached || cached.now > now || (timespan >= 0 && now - cached.now >= timespan)) {
+        full.add(metadata);
+        continue;
+      }
+
+      encoders.put(key(metadata, timespan, writeTimestamp), cached.encoder);
+
+      if (cached.now == now) {
+        continue;
+      }
+
+      List<Metadata> list = incremental.get(cached.now);
+
+      if (null == list) {
+        list = new ArrayList<Metadata>();
+        incremental.put(cached.now, list);
+      }
+
+      list.add(metadata);
+    }
+
+    if (!full.isEmpty()) {
+      fetch(token, full, now, timespan, timespan, writeTimestamp, encoders);
+    }
+
+    for (Map.Entry<Long,List<Metadata>> entry: incremental.entrySet()) {
+      fetch(token, entry.getValue(), now, now - entry.getKey(), timespan, writeTimestamp, encoders);
+    }
+
+    //
+    // Trim the series to the requested window and update the cache
+    //
+
+    final List<GTSEncoder> series = new ArrayList<GTSEncoder>(metadatas.size());
+
+    for (Metadata metadata: metadatas) {
+      String key = key(metadata, timespan, writeTimestamp);
+      GTSEncoder encoder = encoders.get(key);
+
+      if (null == encoder) {
+        continue;
+      }
+
+      encoder = trim(encoder, now, timespan);
+      encoder.setMetadata(metadata);
+
+      CachedSeries cached = this.cache.get(key);
+
+      if (null == cached) {
+        cached = new CachedSeries();
+        this.cache.put(key, cached);
+      }
+
+      cached.now = now;
+      cached.encoder = encoder;
+      cached.used = true;
+
+      series.add(encoder);
+    }
+
+    return new GTSDecoderIterator() {
+      private final Iterator<GTSEncoder> iter = series.iterator();
+
+      @Override
+      public boolean hasNext() {
+        return iter.hasNext();
+      }
+
+      @Override
+      public GTSDecoder next() {
+        // Metadata is copied as the caller may modify it
+        return iter.next().getDecoder(true);
+      }
+
+      @Override
+      public void remove() {
+      }
+
+      @Override
+      public void close() throws Exception {
+      }
+    };
+  }
+
+  /**
+   * Fetch the datapoints of 'metadatas' and merge them into the matching encoders of 'encoders'
+   *
+   * @param timespan Timespan of the fetch to perform
+   * @param requested Timespan requested by the caller, used to identify the cached series
+   */
+  private void fetch(ReadToken token, List<Metadata> metadatas, long now, long timespan, long requested, boolean writeTimestamp, Map<String,GTSEncoder> encoders) throws IOException {
+
+    GTSDecoderIterator iter = this.storeClient.fetch(token, metadatas, now, timespan, false, writeTimestamp);
+
+    // Encoders created by this fetch, which can be merged into
+    Set<String> owned = new HashSet<String>();
+
+    try {
+      while(iter.hasNext()) {
+        GTSDecoder decoder = iter.next();
+
+        String key = key(decoder.getMetadata(), requested, writeTimestamp);
+
+        GTSEncoder encoder = encoders.get(key);
+
+        if (!decoder.next()) {
+          if (null == encoder) {
+            encoder = new GTSEncoder(0L);
+            encoder.safeSetMetadata(decoder.getMetadata());
+            encoders.put(key, encoder);
+            owned.add(key);
+          }
+          continue;
+        }
+
+        GTSEncoder fetched = decoder.getEncoder(true);
+
+        if (null == encoder) {
+          encoders.put(key, fetched);
+          owned.add(key);
+        } else if (owned.contains(key)) {
+          encoder.merge(fetched);
+        } else {
+          // Do not modify the cached encoder, it is replaced once trimmed
+          GTSEncoder merged = new GTSEncoder(0L);
+          merged.merge(encoder);
+          merged.merge(fetched);
+          encoders.put(key, merged);
+          owned.add(key);
+        }
+      }
+    } finally {
+      try {
+        iter.close();
+      } catch (Exception e) {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  /**
+   * Evict the series which were not fetched since the previous call, this should be called at the end of each run
+   */
+  public void commit() {
+    Iterator<CachedSeries> iter = this.cache.values().iterator();
+
+    while(iter.hasNext()) {
+      CachedSeries cached = iter.next();
+      if (!cached.used) {
+        iter.remove();
+      } else {
+        cached.used = false;
+      }
+    }
+  }
+
+  /**
+   * Only keep the datapoints of 'encoder' which a fetch with 'now' and 'timespan' would return
+   */
+  private static GTSEncoder trim(GTSEncoder encoder, long now, long timespan) throws IOException {
+
+    //
+    // Lowest tick to keep and number of datapoints at that tick to keep, the
+    // encoder does not contain datapoints after 'now'
+    //
+
+    long lowest;
+    long ties = Long.MAX_VALUE;
+
+    if (timespan >= 0) {
+      lowest = now - timespan + 1;
+    } else {
+      long count = -timespan;
+
+      if (encoder.getCount() <= count) {
+        return encoder;
+      }
+
+      long[] ticks = new long[(int) encoder.getCount()];
+      int idx = 0;
+
+      GTSDecoder decoder = encoder.getDecoder(true);
+
+      while(decoder.next()) {
+        ticks[idx++] = decoder.getTimestamp();
+      }
+
+      Arrays.sort(ticks, 0, idx);
+
+      if (idx <= count) {
+        return encoder;
+      }
+
+      lowest = ticks[(int) (idx - count)];
+
+      // Keep only as many datapoints at 'lowest' as needed to return 'count' datapoints
+      ties = count;
+      for (int i = idx - 1; i >= 0 && ticks[i] > lowest; i--) {
+        ties--;
+      }
+    }
+
+    GTSEncoder trimmed = new GTSEncoder(0L);
+
+    GTSDecoder decoder = encoder.getDecoder(true);
+
+    while(decoder.next()) {
+      long tick = decoder.getTimestamp();
+
+      if (tick < lowest || tick > now) {
+        continue;
+      }
+
+      if (tick == lowest) {
+        if (ties <= 0) {
+          continue;
+        }
+        ties--;
+      }
+
+      trimmed.addValue(tick, decoder.getLocation(), decoder.getElevation(), decoder.getValue());
+    }
+
+    return trimmed;
+  }
+
+  private static String key(Metadata metadata, long timespan, boolean writeTimestamp) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(metadata.getClassId());
+    sb.append(":");
+    sb.append(metadata.getLabelsId());
+    sb.append(":");
+    sb.append(timespan);
+    sb.append(":");
+    sb.append(writeTimestamp);
+    return sb.toString();
+  }
+
+  @Override
+  public boolean hasRollup(long bucketspan, String aggregator) {
+    return this.storeClient instanceof RollupStoreClient && ((RollupStoreClient) this.storeClient).hasRollup(bucketspan, aggregator);
+  }
+
+  @Override
+  public GTSDecoderIterator fetchRollup(ReadToken token, List<Metadata> metadatas, long lastbucket, int bucketcount, long bucketspan, String aggregator) throws IOException {
+    return ((RollupStoreClient) this.storeClient).fetchRollup(token, metadatas, lastbucket, bucketcount, bucketspan, aggregator);
+  }
+
+  @Override
+  public void store(GTSEncoder encoder) throws IOException {
+    this.storeClient.store(encoder);
+  }
+
+  @Override
+  public void archive(int chunk, GTSEncoder encoder) throws IOException {
+    this.storeClient.archive(chunk, encoder);
+  }
+
+  @Override
+  public long delete(WriteToken token, Metadata metadata, long start, long end) throws IOException {
+    return this.storeClient.delete(token, metadata, start, end);
+  }
+
+  @Override
+  public void addPlasmaHandler(StandalonePlasmaHandlerInterface handler) {
+    this.storeClient.addPlasmaHandler(handler);
+  }
+}
@@ -0,0 +1,785 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.egress;
+
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.sensision.SensisionConstants;
+import io.warp10.continuum.store.Constants;
+import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.Store;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.quasar.token.thrift.data.ReadToken;
+import io.warp10.sensision.Sensision;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellScanner;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.filter.SlicedRowFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.primitives.Longs;
+
+/**
+ * GTSDecoderIterator scanning the regions which host the requested GTS in parallel.
+ *
+ * GTS are grouped by the region holding their most recent datapoints. Each group is scanned by a task
+ * run on a shared executor, with at most 'parallelism' tasks in flight for a given iterator. Decoders
+ * are returned in the order of 'metadatas', as soon as the task scanning their region produced them.
+ *
+ * A task stops scanning once it buffers 'buffer' bytes of encoded datapoints, the rest of its region
+ * is then scanned by the reading thread when it reaches it. Tasks rejected by the executor are handled
+ * the same way. Tasks therefore never wait for the reader, which bounds the memory used by a fetch
+ * without any risk of starving the shared executor.
+ *
+ * A region scan which fails, for example when its scanner lease expired, is resumed once from the last
+ * row read. A second failure is reported to the reader.
+ */
+public class ParallelScanGTSDecoderIterator extends GTSDecoderIterator {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ParallelScanGTSDecoderIterator.class);
+
+  // If this is changed, it MUST be less than what Kafka accepts, otherwise Plasma/GeoDir may fail
+  private static final int MAX_ENCODER_SIZE = 100000;
+
+  private static final byte[] ZERO_BYTES = Longs.toByteArray(0L);
+  private static final byte[] ONES_BYTES = Longs.toByteArray(0xffffffffffffffffL);
+
+  private final ReadToken token;
+  private final List<Metadata> metadatas;
+  private final long now;
+  private final long timespan;
+  private final boolean fromArchive;
+  private final boolean writeTimestamp;
+
+  private final Connection conn;
+  private final TableName tableName;
+  private final byte[] colfam;
+  private final byte[] hbaseKey;
+  private final boolean useBlockCache;
+
+  private final ExecutorService executor;
+  private final int parallelism;
+  private final long buffer;
+
+  /**
+   * Region scans, in the order of 'metadatas'
+   */
+  private final List<RegionScan> regions = new ArrayList<RegionScan>();
+
+  /**
+   * Number of region scans handed to the executor
+   */
+  private int submitted = 0;
+
+  /**
+   * Index of the region scan currently read
+   */
+  private int current = 0;
+
+  /**
+   * Index of the GTS currently read
+   */
+  private int idx = 0;
+
+  private Chunk pending = null;
+
+  private volatile boolean closed = false;
+
+  private final AtomicLong resultCount = new AtomicLong(0L);
+  private final AtomicLong cellCount = new AtomicLong(0L);
+
+  /**
+   * Encoded datapoints of a GTS with the statistics of their retrieval
+   */
+  private static final class Chunk {
+    private GTSEncoder encoder;
+    private long datapoints = 0L;
+    private long keyBytes = 0L;
+    private long valueBytes = 0L;
+  }
+
+  public ParallelScanGTSDecoderIterator(ReadToken token, List<Metadata> metadatas, long now, long timespan, boolean fromArchive, boolean writeTimestamp,
+      Connection conn, TableName tableName, byte[] colfam, byte[] hbaseKey, boolean useBlockCache, boolean useFilter, byte[][] regionStartKeys,
+      ExecutorService executor, int parallelism, long buffer) {
+    this.token = token;
+    this.metadatas = metadatas;
+    this.now = now;
+    this.timespan = timespan;
+    this.fromArchive = fromArchive;
+    this.writeTimestamp = writeTimestamp;
+    this.conn = conn;
+    this.tableName = tableName;
+    this.colfam = colfam;
+    this.hbaseKey = hbaseKey;
+    this.useBlockCache = useBlockCache;
+    this.executor = executor;
+    this.parallelism = parallelism;
+    this.buffer = buffer;
+
+    //
+    // SlicedRowFilter cannot honor a value count if there may be datapoints after 'now'
+    //
+
+    useFilter = useFilter && (timespan >= 0 || 0 == (now % Constants.DEFAULT_MODULUS) || Long.MAX_VALUE == now);
+
+    //
+    // Group the GTS by region, 'metadatas' is sorted so the GTS of a region are contiguous
+    //
+
+    int from = 0;
+    int region = -1;
+
+    for (int i = 0; i < metadatas.size(); i++) {
+      int r = getRegion(regionStartKeys, getRowPrefix(metadatas.get(i)));
+
+      if (r != region) {
+        if (i > from) {
+          this.regions.add(new RegionScan(from, i, useFilter));
+        }
+        from = i;
+        region = r;
+      }
+    }
+
+    if (metadatas.size() > from) {
+      this.regions.add(new RegionScan(from, metadatas.size(), useFilter));
+    }
+
+    schedule();
+  }
+
+  /**
+   * Hand region scans to the executor so at most 'parallelism' of them are in flight
+   */
+  private void schedule() {
+    while (this.submitted < this.regions.size() && this.submitted - this.current < this.parallelism) {
+      RegionScan region = this.regions.get(this.submitted++);
+      try {
+        this.executor.execute(region.future);
+      } catch (RejectedExecutionException ree) {
+        // The region will be scanned by the reader
+      }
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (null != this.pending) {
+      return true;
+    }
+
+    while (this.idx < this.metadatas.size()) {
+      RegionScan region = this.regions.get(this.current);
+
+      if (this.idx >= region.to) {
+        // Scans run by the executor release their resources themselves
+        if (region.claimed) {
+          region.release();
+        }
+        this.current++;
+        schedule();
+        continue;
+      }
+
+      Chunk chunk = region.take(this.idx);
+
+      if (null != chunk) {
+        this.pending = chunk;
+        return true;
+      }
+
+      this.idx++;
+    }
+
+    return false;
+  }
+
+  @Override
+  public GTSDecoder next() {
+    if (!hasNext()) {
+      return null;
+    }
+
+    Chunk chunk = this.pending;
+    this.pending = null;
+
+    //
+    // Null token can happen when retrieving data from GTSSplit instances
+    //
+
+    if (null != this.token) {
+      HBaseStoreClient.updateFetchMetrics(this.token, this.metadatas.get(this.idx), this.fromArchive, chunk.valueBytes, chunk.keyBytes, chunk.datapoints);
+    }
+
+    return chunk.encoder.getDecoder();
+  }
+
+  @Override
+  public void remove() {
+  }
+
+  @Override
+  public void close() throws Exception {
+    this.closed = true;
+
+    for (RegionScan region: this.regions) {
+      region.future.cancel(false);
+
+      // Running scans release their resources when they notice the iterator was closed
+      synchronized(region) {
+        if (!region.running) {
+          region.release();
+        }
+      }
+    }
+
+    Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_HBASE_CLIENT_RESULTS, Sensision.EMPTY_LABELS, this.resultCount.get());
+    Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_HBASE_CLIENT_CELLS, Sensision.EMPTY_LABELS, this.cellCount.get());
+    Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_HBASE_CLIENT_ITERATORS, Sensision.EMPTY_LABELS, 1);
+  }
+
+  /**
+   * @return the index of the region whose range contains 'key', given the sorted start keys of the regions
+   */
+  static int getRegion(byte[][] startKeys, byte[] key) {
+    if (null == startKeys) {
+      return 0;
+    }
+
+    int lo = 0;
+    int hi = startKeys.length - 1;
+
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (Bytes.compareTo(startKeys[mid], key) <= 0) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+
+    return lo;
+  }
+
+  private static byte[] getRowPrefix(Metadata metadata) {
+    byte[] prefix = new byte[Store.HBASE_RAW_DATA_KEY_PREFIX.length + 16];
+    ByteBuffer bb = ByteBuffer.wrap(prefix).order(ByteOrder.BIG_ENDIAN);
+    bb.put(Store.HBASE_RAW_DATA_KEY_PREFIX);
+    bb.putLong(metadata.getClassId());
+    bb.putLong(metadata.getLabelsId());
+    return prefix;
+  }
+
+  /**
+   * Scan of the GTS [from,to) of 'metadatas', either run by the executor or by the reader.
+   * The scanning state is only ever accessed by one thread at a time, the reader only scanning
+   * once it claimed the task. Produced chunks are exchanged under the lock of the instance.
+   */
+  private final class RegionScan implements Runnable {
+
+    private final int from;
+    private final int to;
+
+    private final FutureTask<Void> future;
+
+    //
+    // Shared state, guarded by 'this'
+    //
+
+    private final List<LinkedList<Chunk>> chunks;
+
+    /**
+     * Number of GTS of the region whose datapoints were all produced
+     */
+    private int completed = 0;
+
+    private long buffered = 0L;
+
+    private boolean running = false;
+
+    private IOException error = null;
+
+    //
+    // Scanning state
+    //
+
+    private final List<Scan> scans = new ArrayList<Scan>();
+
+    /**
+     * Index of the first GTS of each scan, relative to 'from'
+     */
+    private final int[] firsts;
+
+    /**
+     * GTS index per classId/labelsId encoded in ISO_8859_1
+     */
+    private final Map<String,Integer> ids = new HashMap<String,Integer>();
+
+    /**
+     * Number of values left to read per GTS
+     */
+    private final long[] nvalues;
+
+    private boolean filtered;
+    private boolean claimed = false;
+
+    /**
+     * Flag indicating a scan failure was already recovered from, a second failure is reported to the reader
+     */
+    private boolean retried = false;
+
+    private Table htable = null;
+    private ResultScanner scanner = null;
+    private Iterator<Result> scaniter = null;
+    private int scanidx = 0;
+
+    /**
+     * Last row read and number of its cells which were read, used to resume an interrupted scan
+     */
+    private byte[] lastRow = null;
+    private int lastCells = 0;
+    private int skip = 0;
+
+    private Chunk chunk = null;
+    private int chunkIdx = -1;
+
+    private RegionScan(int from, int to, boolean useFilter) {
+      this.from = from;
+      this.to = to;
+      this.future = new FutureTask<Void>(this, null);
+
+      this.chunks = new ArrayList<LinkedList<Chunk>>(to - from);
+      this.nvalues = new long[to - from];
+
+      for (int i = from; i < to; i++) {
+        this.chunks.add(new LinkedList<Chunk>());
+        this.nvalues[i - from] = timespan < 0 ? -timespan : Long.MAX_VALUE;
+        this.ids.put(new String(getRowPrefix(metadatas.get(i)), Store.HBASE_RAW_DATA_KEY_PREFIX.length, 16, Charsets.ISO_8859_1), i);
+      }
+
+      this.filtered = useFilter && to - from > 1;
+
+      if (this.filtered) {
+        this.scans.add(getFilteredScan());
+        this.firsts = new int[] { 0 };
+      } else {
+        this.firsts = new int[to - from];
+        for (int i = from; i < to; i++) {
+          this.scans.add(HBaseStoreClient.getScan(colfam, metadatas.get(i), now, timespan, useBlockCache));
+          this.firsts[i - from] = i - from;
+        }
+      }
+    }
+
+    /**
+     * Build a single scan covering all the GTS of the region
+     *
+     * @see io.warp10.continuum.store.SlicedRowFilterGTSDecoderIterator
+     */
+    private Scan getFilteredScan() {
+
+      // 128BITS
+      int[] bounds = { 0, 24 };
+
+      List<Pair<byte[], byte[]>> ranges = new ArrayList<Pair<byte[], byte[]>>();
+
+      byte[] prefix = Store.HBASE_RAW_DATA_KEY_PREFIX;
+      long modulus = Constants.DEFAULT_MODULUS;
+
+      for (int i = this.from; i < this.to; i++) {
+        byte[] lower = new byte[24 + prefix.length];
+        byte[] upper = new byte[lower.length];
+
+        System.arraycopy(getRowPrefix(metadatas.get(i)), 0, lower, 0, prefix.length + 16);
+        System.arraycopy(lower, 0, upper, 0, prefix.length + 16);
+
+        if (Long.MAX_VALUE == now) {
+          System.arraycopy(ZERO_BYTES, 0, lower, prefix.length + 16, 8);
+        } else {
+          System.arraycopy(Longs.toByteArray(Long.MAX_VALUE - (now - (now % modulus))), 0, lower, prefix.length + 16, 8);
+        }
+
+        if (timespan < 0) {
+          System.arraycopy(ONES_BYTES, 0, upper, prefix.length + 16, 8);
+        } else {
+          // SlicedRowFilter upper bound is included
+          System.arraycopy(Longs.toByteArray(Long.MAX_VALUE - ((now - timespan) - ((now - timespan) % modulus))), 0, upper, prefix.length + 16, 8);
+        }
+
+        ranges.add(new Pair<byte[],byte[]>(lower, upper));
+      }
+
+      SlicedRowFilter filter = new SlicedRowFilter(bounds, ranges, timespan < 0 ? -timespan : Long.MAX_VALUE);
+
+      Scan scan = new Scan();
+      scan.addFamily(colfam);
+      scan.setStartRow(filter.getStartKey());
+      byte[] filterStopKey = filter.getStopKey();
+      // Add one byte at the end (we can do that because we know the slice is the whole key)
+      scan.setStopRow(Bytes.add(filterStopKey, new byte[1]));
+      scan.setFilter(filter);
+
+      scan.setMaxResultSize(1000000L);
+      scan.setBatch(50000);
+      scan.setCaching(50000);
+
+      scan.setCacheBlocks(useBlockCache);
+
+      return scan;
+    }
+
+    @Override
+    public void run() {
+      synchronized(this) {
+        if (closed) {
+          return;
+        }
+        this.running = true;
+      }
+
+      try {
+        while (!closed && step()) {
+          synchronized(this) {
+            if (this.buffered >= buffer) {
+              break;
+            }
+          }
+        }
+      } catch (Throwable t) {
+        // The reader will resume the scan from the last row read
+        LOG.warn("Region scan failed, resuming it in the reader.", t);
+        this.retried = true;
+      } finally {
+        //
+        // Release the scanner, the reader will resume the scan if it was interrupted
+        //
+
+        release();
+
+        synchronized(this) {
+          this.running = false;
+          this.notifyAll();
+        }
+      }
+    }
+
+    /**
+     * Retrieve the next chunk of GTS 'gts', scanning the region if the task is not running.
+     *
+     * @return the next chunk or null if all the datapoints of 'gts' were retrieved
+     */
+    private Chunk take(int gts) {
+      int rel = gts - this.from;
+
+      synchronized(this) {
+        while (true) {
+          Chunk chunk = poll(rel);
+
+          if (null != chunk || this.completed > rel) {
+            return chunk;
+          }
+
+          if (!this.running) {
+            break;
+          }
+
+          try {
+            this.wait();
+          } catch (InterruptedException ie) {
+            throw new RuntimeException(ie);
+          }
+        }
+      }
+
+      //
+      // The task is either done, interrupted or not started yet, continue the scan ourselves
+      //
+
+      if (!this.claimed) {
+        if (!this.future.cancel(false)) {
+          try {
+            this.future.get();
+          } catch (InterruptedException ie) {
+            throw new RuntimeException(ie);
+          } catch (ExecutionException ee) {
+            throw new RuntimeException(ee);
+          }
+        }
+        this.claimed = true;
+      }
+
+      while (true) {
+        synchronized(this) {
+          Chunk chunk = poll(rel);
+
+          if (null != chunk || this.completed > rel) {
+            return chunk;
+          }
+        }
+
+        try {
+          step();
+        } catch (Exception e) {
+          if (this.retried) {
+            synchronized(this) {
+              this.error = e instanceof IOException ? (IOException) e : new IOException(e);
+            }
+            throw new RuntimeException(this.error);
+          }
+
+          // Resume the scan once from the last row read
+          LOG.warn("Region scan failed, resuming it.", e);
+          this.retried = true;
+          release();
+        }
+      }
+    }
+
+    private Chunk poll(int rel) {
+      if (null != this.error) {
+        throw new RuntimeException(this.error);
+      }
+
+      Chunk chunk = this.chunks.get(rel).poll();
+
+      if (null != chunk) {
+        this.buffered -= chunk.encoder.size();
+      }
+
+      return chunk;
+    }
+
+    /**
+     * Perform one step of the scan: open a scanner or process a Result
+     *
+     * @return false if the region was fully scanned
+     */
+    private boolean step() throws IOException {
+      if (null == this.scanner) {
+        if (this.scanidx >= this.scans.size()) {
+          complete(this.to - this.from);
+          return false;
+        }
+
+        complete(this.firsts[this.scanidx]);
+
+        Scan scan = this.scans.get(this.scanidx);
+
+        if (null != this.lastRow) {
+          // Resume an interrupted scan on the last row read, skipping the cells already read
+          scan = new Scan(scan);
+          scan.setStartRow(this.lastRow);
+          this.skip = this.lastCells;
+        }
+
+        if (null == this.htable) {
+          this.htable = conn.getTable(tableName);
+        }
+
+        this.scanner = this.htable.getScanner(scan);
+        this.scaniter = this.scanner.iterator();
+        Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_HBASE_CLIENT_SCANNERS, Sensision.EMPTY_LABELS, 1);
+        return true;
+      }
+
+      if (!this.scaniter.hasNext()) {
+        nextScan();
+        return true;
+      }
+
+      Result result = this.scaniter.next();
+      resultCount.incrementAndGet();
+
+      byte[] row = result.getRow();
+
+      if (null == this.lastRow || !Bytes.equals(row, this.lastRow)) {
+        this.lastRow = row;
+        this.lastCells = 0;
+        this.skip = 0;
+      }
+
+      Integer gts = this.ids.get(new String(row, Store.HBASE_RAW_DATA_KEY_PREFIX.length, 16, Charsets.ISO_8859_1));
+
+      if (null == gts) {
+        return true;
+      }
+
+      int rel = gts - this.from;
+
+      if (null != this.chunk && this.chunkIdx != gts) {
+        push();
+      }
+
+      complete(rel);
+
+      if (this.nvalues[rel] <= 0) {
+        // Done with this GTS, no need to read its remaining rows if it has its own scanner
+        if (!this.filtered) {
+          nextScan();
+        }
+        return true;
+      }
+
+      if (null == this.chunk) {
+        this.chunk = new Chunk();
+        this.chunk.encoder = new GTSEncoder(0L);
+        this.chunk.encoder.setMetadata(metadatas.get(gts));
+        this.chunkIdx = gts;
+      }
+
+      GTSEncoder encoder = this.chunk.encoder;
+
+      CellScanner cscanner = result.cellScanner();
+
+      while (this.nvalues[rel] > 0 && cscanner.advance()) {
+        Cell cell = cscanner.current();
+
+        if (this.skip > 0) {
+          this.skip--;
+          continue;
+        }
+
+        this.lastCells++;
+        cellCount.incrementAndGet();
+
+        long basets = HBaseStoreClient.getBaseTimestamp(cell);
+
+        int valueLength = cell.getValueLength();
+
+        ByteBuffer bb = ByteBuffer.wrap(cell.getValueArray(), cell.getValueOffset(), valueLength).order(ByteOrder.BIG_ENDIAN);
+
+        GTSDecoder decoder = new GTSDecoder(basets, hbaseKey, bb);
+
+        while (this.nvalues[rel] > 0 && decoder.next()) {
+          long timestamp = decoder.getTimestamp();
+          if (timestamp <= now && (timespan < 0 || (timestamp > (now - timespan)))) {
+            try {
+              if (writeTimestamp) {
+                encoder.addValue(timestamp, decoder.getLocation(), decoder.getElevation(), cell.getTimestamp() * Constants.TIME_UNITS_PER_MS);
+              } else {
+                encoder.addValue(timestamp, decoder.getLocation(), decoder.getElevation(), decoder.getValue());
+              }
+
+              this.chunk.valueBytes += valueLength;
+              this.chunk.keyBytes += cell.getRowLength() + cell.getFamilyLength() + cell.getQualifierLength();
+              this.chunk.datapoints++;
+
+              this.nvalues[rel]--;
+            } catch (IOException ioe) {
+              LOG.error("", ioe);
+            }
+          }
+        }
+      }
+
+      if (encoder.size() >= MAX_ENCODER_SIZE) {
+        push();
+      }
+
+      return true;
+    }
+
+    private void nextScan() {
+      closeScanner();
+      this.scanidx++;
+      this.lastRow = null;
+      this.lastCells = 0;
+      this.skip = 0;
+    }
+
+    /**
+     * Hand the current chunk to the reader
+     */
+    private void push() {
+      synchronized(this) {
+        this.chunks.get(this.chunkIdx - this.from).add(this.chunk);
+        this.buffered += this.chunk.encoder.size();
+        this.notifyAll();
+      }
+      this.chunk = null;
+    }
+
+    /**
+     * Flag the first 'count' GTS of the region as fully retrieved
+     */
+    private void complete(int count) {
+      if (null != this.chunk && this.chunkIdx - this.from < count) {
+        push();
+      }
+
+      synchronized(this) {
+        if (count > this.completed) {
+          this.completed = count;
+          this.notifyAll();
+        }
+      }
+    }
+
+    private void closeScanner() {
+      if (null != this.scanner) {
+        try {
+          this.scanner.close();
+        } catch (Exception e) {
+          LOG.error("scanner", e);
+        }
+      }
+      this.scanner = null;
+      this.scaniter = null;
+    }
+
+    /**
+     * Release the scanner and table, the scan can be resumed later on
+     */
+    private void release() {
+      closeScanner();
+
+      if (null != this.htable) {
+        try {
+          this.htable.close();
+        } catch (Exception e) {
+          LOG.error("htable", e);
+        }
+      }
+      this.htable = null;
+    }
+  }
+}
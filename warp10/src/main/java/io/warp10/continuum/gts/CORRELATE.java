@@ -18,19 +18,33 @@ package io.warp10.continuum.gts;
 
 import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptForkJoinPool;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import edu.emory.mathcs.jtransforms.fft.DoubleFFT_1D;
 
 /**
  * Computes auto or cross correlation of GTS instances
+ * 
+ * When the GTS have exactly one value per bucket, the cross sums for all offsets
+ * are computed at once using an FFT. Candidate GTS are processed in parallel.
  */
 
 public class CORRELATE extends NamedWarpScriptFunction {
   
+  /**
+   * Relative cost of an FFT based cross correlation per element and per radix-2 stage
+   */
+  private static final int FFT_COST = 4;
+  
   public static class Builder extends NamedWarpScriptFunction implements WarpScriptStackFunction  {
     
     private final CORRELATE correlate;
@@ -130,101 +144,349 @@ public class CORRELATE extends NamedWarpScriptFunction {
     //gts = GTSHelper.standardize(gts);
     GTSHelper.sort(gts);
 
+    //
+    // Sort the candidate GTS prior to spreading the work across threads
+    //
+    
+    for (GeoTimeSerie g: gts2) {
+      GTSHelper.sort(g);
+    }
+    
+    final Samples samples = isContiguous(gts) ? new Samples(gts) : null;
+    
     //
     // Now compute the correlations for all pairs
     //
     
     List<GeoTimeSerie> crosscorrelations = new ArrayList<GeoTimeSerie>();
     
-    for (int i = 0; i < gts2.size(); i++) {
+    if (gts2.size() < 2) {
+      for (GeoTimeSerie g: gts2) {
+        crosscorrelations.add(correlate(gts, samples, g, offsets));
+      }
+      return crosscorrelations;
+    }
+    
+    List<Callable<GeoTimeSerie>> tasks = new ArrayList<Callable<GeoTimeSerie>>(gts2.size());
+    
+    final GeoTimeSerie gtsA = gts;
+    final List<Long> lags = offsets;
+    
+    for (final GeoTimeSerie g: gts2) {
+      tasks.add(new Callable<GeoTimeSerie>() {
+        @Override
+        public GeoTimeSerie call() throws Exception {
+          return correlate(gtsA, samples, g, lags);
+        }
+      });
+    }
+    
+    try {
+      for (Future<GeoTimeSerie> future: WarpScriptForkJoinPool.getPool().invokeAll(tasks)) {
+        crosscorrelations.add(future.get());
+      }
+    } catch (InterruptedException ie) {
+      throw new WarpScriptException(getName() + " was interrupted.", ie);
+    } catch (ExecutionException ee) {
+      if (ee.getCause() instanceof WarpScriptException) {
+        throw (WarpScriptException) ee.getCause();
+      }
+      throw new WarpScriptException(ee.getCause());
+    }
+    
+    return crosscorrelations;
+  }
+  
+  /**
+   * Compute the cross correlation of gtsB with gts for each offset.
+   * 
+   * If both GTS have one value per bucket, the correlations are derived from the
+   * lagged cross sums and from prefix sums of the values, otherwise the ticks of
+   * both GTS are walked for each offset.
+   */
+  private GeoTimeSerie correlate(GeoTimeSerie gts, Samples samples, GeoTimeSerie gtsB, List<Long> offsets) throws WarpScriptException {
+    GeoTimeSerie crosscorrelation = new GeoTimeSerie(offsets.size());
+    crosscorrelation.setMetadata(gtsB.getMetadata());
+
+    if (null == samples || !isContiguous(gtsB)) {
+      correlateTicks(gts, gtsB, offsets, crosscorrelation);
+      return crosscorrelation;
+    }
+    
+    Samples samplesB = new Samples(gtsB);
+    
+    long bucketspan = gts.bucketspan;
+    int nA = samples.values.length;
+    int nB = samplesB.values.length;
+    
+    //
+    // Use the FFT when computing the cross sums directly would cost more
+    //
+    
+    int fftlen = Integer.highestOneBit(nA + nB - 1);
+    if (fftlen < nA + nB - 1) {
+      fftlen <<= 1;
+    }
+    
+    double[] crosssums = null;
+    
+    if ((long) offsets.size() * Math.min(nA, nB) > (long) FFT_COST * fftlen * Integer.numberOfTrailingZeros(fftlen)) {
+      crosssums = crossSums(samples.values, samplesB.values, fftlen);
+    }
+    
+    for (long offset: offsets) {
       
       //
-      // Standardize and sort GTS
+      // Value i of gts is paired with value i + shift of gtsB
       //
       
-      GeoTimeSerie standardized = GTSHelper.standardize(gts2.get(i));
-      GTSHelper.sort(standardized);
-
-      GeoTimeSerie crosscorrelation = new GeoTimeSerie(offsets.size());      
-      crosscorrelation.setMetadata(standardized.getMetadata());
-      crosscorrelations.add(crosscorrelation);
+      long delta = gts.ticks[0] + offset - gtsB.ticks[0];
       
-      for (long offset: offsets) {
-        
-        //
-        // Extract both GTS to check
-        //
-        
-        GeoTimeSerie gtsA = gts;
-        GeoTimeSerie gtsB = gts2.get(i);
-        GTSHelper.sort(gtsB);
-        
-        //
-        // Find the index offset to use
-        //
-        
-        int idxA = 0;
-        int idxB = 0;
-        
-        while (idxA < gtsA.values && idxB < gtsB.values) {
-          if (gtsA.ticks[idxA] + offset < gtsB.ticks[idxB]) {
-            idxA++;
-            continue;
-          }
-          if (gtsA.ticks[idxA] + offset > gtsB.ticks[idxB]) {
-            idxB++;
-            continue;
-          }
-          break;
+      if (0 != delta % bucketspan) {
+        GTSHelper.setValue(crosscorrelation, offset, 0.0D);
+        continue;
+      }
+      
+      long shift = delta / bucketspan;
+      
+      long lo = Math.max(0L, -shift);
+      long hi = Math.min((long) nA, nB - shift);
+      
+      //
+      // A single pair is standardized to (0, 0), do not let the rounding errors of the cross sums through
+      //
+      
+      if (hi - lo < 2) {
+        GTSHelper.setValue(crosscorrelation, offset, 0.0D);
+        continue;
+      }
+      
+      int from = (int) lo;
+      int to = (int) hi;
+      int s = (int) shift;
+      
+      double sum;
+      
+      if (null != crosssums) {
+        sum = crosssums[s < 0 ? fftlen + s : s];
+      } else {
+        sum = 0.0D;
+        for (int i = from; i < to; i++) {
+          sum += samples.values[i] * samplesB.values[i + s];
         }
-        
-        if (idxA == gtsA.values || idxB == gtsB.values) {
-          GTSHelper.setValue(crosscorrelation, offset, 0.0D);          
+      }
+      
+      //
+      // Both windows are standardized independently, so the correlation is their
+      // covariance divided by the product of their standard deviations
+      //
+      
+      int count = to - from;
+      
+      double meanA = samples.mean(from, to);
+      double meanB = samplesB.mean(from + s, to + s);
+      
+      double corr = (sum - count * meanA * meanB) / count;
+      corr = corr / samples.sd(from, to) / samplesB.sd(from + s, to + s);
+      
+      GTSHelper.setValue(crosscorrelation, offset, corr);
+    }
+    
+    return crosscorrelation;
+  }
+  
+  /**
+   * Compute sum(a[i] * b[i + s]) for all shifts s, negative shifts being stored at index len + s
+   * 
+   * @param len Length of the FFT, a power of 2 not less than a.length + b.length - 1
+   */
+  static double[] crossSums(double[] a, double[] b, int len) {
+    double[] fa = new double[len * 2];
+    double[] fb = new double[len * 2];
+    
+    for (int i = 0; i < a.length; i++) {
+      fa[2 * i] = a[i];
+    }
+    for (int i = 0; i < b.length; i++) {
+      fb[2 * i] = b[i];
+    }
+    
+    DoubleFFT_1D dfft = new DoubleFFT_1D(len);
+    dfft.complexForward(fa);
+    dfft.complexForward(fb);
+    
+    //
+    // Multiply the conjugate of fa by fb
+    //
+    
+    for (int k = 0; k < len; k++) {
+      double re = fa[2 * k] * fb[2 * k] + fa[2 * k + 1] * fb[2 * k + 1];
+      double im = fa[2 * k] * fb[2 * k + 1] - fa[2 * k + 1] * fb[2 * k];
+      fa[2 * k] = re;
+      fa[2 * k + 1] = im;
+    }
+    
+    dfft.complexInverse(fa, true);
+    
+    double[] sums = new double[len];
+    
+    for (int k = 0; k < len; k++) {
+      sums[k] = fa[2 * k];
+    }
+    
+    return sums;
+  }
+  
+  /**
+   * Check that a sorted GTS has exactly one value per bucket
+   */
+  private static boolean isContiguous(GeoTimeSerie gts) {
+    if (0 == gts.values) {
+      return false;
+    }
+    
+    for (int i = 1; i < gts.values; i++) {
+      if (gts.ticks[i] - gts.ticks[i - 1] != gts.bucketspan) {
+        return false;
+      }
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Values of a GTS centered on their mean, with prefix sums used to standardize any window
+   */
+  private static final class Samples {
+    private final double[] values;
+    private final double[] sums;
+    private final double[] sumsqs;
+    
+    private Samples(GeoTimeSerie gts) {
+      int n = gts.values;
+      
+      values = new double[n];
+      
+      double mean = 0.0D;
+      
+      for (int i = 0; i < n; i++) {
+        values[i] = TYPE.LONG == gts.type ? (double) gts.longValues[i] : gts.doubleValues[i];
+        mean += values[i];
+      }
+      
+      mean = mean / n;
+      
+      sums = new double[n + 1];
+      sumsqs = new double[n + 1];
+      
+      for (int i = 0; i < n; i++) {
+        values[i] -= mean;
+        sums[i + 1] = sums[i] + values[i];
+        sumsqs[i + 1] = sumsqs[i] + values[i] * values[i];
+      }
+    }
+    
+    private double mean(int from, int to) {
+      return (sums[to] - sums[from]) / (to - from);
+    }
+    
+    /**
+     * Standard deviation of values[from,to[ with Bessel's correction, as computed by GTSHelper.standardize,
+     * 1.0 if it is 0
+     */
+    private double sd(int from, int to) {
+      double count = to - from;
+      double sum = sums[to] - sums[from];
+      
+      double variance = ((sumsqs[to] - sumsqs[from]) / count) - (sum * sum) / (count * count);
+      
+      if (count > 1) {
+        variance = variance * count / (count - 1.0D);
+      }
+      
+      if (variance <= 0.0D) {
+        return 1.0D;
+      }
+      
+      return Math.sqrt(variance);
+    }
+  }
+  
+  /**
+   * Compute the cross correlation for each offset by matching ticks
+   */
+  void correlateTicks(GeoTimeSerie gts, GeoTimeSerie gtsB, List<Long> offsets, GeoTimeSerie crosscorrelation) {
+    for (long offset: offsets) {
+      
+      //
+      // Extract both GTS to check
+      //
+      
+      GeoTimeSerie gtsA = gts;
+      
+      //
+      // Find the index offset to use
+      //
+      
+      int idxA = 0;
+      int idxB = 0;
+      
+      while (idxA < gtsA.values && idxB < gtsB.values) {
+        if (gtsA.ticks[idxA] + offset < gtsB.ticks[idxB]) {
+          idxA++;
           continue;
         }
-        
-        //
-        // Clip both GTS to the useful range
-        //
-        
-        long lastTickB = gtsB.ticks[gtsB.values - 1];
-        long lastTickA = gtsA.ticks[gtsA.values - 1];
-        
-        long end = Math.min(lastTickA, lastTickB - offset);
-        gtsA = GTSHelper.timeclip(gtsA, gtsA.ticks[idxA], end);
-        gtsB = GTSHelper.timeclip(gtsB, gtsB.ticks[idxB], end + offset);
-
-        gtsA = GTSHelper.standardize(gtsA);
-        gtsB = GTSHelper.standardize(gtsB);
-        
-        idxA = 0;
-        idxB = 0;
-        
-        double sum = 0.0D; 
-        int count = 0;
-        
-        while (idxA < gtsA.values && idxB < gtsB.values) {
-          double v0 = ((Number) GTSHelper.valueAtIndex(gtsA, idxA)).doubleValue();
-          Object v1 = GTSHelper.valueAtIndex(gtsB, idxB);
-          
-          if (null != v1) {
-            double v1d = ((Number) v1).doubleValue();          
-            
-            sum += v0 * v1d;
-            count++;
-          }
-          idxA++;
+        if (gtsA.ticks[idxA] + offset > gtsB.ticks[idxB]) {
           idxB++;
+          continue;
         }
+        break;
+      }
+      
+      if (idxA == gtsA.values || idxB == gtsB.values) {
+        GTSHelper.setValue(crosscorrelation, offset, 0.0D);          
+        continue;
+      }
+      
+      //
+      // Clip both GTS to the useful range
+      //
+      
+      long lastTickB = gtsB.ticks[gtsB.values - 1];
+      long lastTickA = gtsA.ticks[gtsA.values - 1];
+      
+      long end = Math.min(lastTickA, lastTickB - offset);
+      GeoTimeSerie clippedA = GTSHelper.timeclip(gtsA, gtsA.ticks[idxA], end);
+      GeoTimeSerie clippedB = GTSHelper.timeclip(gtsB, gtsB.ticks[idxB], end + offset);
+
+      clippedA = GTSHelper.standardize(clippedA);
+      clippedB = GTSHelper.standardize(clippedB);
+      
+      idxA = 0;
+      idxB = 0;
+      
+      double sum = 0.0D; 
+      int count = 0;
+      
+      while (idxA < clippedA.values && idxB < clippedB.values) {
+        double v0 = ((Number) GTSHelper.valueAtIndex(clippedA, idxA)).doubleValue();
+        Object v1 = GTSHelper.valueAtIndex(clippedB, idxB);
         
-        if (count > 0) {
-          GTSHelper.setValue(crosscorrelation, offset, sum / (double) count);
-        } else {
-          GTSHelper.setValue(crosscorrelation, offset, 0.0D);
+        if (null != v1) {
+          double v1d = ((Number) v1).doubleValue();          
+          
+          sum += v0 * v1d;
+          count++;
         }
+        idxA++;
+        idxB++;
+      }
+      
+      if (count > 0) {
+        GTSHelper.setValue(crosscorrelation, offset, sum / (double) count);
+      } else {
+        GTSHelper.setValue(crosscorrelation, offset, 0.0D);
       }
     }
-    
-    return crosscorrelations;
   }
 }
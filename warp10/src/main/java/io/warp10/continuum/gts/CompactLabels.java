@@ -0,0 +1,366 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import io.warp10.continuum.sensision.SensisionConstants;
+import io.warp10.sensision.Sensision;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Immutable map of labels (or attributes) meant for the Metadata kept in directory caches.
+ *
+ * Names and values are replaced by codes from a process wide dictionary and stored as a
+ * sorted array of (name, value) pairs. Instances are interned so series with the same
+ * labels share the same instance.
+ *
+ * Codes are reference counted by the interned instances which use them. Once an instance
+ * is no longer reachable its codes are released, the next call to 'of' reclaims the codes
+ * no longer used by any instance and later reuses them. The dictionary is therefore bounded
+ * by the number of distinct strings used by the live label sets, values of deleted or
+ * churned series (container ids, ...) do not accumulate. Its size is exported as a gauge.
+ */
+public final class CompactLabels extends AbstractMap<String,String> {
+  
+  /**
+   * Codes per string, also the lock guarding the allocation and the reclamation of codes
+   */
+  private static final ConcurrentHashMap<String,Integer> CODES = new ConcurrentHashMap<String,Integer>();
+  
+  /**
+   * Strings per code. The array is replaced when it grows, a code is only published once its string is set.
+   */
+  private static volatile String[] STRINGS = new String[1024];
+  
+  /**
+   * Number of occurrences of each code in the registered instances
+   */
+  private static int[] REFCOUNTS = new int[1024];
+  
+  /**
+   * Stack of reclaimed codes available for reuse
+   */
+  private static int[] FREE = new int[64];
+  
+  private static int free = 0;
+  
+  private static int nextCode = 0;
+  
+  private static final Interner<CompactLabels> INTERNER = Interners.newWeakInterner();
+  
+  /**
+   * Queue of the registrations whose instance was collected
+   */
+  private static final ReferenceQueue<CompactLabels> RELEASED = new ReferenceQueue<CompactLabels>();
+  
+  /**
+   * Registrations of the interned instances, keeps them reachable until their instance is collected
+   */
+  private static final Set<Registration> REGISTRATIONS = Collections.newSetFromMap(new IdentityHashMap<Registration,Boolean>());
+  
+  private static final class Registration extends WeakReference<CompactLabels> {
+    private final int[] codes;
+    
+    private Registration(CompactLabels labels) {
+      super(labels, RELEASED);
+      this.codes = labels.codes;
+    }
+  }
+  
+  public static final CompactLabels EMPTY = new CompactLabels(new int[0]);
+  
+  /**
+   * Pairs of codes (name, value), sorted by name code
+   */
+  private final int[] codes;
+  
+  private final int hash;
+  
+  private CompactLabels(int[] codes) {
+    this.codes = codes;
+    
+    // Same value as AbstractMap#hashCode so instances can be compared to other maps
+    int h = 0;
+    for (int i = 0; i < codes.length; i += 2) {
+      h += string(codes[i]).hashCode() ^ string(codes[i + 1]).hashCode();
+    }
+    this.hash = h;
+  }
+  
+  /**
+   * Return the shared compact instance with the same content as 'map'
+   */
+  public static CompactLabels of(Map<String,String> map) {
+    if (map instanceof CompactLabels) {
+      return (CompactLabels) map;
+    }
+    
+    if (null == map || map.isEmpty()) {
+      return EMPTY;
+    }
+    
+    //
+    // Codes are looked up, and the resulting instance registered, under the lock so
+    // none of them can be reclaimed in between
+    //
+    
+    synchronized(CODES) {
+      int strings = strings();
+      
+      reclaim();
+      
+      int[] codes = new int[map.size() * 2];
+      int n = 0;
+      
+      for (Entry<String,String> entry: map.entrySet()) {
+        int name = code(entry.getKey());
+        int value = code(entry.getValue());
+        
+        // Insertion sort on the name codes, label sets are small
+        int i = n;
+        while (i > 0 && codes[i - 2] > name) {
+          codes[i] = codes[i - 2];
+          codes[i + 1] = codes[i - 1];
+          i -= 2;
+        }
+        codes[i] = name;
+        codes[i + 1] = value;
+        n += 2;
+      }
+      
+      CompactLabels labels = new CompactLabels(codes);
+      CompactLabels interned = INTERNER.intern(labels);
+      
+      //
+      // Only the instance which was just interned holds new references, an existing
+      // instance with the same content already holds them
+      //
+      
+      if (interned == labels) {
+        for (int code: codes) {
+          REFCOUNTS[code]++;
+        }
+        REGISTRATIONS.add(new Registration(labels));
+      }
+      
+      if (strings() != strings) {
+        Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_DIRECTORY_LABELS_DICTIONARY, Sensision.EMPTY_LABELS, strings());
+      }
+      
+      return interned;
+    }
+  }
+  
+  /**
+   * @return The code of 's', allocating one if needed. Must be called with the lock held.
+   */
+  private static int code(String s) {
+    Integer code = CODES.get(s);
+    
+    if (null != code) {
+      return code;
+    }
+    
+    String[] strings = STRINGS;
+    
+    if (free > 0) {
+      code = FREE[--free];
+    } else {
+      if (nextCode == strings.length) {
+        strings = Arrays.copyOf(strings, strings.length * 2);
+        REFCOUNTS = Arrays.copyOf(REFCOUNTS, strings.length);
+        STRINGS = strings;
+      }
+      code = nextCode++;
+    }
+    
+    strings[code] = s.intern();
+    CODES.put(strings[code], code);
+    
+    return code;
+  }
+  
+  /**
+   * Release the codes of the collected instances, the codes no longer referenced are
+   * removed from the dictionary and made available for reuse. Must be called with the lock held.
+   */
+  private static void reclaim() {
+    Reference<? extends CompactLabels> ref;
+    
+    while (null != (ref = RELEASED.poll())) {
+      if (!REGISTRATIONS.remove(ref)) {
+        continue;
+      }
+      
+      for (int code: ((Registration) ref).codes) {
+        if (0 != --REFCOUNTS[code]) {
+          continue;
+        }
+        
+        CODES.remove(STRINGS[code]);
+        STRINGS[code] = null;
+        
+        if (free == FREE.length) {
+          FREE = Arrays.copyOf(FREE, FREE.length * 2);
+        }
+        FREE[free++] = code;
+      }
+    }
+  }
+  
+  /**
+   * @return The number of strings currently held by the dictionary
+   */
+  static int dictionarySize() {
+    synchronized(CODES) {
+      return strings();
+    }
+  }
+  
+  private static int strings() {
+    return nextCode - free;
+  }
+  
+  private static String string(int code) {
+    return STRINGS[code];
+  }
+  
+  /**
+   * @return The index of the pair whose name is 'key', or -1
+   */
+  private int indexOf(Object key) {
+    if (!(key instanceof String)) {
+      return -1;
+    }
+    
+    Integer code = CODES.get(key);
+    
+    if (null == code) {
+      return -1;
+    }
+    
+    int lo = 0;
+    int hi = this.codes.length / 2 - 1;
+    
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int c = this.codes[mid * 2];
+      
+      if (c < code) {
+        lo = mid + 1;
+      } else if (c > code) {
+        hi = mid - 1;
+      } else {
+        // The code may have been reclaimed and reused since it was looked up
+        return key.equals(string(c)) ? mid * 2 : -1;
+      }
+    }
+    
+    return -1;
+  }
+  
+  @Override
+  public String get(Object key) {
+    int idx = indexOf(key);
+    return idx < 0 ? null : string(this.codes[idx + 1]);
+  }
+  
+  @Override
+  public boolean containsKey(Object key) {
+    return indexOf(key) >= 0;
+  }
+  
+  @Override
+  public int size() {
+    return this.codes.length / 2;
+  }
+  
+  @Override
+  public boolean isEmpty() {
+    return 0 == this.codes.length;
+  }
+  
+  @Override
+  public Set<Entry<String,String>> entrySet() {
+    return new AbstractSet<Entry<String,String>>() {
+      @Override
+      public int size() {
+        return CompactLabels.this.size();
+      }
+      
+      @Override
+      public Iterator<Entry<String,String>> iterator() {
+        return new Iterator<Entry<String,String>>() {
+          private int idx = 0;
+          
+          @Override
+          public boolean hasNext() {
+            return idx < codes.length;
+          }
+          
+          @Override
+          public Entry<String,String> next() {
+            if (idx >= codes.length) {
+              throw new NoSuchElementException();
+            }
+            Entry<String,String> entry = new SimpleImmutableEntry<String,String>(string(codes[idx]), string(codes[idx + 1]));
+            idx += 2;
+            return entry;
+          }
+          
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+  
+  @Override
+  public int hashCode() {
+    return this.hash;
+  }
+  
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    
+    if (o instanceof CompactLabels) {
+      return this.hash == ((CompactLabels) o).hash && Arrays.equals(this.codes, ((CompactLabels) o).codes);
+    }
+    
+    return super.equals(o);
+  }
+}
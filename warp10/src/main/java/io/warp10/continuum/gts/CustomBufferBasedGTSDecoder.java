@@ -123,11 +123,6 @@ public class CustomBufferBasedGTSDecoder extends GTSDecoder {
    */
   private Metadata metadata;
   
-  /**
-   * Position of the current (post call to next()) reading in the buffer
-   */
-  private int position;
-
   /**
    * Estimation of the number of elements in the decoder
    */
@@ -164,7 +159,6 @@ public class CustomBufferBasedGTSDecoder extends GTSDecoder {
     } else {
       this.wrappingKey = null;
     }
-    this.position = bb.position();
   }
 
   /**
@@ -173,12 +167,6 @@ public class CustomBufferBasedGTSDecoder extends GTSDecoder {
    */
   public boolean next() {
     
-    //
-    // Update position prior to reading the next value, etc so we can 
-    //
-    
-    this.position = this.buffer.position();
-
     if (!buffer.hasRemaining()) {
       return false;
     }
@@ -208,7 +196,11 @@ public class CustomBufferBasedGTSDecoder extends GTSDecoder {
       //
       
       if (null == wrappingKey) {
-        buffer.position(buffer.position() + enclen);
+        //
+        // Skip the data by reading it as not all CustomBuffer implementations
+        // support setting the position (and positions may not fit in an int)
+        //
+        buffer.get(new byte[enclen]);
         
         // WARNING(hbs): if there are many encrypted chunks this may lead to a stack overflow
         return next();
@@ -482,9 +474,30 @@ public class CustomBufferBasedGTSDecoder extends GTSDecoder {
    * 
    * @return A GTS instance containing the remaining values.
    */
+  @Override
+  public GeoTimeSerie decode(TYPE type) {
+    GeoTimeSerie gts = new GeoTimeSerie(this.count > 0 ? (int) Math.min(Integer.MAX_VALUE, this.count) : (int) Math.max(16L, Math.min(Integer.MAX_VALUE, this.buffer.remaining() / 10)));
+    
+    if (null != type) {
+      gts.setType(type);
+    }
+    
+    gts.setMetadata(this.getMetadata());
+    
+    while(next()) {
+      GTSHelper.setValue(gts, getTimestamp(), getLocation(), getElevation(), getValue(), false);
+    }
+    
+    return gts;
+  }
+  
   @Override
   public GeoTimeSerie decode() {
-    throw new RuntimeException("Not Implemented.");
+    return decode(null);
+  }
+  
+  void setCount(long count) {
+    this.count = count;
   }
   
   
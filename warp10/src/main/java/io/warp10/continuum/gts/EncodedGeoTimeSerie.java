@@ -0,0 +1,53 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+import io.warp10.continuum.store.thrift.data.Metadata;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Geo Time Serie whose datapoints are kept on heap in their encoded form.
+ * The encoded form is usually several times smaller than the decoded arrays.
+ */
+public class EncodedGeoTimeSerie extends LazyGeoTimeSerie {
+  
+  private final List<byte[]> chunks = new ArrayList<byte[]>();
+  
+  public EncodedGeoTimeSerie(Metadata metadata, TYPE type) {
+    super(metadata, type);
+  }
+  
+  @Override
+  protected void store(GTSEncoder encoder) throws IOException {
+    chunks.add(encoder.stream.toByteArray());
+  }
+  
+  @Override
+  protected int chunks() {
+    return chunks.size();
+  }
+  
+  @Override
+  protected GTSDecoder decoder(int chunk) throws IOException {
+    return new GTSDecoder(0L, ByteBuffer.wrap(chunks.get(chunk)));
+  }
+}
@@ -44,6 +44,9 @@ public class FileBasedCustomBuffer implements CustomBuffer {
   
   private long position = 0L;
   
+  /**
+   * Offset (exclusive) in the file of the last byte this buffer will read
+   */
   private final long filelen;
   
   private final FileInputStream stream;
@@ -55,6 +58,35 @@ public class FileBasedCustomBuffer implements CustomBuffer {
     ensure(1);
   }
   
+  /**
+   * Create a buffer which only exposes 'length' bytes of the file starting at 'start'
+   * 
+   * @param path Path to the file
+   * @param start Offset of the first byte to expose
+   * @param length Number of bytes to expose
+   * @param bufsize Minimum number of bytes to prefetch
+   */
+  public FileBasedCustomBuffer(String path, long start, long length, int bufsize) throws IOException {
+    this.filelen = Math.min(new File(path).length(), start + length);
+    this.stream = new FileInputStream(path);
+    this.bufsize = bufsize;
+    
+    long skipped = 0L;
+    
+    while (skipped < start) {
+      long n = this.stream.skip(start - skipped);
+      if (n <= 0) {
+        this.stream.close();
+        throw new IOException("Unable to skip to offset " + start);
+      }
+      skipped += n;
+    }
+    
+    this.offset = start;
+    
+    ensure(1);
+  }
+  
   public long getPosition() {
     if (null == this.buffer) {
       return 0L;
@@ -152,15 +184,22 @@ public class FileBasedCustomBuffer implements CustomBuffer {
     // Set buffer's position to 0 as we just created a new buffer
     this.buffer.position(0);
     
-    // Read from the stream
+    // Read from the stream, never past 'filelen'
     try {
-      int len = this.stream.read(buf, off, this.buffer.limit());
-    
-      if (len > 0) {
-        this.offset += len;
+      int len = 0;
+      int toread = (int) Math.min(buf.length - off, this.filelen - this.offset);
+      
+      while (len < toread) {
+        int n = this.stream.read(buf, off + len, toread - len);
+        if (n <= 0) {
+          break;
+        }
+        len += n;
       }
+    
+      this.offset += len;
       
-      this.buffer.limit(off + (len > 0 ? len : 0));
+      this.buffer.limit(off + len);
 
     } catch (IOException ioe) {
       throw new RuntimeException(ioe);
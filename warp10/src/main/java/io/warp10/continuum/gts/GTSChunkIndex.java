@@ -0,0 +1,303 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+/**
+ * Sparse index of the content of a GTSEncoder.
+ *
+ * Every 'interval' datapoints a checkpoint is recorded with the offset of the next datapoint
+ * in the encoded stream and the state a decoder needs to decode from there. Each checkpoint
+ * also tracks the highest timestamp encoded up to the next checkpoint, so a decoder can skip
+ * the chunks whose datapoints are all before a given timestamp, whatever the order of the
+ * timestamps.
+ *
+ * Checkpoints are only appended, the arrays are replaced when cleared or grown, so a snapshot
+ * sharing them stays valid while the encoder keeps adding datapoints.
+ */
+final class GTSChunkIndex {
+
+  private final int interval;
+
+  private int size = 0;
+
+  private int[] offsets;
+  private long[] timestamps;
+  private long[] locations;
+  private long[] elevations;
+  private long[] longValues;
+  private double[] doubleValues;
+  private BigDecimal[] bdValues;
+  private String[] stringValues;
+
+  /**
+   * Highest timestamp of the datapoints up to the next checkpoint
+   */
+  private long[] maxTicks;
+
+  /**
+   * Number of datapoints before each checkpoint
+   */
+  private long[] ordinals;
+
+  /**
+   * Number of datapoints indexed
+   */
+  private long count = 0L;
+
+  /**
+   * Flag indicating the indexed timestamps are in non decreasing order
+   */
+  private boolean ordered = true;
+
+  /**
+   * Flag indicating the checkpoints cover the encoded stream. An index becomes invalid
+   * when encrypted data is appended to the stream.
+   */
+  private boolean valid = true;
+
+  GTSChunkIndex(int interval) {
+    this.interval = interval;
+    allocate(16);
+  }
+
+  private GTSChunkIndex(GTSChunkIndex index) {
+    this.interval = index.interval;
+    this.size = index.size;
+    this.offsets = index.offsets;
+    this.timestamps = index.timestamps;
+    this.locations = index.locations;
+    this.elevations = index.elevations;
+    this.longValues = index.longValues;
+    this.doubleValues = index.doubleValues;
+    this.bdValues = index.bdValues;
+    this.stringValues = index.stringValues;
+    this.maxTicks = index.maxTicks;
+    this.ordinals = index.ordinals;
+    this.count = index.count;
+    this.ordered = index.ordered;
+    this.valid = index.valid;
+  }
+
+  private void allocate(int capacity) {
+    offsets = new int[capacity];
+    timestamps = new long[capacity];
+    locations = new long[capacity];
+    elevations = new long[capacity];
+    longValues = new long[capacity];
+    doubleValues = new double[capacity];
+    bdValues = new BigDecimal[capacity];
+    stringValues = new String[capacity];
+    maxTicks = new long[capacity];
+    ordinals = new long[capacity];
+  }
+
+  int getInterval() {
+    return this.interval;
+  }
+
+  boolean isValid() {
+    return this.valid;
+  }
+
+  boolean isOrdered() {
+    return this.ordered;
+  }
+
+  void invalidate() {
+    this.valid = false;
+  }
+
+  /**
+   * Remove all checkpoints, the index becomes valid again
+   */
+  void clear() {
+    allocate(16);
+    size = 0;
+    count = 0L;
+    ordered = true;
+    valid = true;
+  }
+
+  /**
+   * @return true if a checkpoint should be recorded before the next datapoint
+   */
+  boolean due() {
+    return valid && (0 == size || count - ordinals[size - 1] >= interval);
+  }
+
+  /**
+   * Record a checkpoint at 'offset' with the given decoder state
+   */
+  void checkpoint(int offset, long timestamp, long location, long elevation, long longValue, double doubleValue, BigDecimal bdValue, String stringValue) {
+    if (size == offsets.length) {
+      int capacity = size * 2;
+      offsets = Arrays.copyOf(offsets, capacity);
+      timestamps = Arrays.copyOf(timestamps, capacity);
+      locations = Arrays.copyOf(locations, capacity);
+      elevations = Arrays.copyOf(elevations, capacity);
+      longValues = Arrays.copyOf(longValues, capacity);
+      doubleValues = Arrays.copyOf(doubleValues, capacity);
+      bdValues = Arrays.copyOf(bdValues, capacity);
+      stringValues = Arrays.copyOf(stringValues, capacity);
+      maxTicks = Arrays.copyOf(maxTicks, capacity);
+      ordinals = Arrays.copyOf(ordinals, capacity);
+    }
+
+    offsets[size] = offset;
+    timestamps[size] = timestamp;
+    locations[size] = location;
+    elevations[size] = elevation;
+    longValues[size] = longValue;
+    doubleValues[size] = doubleValue;
+    bdValues[size] = bdValue;
+    stringValues[size] = stringValue;
+    maxTicks[size] = 0 == size ? Long.MIN_VALUE : maxTicks[size - 1];
+    ordinals[size] = count;
+    size++;
+  }
+
+  /**
+   * Account for a datapoint added after the last checkpoint
+   */
+  void update(long tick) {
+    if (!valid) {
+      return;
+    }
+
+    if (tick < maxTicks[size - 1]) {
+      ordered = false;
+    }
+
+    if (tick > maxTicks[size - 1]) {
+      maxTicks[size - 1] = tick;
+    }
+
+    count++;
+  }
+
+  /**
+   * Return a view of the current checkpoints which is not affected by later additions
+   */
+  GTSChunkIndex snapshot() {
+    return new GTSChunkIndex(this);
+  }
+
+  /**
+   * Return the first checkpoint whose chunk may contain datapoints at or after 'timestamp',
+   * or the number of checkpoints if there is none. All datapoints before the returned
+   * checkpoint have timestamps strictly before 'timestamp'.
+   */
+  int find(long timestamp) {
+    int lo = 0;
+    int hi = size;
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (maxTicks[mid] < timestamp) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+
+    return lo;
+  }
+
+  /**
+   * Position 'decoder' at checkpoint 'idx'
+   */
+  void restore(GTSDecoder decoder, int idx) {
+    decoder.restore(offsets[idx], timestamps[idx], locations[idx], elevations[idx], longValues[idx], doubleValues[idx], bdValues[idx], stringValues[idx]);
+  }
+
+  /**
+   * Set the last values of 'encoder' to the state of checkpoint 'idx'
+   */
+  void restore(GTSEncoder encoder, int idx) {
+    encoder.restore(timestamps[idx], locations[idx], elevations[idx], longValues[idx], doubleValues[idx], bdValues[idx], stringValues[idx]);
+  }
+
+  /**
+   * @return true if the last values of 'encoder' are the state of checkpoint 'idx', i.e. if the
+   *         datapoints following the checkpoint can be appended as is to 'encoder'
+   */
+  boolean matches(GTSEncoder encoder, int idx) {
+    return encoder.hasLastValues(timestamps[idx], locations[idx], elevations[idx], longValues[idx], doubleValues[idx], bdValues[idx], stringValues[idx]);
+  }
+
+  /**
+   * Return a new index with the first 'n' checkpoints of this one, covering the datapoints
+   * before checkpoint 'n'
+   */
+  GTSChunkIndex head(int n) {
+    GTSChunkIndex index = new GTSChunkIndex(this.interval);
+
+    for (int i = 0; i < n; i++) {
+      index.checkpoint(offsets[i], timestamps[i], locations[i], elevations[i], longValues[i], doubleValues[i], bdValues[i], stringValues[i]);
+      index.maxTicks[i] = maxTicks[i];
+      index.ordinals[i] = ordinals[i];
+    }
+
+    index.count = n < size ? ordinals[n] : count;
+    index.ordered = this.ordered;
+
+    return index;
+  }
+
+  /**
+   * Append the checkpoints of 'index' from 'from' onwards, for datapoints copied from the
+   * encoded stream 'index' covers at an offset shifted by 'shift'
+   */
+  void append(GTSChunkIndex index, int from, int shift) {
+    long ordinal = this.count;
+    long maxTick = 0 == size ? Long.MIN_VALUE : maxTicks[size - 1];
+
+    for (int i = from; i < index.size; i++) {
+      checkpoint(index.offsets[i] + shift, index.timestamps[i], index.locations[i], index.elevations[i], index.longValues[i], index.doubleValues[i], index.bdValues[i], index.stringValues[i]);
+      maxTicks[size - 1] = Math.max(maxTick, index.maxTicks[i]);
+      ordinals[size - 1] = ordinal + index.ordinals[i] - index.ordinals[from];
+    }
+
+    this.count = ordinal + index.count - index.ordinals[from];
+    this.ordered = this.ordered && index.ordered;
+  }
+
+  int size() {
+    return this.size;
+  }
+
+  int offset(int idx) {
+    return offsets[idx];
+  }
+
+  /**
+   * @return the highest timestamp of the datapoints before checkpoint 'idx + 1'
+   */
+  long maxTick(int idx) {
+    return maxTicks[idx];
+  }
+
+  /**
+   * @return the number of datapoints in the chunk starting at checkpoint 'idx'
+   */
+  long chunkSize(int idx) {
+    return (idx + 1 < size ? ordinals[idx + 1] : count) - ordinals[idx];
+  }
+}
@@ -140,6 +140,11 @@ public class GTSDecoder {
    */
   private long count = 0;
   
+  /**
+   * Sparse index of the decoded data, if the decoder was created by an encoder maintaining one
+   */
+  private GTSChunkIndex index = null;
+  
   /**
    * @param baseTimestamp Base timestamp for computing deltas.
    * @param bb ByteBuffer containing the encoded GTS. Only remaining data will be read.
@@ -682,6 +687,74 @@ public class GTSDecoder {
     this.count = count;
   }
   
+  void setIndex(GTSChunkIndex index) {
+    this.index = index;
+  }
+  
+  /**
+   * Skip the chunks of datapoints whose timestamps are all before 'timestamp', using the sparse
+   * index maintained by the encoder this decoder was created from. Only chunks are skipped, so
+   * datapoints before 'timestamp' may still be returned by 'next'.
+   * 
+   * This can only be done before the first call to 'next'.
+   * 
+   * @return true if the index was used, false if the decoder has no index or 'next' was already called
+   */
+  public boolean seek(long timestamp) {
+    if (null == this.index || this.nextCalled) {
+      return false;
+    }
+    
+    int checkpoint = this.index.find(timestamp);
+    
+    if (checkpoint >= this.index.size()) {
+      // All datapoints are before 'timestamp'
+      this.buffer.position(this.buffer.limit());
+      this.position = this.buffer.position();
+    } else if (checkpoint > 0) {
+      this.index.restore(this, checkpoint);
+    }
+    
+    return true;
+  }
+  
+  /**
+   * @return true if the datapoints are known to be in non decreasing timestamp order
+   */
+  public boolean isOrdered() {
+    return null != this.index && this.index.isOrdered();
+  }
+  
+  /**
+   * Position the decoder at 'offset' with the given state
+   */
+  void restore(int offset, long timestamp, long location, long elevation, long longValue, double doubleValue, BigDecimal bdValue, String stringValue) {
+    this.buffer.position(offset);
+    this.position = offset;
+    initialize(timestamp, location, elevation, longValue, doubleValue, bdValue, stringValue);
+    this.previousLastTimestamp = timestamp;
+    this.previousLastGeoXPPoint = location;
+    this.previousLastElevation = elevation;
+    this.previousLastLongValue = longValue;
+    this.previousLastDoubleValue = doubleValue;
+    this.previousLastBDValue = bdValue;
+    this.previousLastStringValue = stringValue;
+  }
+  
+  /**
+   * Record a checkpoint in 'index' at the current position of the buffer, with the current state
+   */
+  void checkpoint(GTSChunkIndex index) {
+    index.checkpoint(this.buffer.position(), lastTimestamp, lastGeoXPPoint, lastElevation, lastLongValue, lastDoubleValue, lastBDValue, lastStringValue);
+  }
+  
+  /**
+   * @return true if the next datapoint to read is encrypted
+   */
+  boolean atEncryptedData() {
+    return this.buffer.hasRemaining() && GTSEncoder.FLAGS_ENCRYPTED == (this.buffer.get(this.buffer.position()) & GTSEncoder.FLAGS_MASK_ENCRYPTED);
+  }
+  
   /**
    * Returns a new instance of GTSDecoder with duplicates removed
    * 
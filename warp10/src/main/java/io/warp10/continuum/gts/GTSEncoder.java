@@ -203,6 +203,11 @@ public class GTSEncoder {
   
   private boolean noDeltaValue = false;
   
+  /**
+   * Optional sparse index of the encoded datapoints
+   */
+  private GTSChunkIndex index = null;
+  
   public GTSEncoder() {
     this.stream = new ByteArrayOutputStream();
     this.wrappingKey = null;
@@ -271,6 +276,15 @@ public class GTSEncoder {
   private byte[] buf8 = new byte[8];
   private byte[] buf10 = new byte[10];
   public synchronized int addValue(long timestamp, long location, long elevation, Object value) throws IOException {
+    
+    //
+    // Record a checkpoint with the state needed to decode from the upcoming datapoint
+    //
+    
+    if (null != index && index.due()) {
+      index.checkpoint(this.stream.size(), lastTimestamp, lastGeoXPPoint, lastElevation, lastLongValue, lastDoubleValue, lastBDValue, lastStringValue);
+    }
+    
     //
     // Determine the encoding for the timestamp
     // We choose the encoding mode which leads to the least number of bytes
@@ -692,11 +706,64 @@ public class GTSEncoder {
         throw new RuntimeException("Invalid type encountered!");
     }
 
+    if (null != index) {
+      index.update(timestamp);
+    }
+    
     this.count++;
     
     return this.stream.size();
   }
   
+  /**
+   * Maintain a sparse index of the encoded datapoints with a checkpoint every 'interval' datapoints,
+   * decoders created by 'getDecoder' can then skip chunks of datapoints via {@link GTSDecoder#seek(long)}.
+   * 
+   * @param interval Number of datapoints between checkpoints, 0 to disable the index
+   */
+  public synchronized void setIndexInterval(int interval) {
+    if (interval <= 0) {
+      this.index = null;
+      return;
+    }
+    
+    if (null != this.index && this.index.getInterval() == interval) {
+      return;
+    }
+    
+    this.index = new GTSChunkIndex(interval);
+    
+    if (this.stream.size() > 0) {
+      indexFrom(0, this.initialTimestamp, this.initialGeoXPPoint, this.initialElevation, this.initialLongValue, this.initialDoubleValue, this.initialBDValue, this.initialStringValue);
+    }
+  }
+  
+  /**
+   * Index the datapoints already encoded in the stream from 'offset', the decoding state at 'offset' being the one given.
+   */
+  private void indexFrom(int offset, long timestamp, long location, long elevation, long longValue, double doubleValue, BigDecimal bdValue, String stringValue) {
+    GTSDecoder decoder = new GTSDecoder(this.baseTimestamp, ByteBuffer.wrap(this.stream.toByteArray()));
+    decoder.restore(offset, timestamp, location, elevation, longValue, doubleValue, bdValue, stringValue);
+    
+    while (decoder.getRemainingSize() > 0) {
+      // Encrypted chunks cannot be indexed
+      if (decoder.atEncryptedData()) {
+        this.index.invalidate();
+        return;
+      }
+      
+      if (this.index.due()) {
+        decoder.checkpoint(this.index);
+      }
+      
+      if (!decoder.next()) {
+        break;
+      }
+      
+      this.index.update(decoder.getTimestamp());
+    }
+  }
+  
   public void setWrappingKey(byte[] key) {
     this.wrappingKey = null == key ? null : Arrays.copyOf(key, key.length);
   }
@@ -802,6 +869,11 @@ public class GTSEncoder {
       this.initialStringValue);
     
     decoder.setCount(this.getCount());
+    
+    if (null != this.index && this.index.isValid()) {
+      decoder.setIndex(this.index.snapshot());
+    }
+    
     return decoder;
   }
 
@@ -861,6 +933,189 @@ public class GTSEncoder {
     
     this.stream.reset();
     this.stream.write(encoder.stream.toByteArray());
+    
+    if (null != this.index) {
+      this.index.clear();
+      indexFrom(0, this.initialTimestamp, this.initialGeoXPPoint, this.initialElevation, this.initialLongValue, this.initialDoubleValue, this.initialBDValue, this.initialStringValue);
+    }
+  }
+  
+  /**
+   * Remove the datapoints whose timestamps are in [start,end].
+   * 
+   * When the sparse index is maintained, the encoded chunks entirely before 'start' are kept as is.
+   * If the timestamps are ordered, the chunks entirely within [start,end] are dropped without being
+   * decoded and the datapoints after 'end' are copied as is as soon as the encoding state is in sync
+   * with a checkpoint, so only the datapoints around the boundaries of the range are re-encoded.
+   * 
+   * @return The number of removed datapoints
+   */
+  public synchronized long delete(long start, long end) throws IOException {
+    
+    if (0 == this.stream.size() || start > end) {
+      return 0L;
+    }
+    
+    byte[] bytes = this.stream.toByteArray();
+    
+    GTSDecoder decoder = new GTSDecoder(this.baseTimestamp, this.wrappingKey, ByteBuffer.wrap(bytes));
+    decoder.initialize(this.initialTimestamp, this.initialGeoXPPoint, this.initialElevation, this.initialLongValue, this.initialDoubleValue, this.initialBDValue, this.initialStringValue);
+    
+    GTSChunkIndex idx = null != this.index && this.index.isValid() ? this.index : null;
+    
+    //
+    // Encoder collecting the remaining datapoints, starting in the initial state of 'this'
+    //
+    
+    GTSEncoder encoder = new GTSEncoder(this.baseTimestamp, this.wrappingKey, bytes.length);
+    encoder.initialize(this.initialTimestamp, this.initialGeoXPPoint, this.initialElevation, this.initialLongValue, this.initialDoubleValue, this.initialBDValue, this.initialStringValue);
+    encoder.restore(this.initialTimestamp, this.initialGeoXPPoint, this.initialElevation, this.initialLongValue, this.initialDoubleValue, this.initialBDValue, this.initialStringValue);
+    
+    int first = 0;
+    
+    if (null != idx) {
+      first = idx.find(start);
+      
+      // All datapoints are before 'start'
+      if (first >= idx.size()) {
+        return 0L;
+      }
+      
+      //
+      // Keep the chunks before 'first' as is
+      //
+      
+      encoder.stream.write(bytes, 0, idx.offset(first));
+      idx.restore(decoder, first);
+      idx.restore(encoder, first);
+      encoder.index = idx.head(first);
+    } else if (null != this.index) {
+      // The index was invalidated by encrypted data, the rewritten content can be indexed again
+      encoder.index = new GTSChunkIndex(this.index.getInterval());
+    }
+    
+    boolean ordered = null != idx && idx.isOrdered();
+    
+    long deleted = 0L;
+    boolean copied = false;
+    
+    // Next checkpoint the decoder may reach
+    int checkpoint = first;
+    
+    while(true) {
+      if (ordered) {
+        int position = bytes.length - decoder.getRemainingSize();
+        
+        while(checkpoint < idx.size() && idx.offset(checkpoint) < position) {
+          checkpoint++;
+        }
+        
+        if (checkpoint < idx.size() && idx.offset(checkpoint) == position) {
+          //
+          // The chunks after 'first' whose datapoints are all before 'end' are entirely in the range
+          //
+          
+          if (checkpoint > first && idx.maxTick(checkpoint) <= end) {
+            deleted += idx.chunkSize(checkpoint);
+            
+            if (checkpoint + 1 >= idx.size()) {
+              break;
+            }
+            
+            idx.restore(decoder, ++checkpoint);
+            continue;
+          }
+          
+          //
+          // If the datapoints from the checkpoint on are all after 'end', copy them as is if the state of 'encoder'
+          // is that of the checkpoint
+          //
+          
+          if (checkpoint > 0 && idx.maxTick(checkpoint - 1) > end) {
+            if (0 == encoder.stream.size()) {
+              idx.restore(encoder, checkpoint);
+              encoder.initialize(encoder.lastTimestamp, encoder.lastGeoXPPoint, encoder.lastElevation, encoder.lastLongValue, encoder.lastDoubleValue, encoder.lastBDValue, encoder.lastStringValue);
+            }
+            
+            if (idx.matches(encoder, checkpoint)) {
+              encoder.index.append(idx, checkpoint, encoder.stream.size() - position);
+              encoder.stream.write(bytes, position, bytes.length - position);
+              copied = true;
+              break;
+            }
+          }
+        }
+      }
+      
+      if (!decoder.next()) {
+        break;
+      }
+      
+      long timestamp = decoder.getTimestamp();
+      
+      if (timestamp >= start && timestamp <= end) {
+        deleted++;
+        continue;
+      }
+      
+      // Timestamps are ordered and past the range before any datapoint was removed, nothing to delete
+      if (ordered && 0 == deleted && timestamp > end) {
+        return 0L;
+      }
+      
+      encoder.addValue(timestamp, decoder.getLocation(), decoder.getElevation(), decoder.getValue());
+    }
+    
+    if (0 == deleted) {
+      return 0L;
+    }
+    
+    //
+    // Replace the content of 'this', when the end of the stream was copied as is, the last values
+    // are unchanged
+    //
+    
+    this.initialize(encoder.initialTimestamp, encoder.initialGeoXPPoint, encoder.initialElevation, encoder.initialLongValue, encoder.initialDoubleValue, encoder.initialBDValue, encoder.initialStringValue);
+    
+    if (!copied) {
+      this.restore(encoder.lastTimestamp, encoder.lastGeoXPPoint, encoder.lastElevation, encoder.lastLongValue, encoder.lastDoubleValue, encoder.lastBDValue, encoder.lastStringValue);
+      this.noDeltaMetaTimestamp = false;
+      this.noDeltaMetaLocation = false;
+      this.noDeltaMetaElevation = false;
+      this.noDeltaValue = false;
+    }
+    
+    this.stream = encoder.stream;
+    this.index = null == this.index ? null : encoder.index;
+    this.count = Math.max(0L, this.count - deleted);
+    
+    return deleted;
+  }
+  
+  /**
+   * Set the last values, i.e. the state of a decoder after the last encoded datapoint
+   */
+  synchronized void restore(long lastTimestamp, long lastGeoXPPoint, long lastElevation, long lastLongValue, double lastDoubleValue, BigDecimal lastBDValue, String lastStringValue) {
+    this.lastTimestamp = lastTimestamp;
+    this.lastGeoXPPoint = lastGeoXPPoint;
+    this.lastElevation = lastElevation;
+    this.lastLongValue = lastLongValue;
+    this.lastDoubleValue = lastDoubleValue;
+    this.lastBDValue = lastBDValue;
+    this.lastStringValue = lastStringValue;
+  }
+  
+  /**
+   * @return true if the last values are the given ones
+   */
+  boolean hasLastValues(long timestamp, long location, long elevation, long longValue, double doubleValue, BigDecimal bdValue, String stringValue) {
+    return this.lastTimestamp == timestamp
+        && this.lastGeoXPPoint == location
+        && this.lastElevation == elevation
+        && this.lastLongValue == longValue
+        && Double.doubleToLongBits(this.lastDoubleValue) == Double.doubleToLongBits(doubleValue)
+        && (null == this.lastBDValue ? null == bdValue : this.lastBDValue.equals(bdValue))
+        && (null == this.lastStringValue ? null == stringValue : this.lastStringValue.equals(stringValue));
   }
   
   public void reset(long baseTS) throws IOException {
@@ -890,6 +1145,10 @@ public class GTSEncoder {
     noDeltaValue = false;
     
     stream.reset();
+    
+    if (null != index) {
+      index.clear();
+    }
   }
   
   /**
@@ -939,9 +1198,21 @@ public class GTSEncoder {
       // Same basetimestamp, wrapping key and matching 'last' and 'initial' values, take the fast path!
       //
       
+      // Index the copied data, starting from the current state which is the initial state of 'encoder'
+      int offset = this.stream.size();
+      
       // Copy the data
       this.stream.write(encoder.getBytes());
       
+      if (null != this.index) {
+        if (null != this.wrappingKey) {
+          // The copied data is encrypted
+          this.index.invalidate();
+        } else {
+          indexFrom(offset, this.lastTimestamp, this.lastGeoXPPoint, this.lastElevation, this.lastLongValue, this.lastDoubleValue, this.lastBDValue, this.lastStringValue);
+        }
+      }
+      
       // Copy the last values
       this.lastTimestamp = encoder.lastTimestamp;
       this.lastElevation = encoder.lastElevation;
@@ -1052,6 +1323,10 @@ public class GTSEncoder {
     // We allocate a new stream so we get rid of the potentially large underlying byte array
     this.stream = new ByteArrayOutputStream();
     this.safeDelta();
+    
+    if (null != this.index) {
+      this.index.clear();
+    }
   }
   
   /**
@@ -16,6 +16,7 @@
 
 package io.warp10.continuum.gts;
 
+import io.warp10.continuum.SortUtil;
 import io.warp10.continuum.TimeSource;
 import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.continuum.store.Constants;
@@ -27,9 +28,11 @@ import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptFilterFunction;
 import io.warp10.script.WarpScriptMapperFunction;
 import io.warp10.script.WarpScriptNAryFunction;
+import io.warp10.script.WarpScriptNAryKernel;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptBinaryOp;
 import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptWindowedMapperFunction;
 import io.warp10.script.JavaLibrary;
 import io.warp10.script.SAXUtils;
 
@@ -50,7 +53,6 @@ import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -119,15 +121,14 @@ public class GTSHelper {
     }    
 
     //
-    // Do not sort the GTS if it is already sorted as QS worst case is
-    // encountered when the array is already sorted and is O(n^2)
+    // Do not sort the GTS if it is already sorted
     // 
     
     if (gts.sorted) {
       return gts;
     }
     
-    quicksort(gts, 0, gts.values - 1, reversed);
+    GTSSorter.sortByTick(gts, reversed);
     
     gts.sorted = true;
     gts.reversed = reversed;
@@ -145,8 +146,21 @@ public class GTSHelper {
     return sort(gts, false);
   }
   
+  /**
+   * Sort the values (and associated ticks/locations/elevations) by order of values,
+   * ties being ordered by ticks. BOOLEAN GTS are left untouched.
+   * 
+   * @param gts GeoTimeSerie instance to sort
+   * @param reversed If true, sort by descending values
+   * @return gts, only sorted
+   */
   public static final GeoTimeSerie valueSort(GeoTimeSerie gts, boolean reversed) {
-    quicksortByValue(gts, 0, gts.values - 1, reversed);
+    if (TYPE.BOOLEAN == gts.type) {
+      return gts;
+    }
+    
+    GTSSorter.sortByValue(gts, reversed);
+    gts.sorted = false;
     return gts;
   }
 
@@ -154,6 +168,30 @@ public class GTSHelper {
     return valueSort(gts, false);
   }
 
+  /**
+   * Sort the values (and associated ticks/elevations) by order of locations,
+   * ties being ordered by ticks.
+   * The ticks with no locations are clustered somewhere in-between those with locations since the
+   * marker for NO_LOCATION is a valid location (!)
+   * 
+   * @param gts GeoTimeSerie instance to sort
+   * @param reversed If true, sort by descending locations
+   * @return gts, only sorted
+   */
+  public static final GeoTimeSerie locationSort(GeoTimeSerie gts, boolean reversed) {
+    if (null == gts.locations) {
+      return gts;
+    }
+    
+    GTSSorter.sortByLocation(gts, reversed);
+    gts.sorted = false;
+    return gts;
+  }
+
+  public static final GeoTimeSerie locationSort(GeoTimeSerie gts) {
+    return locationSort(gts, false);
+  }
+
   /**
    * Return an iterator on the GeoTimeSerie ticks.
    * 
@@ -229,351 +267,6 @@ public class GTSHelper {
       };
     }
   }
-  
-  /**
-   * Sort a range of values/locations/elevations of a GeoTimeSerie instance
-   * according to the ascending order of its ticks
-   * 
-   * @param gts GeoTimeSerie instance to sort
-   * @param low Lowest index of range to sort
-   * @param high Highest index of range to sort
-   */
-  private static final void quicksort(GeoTimeSerie gts, int low, int high, boolean reversed) { 
-    
-    if (0 == gts.values) {
-      return;
-    }
-    
-    int i = low, j = high;
-    // Get the pivot element from the middle of the list
-    long pivot = gts.ticks[low + (high-low)/2];
-
-    // Divide into two lists
-    while (i <= j) {
-      // If the current value from the left list is smaller
-      // (or greater if reversed is true) than the pivot
-      // element then get the next element from the left list
-      while ((!reversed && gts.ticks[i] < pivot) || (reversed && gts.ticks[i] > pivot)) {
-        i++;
-      }
-      // If the current value from the right list is larger (or lower if reversed is true)
-      // than the pivot element then get the next element from the right list
-      while ((!reversed && gts.ticks[j] > pivot) || (reversed && gts.ticks[j] < pivot)) {
-        j--;
-      }
-
-      // If we have found a values in the left list which is larger then
-      // the pivot element and if we have found a value in the right list
-      // which is smaller then the pivot element then we exchange the
-      // values.
-      // As we are done we can increase i and j
-      if (i <= j) {
-        long tmplong = gts.ticks[i];
-        gts.ticks[i] = gts.ticks[j];
-        gts.ticks[j] = tmplong;
-        
-        if (null != gts.locations) {
-          tmplong = gts.locations[i];
-          gts.locations[i] = gts.locations[j];
-          gts.locations[j] = tmplong;          
-        }
-        
-        if (null != gts.elevations) {
-          tmplong = gts.elevations[i];
-          gts.elevations[i] = gts.elevations[j];
-          gts.elevations[j] = tmplong;          
-        }
-        
-        if (TYPE.LONG == gts.type) {
-          tmplong = gts.longValues[i];
-          gts.longValues[i] = gts.longValues[j];
-          gts.longValues[j] = tmplong;          
-        } else if (TYPE.DOUBLE == gts.type) {
-          double tmpdouble = gts.doubleValues[i];
-          gts.doubleValues[i] = gts.doubleValues[j];
-          gts.doubleValues[j] = tmpdouble;
-        } else if (TYPE.STRING == gts.type) {
-          String tmpstring = gts.stringValues[i];
-          gts.stringValues[i] = gts.stringValues[j];
-          gts.stringValues[j] = tmpstring;
-        } else if (TYPE.BOOLEAN == gts.type) {
-          boolean tmpboolean = gts.booleanValues.get(i);
-          gts.booleanValues.set(i, gts.booleanValues.get(j));
-          gts.booleanValues.set(j, tmpboolean);
-        }
-
-        i++;
-        j--;
-      }
-    }
-    
-    // Recursion
-    if (low < j) {
-      quicksort(gts, low, j, reversed);
-    }
-    if (i < high) {   
-      quicksort(gts, i, high, reversed);
-    }
-  }
-
-  private static final void quicksortByValue(GeoTimeSerie gts, int low, int high, boolean reversed) { 
-    
-    if (0 == gts.values) {
-      return;
-    }
-    
-    int i = low, j = high;
-    // Get the pivot element from the middle of the list
-    long lpivot = 0L;
-    double dpivot = 0.0D;
-    String spivot = null;
-    
-    TYPE type = gts.getType();
-    
-    if (TYPE.LONG == type) {
-      lpivot = gts.longValues[low + (high-low)/2];
-    } else if (TYPE.DOUBLE == type) {
-      dpivot = gts.doubleValues[low + (high-low)/2];
-    } else if (TYPE.STRING == type) {
-      spivot = gts.stringValues[low + (high-low)/2];       
-    } else if (TYPE.BOOLEAN == type) {
-      // Do nothing for booleans
-      return;
-    }
-    
-    long pivotTick = gts.ticks[low + (high-low) / 2];
-    
-    // Divide into two lists
-    while (i <= j) {
-      
-      if (TYPE.LONG == type) {
-        
-        
-        if (!reversed) {
-          // If the current value from the left list is smaller
-          // (or greater if reversed is true) than the pivot
-          // element then get the next element from the left list        
-          while(gts.longValues[i] < lpivot || (gts.longValues[i] == lpivot && gts.ticks[i] < pivotTick)) {
-            i++;
-          }
-          // If the current value from the right list is larger (or lower if reversed is true)
-          // than the pivot element then get the next element from the right list
-          while(gts.longValues[j] > lpivot || (gts.longValues[j] == lpivot && gts.ticks[j] > pivotTick)) {
-            j--;
-          }
-        } else {
-          while(gts.longValues[i] > lpivot || (gts.longValues[i] == lpivot && gts.ticks[i] > pivotTick)) {
-            i++;
-          }
-          while(gts.longValues[j] < lpivot || (gts.longValues[j] == lpivot && gts.ticks[j] < pivotTick)) {
-            j--;
-          }
-        }
-      } else if (TYPE.DOUBLE == type) {        
-        if (!reversed) {
-          // If the current value from the left list is smaller
-          // (or greater if reversed is true) than the pivot
-          // element then get the next element from the left list        
-          while(gts.doubleValues[i] < dpivot || (gts.doubleValues[i] == dpivot && gts.ticks[i] < pivotTick)) {
-            i++;
-          }
-          // If the current value from the right list is larger (or lower if reversed is true)
-          // than the pivot element then get the next element from the right list
-          while(gts.doubleValues[j] > dpivot || (gts.doubleValues[j] == dpivot && gts.ticks[j] > pivotTick)) {
-            j--;
-          }
-        } else {
-          while(gts.doubleValues[i] > dpivot || (gts.doubleValues[i] == dpivot && gts.ticks[i] > pivotTick)) {
-            i++;
-          }
-          while(gts.doubleValues[j] < dpivot || (gts.doubleValues[j] == dpivot && gts.ticks[j] < pivotTick)) {
-            j--;
-          }
-        }
-      } else if (TYPE.STRING == type) {
-        if (!reversed) {
-          // If the current value from the left list is smaller
-          // (or greater if reversed is true) than the pivot
-          // element then get the next element from the left list        
-          while(gts.stringValues[i].compareTo(spivot) < 0 || (0 == gts.stringValues[i].compareTo(spivot) && gts.ticks[i] < pivotTick)) {
-            i++;
-          }
-          // If the current value from the right list is larger (or lower if reversed is true)
-          // than the pivot element then get the next element from the right list
-          while(gts.stringValues[j].compareTo(spivot) > 0 || (0 == gts.stringValues[j].compareTo(spivot) && gts.ticks[j] > pivotTick)) {
-            j--;
-          }
-        } else {
-          while(gts.stringValues[i].compareTo(spivot) > 0 || (0 == gts.stringValues[i].compareTo(spivot) && gts.ticks[i] > pivotTick)) {
-            i++;
-          }
-          while(gts.stringValues[j].compareTo(spivot) < 0 || (0 == gts.stringValues[j].compareTo(spivot) && gts.ticks[j] < pivotTick)) {
-            j--;
-          }
-        }
-      }
-
-      // If we have found a values in the left list which is larger then
-      // the pivot element and if we have found a value in the right list
-      // which is smaller then the pivot element then we exchange the
-      // values.
-      // As we are done we can increase i and j
-      if (i <= j) {
-        if (TYPE.LONG == gts.type) {
-          long tmplong = gts.longValues[i];
-          gts.longValues[i] = gts.longValues[j];
-          gts.longValues[j] = tmplong;          
-        } else if (TYPE.DOUBLE == gts.type) {
-          double tmpdouble = gts.doubleValues[i];
-          gts.doubleValues[i] = gts.doubleValues[j];
-          gts.doubleValues[j] = tmpdouble;            
-        } else if (TYPE.STRING == gts.type) { 
-          String tmpstring = gts.stringValues[i];
-          gts.stringValues[i] = gts.stringValues[j];
-          gts.stringValues[j] = tmpstring;            
-        } else if (TYPE.BOOLEAN == gts.type) {
-          boolean tmpboolean = gts.booleanValues.get(i);
-          gts.booleanValues.set(i, gts.booleanValues.get(j));
-          gts.booleanValues.set(j, tmpboolean);
-        }
-
-        long tmplong = gts.ticks[i];
-        gts.ticks[i] = gts.ticks[j];
-        gts.ticks[j] = tmplong;
-          
-        if (null != gts.locations) {
-          tmplong = gts.locations[i];
-          gts.locations[i] = gts.locations[j];
-          gts.locations[j] = tmplong;          
-        }
-          
-        if (null != gts.elevations) {
-          tmplong = gts.elevations[i];
-          gts.elevations[i] = gts.elevations[j];
-          gts.elevations[j] = tmplong;          
-        }
-        
-        i++;
-        j--;
-      }
-    }
-    
-    // Recursion
-    if (low < j) {
-      quicksortByValue(gts, low, j, reversed);
-    }
-    if (i < high) {   
-      quicksortByValue(gts, i, high, reversed);
-    }
-  }
-
-  /**
-   * Sort GTS according to location.
-   * The ticks with no locations are clustered somewhere in-between those with locations since the
-   * marker for NO_LOCATION is a valid location (!)
-   * 
-   * @param gts
-   * @param low 
-   * @param high
-   * @param reversed
-   */
-  private static final void quicksortByLocation(GeoTimeSerie gts, int low, int high, boolean reversed) { 
-    
-    if (0 == gts.values) {
-      return;
-    }
-    
-    if (null == gts.locations) {
-      return;
-    }
-        
-    int i = low, j = high;
-    // Get the pivot element from the middle of the list
-    long pivot = 0L;
-
-    pivot = gts.locations[low + (high-low)/2];
-    
-    long pivotTick = gts.ticks[low + (high-low) / 2];
-    
-    // Divide into two lists
-    while (i <= j) {
-      
-      if (!reversed) {
-        // If the current value from the left list is smaller
-        // (or greater if reversed is true) than the pivot
-        // element then get the next element from the left list        
-        while(gts.locations[i] < pivot || (gts.locations[i] == pivot && gts.ticks[i] < pivotTick)) {
-          i++;
-        }
-        
-        // If the current value from the right list is larger (or lower if reversed is true)
-        // than the pivot element then get the next element from the right list
-        while(gts.locations[j] > pivot || (gts.locations[j] == pivot && gts.ticks[j] > pivotTick)) {
-          j--;
-        }
-      } else {
-        while(gts.locations[i] > pivot || (gts.locations[i] == pivot && gts.ticks[i] > pivotTick)) {
-          i++;
-        }
-        while(gts.locations[j] < pivot || (gts.locations[j] == pivot && gts.ticks[j] < pivotTick)) {
-          j--;
-        }
-      }
-  
-      // If we have found a values in the left list which is larger then
-      // the pivot element and if we have found a value in the right list
-      // which is smaller then the pivot element then we exchange the
-      // values.
-      // As we are done we can increase i and j
-      if (i <= j) {
-        if (TYPE.LONG == gts.type) {
-          long tmplong = gts.longValues[i];
-          gts.longValues[i] = gts.longValues[j];
-          gts.longValues[j] = tmplong;          
-        } else if (TYPE.DOUBLE == gts.type) {
-          double tmpdouble = gts.doubleValues[i];
-          gts.doubleValues[i] = gts.doubleValues[j];
-          gts.doubleValues[j] = tmpdouble;            
-        } else if (TYPE.STRING == gts.type) { 
-          String tmpstring = gts.stringValues[i];
-          gts.stringValues[i] = gts.stringValues[j];
-          gts.stringValues[j] = tmpstring;            
-        } else if (TYPE.BOOLEAN == gts.type) {
-          boolean tmpboolean = gts.booleanValues.get(i);
-          gts.booleanValues.set(i, gts.booleanValues.get(j));
-          gts.booleanValues.set(j, tmpboolean);
-        }
-
-        long tmplong = gts.ticks[i];
-        gts.ticks[i] = gts.ticks[j];
-        gts.ticks[j] = tmplong;
-          
-        if (null != gts.locations) {
-          tmplong = gts.locations[i];
-          gts.locations[i] = gts.locations[j];
-          gts.locations[j] = tmplong;          
-        }
-          
-        if (null != gts.elevations) {
-          tmplong = gts.elevations[i];
-          gts.elevations[i] = gts.elevations[j];
-          gts.elevations[j] = tmplong;          
-        }
-        
-        i++;
-        j--;
-      }
-    }
-    
-    // Recursion
-    if (low < j) {
-      quicksortByLocation(gts, low, j, reversed);
-    }
-    if (i < high) {   
-      quicksortByLocation(gts, i, high, reversed);
-    }
-  }
-
   /**
    * Return the tick at a given index in a Geo Time Serie.
    * 
@@ -3619,6 +3312,24 @@ public class GTSHelper {
     
     boolean hasOccurrences = (0 != occurrences);
     
+    //
+    // If the mapper supports it, maintain its state incrementally over a sorted
+    // copy of 'gts' instead of extracting a sub GTS for each tick. The window
+    // bounds only move in one direction so each value enters and leaves once.
+    //
+    
+    GeoTimeSerie sorted = null;
+    WarpScriptWindowedMapperFunction.Window window = null;
+    
+    if (mapper instanceof WarpScriptWindowedMapperFunction && gts.values > 0) {
+      sorted = sort(gts.clone());
+      window = ((WarpScriptWindowedMapperFunction) mapper).window(sorted);
+    }
+    
+    // Current window is [lo,hi[ in 'sorted'
+    int lo = null != window && reversed ? sorted.values : 0;
+    int hi = lo;
+    
     while (idx < nticks) {
 
       if (hasOccurrences && 0 == occurrences) {
@@ -3668,88 +3379,110 @@ public class GTSHelper {
         }
       }
       
-      //
-      // Extract values 
-      //
+      Object[] result;
       
-      subgts = GTSHelper.subSerie(gts, start, stop, false, false, subgts);
+      if (null != window) {
+        if (reversed) {
+          while (lo > 0 && sorted.ticks[lo - 1] >= start) {
+            window.enter(--lo);
+          }
+          while (hi > lo && sorted.ticks[hi - 1] > stop) {
+            window.leave(--hi);
+          }
+        } else {
+          while (hi < sorted.values && sorted.ticks[hi] <= stop) {
+            window.enter(hi++);
+          }
+          while (lo < hi && sorted.ticks[lo] < start) {
+            window.leave(lo++);
+          }
+        }
+        
+        result = window.apply(tick, lo, hi);
+      } else {
+        //
+        // Extract values 
+        //
       
-      //
-      // Mapper functions have 8 parameters
-      //
-      // tick: timestamp we're computing the value for
-      // names: array of names (for reducer compatibility)
-      // labels: array of labels (for reducer compatibility)
-      // ticks: array of ticks being aggregated
-      // locations: array of locations being aggregated
-      // elevations: array of elevations being aggregated
-      // values: array of values being aggregated
-      // window: An array with the window parameters [ prewindow, postwindow, start, stop, tick index ] on which the mapper runs
-      //
-      // 'window' nullity should be checked prior to using to allow mappers to be used as reducers.
-      //
-      // They return an array of 4 values:
-      //
-      // timestamp, location, elevation, value
-      //
-      // timestamp: an indication relative to timestamp (may be the timestamp at which the returned value was observed).
-      //            it is usually not used (the returned value will be set at 'tick') but must be present.
-      // location: location associated with the returned value
-      // elevation: elevation associated with the returned value
-      // value: computed value
-      //
+        subgts = GTSHelper.subSerie(gts, start, stop, false, false, subgts);
       
-      Object[] parms = new Object[8];
+        //
+        // Mapper functions have 8 parameters
+        //
+        // tick: timestamp we're computing the value for
+        // names: array of names (for reducer compatibility)
+        // labels: array of labels (for reducer compatibility)
+        // ticks: array of ticks being aggregated
+        // locations: array of locations being aggregated
+        // elevations: array of elevations being aggregated
+        // values: array of values being aggregated
+        // window: An array with the window parameters [ prewindow, postwindow, start, stop, tick index ] on which the mapper runs
+        //
+        // 'window' nullity should be checked prior to using to allow mappers to be used as reducers.
+        //
+        // They return an array of 4 values:
+        //
+        // timestamp, location, elevation, value
+        //
+        // timestamp: an indication relative to timestamp (may be the timestamp at which the returned value was observed).
+        //            it is usually not used (the returned value will be set at 'tick') but must be present.
+        // location: location associated with the returned value
+        // elevation: elevation associated with the returned value
+        // value: computed value
+        //
+      
+        Object[] parms = new Object[8];
 
-      int i = 0;
-      parms[i++] = tick;
+        int i = 0;
+        parms[i++] = tick;
       
-      //
-      // All arrays are allocated each time, so we don't risk
-      // having a rogue mapper modify them.
-      //
+        //
+        // All arrays are allocated each time, so we don't risk
+        // having a rogue mapper modify them.
+        //
       
-      parms[i++] = new String[subgts.values];
-      Arrays.fill((Object[]) parms[i-1], gts.getName());
+        parms[i++] = new String[subgts.values];
+        Arrays.fill((Object[]) parms[i-1], gts.getName());
 
-      parms[i++] = new Map[subgts.values]; 
-      Arrays.fill((Object[]) parms[i-1], labels);
+        parms[i++] = new Map[subgts.values]; 
+        Arrays.fill((Object[]) parms[i-1], labels);
 
-      parms[i++] = subgts.values > 0 ? Arrays.copyOf(subgts.ticks, subgts.values) : new long[0];
-      if (null != subgts.locations) {
-        parms[i++] = subgts.values > 0 ? Arrays.copyOf(subgts.locations, subgts.values) : new long[0];
-      } else {
-        if (subgts.values > 0) {
-          parms[i++] = new long[subgts.values];
-          Arrays.fill((long[]) parms[i - 1], GeoTimeSerie.NO_LOCATION);
+        parms[i++] = subgts.values > 0 ? Arrays.copyOf(subgts.ticks, subgts.values) : new long[0];
+        if (null != subgts.locations) {
+          parms[i++] = subgts.values > 0 ? Arrays.copyOf(subgts.locations, subgts.values) : new long[0];
         } else {
-          parms[i++] = new long[0];
+          if (subgts.values > 0) {
+            parms[i++] = new long[subgts.values];
+            Arrays.fill((long[]) parms[i - 1], GeoTimeSerie.NO_LOCATION);
+          } else {
+            parms[i++] = new long[0];
+          }
         }
-      }
-      if (null != subgts.elevations) {
-        parms[i++] = subgts.values > 0 ? Arrays.copyOf(subgts.elevations, subgts.values) : new long[0];
-      } else {
-        if (subgts.values > 0) {
-          parms[i++] = new long[subgts.values];
-          Arrays.fill((long[]) parms[i - 1], GeoTimeSerie.NO_ELEVATION);
+        if (null != subgts.elevations) {
+          parms[i++] = subgts.values > 0 ? Arrays.copyOf(subgts.elevations, subgts.values) : new long[0];
         } else {
-          parms[i++] = new long[0];
+          if (subgts.values > 0) {
+            parms[i++] = new long[subgts.values];
+            Arrays.fill((long[]) parms[i - 1], GeoTimeSerie.NO_ELEVATION);
+          } else {
+            parms[i++] = new long[0];
+          }
         }
-      }
-      parms[i++] = new Object[subgts.values];      
+        parms[i++] = new Object[subgts.values];      
 
-      int tickidx = -1;
+        int tickidx = -1;
       
-      for (int j = 0; j < subgts.values; j++) {
-        ((Object[]) parms[6])[j] = valueAtIndex(subgts, j);
-        if (-1 == tickidx && tick == tickAtIndex(subgts, j)) {
-          tickidx = j;
+        for (int j = 0; j < subgts.values; j++) {
+          ((Object[]) parms[6])[j] = valueAtIndex(subgts, j);
+          if (-1 == tickidx && tick == tickAtIndex(subgts, j)) {
+            tickidx = j;
+          }
         }
-      }
 
-      parms[i++] = new long[] { prewindow, postwindow, start, stop, tickidx };
+        parms[i++] = new long[] { prewindow, postwindow, start, stop, tickidx };
       
-      Object[] result = (Object[]) mapper.apply(parms);
+        result = (Object[]) mapper.apply(parms);
+      }
       
       //
       // Set value if it was not null. Don't overwrite, we scan ticks only once
@@ -4678,6 +4411,14 @@ public class GTSHelper {
       }
     }
     
+    //
+    // If the function has a primitive kernel, apply it to the aligned values
+    //
+    
+    if (function instanceof WarpScriptNAryKernel && applyNAryKernel((WarpScriptNAryKernel) function, gts, nseries, subseries)) {
+      return gts;
+    }
+    
     //
     // Allocate arrays
     //
@@ -4784,6 +4525,184 @@ public class GTSHelper {
     return gts;
   }
   
+  /**
+   * Apply a kernel to sorted GTS instances, storing the results in 'gts'.
+   * 
+   * The values of the GTS are aligned on the union of their ticks in primitive columns
+   * so the kernel can process them without boxing.
+   * 
+   * @return false if the kernel could not be applied, i.e. the GTS are of different types,
+   *         have duplicate ticks or are all empty, in which case 'gts' is left untouched
+   */
+  private static boolean applyNAryKernel(WarpScriptNAryKernel kernel, GeoTimeSerie gts, int nseries, List<GeoTimeSerie>... subseries) {
+    GeoTimeSerie[] series = new GeoTimeSerie[nseries];
+    
+    TYPE type = TYPE.UNDEFINED;
+    int total = 0;
+    int k = 0;
+    
+    for (int i = 0; i < subseries.length; i++) {
+      for (GeoTimeSerie serie: subseries[i]) {
+        series[k++] = serie;
+        
+        if (0 == serie.values) {
+          continue;
+        }
+        
+        if (TYPE.UNDEFINED == type) {
+          type = serie.type;
+        } else if (type != serie.type) {
+          return false;
+        }
+        
+        for (int j = 1; j < serie.values; j++) {
+          if (serie.ticks[j] == serie.ticks[j - 1]) {
+            return false;
+          }
+        }
+        
+        total += serie.values;
+      }
+    }
+    
+    if (TYPE.UNDEFINED == type || TYPE.STRING == type) {
+      return false;
+    }
+    
+    TYPE ktype = kernel.getKernelType(type, nseries);
+    
+    if (TYPE.UNDEFINED == ktype) {
+      return false;
+    }
+    
+    //
+    // Merge the ticks of all GTS
+    //
+    
+    long[] ticks = new long[total];
+    int len = 0;
+    int[] idx = new int[nseries];
+    
+    while(true) {
+      long smallest = Long.MAX_VALUE;
+      
+      for (int i = 0; i < nseries; i++) {
+        if (idx[i] < series[i].values && series[i].ticks[idx[i]] < smallest) {
+          smallest = series[i].ticks[idx[i]];
+        }
+      }
+      
+      if (Long.MAX_VALUE == smallest) {
+        break;
+      }
+      
+      ticks[len++] = smallest;
+      
+      for (int i = 0; i < nseries; i++) {
+        if (idx[i] < series[i].values && smallest == series[i].ticks[idx[i]]) {
+          idx[i]++;
+        }
+      }
+    }
+    
+    //
+    // Fill the columns
+    //
+    
+    boolean[][] present = new boolean[nseries][len];
+    long[][] longs = TYPE.DOUBLE == type ? null : new long[nseries][];
+    double[][] doubles = TYPE.DOUBLE == type ? new double[nseries][] : null;
+    
+    for (int i = 0; i < nseries; i++) {
+      GeoTimeSerie serie = series[i];
+      
+      if (TYPE.DOUBLE == type) {
+        doubles[i] = new double[len];
+      } else {
+        longs[i] = new long[len];
+      }
+      
+      int t = 0;
+      
+      for (int j = 0; j < serie.values; j++) {
+        while(ticks[t] != serie.ticks[j]) {
+          t++;
+        }
+        
+        present[i][t] = true;
+        
+        if (TYPE.LONG == type) {
+          longs[i][t] = serie.longValues[j];
+        } else if (TYPE.DOUBLE == type) {
+          doubles[i][t] = serie.doubleValues[j];
+        } else {
+          longs[i][t] = serie.booleanValues.get(j) ? 1L : 0L;
+        }
+      }
+    }
+    
+    long[] lresults = TYPE.DOUBLE == ktype ? null : new long[len];
+    double[] dresults = TYPE.DOUBLE == ktype ? new double[len] : null;
+    boolean[] defined = new boolean[len];
+    
+    kernel.apply(len, present, longs, doubles, lresults, dresults, defined);
+    
+    //
+    // Store the results in 'gts'
+    //
+    
+    int size = 0;
+    
+    for (int t = 0; t < len; t++) {
+      if (defined[t]) {
+        size++;
+      }
+    }
+    
+    if (0 == size) {
+      return true;
+    }
+    
+    gts.ticks = new long[size];
+    gts.locations = null;
+    gts.elevations = null;
+    gts.type = ktype;
+    
+    if (TYPE.LONG == ktype) {
+      gts.longValues = new long[size];
+    } else if (TYPE.DOUBLE == ktype) {
+      gts.doubleValues = new double[size];
+    } else {
+      gts.booleanValues = new BitSet(size);
+    }
+    
+    int n = 0;
+    
+    for (int t = 0; t < len; t++) {
+      if (!defined[t]) {
+        continue;
+      }
+      
+      gts.ticks[n] = ticks[t];
+      
+      if (TYPE.LONG == ktype) {
+        gts.longValues[n] = lresults[t];
+      } else if (TYPE.DOUBLE == ktype) {
+        gts.doubleValues[n] = dresults[t];
+      } else {
+        gts.booleanValues.set(n, 0L != lresults[t]);
+      }
+      
+      n++;
+    }
+    
+    gts.values = size;
+    gts.sizehint = size;
+    gts.sorted = true;
+    
+    return true;
+  }
+  
   /**
    * Apply a binary op to pairs drawn from two collections of GTS instances.
    * 
@@ -5372,32 +5291,24 @@ public class GTSHelper {
    * @return 
    */
   public static int[] sortIndices(final long[] values, final boolean reversed) {
-    Integer[] indices = new Integer[values.length];
+    int[] indices = new int[values.length];
     
-    for (int i = 0; i < values.length; i++) {
-      indices[i] = i;
-    }
-    
-    Arrays.sort(indices, new Comparator<Integer>() {
-      @Override
-      public int compare(Integer o1, Integer o2) {
-        if (values[o1] - values[o1] < 0) {
-          return reversed ? 1 : -1;
-        } else if (values[o1] == values[o2]) {
-          return 0;
-        } else {
-          return reversed ? -1 : 1;
-        }
+    if (reversed) {
+      // Sort by the complement so ties keep their original order
+      long[] keys = SortUtil.scratch().longs(values.length);
+      for (int i = 0; i < values.length; i++) {
+        indices[i] = i;
+        keys[i] = ~values[i];
       }
-    });
-    
-    int[] sorted = new int[indices.length];
-    
-    for (int i = 0; i < sorted.length; i++) {
-      sorted[i] = indices[i];
+      SortUtil.sortIndices(indices, keys, 0, values.length, SortUtil.scratch().tmp(values.length));
+    } else {
+      for (int i = 0; i < values.length; i++) {
+        indices[i] = i;
+      }
+      SortUtil.sortIndices(indices, values, 0, values.length, SortUtil.scratch().tmp(values.length));
     }
     
-    return sorted;
+    return indices;
   }
   
   public static TYPE getValueType(Object value) {
@@ -6921,6 +6832,29 @@ public class GTSHelper {
     }
   }
   
+  /**
+   * Transform a Metadata instance so its labels and attributes are shared CompactLabels
+   * instances and its name is interned. This is meant for the Metadata kept in directory
+   * caches, the labels and attributes of 'meta' can no longer be modified.
+   * 
+   * @param meta
+   */
+  public static void compactLabels(Metadata meta) {
+    String name = meta.getName();
+    
+    if (null != name) {
+      meta.setName(name.intern());
+    }
+    
+    if (meta.isSetLabels()) {
+      meta.setLabels(CompactLabels.of(meta.getLabels()));
+    }
+    
+    if (meta.isSetAttributes()) {
+      meta.setAttributes(CompactLabels.of(meta.getAttributes()));
+    }
+  }
+  
   /**
    * Compute local weighted regression at given tick
    * 
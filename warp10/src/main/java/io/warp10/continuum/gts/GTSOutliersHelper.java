@@ -16,6 +16,7 @@
 
 package io.warp10.continuum.gts;
 
+import io.warp10.continuum.SortUtil;
 import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.functions.STL;
@@ -62,22 +63,19 @@ public class GTSOutliersHelper {
   }
 
   protected static double median(GeoTimeSerie gts) {    
-    // FIXME(JCV): if size of gts too big, we should better work inplace by making a quickSortByValue and sort by ticks after
-    double[] copy = Arrays.copyOf(gts.doubleValues, gts.values);
-    Arrays.sort(copy);
+    double[] copy = SortUtil.scratch().doubles(gts.values);
+    System.arraycopy(gts.doubleValues, 0, copy, 0, gts.values);
     
-    return gts.values % 2 == 0 ? (copy[gts.values/2] + copy[gts.values/2 - 1])/2 : copy[gts.values/2];
+    return OrderStatistics.median(copy, gts.values);
   }
   
   protected static double medianAbsoluteDeviation(GeoTimeSerie gts, double median) {
-    double[] copy = Arrays.copyOf(gts.doubleValues, gts.values);
+    double[] copy = SortUtil.scratch().doubles(gts.values);
     for (int i = 0; i < gts.values; i++) {
-     copy[i] -= median;
-     copy[i] = Math.abs(copy[i]);
+     copy[i] = Math.abs(gts.doubleValues[i] - median);
     }
-    Arrays.sort(copy);
     
-    return gts.values % 2 == 0 ? (copy[gts.values/2] + copy[gts.values/2 - 1])/2 : copy[gts.values/2];
+    return OrderStatistics.median(copy, gts.values);
   }
   
   protected static double max(GeoTimeSerie gts) throws WarpScriptException {
@@ -133,6 +131,24 @@ public class GTSOutliersHelper {
     return madsigma;
   }
   
+  /**
+   * Compute median and mad of the values still present in stats, mad being modified as an estimate of sigma.
+   * gts MUST contain the same values as stats.
+   */
+  private static double[] madsigma(OrderStatistics stats, GeoTimeSerie gts) {
+    double[] madsigma = new double[2];
+    madsigma[0] = stats.median();
+    madsigma[1] = stats.medianAbsoluteDeviation(madsigma[0]);
+    
+    if (0.0D != madsigma[1]) {
+      madsigma[1] /= 0.6745D;
+    } else {
+      madsigma[1] = GTSHelper.musigma(gts, true)[1];
+    }
+    
+    return madsigma;
+  }
+  
   /**
    * Compute Z-score or modified Z-score
    * @see http://www.itl.nist.gov/div898/handbook/eda/section3/eda35h.htm
@@ -331,6 +347,10 @@ public class GTSOutliersHelper {
    * Applying generalized extreme Studentized deviate test using mean/std or median/mad
    * @see http://www.itl.nist.gov/div898/handbook/eda/section3/eda35h3.htm
    * 
+   * When using median/mad, the values are ranked once and the median and mad are then updated
+   * as potential outliers are removed. Ties between potential outliers are broken by picking
+   * the value which comes first in the GTS.
+   * 
    * @param gts
    * @param k       Upper bound of suspected number of outliers
    * @param useMedian     Should the test use median/mad instead of mean/std
@@ -353,6 +373,24 @@ public class GTSOutliersHelper {
     
     List<Long> anomalous_ticks = new ArrayList<Long>();
     
+    //
+    // When using median/mad, keep track of the index in gts of each value of clone and vice versa
+    //
+    
+    OrderStatistics stats = null;
+    int[] positions = null;
+    int[] indices = null;
+    
+    if (useMedian && k > 0 && gts.values >= 3) {
+      stats = new OrderStatistics(clone);
+      positions = new int[gts.values];
+      indices = new int[gts.values];
+      for (int i = 0; i < gts.values; i++) {
+        positions[i] = i;
+        indices[i] = i;
+      }
+    }
+    
     int greater_j_test_passed = -1;
     for (int j = 0; j < k; j++) {
       
@@ -362,7 +400,7 @@ public class GTSOutliersHelper {
         break;
       }
       
-      double[] musigma = madsigma(clone, useMedian);
+      double[] musigma = null != stats ? madsigma(stats, clone) : madsigma(clone, useMedian);
       double m = musigma[0];
       double std = musigma[1];
       
@@ -375,11 +413,18 @@ public class GTSOutliersHelper {
       double max = Double.NEGATIVE_INFINITY;
       int suspicious_idx = 0;
       
-      for (int i = 0; i < N; i++) {
-        z = Math.abs((clone.doubleValues[i] - m) / std);
-        if (z > max) {
-          max = z;
-          suspicious_idx = i;
+      if (null != stats) {
+        int idx = stats.farthest(m);
+        suspicious_idx = positions[idx];
+        max = Math.abs((clone.doubleValues[suspicious_idx] - m) / std);
+        stats.remove(idx);
+      } else {
+        for (int i = 0; i < N; i++) {
+          z = Math.abs((clone.doubleValues[i] - m) / std);
+          if (z > max) {
+            max = z;
+            suspicious_idx = i;
+          }
         }
       }
       
@@ -417,6 +462,11 @@ public class GTSOutliersHelper {
       
       // We don't need to keep the value of the potential outlier
       clone.doubleValues[suspicious_idx] = clone.doubleValues[clone.values];
+      
+      if (null != stats) {
+        indices[suspicious_idx] = indices[clone.values];
+        positions[indices[suspicious_idx]] = suspicious_idx;
+      }
     }
     
     // adding to output
@@ -0,0 +1,415 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.Configuration;
+import io.warp10.continuum.SortUtil;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+import io.warp10.script.WarpScriptForkJoinPool;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Properties;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Sorting of the parallel arrays of a GeoTimeSerie.
+ *
+ * A permutation of the indices is sorted with a natural merge sort: existing ascending
+ * and strictly descending runs are detected, short runs are extended by insertion sort
+ * and runs are then merged bottom up, a merge being skipped when two adjacent runs are
+ * already in order. Sorted or reverse sorted input is therefore handled in linear time
+ * and there is no recursion involved.
+ *
+ * The sort is stable, GTS with more than 'warpscript.sort.parallel.threshold' values are
+ * sorted by splitting them into segments sorted in parallel and then merged.
+ *
+ * Once the permutation is known, it is applied to ticks, locations, elevations and values.
+ */
+class GTSSorter {
+
+  /**
+   * Minimum length of a run, shorter runs are extended using insertion sort
+   */
+  private static final int MIN_RUN = 32;
+
+  /**
+   * Number of values above which a GTS is sorted in parallel, 0 to disable parallel sorting
+   */
+  private static final int PARALLEL_THRESHOLD;
+
+  private static final int DEFAULT_PARALLEL_THRESHOLD = 262144;
+
+  static {
+    int threshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    Properties props = WarpConfig.getProperties();
+
+    if (null != props && props.containsKey(Configuration.WARPSCRIPT_SORT_PARALLEL_THRESHOLD)) {
+      threshold = Integer.parseInt(props.getProperty(Configuration.WARPSCRIPT_SORT_PARALLEL_THRESHOLD));
+    }
+
+    PARALLEL_THRESHOLD = threshold;
+  }
+
+  /**
+   * Primary sort keys, indexed by value index
+   */
+  private final long[] keys;
+
+  /**
+   * Secondary sort keys, may be null
+   */
+  private final long[] ties;
+
+  private final boolean reversed;
+
+  private GTSSorter(long[] keys, long[] ties, boolean reversed) {
+    this.keys = keys;
+    this.ties = ties;
+    this.reversed = reversed;
+  }
+
+  /**
+   * Sort a GTS by ticks
+   */
+  static void sortByTick(GeoTimeSerie gts, boolean reversed) {
+    if (gts.values < 2) {
+      return;
+    }
+
+    int[] perm = new GTSSorter(gts.ticks, null, reversed).sort(gts.values);
+    apply(gts, perm);
+  }
+
+  /**
+   * Sort a GTS by values then ticks. BOOLEAN GTS are left untouched.
+   */
+  static void sortByValue(GeoTimeSerie gts, boolean reversed) {
+    if (gts.values < 2) {
+      return;
+    }
+
+    long[] keys;
+
+    if (TYPE.LONG == gts.type) {
+      keys = gts.longValues;
+    } else if (TYPE.DOUBLE == gts.type) {
+      keys = new long[gts.values];
+      for (int i = 0; i < gts.values; i++) {
+        keys[i] = SortUtil.sortableBits(gts.doubleValues[i]);
+      }
+    } else if (TYPE.STRING == gts.type) {
+      keys = ranks(gts.stringValues, gts.values);
+    } else {
+      return;
+    }
+
+    int[] perm = new GTSSorter(keys, gts.ticks, reversed).sort(gts.values);
+    apply(gts, perm);
+  }
+
+  /**
+   * Sort a GTS by locations then ticks. GTS without locations are left untouched.
+   */
+  static void sortByLocation(GeoTimeSerie gts, boolean reversed) {
+    if (gts.values < 2 || null == gts.locations) {
+      return;
+    }
+
+    int[] perm = new GTSSorter(gts.locations, gts.ticks, reversed).sort(gts.values);
+    apply(gts, perm);
+  }
+
+  /**
+   * Replace each string by its rank among the distinct strings
+   */
+  private static long[] ranks(String[] values, int n) {
+    String[] distinct = Arrays.copyOf(values, n);
+    Arrays.sort(distinct);
+
+    int ndistinct = 0;
+
+    for (int i = 0; i < n; i++) {
+      if (0 == ndistinct || !distinct[i].equals(distinct[ndistinct - 1])) {
+        distinct[ndistinct++] = distinct[i];
+      }
+    }
+
+    long[] ranks = new long[n];
+
+    for (int i = 0; i < n; i++) {
+      ranks[i] = Arrays.binarySearch(distinct, 0, ndistinct, values[i]);
+    }
+
+    return ranks;
+  }
+
+  private int compare(int a, int b) {
+    int c = Long.compare(keys[a], keys[b]);
+
+    if (0 == c && null != ties) {
+      c = Long.compare(ties[a], ties[b]);
+    }
+
+    return reversed ? -c : c;
+  }
+
+  /**
+   * Compute the sorted permutation of the first n indices
+   */
+  private int[] sort(int n) {
+    int[] perm = new int[n];
+
+    for (int i = 0; i < n; i++) {
+      perm[i] = i;
+    }
+
+    int[] tmp = new int[n];
+
+    if (PARALLEL_THRESHOLD > 0 && n > PARALLEL_THRESHOLD) {
+      WarpScriptForkJoinPool.getPool().invoke(new ParallelSort(perm, tmp, 0, n));
+    } else {
+      sortRange(perm, tmp, 0, n);
+    }
+
+    return perm;
+  }
+
+  private final class ParallelSort extends RecursiveAction {
+    private final int[] perm;
+    private final int[] tmp;
+    private final int lo;
+    private final int hi;
+
+    private ParallelSort(int[] perm, int[] tmp, int lo, int hi) {
+      this.perm = perm;
+      this.tmp = tmp;
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    @Override
+    protected void compute() {
+      if (hi - lo <= PARALLEL_THRESHOLD) {
+        sortRange(perm, tmp, lo, hi);
+        return;
+      }
+
+      int mid = (lo + hi) >>> 1;
+
+      invokeAll(new ParallelSort(perm, tmp, lo, mid), new ParallelSort(perm, tmp, mid, hi));
+
+      if (compare(perm[mid - 1], perm[mid]) > 0) {
+        merge(perm, tmp, lo, mid, hi);
+        System.arraycopy(tmp, lo, perm, lo, hi - lo);
+      }
+    }
+  }
+
+  /**
+   * Sort perm[lo,hi[ using tmp[lo,hi[ as scratch space
+   */
+  private void sortRange(int[] perm, int[] tmp, int lo, int hi) {
+    if (hi - lo < 2) {
+      return;
+    }
+
+    //
+    // Identify runs, each run but the last one has at least MIN_RUN elements
+    //
+
+    int[] runs = new int[(hi - lo) / MIN_RUN + 2];
+    int nruns = 0;
+
+    int start = lo;
+
+    while (start < hi) {
+      runs[nruns++] = start;
+
+      int end = start + 1;
+
+      if (end < hi) {
+        if (compare(perm[end], perm[start]) < 0) {
+          // Strictly descending run, reverse it so it becomes ascending
+          while (end + 1 < hi && compare(perm[end + 1], perm[end]) < 0) {
+            end++;
+          }
+          end++;
+          reverse(perm, start, end);
+        } else {
+          while (end + 1 < hi && compare(perm[end + 1], perm[end]) >= 0) {
+            end++;
+          }
+          end++;
+        }
+      }
+
+      if (end - start < MIN_RUN && end < hi) {
+        int forced = Math.min(start + MIN_RUN, hi);
+        insertionSort(perm, start, end, forced);
+        end = forced;
+      }
+
+      start = end;
+    }
+
+    runs[nruns] = hi;
+
+    //
+    // Merge adjacent runs bottom up, alternating between perm and tmp
+    //
+
+    int[] src = perm;
+    int[] dst = tmp;
+
+    while (nruns > 1) {
+      int merged = 0;
+
+      for (int r = 0; r < nruns; r += 2) {
+        int rlo = runs[r];
+
+        if (r + 1 < nruns) {
+          int rmid = runs[r + 1];
+          int rhi = runs[r + 2];
+
+          if (compare(src[rmid - 1], src[rmid]) <= 0) {
+            System.arraycopy(src, rlo, dst, rlo, rhi - rlo);
+          } else {
+            merge(src, dst, rlo, rmid, rhi);
+          }
+        } else {
+          System.arraycopy(src, rlo, dst, rlo, runs[r + 1] - rlo);
+        }
+
+        runs[merged++] = rlo;
+      }
+
+      runs[merged] = hi;
+      nruns = merged;
+
+      int[] swap = src;
+      src = dst;
+      dst = swap;
+    }
+
+    if (src != perm) {
+      System.arraycopy(src, lo, perm, lo, hi - lo);
+    }
+  }
+
+  /**
+   * Merge the sorted ranges src[lo,mid[ and src[mid,hi[ into dst[lo,hi[
+   */
+  private void merge(int[] src, int[] dst, int lo, int mid, int hi) {
+    int i = lo;
+    int j = mid;
+    int k = lo;
+
+    while (i < mid && j < hi) {
+      dst[k++] = compare(src[j], src[i]) < 0 ? src[j++] : src[i++];
+    }
+
+    if (i < mid) {
+      System.arraycopy(src, i, dst, k, mid - i);
+    } else if (j < hi) {
+      System.arraycopy(src, j, dst, k, hi - j);
+    }
+  }
+
+  /**
+   * Extend the sorted range perm[lo,sorted[ to perm[lo,hi[ using binary insertion sort
+   */
+  private void insertionSort(int[] perm, int lo, int sorted, int hi) {
+    for (int i = sorted; i < hi; i++) {
+      int idx = perm[i];
+
+      int left = lo;
+      int right = i;
+
+      while (left < right) {
+        int m = (left + right) >>> 1;
+        if (compare(idx, perm[m]) < 0) {
+          right = m;
+        } else {
+          left = m + 1;
+        }
+      }
+
+      System.arraycopy(perm, left, perm, left + 1, i - left);
+      perm[left] = idx;
+    }
+  }
+
+  private static void reverse(int[] perm, int lo, int hi) {
+    for (int i = lo, j = hi - 1; i < j; i++, j--) {
+      int t = perm[i];
+      perm[i] = perm[j];
+      perm[j] = t;
+    }
+  }
+
+  /**
+   * Reorder the arrays of a GTS so element i becomes the element at index perm[i]
+   */
+  private static void apply(GeoTimeSerie gts, int[] perm) {
+    gts.ticks = permute(gts.ticks, perm);
+
+    if (null != gts.locations) {
+      gts.locations = permute(gts.locations, perm);
+    }
+
+    if (null != gts.elevations) {
+      gts.elevations = permute(gts.elevations, perm);
+    }
+
+    if (TYPE.LONG == gts.type) {
+      gts.longValues = permute(gts.longValues, perm);
+    } else if (TYPE.DOUBLE == gts.type) {
+      double[] values = new double[gts.doubleValues.length];
+      for (int i = 0; i < perm.length; i++) {
+        values[i] = gts.doubleValues[perm[i]];
+      }
+      gts.doubleValues = values;
+    } else if (TYPE.STRING == gts.type) {
+      String[] values = new String[gts.stringValues.length];
+      for (int i = 0; i < perm.length; i++) {
+        values[i] = gts.stringValues[perm[i]];
+      }
+      gts.stringValues = values;
+    } else if (TYPE.BOOLEAN == gts.type) {
+      BitSet values = new BitSet(gts.values);
+      for (int i = 0; i < perm.length; i++) {
+        if (gts.booleanValues.get(perm[i])) {
+          values.set(i);
+        }
+      }
+      gts.booleanValues = values;
+    }
+  }
+
+  private static long[] permute(long[] array, int[] perm) {
+    long[] permuted = new long[array.length];
+
+    for (int i = 0; i < perm.length; i++) {
+      permuted[i] = array[perm[i]];
+    }
+
+    return permuted;
+  }
+}
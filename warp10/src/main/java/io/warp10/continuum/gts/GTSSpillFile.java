@@ -0,0 +1,98 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package io.warp10.continuum.gts;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Temporary file into which encoded Geo Time Series are spilled.
+ * 
+ * The file is append only, data is read back via MappedFileCustomBuffer.
+ * The file is deleted when 'close' is called, which happens at the latest when
+ * the execution which created it ends (see StackUtils.closeResources), or when
+ * the instance is garbage collected.
+ */
+public class GTSSpillFile implements Closeable {
+  
+  private final File file;
+  
+  private OutputStream out;
+  
+  /**
+   * Number of bytes appended so far
+   */
+  private long size = 0L;
+  
+  public GTSSpillFile(File dir) throws IOException {
+    this.file = File.createTempFile("warp10-spill-", ".gts", dir);
+    this.out = new BufferedOutputStream(new FileOutputStream(this.file));
+  }
+  
+  /**
+   * Append the content of an encoder to the file
+   * 
+   * @param encoder Encoder whose data should be spilled, it MUST NOT have a wrapping key
+   * @return The offset in the file of the appended data
+   */
+  public synchronized long append(GTSEncoder encoder) throws IOException {
+    if (null == this.out) {
+      throw new IOException("Spill file was closed.");
+    }
+    
+    long offset = this.size;
+    encoder.stream.writeTo(this.out);
+    this.size += encoder.size();
+    return offset;
+  }
+  
+  /**
+   * Flush the pending data so it can be read via the file
+   */
+  public synchronized void flush() throws IOException {
+    if (null != this.out) {
+      this.out.flush();
+    }
+  }
+  
+  public String getPath() {
+    return this.file.getAbsolutePath();
+  }
+  
+  public long size() {
+    return this.size;
+  }
+  
+  @Override
+  public synchronized void close() throws IOException {
+    if (null != this.out) {
+      this.out.close();
+      this.out = null;
+    }
+    this.file.delete();
+  }
+  
+  @Override
+  protected void finalize() throws Throwable {
+    close();
+  }
+}
@@ -0,0 +1,622 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+import io.warp10.script.WarpScriptWindowedMapperFunction.Window;
+
+import com.geoxp.GeoXPLib;
+
+/**
+ * Incremental implementations of the usual mappers, used by GTSHelper.map
+ * when a mapper implements WarpScriptWindowedMapperFunction.
+ *
+ * All windows operate on numeric GTS sorted by ascending ticks, they return
+ * null for other types so the mapper is applied the usual way.
+ * Results are those of the matching aggregators, except for DOUBLE sums which
+ * may differ in their last bits since values are subtracted when they leave
+ * the window, and for variances which are computed in a numerically stabler way.
+ */
+public class GTSWindows {
+
+  private static final Object[] EMPTY = new Object[] { Long.MAX_VALUE, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, null };
+
+  private static boolean isNumeric(GeoTimeSerie gts) {
+    return 0 != gts.values && (TYPE.LONG == gts.type || TYPE.DOUBLE == gts.type);
+  }
+
+  private static Object[] empty() {
+    return EMPTY.clone();
+  }
+
+  /**
+   * Return the index of the first value at the latest tick of [lo,hi[
+   */
+  private static int latest(GeoTimeSerie gts, int lo, int hi) {
+    int idx = hi - 1;
+
+    while (idx > lo && gts.ticks[idx - 1] == gts.ticks[idx]) {
+      idx--;
+    }
+
+    return idx;
+  }
+
+  private static long location(GeoTimeSerie gts, int idx) {
+    return null == gts.locations ? GeoTimeSerie.NO_LOCATION : gts.locations[idx];
+  }
+
+  private static long elevation(GeoTimeSerie gts, int idx) {
+    return null == gts.elevations ? GeoTimeSerie.NO_ELEVATION : gts.elevations[idx];
+  }
+
+  /**
+   * Compare values at two indices, ties are broken using the index
+   */
+  private static int compare(GeoTimeSerie gts, int i, int j) {
+    int cmp;
+
+    if (TYPE.LONG == gts.type) {
+      cmp = Long.compare(gts.longValues[i], gts.longValues[j]);
+    } else {
+      cmp = Double.compare(gts.doubleValues[i], gts.doubleValues[j]);
+    }
+
+    return 0 != cmp ? cmp : Integer.compare(i, j);
+  }
+
+  /**
+   * Sum of the values, location and elevation are those of the latest tick (cf Sum).
+   */
+  public static Window sum(final GeoTimeSerie gts) {
+    if (!isNumeric(gts)) {
+      return null;
+    }
+
+    return new Window() {
+      private long suml = 0L;
+      private double sumd = 0.0D;
+      private int n = 0;
+
+      @Override
+      public void enter(int idx) {
+        if (TYPE.LONG == gts.type) {
+          suml += gts.longValues[idx];
+        } else {
+          sumd += gts.doubleValues[idx];
+        }
+        n++;
+      }
+
+      @Override
+      public void leave(int idx) {
+        n--;
+        // Reset the sums when the window is empty so rounding errors do not accumulate
+        if (0 == n) {
+          suml = 0L;
+          sumd = 0.0D;
+        } else if (TYPE.LONG == gts.type) {
+          suml -= gts.longValues[idx];
+        } else {
+          sumd -= gts.doubleValues[idx];
+        }
+      }
+
+      @Override
+      public Object[] apply(long tick, int lo, int hi) {
+        if (lo == hi) {
+          return empty();
+        }
+        int idx = latest(gts, lo, hi);
+        return new Object[] { 0L, location(gts, idx), elevation(gts, idx), TYPE.LONG == gts.type ? (Object) suml : (Object) sumd };
+      }
+    };
+  }
+
+  /**
+   * Number of values, location and elevation are those of the latest tick (cf Count).
+   */
+  public static Window count(final GeoTimeSerie gts) {
+    if (0 == gts.values) {
+      return null;
+    }
+
+    return new Window() {
+      @Override
+      public void enter(int idx) {}
+
+      @Override
+      public void leave(int idx) {}
+
+      @Override
+      public Object[] apply(long tick, int lo, int hi) {
+        if (lo == hi) {
+          return empty();
+        }
+        int idx = latest(gts, lo, hi);
+        return new Object[] { tick, location(gts, idx), elevation(gts, idx), (long) (hi - lo) };
+      }
+    };
+  }
+
+  /**
+   * Mean of the values, ticks, locations and elevations (cf Mean).
+   */
+  public static Window mean(final GeoTimeSerie gts) {
+    if (!isNumeric(gts)) {
+      return null;
+    }
+
+    // Ticks are summed as offsets from the first tick so the sum does not overflow
+    final long base = gts.ticks[0];
+
+    return new Window() {
+      private long suml = 0L;
+      private double sumd = 0.0D;
+      private long ticksum = 0L;
+      private long latitudes = 0L;
+      private long longitudes = 0L;
+      private int locationcount = 0;
+      private long elev = 0L;
+      private int elevationcount = 0;
+      private int n = 0;
+
+      private void update(int idx, int sign) {
+        n += sign;
+        ticksum += sign * (gts.ticks[idx] - base);
+
+        if (null != gts.locations && GeoTimeSerie.NO_LOCATION != gts.locations[idx]) {
+          long[] xy = GeoXPLib.xyFromGeoXPPoint(gts.locations[idx]);
+          latitudes += sign * xy[0];
+          longitudes += sign * xy[1];
+          locationcount += sign;
+        }
+
+        if (null != gts.elevations && GeoTimeSerie.NO_ELEVATION != gts.elevations[idx]) {
+          elev += sign * gts.elevations[idx];
+          elevationcount += sign;
+        }
+
+        if (0 == n) {
+          suml = 0L;
+          sumd = 0.0D;
+        } else if (TYPE.LONG == gts.type) {
+          suml += sign * gts.longValues[idx];
+        } else {
+          sumd += sign * gts.doubleValues[idx];
+        }
+      }
+
+      @Override
+      public void enter(int idx) {
+        update(idx, 1);
+      }
+
+      @Override
+      public void leave(int idx) {
+        update(idx, -1);
+      }
+
+      @Override
+      public Object[] apply(long tick, int lo, int hi) {
+        if (lo == hi) {
+          return empty();
+        }
+
+        long meanlocation = GeoTimeSerie.NO_LOCATION;
+        long meanelevation = GeoTimeSerie.NO_ELEVATION;
+
+        if (locationcount > 0) {
+          meanlocation = GeoXPLib.toGeoXPPoint(latitudes / locationcount, longitudes / locationcount);
+        }
+
+        if (elevationcount > 0) {
+          meanelevation = elev / elevationcount;
+        }
+
+        long first = gts.ticks[lo];
+        long offsets = ticksum - n * (first - base);
+
+        Object meanvalue = TYPE.LONG == gts.type ? suml / (double) n : sumd / n;
+
+        return new Object[] { first + (offsets / n), meanlocation, meanelevation, meanvalue };
+      }
+    };
+  }
+
+  /**
+   * Variance (or standard deviation) of the values (cf Variance).
+   *
+   * Mean and sum of squared deviations are maintained using Welford's updates, which
+   * unlike E[X^2] - E[X]^2 do not cancel catastrophically when the variance is small
+   * compared to the mean. Removals still let rounding errors creep in, so both are
+   * recomputed from the window content once as many values have left the window as
+   * it contains (which keeps the amortized cost constant), or sooner if the sum of
+   * squared deviations became too small compared to the terms removed from it.
+   */
+  public static Window variance(final GeoTimeSerie gts, final boolean useBessel, final boolean sqrt) {
+    if (!isNumeric(gts)) {
+      return null;
+    }
+
+    return new Window() {
+      private double mean = 0.0D;
+      private double m2 = 0.0D;
+      private int n = 0;
+
+      /**
+       * Number of values which left the window since the last exact computation
+       */
+      private int removed = 0;
+
+      /**
+       * Largest term subtracted from m2 since the last exact computation
+       */
+      private double removedmax = 0.0D;
+
+      private double value(int idx) {
+        return TYPE.LONG == gts.type ? (double) gts.longValues[idx] : gts.doubleValues[idx];
+      }
+
+      @Override
+      public void enter(int idx) {
+        double v = value(idx);
+        n++;
+        double delta = v - mean;
+        mean += delta / n;
+        m2 += delta * (v - mean);
+      }
+
+      @Override
+      public void leave(int idx) {
+        n--;
+
+        if (0 == n) {
+          mean = 0.0D;
+          m2 = 0.0D;
+          removed = 0;
+          removedmax = 0.0D;
+          return;
+        }
+
+        double v = value(idx);
+        double delta = v - mean;
+        mean -= delta / n;
+        double term = delta * (v - mean);
+        m2 -= term;
+        removed++;
+        removedmax = Math.max(removedmax, term);
+      }
+
+      /**
+       * Recompute mean and m2 from the values in [lo,hi[ using two passes
+       */
+      private void recompute(int lo, int hi) {
+        double sum = 0.0D;
+
+        for (int i = lo; i < hi; i++) {
+          sum += value(i);
+        }
+
+        mean = sum / n;
+        m2 = 0.0D;
+
+        for (int i = lo; i < hi; i++) {
+          double delta = value(i) - mean;
+          m2 += delta * delta;
+        }
+
+        removed = 0;
+        removedmax = 0.0D;
+      }
+
+      @Override
+      public Object[] apply(long tick, int lo, int hi) {
+        if (lo == hi) {
+          return empty();
+        }
+
+        // m2 has less than about 8 significant digits left when it is that small compared to what was removed from it
+        if (removed >= n || m2 < removedmax * 1e-8D) {
+          recompute(lo, hi);
+        }
+
+        // Clamp the residual rounding errors which could make the variance negative
+        double variance = Math.max(0.0D, m2 / n);
+
+        if (n > 1 && useBessel) {
+          variance = variance * ((double) n) / (((double) n) - 1.0D);
+        }
+
+        int idx = latest(gts, lo, hi);
+
+        return new Object[] { 0L, location(gts, idx), elevation(gts, idx), sqrt ? Math.sqrt(variance) : variance };
+      }
+    };
+  }
+
+  /**
+   * Minimum or maximum of the values, the earliest tick wins on ties (cf Min and Max).
+   *
+   * A monotonic deque of indices is maintained, the extremum being at its head.
+   */
+  public static Window extremum(final GeoTimeSerie gts, final boolean max) {
+    if (!isNumeric(gts)) {
+      return null;
+    }
+
+    return new Window() {
+      // Circular buffer of indices
+      private final int[] deque = new int[gts.values];
+      private int head = 0;
+      private int size = 0;
+
+      /**
+       * Return true if the value at 'i' should be preferred to that at 'j'
+       */
+      private boolean better(int i, int j) {
+        int cmp;
+
+        if (TYPE.LONG == gts.type) {
+          cmp = Long.compare(gts.longValues[i], gts.longValues[j]);
+        } else {
+          cmp = Double.compare(gts.doubleValues[i], gts.doubleValues[j]);
+        }
+
+        if (max) {
+          cmp = -cmp;
+        }
+
+        if (0 != cmp) {
+          return cmp < 0;
+        }
+
+        // Values are identical, prefer the earliest tick then the lowest index
+        if (gts.ticks[i] != gts.ticks[j]) {
+          return gts.ticks[i] < gts.ticks[j];
+        }
+
+        return i < j;
+      }
+
+      @Override
+      public void enter(int idx) {
+        while (size > 0 && better(idx, deque[(head + size - 1) % deque.length])) {
+          size--;
+        }
+        deque[(head + size) % deque.length] = idx;
+        size++;
+      }
+
+      @Override
+      public void leave(int idx) {
+        if (size > 0 && deque[head] == idx) {
+          head = (head + 1) % deque.length;
+          size--;
+        }
+      }
+
+      @Override
+      public Object[] apply(long tick, int lo, int hi) {
+        if (0 == size) {
+          return empty();
+        }
+
+        int idx = deque[head];
+
+        return new Object[] { gts.ticks[idx], location(gts, idx), elevation(gts, idx), TYPE.LONG == gts.type ? (Object) gts.longValues[idx] : (Object) gts.doubleValues[idx] };
+      }
+    };
+  }
+
+  /**
+   * Window maintaining the ranks of the values it contains so order statistics
+   * can be retrieved in O(log n).
+   *
+   * Values are ranked once for the whole GTS, the window is then a Fenwick tree
+   * of the ranks present.
+   */
+  private static abstract class RankWindow implements Window {
+
+    protected final GeoTimeSerie gts;
+
+    /**
+     * Rank of each index
+     */
+    private final int[] ranks;
+
+    /**
+     * Index of each rank
+     */
+    private final int[] indices;
+
+    private final int[] tree;
+
+    private final int mask;
+
+    protected int size = 0;
+
+    RankWindow(GeoTimeSerie gts) {
+      this.gts = gts;
+
+      this.indices = sortIndices(gts);
+      this.ranks = new int[gts.values];
+
+      for (int i = 0; i < indices.length; i++) {
+        this.ranks[this.indices[i]] = i;
+      }
+
+      this.tree = new int[gts.values + 1];
+
+      this.mask = Integer.highestOneBit(gts.values);
+    }
+
+    private void update(int rank, int delta) {
+      for (int i = rank + 1; i < tree.length; i += i & (-i)) {
+        tree[i] += delta;
+      }
+    }
+
+    @Override
+    public void enter(int idx) {
+      update(ranks[idx], 1);
+      size++;
+    }
+
+    @Override
+    public void leave(int idx) {
+      update(ranks[idx], -1);
+      size--;
+    }
+
+    /**
+     * Return the index of the k-th (0 based) smallest value in the window
+     */
+    protected int kth(int k) {
+      int pos = 0;
+      int remaining = k + 1;
+
+      for (int step = mask; step > 0; step >>>= 1) {
+        int next = pos + step;
+        if (next < tree.length && tree[next] < remaining) {
+          pos = next;
+          remaining -= tree[next];
+        }
+      }
+
+      return indices[pos];
+    }
+  }
+
+  /**
+   * Median of the values (cf Median). Only GTS without locations and elevations are
+   * supported as the median of those would require additional order statistics.
+   */
+  public static Window median(final GeoTimeSerie gts) {
+    if (!isNumeric(gts) || null != gts.locations || null != gts.elevations) {
+      return null;
+    }
+
+    return new RankWindow(gts) {
+      @Override
+      public Object[] apply(long tick, int lo, int hi) {
+        if (0 == size) {
+          return new Object[] { tick, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, null };
+        }
+
+        Object median;
+
+        int first = kth(0);
+        int last = kth(size - 1);
+
+        if (TYPE.LONG == gts.type) {
+          if (gts.longValues[first] == gts.longValues[last]) {
+            median = gts.longValues[first];
+          } else if (0 == size % 2) {
+            median = (gts.longValues[kth((size / 2) - 1)] + gts.longValues[kth(size / 2)]) / 2L;
+          } else {
+            median = gts.longValues[kth(size / 2)];
+          }
+        } else {
+          if (0 == Double.compare(gts.doubleValues[first], gts.doubleValues[last])) {
+            median = gts.doubleValues[first];
+          } else if (0 == size % 2) {
+            median = (gts.doubleValues[kth((size / 2) - 1)] + gts.doubleValues[kth(size / 2)]) / 2.0D;
+          } else {
+            median = gts.doubleValues[kth(size / 2)];
+          }
+        }
+
+        return new Object[] { tick, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, median };
+      }
+    };
+  }
+
+  /**
+   * Percentile of the values using the nearest rank method (cf Percentile).
+   */
+  public static Window percentile(final GeoTimeSerie gts, final double percentile) {
+    if (!isNumeric(gts)) {
+      return null;
+    }
+
+    return new RankWindow(gts) {
+      @Override
+      public Object[] apply(long tick, int lo, int hi) {
+        if (0 == size) {
+          return empty();
+        }
+
+        int n = (int) Math.round(0.5 + percentile * size / 100.0) - 1;
+
+        if (n >= size) {
+          n--;
+        }
+
+        int idx = kth(n);
+
+        return new Object[] { gts.ticks[idx], location(gts, idx), elevation(gts, idx), TYPE.LONG == gts.type ? (Object) gts.longValues[idx] : (Object) gts.doubleValues[idx] };
+      }
+    };
+  }
+
+  /**
+   * Return the indices of the values of a numeric GTS sorted by increasing value,
+   * ties are sorted by index.
+   */
+  static int[] sortIndices(GeoTimeSerie gts) {
+    int[] indices = new int[gts.values];
+
+    for (int i = 0; i < indices.length; i++) {
+      indices[i] = i;
+    }
+
+    //
+    // Bottom up merge sort, stable so ties keep their index order
+    //
+
+    int[] src = indices;
+    int[] dst = new int[indices.length];
+
+    for (int width = 1; width < src.length; width <<= 1) {
+      for (int lo = 0; lo < src.length; lo += width << 1) {
+        int mid = Math.min(lo + width, src.length);
+        int hi = Math.min(lo + (width << 1), src.length);
+
+        int i = lo;
+        int j = mid;
+        int k = lo;
+
+        while (i < mid && j < hi) {
+          dst[k++] = compare(gts, src[j], src[i]) < 0 ? src[j++] : src[i++];
+        }
+        while (i < mid) {
+          dst[k++] = src[i++];
+        }
+        while (j < hi) {
+          dst[k++] = src[j++];
+        }
+      }
+
+      int[] tmp = src;
+      src = dst;
+      dst = tmp;
+    }
+
+    return src;
+  }
+}
@@ -19,15 +19,43 @@ package io.warp10.continuum.gts;
 import io.warp10.continuum.store.thrift.data.GTSWrapper;
 import io.warp10.continuum.store.thrift.data.Metadata;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TList;
+import org.apache.thrift.protocol.TMap;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolException;
+import org.apache.thrift.protocol.TSet;
+import org.apache.thrift.transport.TIOStreamTransport;
+
 public class GTSWrapperHelper {
+  
+  /**
+   * Maximum number of elements of the containers (labels, attributes) of a wrapper read by 'getWrapperProtocol'.
+   * Labels and attributes are limited to a few kilobytes anyway.
+   */
+  private static final int MAX_WRAPPER_CONTAINER_SIZE = 8192;
+  
+  /**
+   * Default maximum length of the strings and binaries of a wrapper submitted for ingestion
+   */
+  public static final long DEFAULT_WRAPPER_MAXSIZE = 10000000L;
 
   public static GTSDecoder fromGTSWrapperToGTSDecoder(GTSWrapper wrapper) {
     
@@ -274,4 +302,175 @@ public class GTSWrapperHelper {
     
     return id;
   }
-}
\ No newline at end of file
+
+  /**
+   * Return a protocol to read a stream of TCompactProtocol serialized wrappers from an untrusted source.
+   * The length of strings and binaries is bounded by 'maxsize' and the number of elements of containers
+   * is bounded too, so a crafted length cannot make the reader allocate more than that before the content
+   * is actually read.
+   * 
+   * @param maxsize Maximum length of the strings and binaries (including the encoded content) of a wrapper
+   */
+  public static TProtocol getWrapperProtocol(InputStream in, long maxsize) {
+    return new TCompactProtocol(new TIOStreamTransport(in), maxsize) {
+      @Override
+      public TMap readMapBegin() throws TException {
+        TMap map = super.readMapBegin();
+        checkContainerSize(map.size);
+        return map;
+      }
+      
+      @Override
+      public TList readListBegin() throws TException {
+        TList list = super.readListBegin();
+        checkContainerSize(list.size);
+        return list;
+      }
+      
+      @Override
+      public TSet readSetBegin() throws TException {
+        TSet set = super.readSetBegin();
+        checkContainerSize(set.size);
+        return set;
+      }
+    };
+  }
+  
+  private static void checkContainerSize(int size) throws TProtocolException {
+    if (size < 0) {
+      throw new TProtocolException(TProtocolException.NEGATIVE_SIZE, "Negative container size: " + size);
+    }
+    if (size > MAX_WRAPPER_CONTAINER_SIZE) {
+      throw new TProtocolException(TProtocolException.SIZE_LIMIT, "Container size " + size + " exceeds " + MAX_WRAPPER_CONTAINER_SIZE + ".");
+    }
+  }
+  
+  /**
+   * Read the next GTSWrapper from a stream of concatenated serialized wrappers.
+   * 
+   * @param in Stream to read from, 'protocol' MUST use a transport on top of this stream, as the one
+   *           returned by 'getWrapperProtocol' when the stream comes from an untrusted source
+   * @param protocol Protocol used to deserialize the wrappers
+   * @return The next wrapper or null if the end of the stream was reached
+   */
+  public static GTSWrapper readWrapper(BufferedInputStream in, TProtocol protocol) throws IOException {
+    in.mark(1);
+    
+    if (-1 == in.read()) {
+      return null;
+    }
+    
+    in.reset();
+    
+    GTSWrapper wrapper = new GTSWrapper();
+    
+    try {
+      wrapper.read(protocol);
+    } catch (TException te) {
+      throw new IOException("Invalid GTSWrapper.", te);
+    }
+    
+    return wrapper;
+  }
+  
+  /**
+   * Convert a GTSWrapper submitted for ingestion into encoders which can be handed to the storage layer.
+   * 
+   * The content of the wrapper is fully decoded so malformed wrappers are rejected. The produced encoders
+   * have a base timestamp of 0 and are neither compressed nor encrypted. The wrapped content is reused as is
+   * when possible, otherwise it is re-encoded into chunks of at most 'maxsize' bytes.
+   * 
+   * @param wrapper The wrapper to convert
+   * @param extraLabels Labels to force on the GTS, labels with a null value are removed
+   * @param maxValueSize Maximum length of STRING values
+   * @param maxsize Maximum size of each encoder
+   */
+  public static List<GTSEncoder> fromGTSWrapperToGTSEncoders(GTSWrapper wrapper, Map<String,String> extraLabels, long maxValueSize, long maxsize) throws IOException {
+    
+    if (!wrapper.isSetMetadata() || null == wrapper.getMetadata().getName()) {
+      throw new IOException("Missing GTS name in GTSWrapper.");
+    }
+    
+    if (wrapper.isSetKey()) {
+      throw new IOException("Encrypted GTSWrapper cannot be ingested.");
+    }
+    
+    Metadata metadata = new Metadata();
+    metadata.setName(wrapper.getMetadata().getName());
+    
+    Map<String,String> labels = new HashMap<String,String>();
+    
+    if (wrapper.getMetadata().getLabelsSize() > 0) {
+      labels.putAll(wrapper.getMetadata().getLabels());
+    }
+    
+    if (null != extraLabels) {
+      labels.putAll(extraLabels);
+      
+      Iterator<Entry<String,String>> iter = labels.entrySet().iterator();
+      
+      while (iter.hasNext()) {
+        if (null == iter.next().getValue()) {
+          iter.remove();
+        }
+      }
+    }
+    
+    metadata.setLabels(labels);
+    
+    List<GTSEncoder> encoders = new ArrayList<GTSEncoder>();
+    
+    if (!wrapper.isSetEncoded()) {
+      return encoders;
+    }
+    
+    byte[] unwrapped;
+    
+    try {
+      unwrapped = unwrapEncoded(wrapper);
+    } catch (RuntimeException re) {
+      throw new IOException("Invalid GTSWrapper content.", re);
+    }
+    
+    boolean reencode = 0L != wrapper.getBase() || unwrapped.length > maxsize;
+    
+    GTSDecoder decoder = new GTSDecoder(wrapper.getBase(), ByteBuffer.wrap(unwrapped).order(ByteOrder.BIG_ENDIAN));
+    
+    GTSEncoder encoder = null;
+    long count = 0L;
+    
+    try {
+      while (decoder.next()) {
+        Object value = decoder.getValue();
+        
+        if (value instanceof String && ((String) value).length() > maxValueSize) {
+          throw new IOException("Value too large for GTS " + GTSHelper.buildSelector(metadata));
+        }
+        
+        count++;
+        
+        if (reencode) {
+          if (null == encoder || encoder.size() > maxsize) {
+            encoder = new GTSEncoder(0L);
+            encoder.setMetadata(new Metadata(metadata));
+            encoders.add(encoder);
+          }
+          encoder.addValue(decoder.getTimestamp(), decoder.getLocation(), decoder.getElevation(), value);
+        }
+      }
+    } catch (IOException ioe) {
+      throw ioe;
+    } catch (Exception e) {
+      throw new IOException("Invalid GTSWrapper content.", e);
+    }
+    
+    if (!reencode && count > 0) {
+      encoder = new GTSEncoder(0L, null, unwrapped);
+      encoder.setMetadata(metadata);
+      encoder.setCount(count);
+      encoders.add(encoder);
+    }
+    
+    return encoders;
+  }
+}
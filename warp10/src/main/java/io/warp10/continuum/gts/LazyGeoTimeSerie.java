@@ -0,0 +1,183 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.script.WarpScriptException;
+
+import java.io.IOException;
+
+/**
+ * Geo Time Serie whose datapoints are kept in their encoded form, as chunks appended
+ * from GTSEncoder instances with a base timestamp of 0 and no wrapping key.
+ *
+ * The number of datapoints and the first and last ticks are answered by streaming over
+ * the encoded chunks, the datapoints are only decoded into a GeoTimeSerie when 'decode'
+ * is called, i.e. when random access to them is needed.
+ */
+public abstract class LazyGeoTimeSerie {
+
+  private final Metadata metadata;
+
+  /**
+   * Type to force when decoding, or null
+   */
+  private final TYPE type;
+
+  /**
+   * Number of datapoints appended
+   */
+  private long count = 0L;
+
+  /**
+   * Lowest and highest ticks, computed on first use
+   */
+  private boolean ticksKnown = false;
+  private long firstTick = Long.MAX_VALUE;
+  private long lastTick = Long.MIN_VALUE;
+
+  protected LazyGeoTimeSerie(Metadata metadata, TYPE type) {
+    this.metadata = metadata;
+    this.type = type;
+  }
+
+  /**
+   * Store the content of an encoder as a new chunk
+   */
+  protected abstract void store(GTSEncoder encoder) throws IOException;
+
+  /**
+   * @return the number of chunks stored
+   */
+  protected abstract int chunks();
+
+  /**
+   * Return a decoder over the datapoints of a chunk
+   */
+  protected abstract GTSDecoder decoder(int chunk) throws IOException;
+
+  /**
+   * Append the content of an encoder. The encoder MUST have a base timestamp of 0
+   * and no wrapping key.
+   */
+  public void append(GTSEncoder encoder) throws IOException {
+    if (0 == encoder.size()) {
+      return;
+    }
+
+    store(encoder);
+
+    count += encoder.getCount();
+    ticksKnown = false;
+  }
+
+  public Metadata getMetadata() {
+    return this.metadata;
+  }
+
+  /**
+   * @return the number of datapoints
+   */
+  public long size() {
+    return this.count;
+  }
+
+  /**
+   * @return the lowest tick, Long.MAX_VALUE if there are no datapoints
+   */
+  public long firstTick() throws WarpScriptException {
+    scanTicks();
+    return this.firstTick;
+  }
+
+  /**
+   * @return the highest tick, Long.MIN_VALUE if there are no datapoints
+   */
+  public long lastTick() throws WarpScriptException {
+    scanTicks();
+    return this.lastTick;
+  }
+
+  private void scanTicks() throws WarpScriptException {
+    if (ticksKnown) {
+      return;
+    }
+
+    long first = Long.MAX_VALUE;
+    long last = Long.MIN_VALUE;
+
+    try {
+      for (int i = 0; i < chunks(); i++) {
+        GTSDecoder decoder = decoder(i);
+
+        while(decoder.next()) {
+          long tick = decoder.getTimestamp();
+          if (tick < first) {
+            first = tick;
+          }
+          if (tick > last) {
+            last = tick;
+          }
+        }
+      }
+    } catch (IOException ioe) {
+      throw new WarpScriptException("Error while reading encoded Geo Time Series.", ioe);
+    }
+
+    this.firstTick = first;
+    this.lastTick = last;
+    this.ticksKnown = true;
+  }
+
+  /**
+   * Decode the datapoints into a new GeoTimeSerie
+   */
+  public GeoTimeSerie decode() throws WarpScriptException {
+    GeoTimeSerie gts = new GeoTimeSerie((int) Math.min(Integer.MAX_VALUE, Math.max(16L, this.count)));
+
+    if (null != this.type) {
+      gts.setType(this.type);
+    }
+
+    gts.setMetadata(this.metadata);
+
+    try {
+      for (int i = 0; i < chunks(); i++) {
+        GTSDecoder decoder = decoder(i);
+
+        while(decoder.next()) {
+          GTSHelper.setValue(gts, decoder.getTimestamp(), decoder.getLocation(), decoder.getElevation(), decoder.getValue(), false);
+        }
+      }
+    } catch (IOException ioe) {
+      throw new WarpScriptException("Error while reading encoded Geo Time Series.", ioe);
+    }
+
+    return gts;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(GTSHelper.buildSelector(this.metadata));
+    sb.append(" <");
+    sb.append(this.count);
+    sb.append(" encoded datapoints>");
+    return sb.toString();
+  }
+}
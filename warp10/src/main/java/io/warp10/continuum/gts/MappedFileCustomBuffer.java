@@ -0,0 +1,304 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package io.warp10.continuum.gts;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * CustomBuffer implementation with data memory mapped from a file.
+ * 
+ * The file is mapped in segments of at most 1GB so files larger than 2GB
+ * can be exposed. Reads are done with absolute gets on the mapped segments,
+ * no data is copied except when a value spans two segments.
+ * 
+ * This class is NOT thread safe.
+ */
+public class MappedFileCustomBuffer implements CustomBuffer {
+  
+  private static final int SEGMENT_BITS = 30;
+  
+  /**
+   * Number of bits of the offset within a segment, segments are 2**segmentBits bytes long
+   */
+  private final int segmentBits;
+  
+  private final long segmentMask;
+  
+  private final MappedByteBuffer[] segments;
+  
+  /**
+   * Number of bytes exposed by this buffer
+   */
+  private final long length;
+  
+  /**
+   * Current position, relative to the start of the mapped region
+   */
+  private long position = 0L;
+  
+  private ByteOrder order = ByteOrder.BIG_ENDIAN;
+  
+  /**
+   * Data inserted via 'insert', read before the mapped data
+   */
+  private ByteBuffer inserted = null;
+  
+  public MappedFileCustomBuffer(String path) throws IOException {
+    this(path, 0L, Long.MAX_VALUE);
+  }
+  
+  /**
+   * Map 'length' bytes of a file starting at 'start'
+   * 
+   * @param path Path to the file
+   * @param start Offset of the first byte to expose
+   * @param length Number of bytes to expose, will be truncated to the file size
+   */
+  public MappedFileCustomBuffer(String path, long start, long length) throws IOException {
+    this(path, start, length, SEGMENT_BITS);
+  }
+  
+  /**
+   * Map 'length' bytes of a file starting at 'start' in segments of 2**segmentBits bytes,
+   * small segments are only useful for testing the handling of segment boundaries.
+   */
+  MappedFileCustomBuffer(String path, long start, long length, int segmentBits) throws IOException {
+    this.segmentBits = segmentBits;
+    this.segmentMask = (1L << segmentBits) - 1L;
+    
+    long segmentSize = 1L << segmentBits;
+    
+    try (RandomAccessFile raf = new RandomAccessFile(path, "r"); FileChannel channel = raf.getChannel()) {
+      
+      if (start > channel.size()) {
+        throw new IOException("Start offset " + start + " is past the end of the file.");
+      }
+      
+      this.length = Math.min(length, channel.size() - start);
+      
+      int n = (int) ((this.length + segmentSize - 1) >>> segmentBits);
+      
+      this.segments = new MappedByteBuffer[n];
+      
+      for (int i = 0; i < n; i++) {
+        long offset = ((long) i) << segmentBits;
+        this.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start + offset, Math.min(segmentSize, this.length - offset));
+      }
+      
+      // The mapping remains valid once the channel is closed
+    }
+  }
+  
+  /**
+   * @return the position in the mapped region as a long, excluding any inserted data
+   */
+  public long getPosition() {
+    return this.position;
+  }
+  
+  public void setPosition(long position) {
+    if (position > this.length) {
+      throw new RuntimeException("Requested position is past the end of the buffer.");
+    }
+    this.inserted = null;
+    this.position = position;
+  }
+  
+  @Override
+  public byte get() {
+    if (null != this.inserted && this.inserted.hasRemaining()) {
+      return this.inserted.get();
+    }
+    
+    if (this.position >= this.length) {
+      throw new BufferUnderflowException();
+    }
+    
+    byte b = this.segments[(int) (this.position >>> this.segmentBits)].get((int) (this.position & this.segmentMask));
+    this.position++;
+    return b;
+  }
+  
+  @Override
+  public CustomBuffer get(byte[] dst) {
+    return get(dst, 0, dst.length);
+  }
+  
+  @Override
+  public CustomBuffer get(byte[] dst, int offset, int len) {
+    if (len > remaining()) {
+      throw new BufferUnderflowException();
+    }
+    
+    if (null != this.inserted && this.inserted.hasRemaining()) {
+      int n = Math.min(len, this.inserted.remaining());
+      this.inserted.get(dst, offset, n);
+      offset += n;
+      len -= n;
+    }
+    
+    while (len > 0) {
+      MappedByteBuffer segment = this.segments[(int) (this.position >>> this.segmentBits)];
+      int segoffset = (int) (this.position & this.segmentMask);
+      int n = Math.min(len, segment.limit() - segoffset);
+      segment.position(segoffset);
+      segment.get(dst, offset, n);
+      offset += n;
+      len -= n;
+      this.position += n;
+    }
+    
+    return this;
+  }
+  
+  @Override
+  public long getLong() {
+    if (null == this.inserted || !this.inserted.hasRemaining()) {
+      if (this.position + 8 > this.length) {
+        throw new BufferUnderflowException();
+      }
+      
+      MappedByteBuffer segment = this.segments[(int) (this.position >>> this.segmentBits)];
+      int segoffset = (int) (this.position & this.segmentMask);
+      
+      if (segoffset + 8 <= segment.limit()) {
+        this.position += 8;
+        return segment.getLong(segoffset);
+      }
+    }
+    
+    //
+    // The value spans two segments or the inserted data, read it byte per byte
+    //
+    
+    long value = 0L;
+    
+    if (ByteOrder.BIG_ENDIAN.equals(this.order)) {
+      for (int i = 0; i < 8; i++) {
+        value = (value << 8) | (get() & 0xFFL);
+      }
+    } else {
+      for (int i = 0; i < 8; i++) {
+        value |= (get() & 0xFFL) << (i << 3);
+      }
+    }
+    
+    return value;
+  }
+  
+  @Override
+  public double getDouble() {
+    return Double.longBitsToDouble(getLong());
+  }
+  
+  /**
+   * Insert data which will be read before the remaining mapped data.
+   * The inserted data is wrapped, not copied, unless previously inserted data
+   * has not been fully read.
+   */
+  @Override
+  public void insert(byte[] data, int offset, int len) {
+    if (null != this.inserted && this.inserted.hasRemaining()) {
+      ByteBuffer bb = ByteBuffer.allocate(len + this.inserted.remaining());
+      bb.put(data, offset, len);
+      bb.put(this.inserted);
+      bb.flip();
+      this.inserted = bb;
+    } else {
+      this.inserted = ByteBuffer.wrap(data, offset, len);
+    }
+    this.inserted.order(this.order);
+  }
+  
+  /**
+   * Return a view of the remaining data of the current segment (or of the inserted data
+   * if some remains). No data is copied.
+   */
+  @Override
+  public ByteBuffer asByteBuffer() {
+    if (null != this.inserted && this.inserted.hasRemaining()) {
+      return this.inserted;
+    }
+    
+    if (0 == this.segments.length) {
+      return ByteBuffer.allocate(0);
+    }
+    
+    int idx = (int) (this.position >>> this.segmentBits);
+    
+    if (idx >= this.segments.length) {
+      idx = this.segments.length - 1;
+    }
+    
+    ByteBuffer bb = this.segments[idx].duplicate();
+    bb.position((int) (this.position - (((long) idx) << this.segmentBits)));
+    bb.order(this.order);
+    return bb.slice().order(this.order);
+  }
+  
+  @Override
+  public boolean hasRemaining() {
+    return remaining() > 0;
+  }
+  
+  @Override
+  public long remaining() {
+    return (this.length - this.position) + (null != this.inserted ? this.inserted.remaining() : 0);
+  }
+  
+  @Override
+  public ByteOrder order() {
+    return this.order;
+  }
+  
+  @Override
+  public void order(ByteOrder order) {
+    if (this.order.equals(order)) {
+      return;
+    }
+    this.order = order;
+    for (MappedByteBuffer segment: this.segments) {
+      segment.order(order);
+    }
+    if (null != this.inserted) {
+      this.inserted.order(order);
+    }
+  }
+  
+  /**
+   * Only usable while the position fits in an int, use 'getPosition' for large files.
+   */
+  @Override
+  public int position() {
+    if (this.position > Integer.MAX_VALUE) {
+      throw new RuntimeException("Position does not fit in an int, use getPosition.");
+    }
+    return (int) this.position;
+  }
+  
+  @Override
+  public void position(int position) {
+    setPosition(position);
+  }
+}
@@ -0,0 +1,270 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import io.warp10.continuum.SortUtil;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+
+/**
+ * Order statistics over the values of a numeric GTS from which values can be removed.
+ *
+ * Values are ranked once, a Fenwick tree then tracks which ranks are still present so
+ * the k-th smallest value, the median and the median absolute deviation of the remaining
+ * values can be retrieved in O(log n) or O(log^2 n) after each removal.
+ *
+ * Values are ordered as by Arrays.sort, i.e. using Double.compare.
+ */
+public class OrderStatistics {
+
+  /**
+   * Values sorted in ascending order
+   */
+  private final double[] sorted;
+
+  /**
+   * Rank of each index
+   */
+  private final int[] ranks;
+
+  /**
+   * Index of each rank
+   */
+  private final int[] indices;
+
+  private final int[] tree;
+
+  private final int mask;
+
+  private int size;
+
+  /**
+   * @param gts Numeric GTS whose values should be ranked, its values are copied
+   */
+  public OrderStatistics(GeoTimeSerie gts) {
+    this.indices = GTSWindows.sortIndices(gts);
+    this.ranks = new int[gts.values];
+    this.sorted = new double[gts.values];
+
+    for (int i = 0; i < indices.length; i++) {
+      this.ranks[indices[i]] = i;
+      this.sorted[i] = TYPE.LONG == gts.type ? (double) gts.longValues[indices[i]] : gts.doubleValues[indices[i]];
+    }
+
+    //
+    // Build the tree with all ranks present in O(n)
+    //
+
+    this.tree = new int[gts.values + 1];
+
+    for (int i = 1; i < tree.length; i++) {
+      tree[i]++;
+      int parent = i + (i & (-i));
+      if (parent < tree.length) {
+        tree[parent] += tree[i];
+      }
+    }
+
+    this.mask = Integer.highestOneBit(Math.max(1, gts.values));
+    this.size = gts.values;
+  }
+
+  /**
+   * Number of values still present
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Remove the value at index idx of the GTS. It MUST not have been removed already.
+   */
+  public void remove(int idx) {
+    for (int i = ranks[idx] + 1; i < tree.length; i += i & (-i)) {
+      tree[i]--;
+    }
+    size--;
+  }
+
+  /**
+   * Return the value at index idx of the GTS
+   */
+  public double value(int idx) {
+    return sorted[ranks[idx]];
+  }
+
+  /**
+   * Return the k-th (0 based) smallest value still present
+   */
+  public double kth(int k) {
+    return sorted[kthRank(k)];
+  }
+
+  /**
+   * Return the median of the values still present, the mean of the two middle values if their number is even
+   */
+  public double median() {
+    if (0 == size % 2) {
+      return (kth(size / 2) + kth(size / 2 - 1)) / 2.0D;
+    } else {
+      return kth(size / 2);
+    }
+  }
+
+  /**
+   * Return the median of the absolute deviations of the values still present from 'median'
+   */
+  public double medianAbsoluteDeviation(double median) {
+    //
+    // Values below median yield descending deviations, values above it ascending ones,
+    // the k-th deviation is found by merging both sequences
+    //
+
+    int split = count(lowerBound(median));
+
+    if (0 == size % 2) {
+      return (kthDeviation(median, split, size / 2) + kthDeviation(median, split, size / 2 - 1)) / 2.0D;
+    } else {
+      return kthDeviation(median, split, size / 2);
+    }
+  }
+
+  /**
+   * Return the index of the value still present which is the farthest from 'center'.
+   * Ties are broken by returning the lowest index.
+   */
+  public int farthest(double center) {
+    int lowest = kthRank(0);
+    int highest = kthRank(size - 1);
+
+    // Lowest index among the values equal to the highest one
+    highest = kthRank(count(lowerBound(sorted[highest])));
+
+    double below = Math.abs(sorted[lowest] - center);
+    double above = Math.abs(sorted[highest] - center);
+
+    if (below > above) {
+      return indices[lowest];
+    } else if (above > below) {
+      return indices[highest];
+    } else {
+      return Math.min(indices[lowest], indices[highest]);
+    }
+  }
+
+  /**
+   * Return the k-th smallest absolute deviation from 'median', the 'split' smallest values
+   * still present being below the median
+   */
+  double kthDeviation(double median, int split, int k) {
+    int above = size - split;
+
+    //
+    // Find how many of the k + 1 smallest deviations come from the values below the median
+    //
+
+    int lo = Math.max(0, k + 1 - above);
+    int hi = Math.min(k + 1, split);
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (median - kth(split - 1 - mid) < kth(split + k - mid) - median) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+
+    double deviation = Double.NEGATIVE_INFINITY;
+
+    if (lo > 0) {
+      deviation = median - kth(split - lo);
+    }
+    if (k - lo >= 0 && k - lo < above) {
+      deviation = Math.max(deviation, kth(split + k - lo) - median);
+    }
+
+    return deviation;
+  }
+
+  /**
+   * Return the first rank whose value is not lower than 'value'
+   */
+  int lowerBound(double value) {
+    int lo = 0;
+    int hi = sorted.length;
+
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (Double.compare(sorted[mid], value) < 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+
+    return lo;
+  }
+
+  /**
+   * Return the number of values still present with a rank lower than 'rank'
+   */
+  int count(int rank) {
+    int count = 0;
+
+    for (int i = rank; i > 0; i -= i & (-i)) {
+      count += tree[i];
+    }
+
+    return count;
+  }
+
+  /**
+   * Return the rank of the k-th (0 based) smallest value still present
+   */
+  int kthRank(int k) {
+    int pos = 0;
+    int remaining = k + 1;
+
+    for (int step = mask; step > 0; step >>>= 1) {
+      int next = pos + step;
+      if (next < tree.length && tree[next] < remaining) {
+        pos = next;
+        remaining -= tree[next];
+      }
+    }
+
+    return pos;
+  }
+
+  /**
+   * Return the median of values[0,n[, the mean of the two middle values if n is even.
+   * The array is partially reordered.
+   */
+  public static double median(double[] values, int n) {
+    double median = SortUtil.select(values, 0, n, n / 2);
+
+    if (0 == n % 2) {
+      //
+      // select left the n/2 smallest values in values[0,n/2[, the largest of them is the other middle value
+      //
+
+      median = (median + SortUtil.max(values, 0, n / 2)) / 2.0D;
+    }
+
+    return median;
+  }
+}
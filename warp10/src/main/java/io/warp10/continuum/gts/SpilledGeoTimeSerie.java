@@ -0,0 +1,80 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package io.warp10.continuum.gts;
+
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+import io.warp10.continuum.store.thrift.data.Metadata;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Geo Time Serie whose datapoints were spilled to a GTSSpillFile in their
+ * encoded form. The datapoints are only decoded when 'decode' is called, so
+ * functions handling those series one at a time only need enough heap for
+ * a single decoded series.
+ */
+public class SpilledGeoTimeSerie extends LazyGeoTimeSerie {
+  
+  private final GTSSpillFile file;
+  
+  /**
+   * Offsets and lengths of the encoded segments in 'file'
+   */
+  private long[] offsets = new long[4];
+  private long[] lengths = new long[4];
+  private int segments = 0;
+  
+  public SpilledGeoTimeSerie(GTSSpillFile file, Metadata metadata, TYPE type) {
+    super(metadata, type);
+    this.file = file;
+  }
+  
+  @Override
+  protected void store(GTSEncoder encoder) throws IOException {
+    if (segments == offsets.length) {
+      offsets = Arrays.copyOf(offsets, segments * 2);
+      lengths = Arrays.copyOf(lengths, segments * 2);
+    }
+    
+    lengths[segments] = encoder.size();
+    offsets[segments] = file.append(encoder);
+    segments++;
+  }
+  
+  @Override
+  protected int chunks() {
+    return this.segments;
+  }
+  
+  @Override
+  protected GTSDecoder decoder(int chunk) throws IOException {
+    file.flush();
+    return new CustomBufferBasedGTSDecoder(0L, new MappedFileCustomBuffer(file.getPath(), offsets[chunk], lengths[chunk]));
+  }
+  
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(GTSHelper.buildSelector(getMetadata()));
+    sb.append(" <spilled ");
+    sb.append(size());
+    sb.append(" datapoints>");
+    return sb.toString();
+  }
+}
@@ -18,6 +18,7 @@ package io.warp10.continuum.ingress;
 
 import io.warp10.continuum.Configuration;
 import io.warp10.continuum.JettyUtil;
+import io.warp10.continuum.KafkaProducerPipeline;
 import io.warp10.continuum.KafkaProducerPool;
 import io.warp10.continuum.KafkaSynchronizedConsumerPool;
 import io.warp10.continuum.MetadataUtils;
@@ -30,10 +31,12 @@ import io.warp10.continuum.egress.EgressFetchHandler;
 import io.warp10.continuum.egress.ThriftDirectoryClient;
 import io.warp10.continuum.gts.GTSEncoder;
 import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GTSWrapperHelper;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.Constants;
 import io.warp10.continuum.store.DirectoryClient;
 import io.warp10.continuum.store.MetadataIterator;
+import io.warp10.continuum.store.thrift.data.GTSWrapper;
 import io.warp10.continuum.store.thrift.data.KafkaDataMessage;
 import io.warp10.continuum.store.thrift.data.KafkaDataMessageType;
 import io.warp10.continuum.store.thrift.data.Metadata;
@@ -44,6 +47,7 @@ import io.warp10.quasar.token.thrift.data.WriteToken;
 import io.warp10.script.WarpScriptException;
 import io.warp10.sensision.Sensision;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -86,6 +90,7 @@ import org.apache.hadoop.util.ShutdownHookManager;
 import org.apache.thrift.TException;
 import org.apache.thrift.TSerializer;
 import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocol;
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
@@ -150,6 +155,11 @@ public class Ingress extends AbstractHandler implements Runnable {
 
   final long maxValueSize;
 
+  /**
+   * Maximum size of the strings and binaries of the GTSWrapper pushed to the update endpoint
+   */
+  private final long maxWrapperSize;
+
   private final String cacheDumpPath;
   
   private DateTimeFormatter fmt = ISODateTimeFormat.dateTimeParser();
@@ -219,6 +229,35 @@ public class Ingress extends AbstractHandler implements Runnable {
    */
   private final KafkaProducerPool metaProducerPool;
   
+  /**
+   * Pipelined producers for the 'data' and 'metadata' topics, null if request threads send to Kafka themselves
+   */
+  private final KafkaProducerPipeline dataPipeline;
+  private final KafkaProducerPipeline metaPipeline;
+  
+  /**
+   * Maximum time to wait for pipelined messages to be acknowledged
+   */
+  private final long pipelineTimeout;
+  
+  /**
+   * Acknowledgements of the messages pipelined by the request currently handled
+   * by each Thread. A fresh Ack is installed at the start of each request (see resetAcks)
+   * so messages left pending by a timed out or interrupted request cannot leak into
+   * the next one.
+   */
+  private final ThreadLocal<KafkaProducerPipeline.Ack> dataAcks = new ThreadLocal<KafkaProducerPipeline.Ack>() {
+    protected KafkaProducerPipeline.Ack initialValue() {
+      return new KafkaProducerPipeline.Ack();
+    };
+  };
+  
+  private final ThreadLocal<KafkaProducerPipeline.Ack> metadataAcks = new ThreadLocal<KafkaProducerPipeline.Ack>() {
+    protected KafkaProducerPipeline.Ack initialValue() {
+      return new KafkaProducerPipeline.Ack();
+    };
+  };
+  
   /**
    * Number of classId/labelsId to remember (to avoid pushing their metadata to Kafka)
    * Memory footprint is that of a BigInteger whose byte representation is 16 bytes, so probably
@@ -298,6 +337,7 @@ public class Ingress extends AbstractHandler implements Runnable {
     this.DATA_MESSAGES_THRESHOLD = Long.parseLong(props.getProperty(Configuration.INGRESS_KAFKA_DATA_MAXSIZE));
     this.METADATA_MESSAGES_THRESHOLD = Long.parseLong(props.getProperty(Configuration.INGRESS_KAFKA_METADATA_MAXSIZE));
     this.maxValueSize = Long.parseLong(props.getProperty(Configuration.INGRESS_VALUE_MAXSIZE));
+    this.maxWrapperSize = Long.parseLong(props.getProperty(Configuration.INGRESS_WRAPPER_MAXSIZE, Long.toString(GTSWrapperHelper.DEFAULT_WRAPPER_MAXSIZE)));
     
     extractKeys(this.keystore, props);
     
@@ -369,6 +409,47 @@ public class Ingress extends AbstractHandler implements Runnable {
     
     this.dataProducersCurrentPoolSize = this.dataProducers.length;
     
+    //
+    // Create the pipelined producers if configured. The sender threads borrow
+    // producers from the pools so the pool sizes bound the number of concurrent sends.
+    //
+    
+    int lanes = Integer.parseInt(props.getProperty(Configuration.INGRESS_KAFKA_PIPELINE_LANES, "0"));
+    
+    if (lanes > 0) {
+      int queuesize = Integer.parseInt(props.getProperty(Configuration.INGRESS_KAFKA_PIPELINE_QUEUESIZE, "10000"));
+      
+      this.pipelineTimeout = Long.parseLong(props.getProperty(Configuration.INGRESS_KAFKA_PIPELINE_TIMEOUT, "0"));
+      
+      this.dataPipeline = new KafkaProducerPipeline("Ingress Data", new KafkaProducerPipeline.Sender() {
+        @Override
+        public void send(List<KeyedMessage<byte[], byte[]>> messages) throws Exception {
+          Producer<byte[],byte[]> producer = getDataProducer();
+          try {
+            producer.send(messages);
+          } finally {
+            recycleDataProducer(producer);
+          }
+        }
+      }, lanes, queuesize, DATA_MESSAGES_THRESHOLD, SensisionConstants.SENSISION_CLASS_CONTINUUM_INGRESS_KAFKA_DATA_SEND);
+      
+      this.metaPipeline = new KafkaProducerPipeline("Ingress Metadata", new KafkaProducerPipeline.Sender() {
+        @Override
+        public void send(List<KeyedMessage<byte[], byte[]>> messages) throws Exception {
+          Producer<byte[],byte[]> producer = metaProducerPool.getProducer();
+          try {
+            producer.send(messages);
+          } finally {
+            metaProducerPool.recycleProducer(producer);
+          }
+        }
+      }, lanes, queuesize, METADATA_MESSAGES_THRESHOLD, SensisionConstants.SENSISION_CLASS_CONTINUUM_INGRESS_KAFKA_META_SEND);
+    } else {
+      this.pipelineTimeout = 0L;
+      this.dataPipeline = null;
+      this.metaPipeline = null;
+    }
+    
     //
     // Producer for the Delete topic
     //
@@ -513,6 +594,9 @@ public class Ingress extends AbstractHandler implements Runnable {
   
   @Override
   public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+    
+    resetAcks();
+    
     if (target.equals(Constants.API_ENDPOINT_UPDATE)) {
       baseRequest.setHandled(true);
       Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_INGRESS_UPDATE_REQUESTS, Sensision.EMPTY_LABELS, 1);
@@ -584,6 +668,16 @@ public class Ingress extends AbstractHandler implements Runnable {
         sensisionLabels.put(SensisionConstants.SENSISION_LABEL_APPLICATION, application);
       }
 
+      //
+      // Pre-encoded GTSWrapper stream, the wrapped encoders are checked and pushed without being parsed
+      //
+      
+      if (Constants.GTS_WRAPPER_CONTENT_TYPE.equals(request.getHeader("Content-Type"))) {
+        count = ingestWrappers(new BufferedInputStream(request.getInputStream()), extraLabels, producer, owner, application);
+        response.setStatus(HttpServletResponse.SC_OK);
+        return;
+      }
+      
       //
       // Determine if content is gzipped
       //
@@ -785,6 +879,67 @@ public class Ingress extends AbstractHandler implements Runnable {
     response.setStatus(HttpServletResponse.SC_OK);
   }
   
+  /**
+   * Push the content of a stream of serialized GTSWrapper onto Kafka
+   * 
+   * @return The number of ingested datapoints
+   */
+  private long ingestWrappers(BufferedInputStream in, Map<String,String> extraLabels, String producer, String owner, String application) throws IOException, WarpException {
+    TProtocol protocol = GTSWrapperHelper.getWrapperProtocol(in, this.maxWrapperSize);
+    
+    byte[] bytes = new byte[16];
+    
+    long count = 0L;
+    
+    while(true) {
+      GTSWrapper wrapper = GTSWrapperHelper.readWrapper(in, protocol);
+      
+      if (null == wrapper) {
+        break;
+      }
+      
+      // Leave room for the key and the KafkaDataMessage envelope
+      List<GTSEncoder> encoders = GTSWrapperHelper.fromGTSWrapperToGTSEncoders(wrapper, extraLabels, maxValueSize, DATA_MESSAGES_THRESHOLD - 64);
+      
+      for (GTSEncoder encoder: encoders) {
+        encoder.setClassId(GTSHelper.classId(this.classKey, encoder.getMetadata().getName()));
+        encoder.setLabelsId(GTSHelper.labelsId(this.labelsKey, encoder.getMetadata().getLabels()));
+
+        ThrottlingManager.checkMADS(encoder.getMetadata(), producer, owner, application, encoder.getClassId(), encoder.getLabelsId());
+        ThrottlingManager.checkDDP(encoder.getMetadata(), producer, owner, application, (int) encoder.getCount());
+
+        GTSHelper.fillGTSIds(bytes, 0, encoder.getClassId(), encoder.getLabelsId());
+
+        BigInteger metadataCacheKey = new BigInteger(bytes);
+
+        if (!this.metadataCache.containsKey(metadataCacheKey)) {
+          Metadata metadata = new Metadata();
+          metadata.setSource(Configuration.INGRESS_METADATA_SOURCE);
+          metadata.setName(encoder.getMetadata().getName());
+          metadata.setLabels(encoder.getMetadata().getLabels());
+          TSerializer serializer = new TSerializer(new TCompactProtocol.Factory());
+          try {
+            pushMetadataMessage(bytes, serializer.serialize(metadata));
+          } catch (TException te) {
+            throw new IOException("Unable to push metadata.");
+          }
+          
+          synchronized(metadataCache) {
+            this.metadataCache.put(metadataCacheKey, null);
+          }
+        }
+        
+        pushDataMessage(encoder);
+        
+        count += encoder.getCount();
+      }
+    }
+    
+    in.close();
+    
+    return count;
+  }
+  
   /**
    * Handle Metadata updating
    */
@@ -1144,6 +1299,18 @@ public class Ingress extends AbstractHandler implements Runnable {
     response.setStatus(HttpServletResponse.SC_OK);
   }
   
+  /**
+   * Install new pipeline acknowledgements for the request about to be handled by the current Thread
+   */
+  private void resetAcks() {
+    if (null != this.dataPipeline) {
+      this.dataAcks.set(new KafkaProducerPipeline.Ack());
+    }
+    if (null != this.metaPipeline) {
+      this.metadataAcks.set(new KafkaProducerPipeline.Ack());
+    }
+  }
+  
   /**
    * Extract Ingress related keys and populate the KeyStore with them.
    * 
@@ -1259,9 +1426,38 @@ public class Ingress extends AbstractHandler implements Runnable {
       msglist.add(message);
       mms.addAndGet(key.length + value.length);
       
+      if (null != this.metaPipeline) {
+        this.metaPipeline.submit(message, this.metadataAcks.get());
+      }
+      
       Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_INGRESS_KAFKA_META_MESSAGES, Sensision.EMPTY_LABELS, 1);
     }
     
+    if (null != this.metaPipeline) {
+      //
+      // When pipelining, 'msglist' only tracks the messages in flight so their
+      // ids can be removed from the cache if they fail to be sent
+      //
+      
+      if (msglist.size() > 0 && (null == key || null == value)) {
+        try {
+          this.metadataAcks.get().await(this.pipelineTimeout);
+        } catch (IOException ioe) {
+          for (KeyedMessage<byte[],byte[]> msg: msglist) {
+            synchronized(this.metadataCache) {
+              this.metadataCache.remove(new BigInteger(msg.key()));
+            }          
+          }
+          throw ioe;
+        } finally {
+          msglist.clear();
+          mms.set(0L);
+        }
+        Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_INGRESS_METADATA_CACHED, Sensision.EMPTY_LABELS, this.metadataCache.size());
+      }
+      return;
+    }
+    
     if (msglist.size() > 0 && (null == key || null == value || mms.get() > METADATA_MESSAGES_THRESHOLD)) {
       Producer<byte[],byte[]> producer = this.metaProducerPool.getProducer();
       try {
@@ -1356,11 +1552,24 @@ public class Ingress extends AbstractHandler implements Runnable {
         
       //KeyedMessage<byte[], byte[]> message = new KeyedMessage<byte[], byte[]>(this.dataTopic, bb.array(), msgbytes);
       KeyedMessage<byte[], byte[]> message = new KeyedMessage<byte[], byte[]>(this.dataTopic, bytes, msgbytes);
+      
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_INGRESS_KAFKA_DATA_MESSAGES, Sensision.EMPTY_LABELS, 1);
+
+      if (null != this.dataPipeline) {
+        this.dataPipeline.submit(message, this.dataAcks.get());
+        return;
+      }
+      
       msglist.add(message);
       //this.dataMessagesSize.get().addAndGet(bb.array().length + msgbytes.length);      
       dms.addAndGet(bytes.length + msgbytes.length);      
+    } else if (null != this.dataPipeline) {
+      //
+      // Wait for the messages submitted by this thread to be acknowledged
+      //
       
-      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_INGRESS_KAFKA_DATA_MESSAGES, Sensision.EMPTY_LABELS, 1);
+      this.dataAcks.get().await(this.pipelineTimeout);
+      return;
     }
 
     if (msglist.size() > 0 && (null == msg || dms.get() > DATA_MESSAGES_THRESHOLD)) {
@@ -75,6 +75,11 @@ public class SensisionConstants {
    */
   public static final String SENSISION_CLASS_CONTINUUM_DIRECTORY_CLIENT_CACHE_CHANGED = "warp.directory.client.cache.changed";
   
+  /**
+   * Number of distinct label names and values held by the dictionary of compact labels
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_DIRECTORY_LABELS_DICTIONARY = "warp.directory.labels.dictionary";
+  
   /**
    * Free memory for directory
    */
@@ -324,6 +329,16 @@ public class SensisionConstants {
    * Time spent in microsesonds in standalone 'delete'
    */
   public static final String SENSISION_CLASS_CONTINUUM_STANDALONE_DELETE_TIME_US = "warp.standalone.delete.time.us";
+
+  /**
+   * Number of range tombstones whose datapoints are yet to be purged by the 'standalone' backend
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_STANDALONE_DELETE_TOMBSTONES = "warp.standalone.delete.tombstones";
+
+  /**
+   * Number of datapoints physically removed by the 'standalone' purger
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_STANDALONE_DELETE_PURGED = "warp.standalone.delete.purged";
       
   /**
    * Number of microseconds spent in 'update' in the standalone version of Continuum
@@ -735,6 +750,81 @@ public class SensisionConstants {
    */
   public static final String SENSISION_CLASS_EINSTEIN_RUN_FAILURES = "warp.script.run.failures";
 
+  /**
+   * Number of JSR 223 script engines created, per function
+   */
+  public static final String SENSISION_CLASS_EINSTEIN_SCRIPTENGINE_CREATED = "warp.script.scriptengine.created";
+
+  /**
+   * Number of times a JSR 223 script engine was reused within an execution, per function
+   */
+  public static final String SENSISION_CLASS_EINSTEIN_SCRIPTENGINE_REUSED = "warp.script.scriptengine.reused";
+
+  /**
+   * Number of JSR 223 script engines discarded after an error or because another one was already kept for the execution, per function
+   */
+  public static final String SENSISION_CLASS_EINSTEIN_SCRIPTENGINE_DISCARDED = "warp.script.scriptengine.discarded";
+
+  /**
+   * Number of scripts compiled by JSR 223 script engines, per function
+   */
+  public static final String SENSISION_CLASS_EINSTEIN_SCRIPTENGINE_COMPILATIONS = "warp.script.scriptengine.compilations";
+
+  /**
+   * Number of times an already compiled script was found in the cache of a JSR 223 script engine, per function
+   */
+  public static final String SENSISION_CLASS_EINSTEIN_SCRIPTENGINE_CACHEHITS = "warp.script.scriptengine.cachehits";
+
+  /**
+   * Number of /exec requests served from the result cache
+   */
+  public static final String SENSISION_CLASS_EINSTEIN_RESULTCACHE_HITS = "warp.script.resultcache.hits";
+
+  /**
+   * Number of /exec requests which were not served from the result cache
+   */
+  public static final String SENSISION_CLASS_EINSTEIN_RESULTCACHE_MISSES = "warp.script.resultcache.misses";
+
+  /**
+   * Number of /exec requests which waited for an identical request being executed
+   */
+  public static final String SENSISION_CLASS_EINSTEIN_RESULTCACHE_COALESCED = "warp.script.resultcache.coalesced";
+
+  /**
+   * Number of /exec requests which gave up waiting for an identical request being executed
+   */
+  public static final String SENSISION_CLASS_EINSTEIN_RESULTCACHE_TIMEOUTS = "warp.script.resultcache.timeouts";
+
+  /**
+   * Number of results evicted from the result cache to make room for new ones
+   */
+  public static final String SENSISION_CLASS_EINSTEIN_RESULTCACHE_EVICTIONS = "warp.script.resultcache.evictions";
+
+  /**
+   * Number of results currently in the result cache
+   */
+  public static final String SENSISION_CLASS_EINSTEIN_RESULTCACHE_ENTRIES = "warp.script.resultcache.entries";
+
+  /**
+   * Size in bytes of the results currently in the result cache
+   */
+  public static final String SENSISION_CLASS_EINSTEIN_RESULTCACHE_BYTES = "warp.script.resultcache.bytes";
+
+  /**
+   * Number of calls of a function recorded by the WarpScript profiler
+   */
+  public static final String SENSISION_CLASS_EINSTEIN_PROFILE_CALLS = "warp.script.profile.calls";
+
+  /**
+   * Total time in microseconds spent in a function recorded by the WarpScript profiler, including nested calls
+   */
+  public static final String SENSISION_CLASS_EINSTEIN_PROFILE_TIME_US = "warp.script.profile.time.us";
+
+  /**
+   * Total number of bytes allocated by a function recorded by the WarpScript profiler, including nested calls
+   */
+  public static final String SENSISION_CLASS_EINSTEIN_PROFILE_ALLOCATED = "warp.script.profile.allocated";
+
   /**
    * Number of points currently stored in the memory store
    */
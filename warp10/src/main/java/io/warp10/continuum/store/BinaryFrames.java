@@ -0,0 +1,103 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package io.warp10.continuum.store;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Length prefixed binary frames exchanged by the splits and sfetch endpoints and
+ * Warp10InputFormat when the binary format is used (see Constants.BINARY_FRAMES_FORMAT).
+ * 
+ * A field is a 32 bits big endian length followed by that many bytes, a record is
+ * a fixed number of fields:
+ * 
+ * splits endpoint: <fetcher><region><split>
+ * sfetch endpoint: <key><mac><GTSWrapper>
+ * 
+ * The last record of a response is followed by a length of END so truncated
+ * responses can be detected.
+ */
+public class BinaryFrames {
+  
+  public static final int END = -1;
+  
+  public static void write(DataOutput out, byte[] data) throws IOException {
+    write(out, data, 0, data.length);
+  }
+  
+  public static void write(DataOutput out, byte[] data, int offset, int len) throws IOException {
+    out.writeInt(len);
+    out.write(data, offset, len);
+  }
+  
+  public static void writeEnd(DataOutput out) throws IOException {
+    out.writeInt(END);
+  }
+  
+  public static void writeSplit(DataOutput out, byte[] fetcher, byte[] region, byte[] split) throws IOException {
+    write(out, fetcher);
+    write(out, region);
+    write(out, split);
+  }
+  
+  /**
+   * @param mac MAC of the wrapper, an empty array if the wrapper is not signed
+   */
+  public static void writeWrapper(DataOutput out, byte[] key, byte[] mac, byte[] wrapper) throws IOException {
+    write(out, key);
+    write(out, mac);
+    write(out, wrapper);
+  }
+  
+  /**
+   * Read the length of the next field
+   * 
+   * @return the length or END
+   * @throws java.io.EOFException if the input ends before the length
+   */
+  public static int readLength(DataInput in) throws IOException {
+    int len = in.readInt();
+    
+    if (len < END) {
+      throw new IOException("Invalid frame length " + len);
+    }
+    
+    return len;
+  }
+  
+  /**
+   * Read a field of 'len' bytes into 'buf', or into a larger buffer which is then returned
+   * 
+   * @throws java.io.EOFException if the input ends before 'len' bytes were read
+   */
+  public static byte[] read(DataInput in, int len, byte[] buf) throws IOException {
+    if (len < 0) {
+      throw new IOException("Invalid frame length " + len);
+    }
+    
+    if (len > buf.length) {
+      buf = new byte[Math.max(len, buf.length << 1)];
+    }
+    
+    in.readFully(buf, 0, len);
+    
+    return buf;
+  }
+}
@@ -79,6 +79,11 @@ public class Constants {
    */
   public static final String UUID_ATTRIBUTE = ".uuid";
   
+  /**
+   * Name of the attribute holding the retention (in time units) of a GTS in the in-memory store
+   */
+  public static final String TTL_ATTRIBUTE = ".ttl";
+  
   /**
    * Name of the 'application' label
    */
@@ -171,6 +176,17 @@ public class Constants {
    */
   public static final String API_ENDPOINT_UPDATE = "/api/v0/update";
   
+  /**
+   * Content-Type of update requests whose body is a stream of serialized (TCompactProtocol) GTSWrapper
+   */
+  public static final String GTS_WRAPPER_CONTENT_TYPE = "application/x-gts-wrapper";
+  
+  /**
+   * Value of the 'format' parameter of the splits and sfetch endpoints selecting length prefixed binary frames
+   * instead of lines of base64 encoded content
+   */
+  public static final String BINARY_FRAMES_FORMAT = "binary";
+  
   /**
    * Find endpoint for the API
    */
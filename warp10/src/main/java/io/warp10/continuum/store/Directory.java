@@ -568,12 +568,6 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
                   metadata.setAttributes(new HashMap<String,String>());
                 }
                 
-                //
-                // Internalize Strings
-                //
-                
-                GTSHelper.internalizeStrings(metadata);
-                
                 //
                 // Let the DirectoryPlugin handle the Metadata
                 //
@@ -602,6 +596,12 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
                   continue;
                 }
                 
+                //
+                // Store labels and attributes in their compact form
+                //
+                
+                GTSHelper.compactLabels(metadata);
+                
                 synchronized(metadatas) {
                   if (!metadatas.containsKey(metadata.getName())) {
                     //metadatas.put(metadata.getName(), new ConcurrentHashMap<Long, Metadata>());
@@ -1502,10 +1502,10 @@ public class Directory extends AbstractHandler implements DirectoryService.Iface
               }
 
               //
-              // Internalize Strings
+              // Store labels and attributes in their compact form
               //
               
-              GTSHelper.internalizeStrings(metadata);
+              GTSHelper.compactLabels(metadata);
 
               //
               // Store it in the cache (we dot that in the synchronized section)
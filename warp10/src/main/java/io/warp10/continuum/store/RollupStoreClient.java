@@ -0,0 +1,39 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.store;
+
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.quasar.token.thrift.data.ReadToken;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Store clients able to serve bucketized data from pre-aggregated rollups
+ */
+public interface RollupStoreClient {
+  /**
+   * @return true if buckets of 'bucketspan' whose end timestamps are multiples of 'bucketspan' and aggregated with 'aggregator' can be served from rollups
+   */
+  public boolean hasRollup(long bucketspan, String aggregator);
+  
+  /**
+   * Retrieve the buckets of 'bucketspan' ending in ]lastbucket - bucketcount * bucketspan, lastbucket], the datapoints
+   * of the returned decoders are at the end timestamps of the buckets.
+   */
+  public GTSDecoderIterator fetchRollup(ReadToken token, List<Metadata> metadatas, long lastbucket, int bucketcount, long bucketspan, String aggregator) throws IOException;
+}
@@ -96,6 +96,16 @@ public class Store extends Thread {
    * Prefix for 'archived' data
    */
   public static final byte[] HBASE_ARCHIVE_DATA_KEY_PREFIX = "A".getBytes(Charsets.UTF_8);
+
+  /**
+   * Prefix for 'rollup' (pre-aggregated buckets) data, only maintained by the standalone backend
+   */
+  public static final byte[] HBASE_ROLLUP_DATA_KEY_PREFIX = "U".getBytes(Charsets.UTF_8);
+
+  /**
+   * Prefix for range tombstones of deleted data not yet purged, only used by the standalone backend
+   */
+  public static final byte[] HBASE_TOMBSTONE_KEY_PREFIX = "T".getBytes(Charsets.UTF_8);
   
 
   /**
@@ -1,8 +1,14 @@
 package io.warp10.hadoop;
 
+import io.warp10.continuum.store.BinaryFrames;
 import io.warp10.continuum.store.Constants;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -18,6 +24,7 @@ import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -33,6 +40,7 @@ import org.apache.hadoop.mapred.Reporter;
 
 import com.fasterxml.sort.SortConfig;
 import com.fasterxml.sort.std.TextFileSorter;
+import com.google.common.base.Charsets;
 
 public class Warp10InputFormat implements InputFormat<Text, BytesWritable> {
   
@@ -74,6 +82,12 @@ public class Warp10InputFormat implements InputFormat<Text, BytesWritable> {
    */
   public static final String PROPERTY_WARP10_SPLITS_TOKEN = "warp10.splits.token";
   
+  /**
+   * Set to true to retrieve splits and data as length prefixed binary frames instead of base64 encoded lines,
+   * requires splits and fetch endpoints supporting the 'binary' format
+   */
+  public static final String PROPERTY_WARP10_BINARY = "warp10.binary";
+  
   @Override
   public InputSplit[] getSplits(JobConf job, int numSplits) throws IOException {
     
@@ -101,12 +115,29 @@ public class Warp10InputFormat implements InputFormat<Text, BytesWritable> {
     sb.append("=");
     sb.append(job.get(PROPERTY_WARP10_SPLITS_TOKEN));
     
+    boolean binary = job.getBoolean(PROPERTY_WARP10_BINARY, false);
+    
+    if (binary) {
+      sb.append("&");
+      sb.append(Constants.HTTP_PARAM_FORMAT);
+      sb.append("=");
+      sb.append(Constants.BINARY_FRAMES_FORMAT);
+    }
+    
     URL url = new URL(sb.toString());
     
     HttpURLConnection conn = (HttpURLConnection) url.openConnection();
     
     conn.setDoInput(true);
     
+    if (binary) {
+      try {
+        return getBinarySplits(conn, fallbacks, numSplits);
+      } finally {
+        conn.disconnect();
+      }
+    }
+    
     InputStream in = conn.getInputStream();
     
     File tmpfile = File.createTempFile("Warp10InputFormat-", "-in");
@@ -299,6 +330,114 @@ public class Warp10InputFormat implements InputFormat<Text, BytesWritable> {
 //    return null;
   }
   
+  /**
+   * Generate splits from the binary frames returned by the splits endpoint.
+   * 
+   * The frames are spooled to disk to count them, the splits of each fetcher are then
+   * combined as they are read back so no sort is needed.
+   */
+  private static InputSplit[] getBinarySplits(HttpURLConnection conn, List<String> fallbacks, int numSplits) throws IOException {
+    
+    File tmpfile = File.createTempFile("Warp10InputFormat-", "-in");
+    tmpfile.deleteOnExit();
+    
+    int count = 0;
+    
+    byte[] buf = new byte[1024];
+    
+    DataInputStream in = new DataInputStream(new BufferedInputStream(conn.getInputStream()));
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpfile)));
+    
+    try {
+      while(true) {
+        //
+        // Frames are <len><fetcher><len><region><len><split>, the region is not retained
+        //
+        
+        int len = BinaryFrames.readLength(in);
+        
+        if (BinaryFrames.END == len) {
+          break;
+        }
+        
+        buf = BinaryFrames.read(in, len, buf);
+        BinaryFrames.write(out, buf, 0, len);
+        
+        buf = BinaryFrames.read(in, BinaryFrames.readLength(in), buf);
+        
+        len = BinaryFrames.readLength(in);
+        buf = BinaryFrames.read(in, len, buf);
+        BinaryFrames.write(out, buf, 0, len);
+        
+        count++;
+      }
+    } catch (EOFException eofe) {
+      throw new IOException("Truncated splits.", eofe);
+    } finally {
+      in.close();
+      out.close();
+    }
+    
+    // Compute the average number of splits per combined split
+    int avgsplitcount = (int) Math.ceil((double) count / numSplits);
+
+    List<Warp10InputSplit> splits = new ArrayList<Warp10InputSplit>();
+    
+    //
+    // Splits being filled and their number of entries, per fetcher
+    //
+    
+    Map<String,Warp10InputSplit> current = new LinkedHashMap<String,Warp10InputSplit>();
+    Map<String,AtomicInteger> subsplits = new HashMap<String,AtomicInteger>();
+    
+    in = new DataInputStream(new BufferedInputStream(new FileInputStream(tmpfile)));
+    
+    try {
+      for (int i = 0; i < count; i++) {
+        int len = BinaryFrames.readLength(in);
+        buf = BinaryFrames.read(in, len, buf);
+        String fetcher = new String(buf, 0, len, Charsets.US_ASCII);
+        
+        len = BinaryFrames.readLength(in);
+        byte[] entry = BinaryFrames.read(in, len, new byte[len]);
+        
+        Warp10InputSplit split = current.get(fetcher);
+        
+        if (null == split) {
+          split = new Warp10InputSplit();
+          current.put(fetcher, split);
+          subsplits.put(fetcher, new AtomicInteger(0));
+        }
+        
+        split.addEntry(fetcher, entry);
+        
+        // Flush the split once it has reached the maximum split size
+        if (avgsplitcount == subsplits.get(fetcher).incrementAndGet()) {
+          splits.add(complete(split, fallbacks));
+          current.remove(fetcher);
+        }
+      }
+    } finally {
+      in.close();
+      tmpfile.delete();
+    }
+    
+    for (Warp10InputSplit split: current.values()) {
+      splits.add(complete(split, fallbacks));
+    }
+    
+    return splits.toArray(new Warp10InputSplit[0]);
+  }
+  
+  private static Warp10InputSplit complete(Warp10InputSplit split, List<String> fallbacks) throws IOException {
+    // Add fallback fetchers, shuffle them first
+    Collections.shuffle(fallbacks);
+    for (String fallback: fallbacks) {
+      split.addFetcher(fallback);
+    }
+    return split.build();
+  }
+  
   @Override
   public RecordReader<Text, BytesWritable> getRecordReader(InputSplit split, JobConf job, Reporter reporter) throws IOException {
     if (!(split instanceof Warp10InputSplit)) {
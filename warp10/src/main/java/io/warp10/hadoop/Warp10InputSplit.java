@@ -1,10 +1,12 @@
 package io.warp10.hadoop;
 
+import io.warp10.continuum.store.BinaryFrames;
+
 import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.LinkedHashSet;
 import java.util.Set;
@@ -20,7 +22,8 @@ public class Warp10InputSplit implements InputSplit {
   private String[] fetchers;
   
   /**
-   * Byte array containing gzipped GTSSplits content
+   * Byte array containing gzipped GTSSplits content, either as lines of base64 encoded
+   * splits or as <split> frames (see BinaryFrames)
    */
   private byte[] splits;
   
@@ -28,7 +31,7 @@ public class Warp10InputSplit implements InputSplit {
   
   private Set<String> fetcherSet = new LinkedHashSet<String>();
   private ByteArrayOutputStream baos = null;
-  private OutputStream out = null;
+  private DataOutputStream out = null;
   
   public Warp10InputSplit() {}    
   
@@ -41,7 +44,7 @@ public class Warp10InputSplit implements InputSplit {
   
     if (null == out) {
       baos = new ByteArrayOutputStream();
-      out = new GZIPOutputStream(baos);
+      out = new DataOutputStream(new GZIPOutputStream(baos));
     }
     
     out.write(entry.getBytes("US-ASCII"));
@@ -49,6 +52,25 @@ public class Warp10InputSplit implements InputSplit {
     out.write('\n');
   }
   
+  /**
+   * Add a raw split, the entries of a split must either all be added
+   * as base64 strings or all as raw bytes.
+   */
+  public void addEntry(String fetcher, byte[] entry) throws IOException {
+    if (this.complete) {
+      throw new RuntimeException("InputSplit already completed.");
+    }
+    
+    this.fetcherSet.add(fetcher);
+  
+    if (null == out) {
+      baos = new ByteArrayOutputStream();
+      out = new DataOutputStream(new GZIPOutputStream(baos));
+    }
+    
+    BinaryFrames.write(out, entry);
+  }
+  
   public void addFetcher(String fetcher) {
     if (this.complete) {
       throw new RuntimeException("InputSplit already completed.");
@@ -124,7 +146,7 @@ public class Warp10InputSplit implements InputSplit {
     out.writeInt(this.fetchers.length);
     
     for (int i = 0; i < this.fetchers.length; i++) {
-      out.writeInt(this.fetchers.length);
+      out.writeInt(this.fetchers[i].length());
       out.writeBytes(this.fetchers[i]);
     }
     
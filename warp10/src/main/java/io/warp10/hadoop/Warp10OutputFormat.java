@@ -0,0 +1,43 @@
+package io.warp10.hadoop;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputFormat;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.util.Progressable;
+
+/**
+ * OutputFormat pushing serialized (TCompactProtocol) GTSWrapper to the update endpoint,
+ * such as those read by Warp10InputFormat. Keys are ignored.
+ */
+public class Warp10OutputFormat implements OutputFormat<Writable, BytesWritable> {
+
+  /**
+   * URL of the update endpoint
+   */
+  public static final String PROPERTY_WARP10_UPDATE_ENDPOINT = "warp10.update.endpoint";
+  
+  /**
+   * Write token to use for pushing data
+   */
+  public static final String PROPERTY_WARP10_UPDATE_TOKEN = "warp10.update.token";
+  
+  @Override
+  public RecordWriter<Writable, BytesWritable> getRecordWriter(FileSystem ignored, JobConf job, String name, Progressable progress) throws IOException {
+    return new Warp10RecordWriter(job, progress);
+  }
+  
+  @Override
+  public void checkOutputSpecs(FileSystem ignored, JobConf job) throws IOException {
+    if (null == job.get(PROPERTY_WARP10_UPDATE_ENDPOINT)) {
+      throw new IOException("Missing '" + PROPERTY_WARP10_UPDATE_ENDPOINT + "'.");
+    }
+    if (null == job.get(PROPERTY_WARP10_UPDATE_TOKEN)) {
+      throw new IOException("Missing '" + PROPERTY_WARP10_UPDATE_TOKEN + "'.");
+    }
+  }
+}
@@ -2,12 +2,16 @@ package io.warp10.hadoop;
 
 import io.warp10.continuum.Configuration;
 import io.warp10.continuum.gts.GTSWrapperHelper;
+import io.warp10.continuum.store.BinaryFrames;
 import io.warp10.continuum.store.Constants;
 import io.warp10.crypto.OrderPreservingBase64;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -24,10 +28,28 @@ import org.apache.hadoop.mapred.Reporter;
 public class Warp10RecordReader implements RecordReader<Text, BytesWritable> {
 
   private BufferedReader br = null;
+  
+  /**
+   * Stream of binary frames, used instead of 'br' when the binary format is enabled
+   */
+  private DataInputStream in = null;
+  
   private HttpURLConnection conn = null;
   
+  /**
+   * Buffer for the keys and MACs read from binary frames
+   */
+  private byte[] buf = new byte[64];
+  
   private long count = 0;
   
+  /**
+   * Read the binary frames of 'in' directly, without contacting a fetcher
+   */
+  Warp10RecordReader(DataInputStream in) {
+    this.in = in;
+  }
+  
   public Warp10RecordReader(Warp10InputSplit split, JobConf job, Reporter progress) throws IOException {
     //
     // Call each provided fetcher until one answers
@@ -40,6 +62,12 @@ public class Warp10RecordReader implements RecordReader<Text, BytesWritable> {
     String port = job.get(Warp10InputFormat.PROPERTY_WARP10_FETCHER_PORT, Warp10InputFormat.DEFAULT_WARP10_FETCHER_PORT);
     String path = job.get(Warp10InputFormat.PROPERTY_WARP10_FETCHER_PATH, Warp10InputFormat.DEFAULT_WARP10_FETCHER_PATH);
     
+    boolean binary = job.getBoolean(Warp10InputFormat.PROPERTY_WARP10_BINARY, false);
+    
+    if (binary) {
+      path = path + (path.contains("?") ? "&" : "?") + Constants.HTTP_PARAM_FORMAT + "=" + Constants.BINARY_FRAMES_FORMAT;
+    }
+    
     for (String fetcher: split.getLocations()) {
       try {
         URL url = new URL(protocol + "://" + fetcher + ":" + port + path);
@@ -61,20 +89,37 @@ public class Warp10RecordReader implements RecordReader<Text, BytesWritable> {
           continue;
         }
         
-        this.br = new BufferedReader(new InputStreamReader(conn.getInputStream()));
+        if (binary) {
+          this.in = new DataInputStream(new BufferedInputStream(conn.getInputStream(), 65536));
+        } else {
+          this.br = new BufferedReader(new InputStreamReader(conn.getInputStream()));
+        }
       } catch (Exception e) {
         e.printStackTrace();
       } finally {
-        if (null == this.br && null != conn) {
+        if (null == this.br && null == this.in && null != conn) {
           try { conn.disconnect(); } catch (Exception e) {}
           conn = null;
         }
       }
+      
+      if (null != conn) {
+        break;
+      }
+    }
+    
+    if (null == conn) {
+      throw new IOException("No fetcher could serve the split.");
     }
   }
 
   @Override
   public boolean next(Text key, BytesWritable value) throws IOException {
+    
+    if (null != this.in) {
+      return nextFrame(key, value);
+    }
+    
     String line = br.readLine();
     
     if (null == line) {
@@ -95,10 +140,53 @@ public class Warp10RecordReader implements RecordReader<Text, BytesWritable> {
     return true;
   }
   
+  /**
+   * Read a <key><mac><GTSWrapper> record (see BinaryFrames), the key and value
+   * buffers are reused when large enough.
+   */
+  private boolean nextFrame(Text key, BytesWritable value) throws IOException {
+    try {
+      int len = BinaryFrames.readLength(in);
+      
+      if (BinaryFrames.END == len) {
+        return false;
+      }
+      
+      buf = BinaryFrames.read(in, len, buf);
+      key.set(buf, 0, len);
+      
+      // Skip the MAC
+      buf = BinaryFrames.read(in, BinaryFrames.readLength(in), buf);
+      
+      len = BinaryFrames.readLength(in);
+      
+      if (len < 0) {
+        throw new IOException("Invalid frame length " + len);
+      }
+      
+      // Do not copy the current content when growing the buffer
+      value.setSize(0);
+      value.setSize(len);
+      in.readFully(value.getBytes(), 0, len);
+    } catch (EOFException eofe) {
+      throw new IOException("Truncated fetcher response.", eofe);
+    }
+    
+    count++;
+    
+    return true;
+  }
+  
   @Override
   public void close() throws IOException {
-    this.br.close();
-    this.conn.disconnect();
+    if (null != this.in) {
+      this.in.close();
+    } else {
+      this.br.close();
+    }
+    if (null != this.conn) {
+      this.conn.disconnect();
+    }
   }
 
   @Override
@@ -0,0 +1,82 @@
+package io.warp10.hadoop;
+
+import io.warp10.continuum.Configuration;
+import io.warp10.continuum.store.Constants;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.Progressable;
+
+/**
+ * Streams the written GTSWrappers in the body of a single update request, the request
+ * is only issued when the first record is written.
+ */
+public class Warp10RecordWriter implements RecordWriter<Writable, BytesWritable> {
+
+  private final URL url;
+  private final String token;
+  
+  private final Progressable progress;
+  
+  private HttpURLConnection conn = null;
+  private OutputStream out = null;
+  
+  private long count = 0;
+  
+  public Warp10RecordWriter(JobConf job, Progressable progress) throws IOException {
+    this.url = new URL(job.get(Warp10OutputFormat.PROPERTY_WARP10_UPDATE_ENDPOINT));
+    this.token = job.get(Warp10OutputFormat.PROPERTY_WARP10_UPDATE_TOKEN);
+    this.progress = progress;
+  }
+  
+  @Override
+  public void write(Writable key, BytesWritable value) throws IOException {
+    if (null == out) {
+      conn = (HttpURLConnection) url.openConnection();
+      conn.setChunkedStreamingMode(65536);
+      conn.setDoOutput(true);
+      conn.setDoInput(true);
+      conn.setRequestMethod("POST");
+      conn.setRequestProperty(Constants.getHeader(Configuration.HTTP_HEADER_TOKENX), token);
+      conn.setRequestProperty("Content-Type", Constants.GTS_WRAPPER_CONTENT_TYPE);
+      conn.connect();
+      
+      out = new BufferedOutputStream(conn.getOutputStream(), 65536);
+    }
+    
+    // Wrappers are self delimiting, they are simply concatenated
+    out.write(value.getBytes(), 0, value.getLength());
+    
+    count++;
+    
+    if (0 == count % 1000) {
+      progress.progress();
+    }
+  }
+  
+  @Override
+  public void close(Reporter reporter) throws IOException {
+    if (null == out) {
+      return;
+    }
+    
+    try {
+      out.close();
+      
+      if (HttpURLConnection.HTTP_OK != conn.getResponseCode()) {
+        throw new IOException("Update failed after " + count + " GTSWrapper: " + conn.getResponseCode() + " " + conn.getResponseMessage());
+      }
+    } finally {
+      conn.disconnect();
+    }
+  }
+}
@@ -16,17 +16,15 @@
 
 package io.warp10.script;
 
-import io.warp10.continuum.gts.Varint;
 import io.warp10.continuum.thrift.data.HyperLogLogPlusParameters;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -44,6 +42,9 @@ import org.joda.time.DateTimeZone;
  * It implements the HLL+ algorithm as described in the Google research paper
  * http://research.google.com/pubs/pub40671.html
  * 
+ * In the NORMAL representation, 'aggregate', 'isNew', 'cardinality' and 'fuse'
+ * do not lock, registers are updated with CAS max updates. The SPARSE
+ * representation is guarded by the estimator's monitor.
  */
 public class HyperLogLogPlus {
   
@@ -166,7 +167,13 @@ public class HyperLogLogPlus {
   private long ptopprimemask;
   private long pprimemask;
 
-  private byte[] M;
+  /**
+   * Registers for the NORMAL case, 4 registers of 8 bits per int.
+   * Registers are updated using CAS so concurrent calls to 'aggregate'
+   * in NORMAL mode do not need to synchronize.
+   * The packed 6 bits representation is only used for serialization.
+   */
+  private AtomicIntegerArray M;
   
   /**
    * Temporary array to store offered hashes.
@@ -190,9 +197,23 @@ public class HyperLogLogPlus {
   private int sparse_list_len = 0;
   
   /**
-   * Current format of the estimator
+   * Scratch buffers reused across calls to 'merge'
    */
-  private Format format = Format.SPARSE;
+  private int[] merge_values = null;
+  private byte[] merge_bytes = null;
+  
+  /**
+   * Cursor used when iterating over 'sparse_list', see 'nextSparseValue'
+   */
+  private int sparse_pos = 0;
+  private int sparse_value = 0;
+  
+  /**
+   * Current format of the estimator. This field is volatile so the NORMAL
+   * code paths can check it without holding the lock. Once NORMAL, an
+   * estimator never reverts to SPARSE.
+   */
+  private volatile Format format = Format.SPARSE;
 
   private int _64minusp;
   private int _64minuspprime;
@@ -249,9 +270,10 @@ public class HyperLogLogPlus {
     this.tmp_set = new int[(int)(Math.ceil(this.m * 6 / 8) / 4 / 2)];
     
     if (this.p == this.pprime) {
-      this.format = Format.NORMAL;
-      this.M = new byte[(int) Math.ceil((this.m * 6) / 8)];
+      this.M = new AtomicIntegerArray(registersLength(this.m));
       this.tmp_set = null;
+      this.sparse_list = null;
+      this.format = Format.NORMAL;
     }
   }
     
@@ -281,103 +303,100 @@ public class HyperLogLogPlus {
    * @param x
    * @return
    */
-  public synchronized boolean isNew(long x) {
-    
-    switch(format) {
-      case NORMAL:
-        int idx = (int) (x >>> _64minusp);
-        long w = x & pmask;
-        byte rho = rho(w, _64minusp);
-        byte prho = getRho(idx);
-        if (prho < rho) {
-          return true;
-        }
-        return false;
-        
-      case SPARSE:
-        // Encode 'x'
-        int k = encodeHash(x);
-        idx = decodeIndex(k, pprime);
+  public boolean isNew(long x) {
+    
+    if (Format.NORMAL == this.format) {
+      return isNewNormal(x);
+    }
+    
+    synchronized(this) {
+      //
+      // Check the format again as we might have switched to NORMAL while waiting for the lock
+      //
+      
+      if (Format.NORMAL == this.format) {
+        return isNewNormal(x);
+      }
 
-        // Check if k has precedence above any value in tmp_set
+      // Encode 'x'
+      int k = encodeHash(x);
+      int idx = decodeIndex(k, pprime);
 
-        for (int i = 0; i < tmp_set_idx; i++) {          
-          int pidx = decodeIndex(tmp_set[i], pprime);
-          if (pidx != idx) {
-            continue;
-          }
-          if (tmp_set[i] < k) {
-            // There is one value with a higher bit count in tmp_set, so the
-            // value is not new
-            return false;
-          }
+      // Check if k has precedence above any value in tmp_set
+
+      for (int i = 0; i < tmp_set_idx; i++) {          
+        int pidx = decodeIndex(tmp_set[i], pprime);
+        if (pidx != idx) {
+          continue;
         }
+        if (tmp_set[i] < k) {
+          // There is one value with a higher bit count in tmp_set, so the
+          // value is not new
+          return false;
+        }
+      }
+      
+      // Check if k has precedence above any value in sparse_list
+      
+      this.sparse_pos = 0;
+      
+      while (nextSparseValue()) {
+        int pidx = decodeIndex(this.sparse_value, pprime);
         
-        // Check if k has precedence above any value in sparse_list
-        
-        boolean sparsenew = false;
-
-        if (0 != sparse_list.length) {     
-          ByteBuffer bb = ByteBuffer.wrap(sparse_list).order(ByteOrder.BIG_ENDIAN);
-
-          int lastvalue = 0;
-          
-          while (bb.hasRemaining()) {
-            if (0 == bb.position()) {
-              lastvalue = (int) Varint.decodeSignedLong(bb);
-            } else {
-              int delta = (int) Varint.decodeUnsignedLong(bb);
-              lastvalue += delta;
-            }        
-          
-            int pidx = decodeIndex(lastvalue, pprime);
-            
-            if (pidx != idx) {
-              continue;
-            }
-
-            if (k < lastvalue) {
-              return true;
-            } else {
-              return false;
-            }
-          }
-          return true;
-        } else {
-          // Sparse list is empty so the new value is true since it was true after analyzing the tmp set
-          return true;
+        if (pidx != idx) {
+          continue;
         }
 
-      default:
-        return true;
-    }    
+        return k < this.sparse_value;
+      }
+      
+      // No value for 'idx' in the sparse list (or sparse list is empty) so 'x' is new
+      return true;
+    }
   }
   
-  public synchronized void aggregate(long x) throws IOException {
-    switch(format) {
-      case NORMAL:
-        int idx = (int) (x >>> _64minusp);
-        long w = x & pmask;
-        byte rho = rho(w, _64minusp);
-        setRho(idx, rho);      
-        break;
-        
-      case SPARSE:
-        int k = encodeHash(x);
-        tmp_set[tmp_set_idx++] = k;
-        if (tmp_set_idx >= tmp_set.length) {
-          merge();
-          //
-          // If the sparse representation has a footprint
-          // larger than the normal representation, switch to NORMAL
-          // as we are no longer saving space.
-          //
-          if (sparse_list.length > this.m * 0.75) {
-            toNormal();
-          }
+  private boolean isNewNormal(long x) {
+    int idx = (int) (x >>> _64minusp);
+    long w = x & pmask;
+    byte rho = rho(w, _64minusp);
+    byte prho = getRho(idx);
+    return prho < rho;
+  }
+  
+  public void aggregate(long x) throws IOException {
+    
+    if (Format.NORMAL == this.format) {
+      aggregateNormal(x);
+      return;
+    }
+    
+    synchronized(this) {
+      if (Format.NORMAL == this.format) {
+        aggregateNormal(x);
+        return;
+      }
+      
+      int k = encodeHash(x);
+      tmp_set[tmp_set_idx++] = k;
+      if (tmp_set_idx >= tmp_set.length) {
+        merge();
+        //
+        // If the sparse representation has a footprint
+        // larger than the normal representation, switch to NORMAL
+        // as we are no longer saving space.
+        //
+        if (sparse_list.length > this.m * 0.75) {
+          toNormal();
         }
-        break;
-    }    
+      }
+    }
+  }
+  
+  private void aggregateNormal(long x) {
+    int idx = (int) (x >>> _64minusp);
+    long w = x & pmask;
+    byte rho = rho(w, _64minusp);
+    setRho(idx, rho);          
   }
   
   /**
@@ -388,132 +407,184 @@ public class HyperLogLogPlus {
    */
   public long cardinality() throws IOException {
     
-    switch(format) {
-      case NORMAL:
-        double E = 0.0D;
-        int V = 0;
-        for (int i = 0; i < this.m; i++) {
-          byte rho = getRho(i);
-          E = E + 1.0D / (1L << (int) rho);
-          if (0 == (int) rho) {
-            V++;
-          }
+    if (Format.SPARSE == this.format) {
+      synchronized(this) {
+        if (Format.SPARSE == this.format) {
+          merge();
+          return Math.round(linearCounting(mprime, mprime - sparse_list_len));
         }
-                
-        E = 1.0D / E;
-        E = alpha[this.p - 4] * this.m * this.m * E;
-        
-        double Eprime = (E <= 5 * this.m) ? E - estimateBias(E, this.p) : E;
+      }
+    }
+    
+    double E = 0.0D;
+    int V = 0;
+    for (int i = 0; i < this.m; i++) {
+      byte rho = getRho(i);
+      E = E + 1.0D / (1L << (int) rho);
+      if (0 == (int) rho) {
+        V++;
+      }
+    }
+            
+    E = 1.0D / E;
+    E = alpha[this.p - 4] * this.m * this.m * E;
+    
+    double Eprime = (E <= 5 * this.m) ? E - estimateBias(E, this.p) : E;
 
-        double H;
-        
-        if (0 != V) {
-          H = linearCounting(this.m, V);
-        } else {
-          H = Eprime;
-        }
-        
-        if ((p <= 18 && H <= THRESHOLDS[this.p - 4]) || (p > 18 && E <= 5 * this.m)) {
-          return Math.round(H);
-        } else {
-          return Math.round(Eprime);
-        }
-        
-      case SPARSE:
-        merge();
-        return Math.round(linearCounting(mprime, mprime - sparse_list_len));
-      default:
-        return -1;
+    double H;
+    
+    if (0 != V) {
+      H = linearCounting(this.m, V);
+    } else {
+      H = Eprime;
+    }
+    
+    if ((p <= 18 && H <= THRESHOLDS[this.p - 4]) || (p > 18 && E <= 5 * this.m)) {
+      return Math.round(H);
+    } else {
+      return Math.round(Eprime);
     }
   }
   
+  /**
+   * Update register 'idx' with 'rho' if 'rho' is greater than the current value.
+   * This method is lock-free and can be called concurrently.
+   * 
+   * @return The value of the register after the update
+   */
   public byte setRho(int idx, byte rho) {
-    // Read current value of rho
-    byte current = getRho(idx);
+    int slot = idx >>> 2;
+    int shift = (idx & 0x3) << 3;
+    int mask = 0xff << shift;
+    int bits = (rho & 0xff) << shift;
+    
+    while (true) {
+      int current = this.M.get(slot);
+      byte currentRho = (byte) ((current >>> shift) & 0xff);
+      
+      if (rho <= currentRho) {
+        return currentRho;
+      }
+      
+      if (this.M.compareAndSet(slot, current, (current & ~mask) | bits)) {
+        return rho;
+      }
+    }
+  }
+  
+  public byte getRho(int idx) {
+    return (byte) ((this.M.get(idx >>> 2) >>> ((idx & 0x3) << 3)) & 0xff);
+  }
+  
+  /**
+   * Number of ints needed to store 'm' registers
+   */
+  private static int registersLength(int m) {
+    return (m + 3) >>> 2;
+  }
+  
+  /**
+   * Pack the registers using 6 bits per register, this is the serialized format of the registers
+   */
+  private byte[] packRegisters() {
+    byte[] packed = new byte[(int) Math.ceil((this.m * 6) / 8)];
     
-    if (rho < current) {
-      return current;
+    for (int i = 0; i < this.m; i++) {
+      setPackedRho(packed, i, getRho(i));
     }
     
+    return packed;
+  }
+  
+  /**
+   * Unpack registers stored using 6 bits per register
+   */
+  private void unpackRegisters(byte[] packed) {
+    this.M = new AtomicIntegerArray(registersLength(this.m));
+    
+    for (int i = 0; i < this.m; i++) {
+      setRho(i, getPackedRho(packed, i));
+    }
+  }
+  
+  private static void setPackedRho(byte[] M, int idx, byte rho) {
     int bits = idx * 6;
     int firstbyte = bits / 8;
     int bitoffset = bits % 8;
     
     switch (bitoffset) {
       case 0:
-        this.M[firstbyte] = (byte) (this.M[firstbyte] & 0x3);
-        this.M[firstbyte] |= (byte) ((rho << 2) & (byte) 0xfc);
+        M[firstbyte] = (byte) (M[firstbyte] & 0x3);
+        M[firstbyte] |= (byte) ((rho << 2) & (byte) 0xfc);
         break;
       case 1:
-        this.M[firstbyte] = (byte) (this.M[firstbyte] & (byte) 0x81);
-        this.M[firstbyte] |= (byte) ((rho << 1) & 0x7e);
+        M[firstbyte] = (byte) (M[firstbyte] & (byte) 0x81);
+        M[firstbyte] |= (byte) ((rho << 1) & 0x7e);
         break;
       case 2:
-        this.M[firstbyte] = (byte) (this.M[firstbyte] & (byte) 0xc0);
-        this.M[firstbyte] |= (byte) (rho & 0x3f);
+        M[firstbyte] = (byte) (M[firstbyte] & (byte) 0xc0);
+        M[firstbyte] |= (byte) (rho & 0x3f);
         break;
       case 3:
-        this.M[firstbyte] = (byte) (this.M[firstbyte] & (byte) 0xe0);
+        M[firstbyte] = (byte) (M[firstbyte] & (byte) 0xe0);
         // Copy 5 bits
-        this.M[firstbyte] |= (byte) ((rho >> 1) & 0x1f);
-        this.M[firstbyte + 1] = (byte) (this.M[firstbyte + 1] & 0x7f);
-        this.M[firstbyte + 1] |= (byte) ((rho << 7) & (byte) 0x80);
+        M[firstbyte] |= (byte) ((rho >> 1) & 0x1f);
+        M[firstbyte + 1] = (byte) (M[firstbyte + 1] & 0x7f);
+        M[firstbyte + 1] |= (byte) ((rho << 7) & (byte) 0x80);
         break;
       case 4:
-        this.M[firstbyte] = (byte) (this.M[firstbyte] & (byte) 0xf0);
+        M[firstbyte] = (byte) (M[firstbyte] & (byte) 0xf0);
         // Copy 4 bits
-        this.M[firstbyte] |= (byte) ((rho >> 2) & 0xf);
-        this.M[firstbyte + 1] = (byte) (this.M[firstbyte + 1] & 0x3f);
-        this.M[firstbyte + 1] |= (byte) ((rho << 6) & (byte) 0xc0);
+        M[firstbyte] |= (byte) ((rho >> 2) & 0xf);
+        M[firstbyte + 1] = (byte) (M[firstbyte + 1] & 0x3f);
+        M[firstbyte + 1] |= (byte) ((rho << 6) & (byte) 0xc0);
         break;
       case 5:
-        this.M[firstbyte] = (byte) (this.M[firstbyte] & (byte) 0xf8);
+        M[firstbyte] = (byte) (M[firstbyte] & (byte) 0xf8);
         // Copy 3 bits
-        this.M[firstbyte] |= (byte) ((rho >> 3) & 0x7);
-        this.M[firstbyte + 1] = (byte) (this.M[firstbyte + 1] & 0x1f);
-        this.M[firstbyte + 1] |= (byte) ((rho << 5) & (byte) 0xe0);
+        M[firstbyte] |= (byte) ((rho >> 3) & 0x7);
+        M[firstbyte + 1] = (byte) (M[firstbyte + 1] & 0x1f);
+        M[firstbyte + 1] |= (byte) ((rho << 5) & (byte) 0xe0);
         break;
       case 6:
-        this.M[firstbyte] = (byte) (this.M[firstbyte] & (byte) 0xfc);
+        M[firstbyte] = (byte) (M[firstbyte] & (byte) 0xfc);
         // Copy 2 bits
-        this.M[firstbyte] |= (byte) ((rho >> 4) & 0x3);
-        this.M[firstbyte + 1] = (byte) (this.M[firstbyte + 1] & 0xf);
-        this.M[firstbyte + 1] |= (byte) ((rho << 4) & (byte) 0xf0);
+        M[firstbyte] |= (byte) ((rho >> 4) & 0x3);
+        M[firstbyte + 1] = (byte) (M[firstbyte + 1] & 0xf);
+        M[firstbyte + 1] |= (byte) ((rho << 4) & (byte) 0xf0);
         break;
       case 7:
-        this.M[firstbyte] = (byte) (this.M[firstbyte] & (byte) 0xfe);
+        M[firstbyte] = (byte) (M[firstbyte] & (byte) 0xfe);
         // Copy 1 bit
-        this.M[firstbyte] |= (byte) ((rho >> 5) & 0x1);
-        this.M[firstbyte + 1] = (byte) (this.M[firstbyte + 1] & 0x7);
-        this.M[firstbyte + 1] |= (byte) ((rho << 3) & (byte) 0xf8);
+        M[firstbyte] |= (byte) ((rho >> 5) & 0x1);
+        M[firstbyte + 1] = (byte) (M[firstbyte + 1] & 0x7);
+        M[firstbyte + 1] |= (byte) ((rho << 3) & (byte) 0xf8);
         break;
     }
-    
-    return rho;
   }
   
-  public byte getRho(int idx) {
+  private static byte getPackedRho(byte[] M, int idx) {
     int bits = idx * 6;
     int firstbyte = bits / 8;
     int bitoffset = bits % 8;
 
     switch(bitoffset) {
       case 0:
-        return (byte) (((this.M[firstbyte] & 0xfc) >>> 2) & 0x3f);
+        return (byte) (((M[firstbyte] & 0xfc) >>> 2) & 0x3f);
       case 1:
-        return (byte) (((this.M[firstbyte] & 0x7e) >>> 1) & 0x3f);
+        return (byte) (((M[firstbyte] & 0x7e) >>> 1) & 0x3f);
       case 2:
-        return (byte) (this.M[firstbyte] & 0x3f);
+        return (byte) (M[firstbyte] & 0x3f);
       case 3:
-        return (byte) (((this.M[firstbyte] & 0x1f) << 1) | ((this.M[firstbyte + 1] & 0x80) >>> 7));
+        return (byte) (((M[firstbyte] & 0x1f) << 1) | ((M[firstbyte + 1] & 0x80) >>> 7));
       case 4:
-        return (byte) (((this.M[firstbyte] & 0xf) << 2) | ((this.M[firstbyte + 1] & 0xc0) >>> 6));
+        return (byte) (((M[firstbyte] & 0xf) << 2) | ((M[firstbyte + 1] & 0xc0) >>> 6));
       case 5:
-        return (byte) (((this.M[firstbyte] & 0x7) << 3) | ((this.M[firstbyte + 1] & 0xe0) >>> 5));
+        return (byte) (((M[firstbyte] & 0x7) << 3) | ((M[firstbyte + 1] & 0xe0) >>> 5));
       case 6:
-        return (byte) (((this.M[firstbyte] & 0x3) << 4) | ((this.M[firstbyte + 1] & 0xf0) >>> 4));
+        return (byte) (((M[firstbyte] & 0x3) << 4) | ((M[firstbyte + 1] & 0xf0) >>> 4));
       case 7:
-        return (byte) (((this.M[firstbyte] & 0x1) << 5) | ((this.M[firstbyte + 1] & 0xf80) >>> 3));
+        return (byte) (((M[firstbyte] & 0x1) << 5) | ((M[firstbyte + 1] & 0xf8) >>> 3));
       default:
         throw new RuntimeException();
     }
@@ -566,6 +637,50 @@ public class HyperLogLogPlus {
     return m * Math.log((double) m / (double) V);
   }
   
+  /**
+   * Read the next value of 'sparse_list' starting at 'sparse_pos'.
+   * The decoded value is stored in 'sparse_value'. The first value of
+   * the list is a zig zag encoded varint, the following ones are
+   * unsigned varint deltas from the previous value.
+   * 
+   * @return true if a value was read, false if the end of the list was reached
+   */
+  private boolean nextSparseValue() {
+    if (null == sparse_list || sparse_pos >= sparse_list.length) {
+      return false;
+    }
+    
+    boolean first = 0 == sparse_pos;
+    
+    long value = 0L;
+    int shift = 0;
+    byte b;
+    
+    do {
+      b = sparse_list[sparse_pos++];
+      value |= ((long) (b & 0x7f)) << shift;
+      shift += 7;
+    } while (b < 0);
+    
+    if (first) {
+      // Undo the zig zag trick
+      sparse_value = (int) ((value >>> 1) ^ -(value & 1L));
+    } else {
+      sparse_value += (int) value;
+    }
+    
+    return true;
+  }
+  
+  private static int writeVarint(byte[] buf, int pos, long value) {
+    while (0L != (value & 0xFFFFFFFFFFFFFF80L)) {
+      buf[pos++] = (byte) ((value & 0x7FL) | 0x80L);
+      value >>>= 7;
+    }
+    buf[pos++] = (byte) (value & 0x7FL);
+    return pos;
+  }
+  
   private int[] decodeSparseList() {
     //
     // Extract values from 'sparse_list'
@@ -575,35 +690,49 @@ public class HyperLogLogPlus {
 
     int idx = 0;
 
-    if (0 != sparse_list.length) {     
-      ByteBuffer bb = ByteBuffer.wrap(sparse_list).order(ByteOrder.BIG_ENDIAN);
-
-      int lastvalue = 0;
-      
-      while (bb.hasRemaining()) {
-        if (0 == bb.position()) {
-          lastvalue = (int) Varint.decodeSignedLong(bb);
-        } else {
-          long delta = (int) Varint.decodeUnsignedLong(bb);
-          lastvalue += delta;
-        }        
-        
-        values[idx++] = lastvalue;
-      }            
+    this.sparse_pos = 0;
+    
+    while (nextSparseValue()) {
+      values[idx++] = this.sparse_value;
     }
-
+    
     return values;
   }
   
   private void merge() throws IOException {    
-    int[] values = decodeSparseList();
     
-    merge(values);
+    if (0 == tmp_set_idx) {
+      return;
+    }
+
+    //
+    // Decode the sparse list in the reusable values buffer
+    //
+    
+    int n = this.sparse_list_len + this.tmp_set_idx;
+    
+    if (null == this.merge_values || this.merge_values.length < n) {
+      this.merge_values = new int[n];
+    }
+    
+    int idx = 0;
+    
+    this.sparse_pos = 0;
+    
+    while (nextSparseValue()) {
+      this.merge_values[idx++] = this.sparse_value;
+    }
+    
+    merge(this.merge_values, idx);
   }
   
-  private void merge(int[] values) throws IOException {
+  /**
+   * Merge the content of 'tmp_set' with the first 'len' values of 'values'.
+   * 'values' MUST be large enough to also hold the content of 'tmp_set'.
+   */
+  private void merge(int[] values, int len) throws IOException {
         
-    if (0 == tmp_set_idx) {
+    if (0 == tmp_set_idx && 0 == len) {
       return;
     }
     
@@ -611,30 +740,31 @@ public class HyperLogLogPlus {
     // Add values from tmp_set
     //
   
-    int idx = values.length;
-    
-    values = Arrays.copyOf(values, idx + tmp_set_idx);
+    int idx = len;
     
-    for (int i = 0; i < tmp_set_idx; i++) {
-      values[idx++] = tmp_set[i];
-    }
+    System.arraycopy(tmp_set, 0, values, idx, tmp_set_idx);
+    idx += tmp_set_idx;
     
     //
     // Sort 'values'
     //
     
-    Arrays.sort(values);
+    Arrays.sort(values, 0, idx);
     
     //
-    // Encode 'values'
+    // Encode 'values' in the reusable byte buffer, each value needs at most 10 bytes
+    // since deltas are computed on ints and sign extended like in Varint.encodeUnsignedLong
     //
     
-    // Create a ByteArrayOutputStream with an initial size computed by a heuristic
-    ByteArrayOutputStream baos = new ByteArrayOutputStream(sparse_list.length + tmp_set_idx * 6);
-
+    if (null == this.merge_bytes || this.merge_bytes.length < idx * 10) {
+      this.merge_bytes = new byte[idx * 10];
+    }
+    
+    byte[] buf = this.merge_bytes;
+    
     int index = decodeIndex(values[0], this.pprime);
-    baos.write(Varint.encodeSignedLong(values[0]));
-    int len = 1;
+    int pos = writeVarint(buf, 0, (((long) values[0]) << 1) ^ (((long) values[0]) >> 63));
+    int count = 1;
     
     int prev = 0;
 
@@ -655,21 +785,25 @@ public class HyperLogLogPlus {
       // most leading 0s after the prefix of len p') appear first.
       //
       if (index != nextindex) {
-        baos.write(Varint.encodeUnsignedLong(values[i] - values[prev]));
-        len++;
+        pos = writeVarint(buf, pos, values[i] - values[prev]);
+        count++;
         prev = i;
         index = nextindex;
-      } else {
       }
       i++;
     }
     
-    this.sparse_list = baos.toByteArray();
-    this.sparse_list_len = len;
+    this.sparse_list = Arrays.copyOf(buf, pos);
+    this.sparse_list_len = count;
     
     this.tmp_set_idx = 0;
   }
   
+  /**
+   * Switch to the NORMAL representation.
+   * The registers are filled directly from 'tmp_set' and 'sparse_list',
+   * no intermediate sparse list is built.
+   */
   public synchronized void toNormal() throws IOException {
     
     // Do nothing if we're already in the normal case
@@ -677,25 +811,27 @@ public class HyperLogLogPlus {
       return;
     }
     
-    //
-    // Call merge otherwise we end up with a count of 0
-    //
+    this.M = new AtomicIntegerArray(registersLength(this.m));
     
-    merge();
-    
-    this.M = new byte[(int) Math.ceil((this.m * 6) / 8)];
+    for (int i = 0; i < tmp_set_idx; i++) {
+      setRho(decodeIndex(tmp_set[i], this.p), decodeRho(tmp_set[i]));
+    }
     
-    int[] values = decodeSparseList();
+    this.sparse_pos = 0;
     
-    for (int encodedHash: values) {
-      int index = decodeIndex(encodedHash, this.p);
-      byte rho = decodeRho(encodedHash);
-      setRho(index,rho);
+    while (nextSparseValue()) {
+      setRho(decodeIndex(this.sparse_value, this.p), decodeRho(this.sparse_value));
     }
     
-    format = Format.NORMAL;
     this.sparse_list = null;
+    this.sparse_list_len = 0;
     this.tmp_set = null;
+    this.tmp_set_idx = 0;
+    this.merge_values = null;
+    this.merge_bytes = null;
+    
+    // Publish the registers, this MUST be done last
+    this.format = Format.NORMAL;
   }
   
   /**
@@ -789,9 +925,13 @@ public class HyperLogLogPlus {
   /**
    * Merge estimates from another HLL+
    * 
+   * Estimators in NORMAL mode are fused without locking, so per thread
+   * estimators can be periodically fused into a shared one while other
+   * threads keep aggregating values into it.
+   * 
    * @param other
    */
-  public synchronized void fuse(HyperLogLogPlus other) throws IOException {
+  public void fuse(HyperLogLogPlus other) throws IOException {
     
     if (null == other) {
       return;
@@ -807,64 +947,22 @@ public class HyperLogLogPlus {
     }
     
     //
-    // If 'pprime' differs in both estimators,
-    // we will take the easy way and convert them to the NORMAL case
+    // If one of the estimators is in SPARSE mode, convert them both to NORMAL.
+    // This also handles the case where 'pprime' differs in both estimators.
     //
     
-    if (this.pprime != other.pprime) {
+    if (Format.SPARSE == this.format || Format.SPARSE == other.format) {
       other.toNormal();
       this.toNormal();
     }
-    
+
     //
-    // If one of the estimators is in SPARSE mode, convert them both to NORMAL
+    // Update the registers with the rho values from 'other'
     //
     
-    if (Format.SPARSE == this.format || Format.SPARSE == other.format) {
-      other.toNormal();
-      this.toNormal();
-    }
-    
-    if (Format.SPARSE == this.format && Format.SPARSE == this.format) {
-      //
-      // Both estimators are in SPARSE mode, trigger a merge
-      //
-      
-      this.merge();
-      other.merge();
-      
-      //
-      // Now decode and merge the sparse lists
-      //
-      
-      int[] slthis = this.decodeSparseList();
-      int[] slother = other.decodeSparseList();
-      
-      //
-      // Merge sparse lists
-      //
-      
-      slthis = Arrays.copyOf(slthis, slthis.length + slother.length);
-      System.arraycopy(slother, 0, slthis, slthis.length - slother.length, slother.length);
-
-      merge(slthis);
-      
-      //
-      // Convert to NORMAL mode if the sparse list has grown too much
-      //
-      
-      if (sparse_list.length > (int) Math.ceil((this.m * 6) / 8)) {
-        toNormal();
-        this.sparse_list = null;
-        this.tmp_set = null;
-      }      
-    } else {
-      //
-      // Update the registers with the rho values from 'other'
-      //
-      
-      for (int i = 0; i < this.m; i++) {
-        byte rho = other.getRho(i);
+    for (int i = 0; i < this.m; i++) {
+      byte rho = other.getRho(i);
+      if (0 != rho) {
         this.setRho(i, rho);
       }
     }
@@ -876,28 +974,37 @@ public class HyperLogLogPlus {
     params.setInitTime(this.initTime);
     params.setP((byte) this.p);
     params.setPprime((byte) this.pprime);
-    params.setSparse(Format.SPARSE == this.format);
-    
-    if (Format.SPARSE == this.format) {      
-      // Trigger a merge
-      merge();
-      // Output the sparse list size
-      params.setSparseListLen(sparse_list_len);
-      params.setSparseList(sparse_list);
-    } else {
+    
+    byte[] registers = null;
+    
+    synchronized(this) {
+      params.setSparse(Format.SPARSE == this.format);
+      
+      if (Format.SPARSE == this.format) {      
+        // Trigger a merge
+        merge();
+        // Output the sparse list size
+        params.setSparseListLen(sparse_list_len);
+        params.setSparseList(sparse_list);
+      } else {
+        registers = packRegisters();
+      }
+    }
+    
+    if (null != registers) {
       // Output the registers
       ByteArrayOutputStream baos = new ByteArrayOutputStream();
       GZIPOutputStream gzos = new GZIPOutputStream(baos);
-      gzos.write(this.M);
+      gzos.write(registers);
       gzos.close();
       
       byte[] gzipped = baos.toByteArray();
       
-      if (gzipped.length < this.M.length) {
+      if (gzipped.length < registers.length) {
         params.setRegisters(gzipped);
         params.setGzipped(true);
       } else {
-        params.setRegisters(this.M);
+        params.setRegisters(registers);
         params.setGzipped(false);
       }
     }
@@ -941,14 +1048,13 @@ public class HyperLogLogPlus {
     hllp.pprimemask = ((1L << hllp._64minuspprime) - 1);
 
     // Read the current mode
-    hllp.format = params.isSparse() ? Format.SPARSE : Format.NORMAL;
-    
-    if (Format.SPARSE == hllp.format) {
+    if (params.isSparse()) {
       hllp.sparse_list_len = params.getSparseListLen();
       hllp.sparse_list = params.getSparseList();
       // Allocate tmp_set
       hllp.tmp_set = new int[(int) Math.ceil((hllp.m * 6) / 8)];
       hllp.tmp_set_idx = 0;
+      hllp.format = Format.SPARSE;
     } else {
       // Read the registers
       if (params.isGzipped()) {
@@ -965,10 +1071,12 @@ public class HyperLogLogPlus {
           baos.write(buf, 0, len);
         }
         gzis.close();
-        hllp.M = baos.toByteArray();
+        hllp.unpackRegisters(baos.toByteArray());
       } else {
-        hllp.M = params.getRegisters();
+        hllp.unpackRegisters(params.getRegisters());
       }
+      hllp.sparse_list = null;
+      hllp.format = Format.NORMAL;
     }
     
     return hllp;
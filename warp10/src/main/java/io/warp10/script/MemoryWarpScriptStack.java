@@ -19,6 +19,7 @@ package io.warp10.script;
 import io.warp10.WarpConfig;
 import io.warp10.continuum.Configuration;
 import io.warp10.continuum.geo.GeoDirectoryClient;
+import io.warp10.continuum.gts.LazyGeoTimeSerie;
 import io.warp10.continuum.gts.UnsafeString;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.DirectoryClient;
@@ -125,6 +126,31 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
    */
   private Progressable progressable = null;
   
+  /**
+   * Optional profiler, set through ATTRIBUTE_PROFILER
+   */
+  private WarpScriptProfiler profiler = null;
+  
+  /**
+   * Flag indicating that lazy Geo Time Series may be on the stack, set through ATTRIBUTE_LAZY_SERIES
+   */
+  private boolean lazySeries = false;
+  
+  /**
+   * Flag indicating that the function currently applied accepts lazy Geo Time Series
+   */
+  private boolean lazyAware = false;
+  
+  /**
+   * Unchecked wrapper of the errors encountered while decoding a lazy Geo Time Serie in
+   * 'pop' or 'peek' which cannot throw WarpScriptException, unwrapped in 'apply'
+   */
+  private static class LazyDecodeException extends RuntimeException {
+    private LazyDecodeException(WarpScriptException cause) {
+      super(cause);
+    }
+  }
+  
   public static class StackContext extends WarpScriptStack.StackContext {
     public Map<String, Object> symbolTable;
     public Map<String, WarpScriptStackFunction> defined;
@@ -285,11 +311,19 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
 
     Object element = list.remove(list.size() - 1);
     
-    return element;    
+    if (!this.lazySeries || this.lazyAware) {
+      return element;
+    }
+    
+    try {
+      return materialize(element);
+    } catch (WarpScriptException wse) {
+      throw new LazyDecodeException(wse);
+    }
   }
   
   @Override
-  public Object[] popn() throws EmptyStackException, IndexOutOfBoundsException {
+  public Object[] popn() throws WarpScriptException, EmptyStackException, IndexOutOfBoundsException {
     int n = getn();
     
     if (list.size() < n || n < 0) {
@@ -304,7 +338,7 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
     //
     
     for (int i = n - 1; i >= 0; i--) {
-      objects[i] = list.remove(list.size() - 1);
+      objects[i] = materialize(list.remove(list.size() - 1));
     }
     
     return objects;
@@ -343,7 +377,15 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
       throw new EmptyStackException();
     }
 
-    return list.get(list.size() - 1);
+    if (!this.lazySeries || this.lazyAware) {
+      return list.get(list.size() - 1);
+    }
+    
+    try {
+      return materialize(list.size() - 1);
+    } catch (WarpScriptException wse) {
+      throw new LazyDecodeException(wse);
+    }
   }
   
   @Override
@@ -374,14 +416,14 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
   }
   
   @Override
-  public Object peekn() throws EmptyStackException, IndexOutOfBoundsException {
+  public Object peekn() throws WarpScriptException, EmptyStackException, IndexOutOfBoundsException {
     int n = getn();
     
     if (list.size() < n - 1 || n < 0) {
       throw new IndexOutOfBoundsException();
     }
     
-    return list.get(list.size() - 1 - n);
+    return materialize(list.size() - 1 - n);
   }
   
   @Override
@@ -390,7 +432,60 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
       throw new WarpScriptException("Invalid level.");
     }
     
-    return list.get(list.size() - 1 - n);
+    return materialize(list.size() - 1 - n);
+  }
+  
+  /**
+   * Return the element at the given index of the stack, replacing it with its
+   * materialized form if needed.
+   */
+  private Object materialize(int index) throws WarpScriptException {
+    Object element = list.get(index);
+    Object materialized = materialize(element);
+    
+    if (materialized != element) {
+      list.set(index, materialized);
+    }
+    
+    return materialized;
+  }
+  
+  /**
+   * Decode the lazy Geo Time Series contained in an object retrieved from the stack
+   * when the function currently applied does not accept them. Lists and maps
+   * containing lazy Geo Time Series are modified in place.
+   */
+  private Object materialize(Object element) throws WarpScriptException {
+    if (!this.lazySeries || this.lazyAware) {
+      return element;
+    }
+    
+    return materializeLazy(element);
+  }
+  
+  private static Object materializeLazy(Object element) throws WarpScriptException {
+    if (element instanceof LazyGeoTimeSerie) {
+      return ((LazyGeoTimeSerie) element).decode();
+    } else if (element instanceof List) {
+      List<Object> l = (List<Object>) element;
+      for (int i = 0; i < l.size(); i++) {
+        Object o = l.get(i);
+        Object materialized = materializeLazy(o);
+        if (materialized != o) {
+          l.set(i, materialized);
+        }
+      }
+    } else if (element instanceof Map) {
+      for (Map.Entry<Object,Object> entry: ((Map<Object,Object>) element).entrySet()) {
+        Object o = entry.getValue();
+        Object materialized = materializeLazy(o);
+        if (materialized != o) {
+          entry.setValue(materialized);
+        }
+      }
+    }
+    
+    return element;
   }
   
   /**
@@ -752,7 +847,7 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
               
               WarpScriptStackFunction esf = (WarpScriptStackFunction) func;
 
-              esf.apply(this);
+              apply(esf);
             } else {
               //
               // Push any other type of function onto the stack
@@ -810,7 +905,7 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
           
           //long nano = System.nanoTime();
 
-          esf.apply(this);
+          apply(esf);
           
           //Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_FUNCTION_COUNT, esf.getSensisionLabels(), 1);
           //Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_FUNCTION_TIME_US, esf.getSensisionLabels(), (System.nanoTime() - nano) / 1000L);          
@@ -864,6 +959,15 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
       }      
     }
     
+    WarpScriptProfiler profiler = this.profiler;
+    
+    if (null != profiler && !profiler.isEnabled()) {
+      profiler = null;
+    }
+    
+    long nano = null != profiler ? System.nanoTime() : 0L;
+    long bytes = null != profiler ? profiler.allocated() : 0L;
+    
     try {
       // Apply the function
       List<Object> results = function.apply(args);
@@ -876,6 +980,41 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
       }
     } catch (WarpScriptJavaFunctionException ejfe) {
       throw new WarpScriptException(ejfe);
+    } finally {
+      if (null != profiler) {
+        profiler.record(WarpScriptProfiler.UDF_PREFIX + function.getClass().getName(), System.nanoTime() - nano, profiler.allocated() - bytes);
+      }
+    }
+  }
+  
+  /**
+   * Apply a function to this stack, recording the call if profiling is enabled
+   */
+  private final void apply(WarpScriptStackFunction function) throws WarpScriptException {
+    WarpScriptProfiler profiler = this.profiler;
+    
+    boolean aware = this.lazyAware;
+    this.lazyAware = function instanceof WarpScriptLazyAwareFunction;
+    
+    long nano = 0L;
+    long bytes = 0L;
+    
+    if (null != profiler && profiler.isEnabled()) {
+      nano = System.nanoTime();
+      bytes = profiler.allocated();
+    } else {
+      profiler = null;
+    }
+    
+    try {
+      function.apply(this);
+    } catch (LazyDecodeException lde) {
+      throw (WarpScriptException) lde.getCause();
+    } finally {
+      this.lazyAware = aware;
+      if (null != profiler) {
+        profiler.record(WarpScriptProfiler.getName(function), System.nanoTime() - nano, profiler.allocated() - bytes);
+      }
     }
   }
   
@@ -911,7 +1050,21 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
     // Execute macro
     //
     
-    exec((Macro) macro);    
+    WarpScriptProfiler profiler = this.profiler;
+    
+    if (null == profiler || !profiler.isEnabled()) {
+      exec((Macro) macro);
+      return;
+    }
+    
+    long nano = System.nanoTime();
+    long bytes = profiler.allocated();
+    
+    try {
+      exec((Macro) macro);
+    } finally {
+      profiler.record(WarpScriptProfiler.MACRO_PREFIX + symbol, System.nanoTime() - nano, profiler.allocated() - bytes);
+    }
   }
   
   @Override
@@ -1021,6 +1174,10 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
       this.currentops = ((Number) value).longValue();
     } else if (WarpScriptStack.ATTRIBUTE_HADOOP_PROGRESSABLE.equals(key)) {
       this.progressable = (Progressable) value;
+    } else if (WarpScriptStack.ATTRIBUTE_PROFILER.equals(key)) {
+      this.profiler = (WarpScriptProfiler) value;
+    } else if (WarpScriptStack.ATTRIBUTE_LAZY_SERIES.equals(key)) {
+      this.lazySeries = Boolean.TRUE.equals(value);
     }
     
     return currentValue;
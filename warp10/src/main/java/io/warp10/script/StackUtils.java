@@ -18,6 +18,7 @@ package io.warp10.script;
 
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.LazyGeoTimeSerie;
 import io.warp10.continuum.gts.UnsafeString;
 import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.continuum.store.thrift.data.Metadata;
@@ -25,6 +26,7 @@ import io.warp10.script.WarpScriptStack.Macro;
 import io.warp10.warp.sdk.WarpScriptJavaFunctionGTS;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringReader;
@@ -69,12 +71,11 @@ public class StackUtils {
       first = false;
       
       stack.push(i);
-      try {
-        Object o = stack.peekn();
-        
-        objectToJSON(out, o, recursionLevel, strictJSON);
-      } catch (WarpScriptException ee) {
-      }
+      
+      // Errors are propagated, e.g. when a lazy GTS cannot be decoded, so no partial JSON is reported as valid
+      Object o = stack.peekn();
+      
+      objectToJSON(out, o, recursionLevel, strictJSON);
     }
     
     out.print("]");
@@ -84,7 +85,7 @@ public class StackUtils {
     toJSON(out, stack, Integer.MAX_VALUE);
   }
   
-  private static void objectToJSON(PrintWriter out, Object o, AtomicInteger recursionLevel, boolean strictJSON) {
+  private static void objectToJSON(PrintWriter out, Object o, AtomicInteger recursionLevel, boolean strictJSON) throws WarpScriptException {
     
     if (recursionLevel.addAndGet(1) > WarpScriptStack.DEFAULT_MAX_RECURSION_LEVEL && ((o instanceof Map) || (o instanceof List) || (o instanceof Macro))) {
       out.write(" ...NESTED_CONTENT_REMOVED... ");
@@ -131,6 +132,9 @@ public class StackUtils {
         first = false;
       }
       out.print("]");
+    } else if (o instanceof LazyGeoTimeSerie) {
+      // Lazy GTS are serialized as the GTS they decode to
+      objectToJSON(out, ((LazyGeoTimeSerie) o).decode(), recursionLevel, strictJSON);
     } else if (o instanceof GeoTimeSerie) {
       out.print("{");
       out.print("\"c\":");
@@ -198,6 +202,52 @@ public class StackUtils {
     recursionLevel.addAndGet(-1);
   }
   
+  /**
+   * Register a resource which will be closed when the execution which uses
+   * the stack ends (see closeResources).
+   */
+  public static void registerCloseable(WarpScriptStack stack, Closeable closeable) {
+    synchronized(stack) {
+      List<Closeable> closeables = (List<Closeable>) stack.getAttribute(WarpScriptStack.ATTRIBUTE_CLOSEABLES);
+      
+      if (null == closeables) {
+        closeables = new ArrayList<Closeable>();
+        stack.setAttribute(WarpScriptStack.ATTRIBUTE_CLOSEABLES, closeables);
+      }
+      
+      closeables.add(closeable);
+    }
+  }
+  
+  /**
+   * Close all the resources registered on the stack. This MUST be called by
+   * whoever created the stack once the execution has ended.
+   */
+  public static void closeResources(WarpScriptStack stack) {
+    if (null == stack) {
+      return;
+    }
+    
+    List<Closeable> closeables;
+    
+    synchronized(stack) {
+      closeables = (List<Closeable>) stack.getAttribute(WarpScriptStack.ATTRIBUTE_CLOSEABLES);
+      stack.setAttribute(WarpScriptStack.ATTRIBUTE_CLOSEABLES, null);
+    }
+    
+    if (null == closeables) {
+      return;
+    }
+    
+    for (Closeable closeable: closeables) {
+      try {
+        closeable.close();
+      } catch (IOException ioe) {
+        // Ignore, the resource is released on a best effort basis
+      }
+    }
+  }
+  
   /**
    * Sanitize a script instance, removing comments etc.
    * Inspired by MemoryWarpScriptStack#exec
@@ -200,7 +200,8 @@ public class WarpScriptExecutor {
       
       return output;
     } finally {
-      // Clear the stack
+      // Release the resources allocated by the execution and clear the stack
+      StackUtils.closeResources(stack);
       stack.clear();
       this.sem.release();
     }
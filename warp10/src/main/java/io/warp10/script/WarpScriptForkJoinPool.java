@@ -0,0 +1,55 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.Configuration;
+
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * ForkJoinPool shared by the functions which split their work among several threads
+ * (parallel sorting of GTS, CORRELATE, OPTDTW) so the number of threads they use
+ * is bounded as a whole.
+ */
+public class WarpScriptForkJoinPool {
+
+  private static ForkJoinPool pool = null;
+
+  private WarpScriptForkJoinPool() {}
+
+  /**
+   * Return the shared pool, it is created upon first use with the parallelism
+   * configured via warpscript.forkjoin.parallelism
+   */
+  public static synchronized ForkJoinPool getPool() {
+    if (null == pool) {
+      int parallelism = Runtime.getRuntime().availableProcessors();
+
+      Properties props = WarpConfig.getProperties();
+
+      if (null != props && props.containsKey(Configuration.WARPSCRIPT_FORKJOIN_PARALLELISM)) {
+        parallelism = Integer.parseInt(props.getProperty(Configuration.WARPSCRIPT_FORKJOIN_PARALLELISM));
+      }
+
+      pool = new ForkJoinPool(Math.max(1, parallelism));
+    }
+
+    return pool;
+  }
+}
@@ -0,0 +1,27 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+/**
+ * Marker interface for functions which accept LazyGeoTimeSerie instances.
+ *
+ * When a function which does not implement this interface is applied, the
+ * lazy Geo Time Series it retrieves from the stack are decoded into GeoTimeSerie
+ * instances, directly or when contained in a list or map.
+ */
+public interface WarpScriptLazyAwareFunction {
+}
@@ -248,6 +248,9 @@ public class WarpScriptLib {
     functions.put("TIMINGS", new TIMINGS("TIMINGS")); // NOT TO BE DOCUMENTED (YET)
     functions.put("NOTIMINGS", new NOTIMINGS("NOTIMINGS")); // NOT TO BE DOCUMENTED (YET)
     functions.put("ELAPSED", new ELAPSED("ELAPSED")); // NOT TO BE DOCUMENTED (YET)
+    functions.put("PROFILING", new PROFILING("PROFILING"));
+    functions.put("NOPROFILING", new NOPROFILING("NOPROFILING"));
+    functions.put("PROFILE", new PROFILE("PROFILE"));
     functions.put("->LIST", new TOLIST("->LIST"));                      // doc/einstein/function_TOLIST         Example done    Refactored
     functions.put("LIST->", new LISTTO("LIST->"));                      // doc/einstein/function_LISTTO         Example done    Refactored
     functions.put("->SET", new TOSET("->SET"));
@@ -295,6 +298,7 @@ public class WarpScriptLib {
     functions.put("MAXDEPTH", new MAXDEPTH("MAXDEPTH"));
     functions.put("RESET", new RESET("RESET"));
     functions.put("MAXOPS", new MAXOPS("MAXOPS"));
+    functions.put("CACHERESULT", new CACHERESULT("CACHERESULT"));
     functions.put("MAXLOOP", new MAXLOOP("MAXLOOP"));
     functions.put("MAXBUCKETS", new MAXBUCKETS("MAXBUCKETS"));
     functions.put("MAXPIXELS", new MAXPIXELS("MAXPIXELS"));
@@ -525,6 +529,7 @@ public class WarpScriptLib {
     functions.put("PATTERNDETECTION", new PATTERNDETECTION("PATTERNDETECTION"));
     functions.put("DTW", new DTW("DTW"));
     functions.put("OPTDTW", new OPTDTW("OPTDTW"));
+    functions.put("ZOPTDTW", new OPTDTW("ZOPTDTW", true));
     functions.put("VALUEHISTOGRAM", new VALUEHISTOGRAM("VALUEHISTORGRAM"));
     functions.put("PROBABILITY", new PROBABILITY.Builder("PROBABILITY"));
     functions.put("HASH", new HASH("HASH"));
@@ -0,0 +1,48 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+
+/**
+ * Interface implemented by N-ary functions which can also be applied to
+ * columns of primitive values, once the ticks of the GTS instances have been
+ * aligned. Such functions must clear locations and elevations.
+ * 
+ * Booleans are represented as 0 (false) or 1 (true) in long columns.
+ */
+public interface WarpScriptNAryKernel {
+  /**
+   * @param type Type of all the GTS instances the function is applied to
+   * @param n Number of GTS instances
+   * @return The type of the values produced by the kernel, or UNDEFINED if it cannot be applied to those GTS
+   */
+  public TYPE getKernelType(TYPE type, int n);
+  
+  /**
+   * Compute the results for 'len' aligned ticks.
+   * 
+   * @param len Number of ticks
+   * @param present present[i][t] is true if the i-th GTS has a value at the t-th tick
+   * @param longs Values of the GTS if they are LONG or BOOLEAN, null otherwise
+   * @param doubles Values of the GTS if they are DOUBLE, null otherwise
+   * @param lresults Results if the kernel type is LONG or BOOLEAN
+   * @param dresults Results if the kernel type is DOUBLE
+   * @param defined Must be set to true for the ticks which have a result
+   */
+  public void apply(int len, boolean[][] present, long[][] longs, double[][] doubles, long[] lresults, double[] dresults, boolean[] defined);
+}
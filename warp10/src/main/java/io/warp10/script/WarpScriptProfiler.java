@@ -0,0 +1,192 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.continuum.sensision.SensisionConstants;
+import io.warp10.sensision.Sensision;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records the number of calls, the time spent and the bytes allocated per function or macro
+ * executed by a stack. Times and allocations include those of nested calls.
+ * 
+ * Allocations are only available on JVMs whose ThreadMXBean reports per thread allocations.
+ * 
+ * Macro and UDF names are chosen by users, they are therefore only exported to Sensision under
+ * fixed names so the number of exported series stays bounded.
+ */
+public class WarpScriptProfiler {
+  
+  private static final com.sun.management.ThreadMXBean THREAD_MXBEAN;
+  
+  static {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    
+    if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+      THREAD_MXBEAN = (com.sun.management.ThreadMXBean) bean;
+    } else {
+      THREAD_MXBEAN = null;
+    }
+  }
+  
+  public static final String KEY_CALLS = "calls";
+  public static final String KEY_TIME = "time";
+  public static final String KEY_ALLOCATED = "allocated";
+  
+  /**
+   * Prefixes of the names under which calls to macros and UDFs are recorded
+   */
+  public static final String MACRO_PREFIX = "@";
+  public static final String UDF_PREFIX = "UDF ";
+  
+  /**
+   * Names under which calls to macros, UDFs and functions which are not part of WarpScriptLib are exported
+   */
+  public static final String EXPORT_MACROS = "@macros";
+  public static final String EXPORT_UDFS = "UDF";
+  public static final String EXPORT_OTHERS = "other";
+  
+  private static final class Entry {
+    private long calls = 0L;
+    private long nanos = 0L;
+    private long bytes = 0L;
+  }
+  
+  private final Map<String,Entry> entries = new HashMap<String,Entry>();
+  
+  private boolean enabled = true;
+  
+  public boolean isEnabled() {
+    return this.enabled;
+  }
+  
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+  
+  /**
+   * @return The number of bytes allocated so far by the current thread, or 0 if not available
+   */
+  public long allocated() {
+    if (null == THREAD_MXBEAN) {
+      return 0L;
+    }
+    
+    return THREAD_MXBEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+  
+  public void record(String name, long nanos, long bytes) {
+    add(this.entries, name, 1L, nanos, bytes);
+  }
+  
+  private static void add(Map<String,Entry> entries, String name, long calls, long nanos, long bytes) {
+    Entry entry = entries.get(name);
+    
+    if (null == entry) {
+      entry = new Entry();
+      entries.put(name, entry);
+    }
+    
+    entry.calls += calls;
+    entry.nanos += nanos;
+    entry.bytes += bytes;
+  }
+  
+  /**
+   * Name under which calls to 'function' are recorded
+   */
+  public static String getName(Object function) {
+    if (function instanceof NamedWarpScriptFunction) {
+      return ((NamedWarpScriptFunction) function).getName();
+    } else {
+      return function.getClass().getName();
+    }
+  }
+  
+  /**
+   * Name under which the calls recorded under 'name' are exported
+   */
+  public static String getExportName(String name) {
+    if (name.startsWith(MACRO_PREFIX)) {
+      return EXPORT_MACROS;
+    } else if (name.startsWith(UDF_PREFIX)) {
+      return EXPORT_UDFS;
+    } else if (null != WarpScriptLib.getFunction(name)) {
+      return name;
+    } else {
+      return EXPORT_OTHERS;
+    }
+  }
+  
+  /**
+   * @return A map of function name to a map of calls, time (in ns) and allocated bytes
+   */
+  public Map<String,Object> toMap() {
+    return toMap(this.entries);
+  }
+  
+  /**
+   * @return The statistics as exported, i.e. summed per export name, in the format of toMap
+   */
+  public Map<String,Object> toExportMap() {
+    return toMap(aggregate());
+  }
+  
+  private Map<String,Entry> aggregate() {
+    Map<String,Entry> aggregated = new HashMap<String,Entry>();
+    
+    for (Map.Entry<String,Entry> entry: this.entries.entrySet()) {
+      add(aggregated, getExportName(entry.getKey()), entry.getValue().calls, entry.getValue().nanos, entry.getValue().bytes);
+    }
+    
+    return aggregated;
+  }
+  
+  private static Map<String,Object> toMap(Map<String,Entry> entries) {
+    Map<String,Object> profile = new HashMap<String,Object>();
+    
+    for (Map.Entry<String,Entry> entry: entries.entrySet()) {
+      Map<String,Object> stats = new HashMap<String,Object>();
+      stats.put(KEY_CALLS, entry.getValue().calls);
+      stats.put(KEY_TIME, entry.getValue().nanos);
+      stats.put(KEY_ALLOCATED, entry.getValue().bytes);
+      profile.put(entry.getKey(), stats);
+    }
+    
+    return profile;
+  }
+  
+  /**
+   * Add the recorded statistics to the per function Sensision metrics
+   * 
+   * @see #getExportName(String)
+   */
+  public void export() {
+    for (Map.Entry<String,Entry> entry: aggregate().entrySet()) {
+      Map<String,String> labels = new HashMap<String,String>();
+      labels.put(SensisionConstants.SENSISION_LABEL_FUNCTION, entry.getKey());
+      Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_PROFILE_CALLS, labels, entry.getValue().calls);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_PROFILE_TIME_US, labels, entry.getValue().nanos / 1000L);
+      if (null != THREAD_MXBEAN) {
+        Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_PROFILE_ALLOCATED, labels, entry.getValue().bytes);
+      }
+    }
+  }
+}
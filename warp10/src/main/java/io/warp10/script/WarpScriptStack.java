@@ -215,6 +215,31 @@ public interface WarpScriptStack {
    */
   public static final String ATTRIBUTE_EXPORTED_SYMBOLS = "exported.symbols";
   
+  /**
+   * TTL in ms during which the result of the script can be served to identical requests
+   */
+  public static final String ATTRIBUTE_RESULT_CACHE_TTL = "result.cache.ttl";
+  
+  /**
+   * WarpScriptProfiler recording the calls of functions and macros, if profiling was requested
+   */
+  public static final String ATTRIBUTE_PROFILER = "profiler";
+  
+  /**
+   * List of Closeable resources (spill files, ...) to close when the execution ends
+   */
+  public static final String ATTRIBUTE_CLOSEABLES = "closeables";
+  
+  /**
+   * Idle JSR 223 engines kept for reuse by the scripting functions until the execution ends
+   */
+  public static final String ATTRIBUTE_SCRIPT_ENGINES = "script.engines";
+  
+  /**
+   * Flag set when lazy Geo Time Series may have been pushed onto the stack
+   */
+  public static final String ATTRIBUTE_LAZY_SERIES = "lazy.series";
+  
   /**
    * Index of RETURN_DEPTH counter
    */
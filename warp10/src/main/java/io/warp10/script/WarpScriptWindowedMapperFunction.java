@@ -0,0 +1,51 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.continuum.gts.GeoTimeSerie;
+
+/**
+ * Mapper which can maintain its state incrementally as the mapping window
+ * slides over a GTS instead of being applied to a fresh extract of the window
+ * for each tick.
+ */
+public interface WarpScriptWindowedMapperFunction extends WarpScriptMapperFunction {
+
+  /**
+   * State of a mapper over a sliding window. Indices refer to the values of the sorted
+   * GTS the window was created for. Values leave the window in the order they entered it.
+   */
+  public static interface Window {
+    public void enter(int idx) throws WarpScriptException;
+    public void leave(int idx) throws WarpScriptException;
+
+    /**
+     * Compute the mapper result for 'tick', the window spans the indices [lo,hi[
+     *
+     * @return An array of tick, location, elevation, value as returned by apply
+     */
+    public Object[] apply(long tick, int lo, int hi) throws WarpScriptException;
+  }
+
+  /**
+   * Create a new window over a GTS.
+   *
+   * @param gts GTS sorted by ascending ticks, it MUST NOT be modified while the window is in use
+   * @return The window or null if the mapper cannot run incrementally on this GTS
+   */
+  public Window window(GeoTimeSerie gts);
+}
@@ -16,6 +16,7 @@
 
 package io.warp10.script.aggregator;
 
+import io.warp10.continuum.gts.GTSWindows;
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptAggregatorFunction;
@@ -23,12 +24,13 @@ import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptWindowedMapperFunction;
 
 /**
  * Return the number of measures with elevation and location from
  * the latest measure.
  */
-public class Count extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Count extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptWindowedMapperFunction {
   
   private final boolean omitNulls;
   
@@ -37,6 +39,11 @@ public class Count extends NamedWarpScriptFunction implements WarpScriptAggregat
     this.omitNulls = omitNulls;
   }
   
+  @Override
+  public Window window(GeoTimeSerie gts) {
+    return GTSWindows.count(gts);
+  }
+  
   @Override
   public Object apply(Object[] args) throws WarpScriptException {
     long tick = (long) args[0];
@@ -16,6 +16,7 @@
 
 package io.warp10.script.aggregator;
 
+import io.warp10.continuum.gts.GTSWindows;
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptAggregatorFunction;
@@ -23,11 +24,12 @@ import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptWindowedMapperFunction;
 
 /**
  * Retain the measurement with the highest value and timestamp
  */
-public class Max extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Max extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptWindowedMapperFunction {
   
   private final boolean ignoreNulls;
   
@@ -36,6 +38,11 @@ public class Max extends NamedWarpScriptFunction implements WarpScriptAggregator
     this.ignoreNulls = ignoreNulls;
   }
   
+  @Override
+  public Window window(GeoTimeSerie gts) {
+    return GTSWindows.extremum(gts, true);
+  }
+  
   @Override
   public Object apply(Object[] args) throws WarpScriptException {
     long[] ticks = (long[]) args[3];
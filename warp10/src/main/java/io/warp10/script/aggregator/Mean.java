@@ -16,6 +16,7 @@
 
 package io.warp10.script.aggregator;
 
+import io.warp10.continuum.gts.GTSWindows;
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.NamedWarpScriptFunction;
@@ -24,6 +25,7 @@ import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptWindowedMapperFunction;
 
 import com.geoxp.GeoXPLib;
 
@@ -32,7 +34,7 @@ import com.geoxp.GeoXPLib;
  * The returned location will be the centroid of all locations.
  * The returned elevation will be the average of all elevations.
  */
-public class Mean extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Mean extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptWindowedMapperFunction {
   
   private final boolean ignoreNulls;
   
@@ -41,6 +43,11 @@ public class Mean extends NamedWarpScriptFunction implements WarpScriptAggregato
     this.ignoreNulls = ignoreNulls;
   }
   
+  @Override
+  public Window window(GeoTimeSerie gts) {
+    return GTSWindows.mean(gts);
+  }
+  
   @Override
   public Object apply(Object[] args) throws WarpScriptException {
     long[] ticks = (long[]) args[3];
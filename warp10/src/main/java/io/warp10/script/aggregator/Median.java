@@ -16,6 +16,8 @@
 
 package io.warp10.script.aggregator;
 
+import io.warp10.continuum.SortUtil;
+import io.warp10.continuum.gts.GTSWindows;
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptAggregatorFunction;
@@ -23,6 +25,7 @@ import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptWindowedMapperFunction;
 
 import java.util.Arrays;
 
@@ -33,12 +36,17 @@ import com.geoxp.GeoXPLib;
  * The returned location will be the median of all locations.
  * The returned elevation will be the median of all elevations.
  */
-public class Median extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Median extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptWindowedMapperFunction {
   
   public Median(String name) {
     super(name);
   }
   
+  @Override
+  public Window window(GeoTimeSerie gts) {
+    return GTSWindows.median(gts);
+  }
+  
   @Override
   public Object apply(Object[] args) throws WarpScriptException {
     long tick = (long) args[0];
@@ -47,83 +55,191 @@ public class Median extends NamedWarpScriptFunction implements WarpScriptAggrega
     long[] elevations = (long[]) args[5];
     Object[] values = (Object[]) args[6];
 
-    //
-    // Sort locations, elevations
-    //
-    
-    Arrays.sort(locations);
-    Arrays.sort(elevations);
-    
     long location = GeoTimeSerie.NO_LOCATION;
     long elevation = GeoTimeSerie.NO_ELEVATION;
     
     //
-    // If start and end locations are identical, set median to that value
+    // Locations and elevations are reordered in place, the median is selected
+    // among the defined ones rather than sorting them
     //
     
-    if (locations[0] == locations[locations.length - 1]) {
+    //
+    // If all locations are identical, set median to that value
+    //
+    
+    if (identical(locations)) {
       location = locations[0];
     } else {
-      // Remove NO_LOCATION
-      int idx = Arrays.binarySearch(locations, GeoTimeSerie.NO_LOCATION);
-      int len = locations.length;
-      
-      if (idx >= 0) {
-        int i = idx + 1;
-        while (i < locations.length && GeoTimeSerie.NO_LOCATION == locations[i]) {
-          i++;
-        }
-        // Remove the NO_LOCATION values from the array
-        if (i < locations.length) {
-          System.arraycopy(locations, i, locations, idx, locations.length - i);
-          len -= (i - idx);
-        }
-      }
+      int len = compact(locations, GeoTimeSerie.NO_LOCATION);
       
       // Compute median of location
       
       if (0 == len % 2) {
-        double[] high = GeoXPLib.fromGeoXPPoint(locations[len / 2]);
-        double[] low = GeoXPLib.fromGeoXPPoint(locations[(len / 2) - 1]);
+        double[] high = GeoXPLib.fromGeoXPPoint(SortUtil.select(locations, 0, len, len / 2));
+        double[] low = GeoXPLib.fromGeoXPPoint(SortUtil.max(locations, 0, len / 2));
         location = GeoXPLib.toGeoXPPoint((high[0] + low[0])/2.0D, (high[1] + low[1])/2.0D);
       } else {
-        location = locations[len / 2];
+        location = SortUtil.select(locations, 0, len, len / 2);
       }      
     }
 
     //
-    // If start and end elevations are identical, set median to that value
+    // If all elevations are identical, set median to that value
     //
     
-    if (elevations[0] == elevations[elevations.length - 1]) {
+    if (identical(elevations)) {
       elevation = elevations[0];
     } else {
-      // Remove NO_elevation
-      int idx = Arrays.binarySearch(elevations, GeoTimeSerie.NO_ELEVATION);
-      int len = elevations.length;
-      
-      if (idx >= 0) {
-        int i = idx + 1;
-        while (i < elevations.length && GeoTimeSerie.NO_ELEVATION == elevations[i]) {
-          i++;
-        }
-        // Remove the NO_elevation values from the array
-        if (i < elevations.length) {
-          System.arraycopy(elevations, i, elevations, idx, elevations.length - i);
-          len -= (i - idx);
-        }
-      }
+      int len = compact(elevations, GeoTimeSerie.NO_ELEVATION);
       
       // Compute median of elevation
       
       if (0 == len % 2) {
-        elevation = (elevations[len / 2] + elevations[(len / 2) - 1]) / 2L;
+        long high = SortUtil.select(elevations, 0, len, len / 2);
+        elevation = (high + SortUtil.max(elevations, 0, len / 2)) / 2L;
       } else {
-        elevation = elevations[len / 2];
+        elevation = SortUtil.select(elevations, 0, len, len / 2);
       }      
     }
 
+    //
+    // Determine if the non null values are all LONG or all DOUBLE
+    //
+    
+    int nonnulls = 0;
+    boolean longs = true;
+    boolean doubles = true;
+    
+    for (int i = 0; i < values.length; i++) {
+      if (null == values[i]) {
+        continue;
+      }
+      nonnulls++;
+      if (!(values[i] instanceof Long)) {
+        longs = false;
+      }
+      if (!(values[i] instanceof Double)) {
+        doubles = false;
+      }
+    }
+    
+    Object median = null;
+    
+    if (0 == nonnulls) {
+      median = null;
+    } else if (longs) {
+      median = longMedian(values, nonnulls);
+    } else if (doubles) {
+      median = doubleMedian(values, nonnulls);
+    } else {
+      median = objectMedian(values);
+    }
+    
+    return new Object[] { tick, location, elevation, median };
+  }
+  
+  /**
+   * Return true if all elements of the array are identical
+   */
+  private static boolean identical(long[] values) {
+    long first = values[0];
+    for (int i = 1; i < values.length; i++) {
+      if (first != values[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * Move the elements which differ from 'missing' to the beginning of the array and return their number
+   */
+  private static int compact(long[] values, long missing) {
+    int len = 0;
+    for (int i = 0; i < values.length; i++) {
+      if (missing != values[i]) {
+        values[len++] = values[i];
+      }
+    }
+    return len;
+  }
+  
+  private static Object longMedian(Object[] values, int nonnulls) {
+    long[] longs = SortUtil.scratch().longs(nonnulls);
+    
+    int len = 0;
+    long min = Long.MAX_VALUE;
+    long max = Long.MIN_VALUE;
     
+    for (int i = 0; i < values.length; i++) {
+      if (null != values[i]) {
+        long value = (long) values[i];
+        longs[len++] = value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+      }
+    }
+    
+    //
+    // If extrema are identical, use this as the median
+    //
+    
+    if (min == max) {
+      return min;
+    }
+    
+    long high = SortUtil.select(longs, 0, len, len / 2);
+    
+    if (0 == len % 2) {
+      return (high + SortUtil.max(longs, 0, len / 2)) / 2L;
+    } else {
+      return high;
+    }
+  }
+  
+  private static Object doubleMedian(Object[] values, int nonnulls) {
+    double[] doubles = SortUtil.scratch().doubles(nonnulls);
+    
+    int len = 0;
+    
+    for (int i = 0; i < values.length; i++) {
+      if (null != values[i]) {
+        doubles[len++] = (double) values[i];
+      }
+    }
+    
+    //
+    // If extrema are identical, use this as the median
+    //
+    
+    double min = doubles[0];
+    double max = doubles[0];
+    
+    for (int i = 1; i < len; i++) {
+      if (Double.compare(doubles[i], min) < 0) {
+        min = doubles[i];
+      } else if (Double.compare(doubles[i], max) > 0) {
+        max = doubles[i];
+      }
+    }
+    
+    if (0 == Double.compare(min, max)) {
+      return min;
+    }
+    
+    double high = SortUtil.select(doubles, 0, len, len / 2);
+    
+    if (0 == len % 2) {
+      return (high + SortUtil.max(doubles, 0, len / 2)) / 2.0D;
+    } else {
+      return high;
+    }
+  }
+  
+  /**
+   * Median of non numeric or mixed type values, they are sorted according to their natural order
+   */
+  private static Object objectMedian(Object[] values) throws WarpScriptException {
     //
     // Remove nulls
     //
@@ -190,6 +306,6 @@ public class Median extends NamedWarpScriptFunction implements WarpScriptAggrega
       }      
     }
     
-    return new Object[] { tick, location, elevation, median };
+    return median;
   }
 }
@@ -16,6 +16,8 @@
 
 package io.warp10.script.aggregator;
 
+import io.warp10.continuum.SortUtil;
+import io.warp10.continuum.gts.GTSWindows;
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptAggregatorFunction;
@@ -24,11 +26,9 @@ import io.warp10.script.WarpScriptMapperFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptWindowedMapperFunction;
 import io.warp10.script.WarpScriptStack;
 
-import java.util.Comparator;
-import java.util.Arrays;
-
 import com.geoxp.GeoXPLib;
 
 /**
@@ -36,7 +36,7 @@ import com.geoxp.GeoXPLib;
  * The returned location will be that of the chosen value
  * The returned elevation will be that of the chosen value
  */
-public class Percentile extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Percentile extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptWindowedMapperFunction {
   
   /**
    * Should we use linear interpolation?
@@ -76,6 +76,15 @@ public class Percentile extends NamedWarpScriptFunction implements WarpScriptAgg
     this.interpolate = interpolate;
   }
   
+  @Override
+  public Window window(GeoTimeSerie gts) {
+    // Interpolation is not supported incrementally
+    if (this.interpolate) {
+      return null;
+    }
+    return GTSWindows.percentile(gts, this.percentile);
+  }
+  
   @Override
   public Object apply(Object[] args) throws WarpScriptException {
     long[] ticks = (long[]) args[3];
@@ -88,57 +97,65 @@ public class Percentile extends NamedWarpScriptFunction implements WarpScriptAgg
     }
     
     //
-    // Sort the array indices by increasing value
-    // FIXME(hbs): find something less memory hungry...
+    // Compute sort keys so comparing them orders the values, doubles are mapped
+    // to longs preserving their order. Keys and indices live in per thread scratch arrays.
     //
     
-    Integer[] indices = new Integer[values.length];
-    for (int i = 0; i < indices.length; i++) {
-      indices[i] = i;
-    }
+    int len = values.length;
+    
+    SortUtil.Scratch scratch = SortUtil.scratch();
+    long[] keys = scratch.longs(len);
+    int[] indices = scratch.ints(len);
     
-    try {
-      Arrays.sort(indices, new Comparator<Integer>() {
-        @Override
-        public int compare(Integer idx1, Integer idx2) {
-          if (values[idx1] instanceof Double) {
-            return (int) (((Number) values[idx1]).doubleValue() - ((Number) values[idx2]).doubleValue());
-          } else if (values[idx1] instanceof Long) {
-            return (int) (((Number) values[idx1]).longValue() - ((Number) values[idx2]).longValue());
-          } else {
-            throw new RuntimeException("PERCENTILE can only operate on numeric Geo Time Series.");
-          }
+    boolean doubles = false;
+    
+    if (len > 1) {
+      for (int i = 0; i < len; i++) {
+        if (values[i] instanceof Double) {
+          doubles = true;
+        } else if (!(values[i] instanceof Long)) {
+          throw new WarpScriptException("PERCENTILE can only operate on numeric Geo Time Series.");
         }
-      });      
-    } catch (RuntimeException re) {
-      throw new WarpScriptException(re.getMessage());
+      }
+      
+      for (int i = 0; i < len; i++) {
+        keys[i] = doubles ? SortUtil.sortableBits(((Number) values[i]).doubleValue()) : (long) values[i];
+      }
+    }
+    
+    for (int i = 0; i < len; i++) {
+      indices[i] = i;
     }
     
     //
     // Compute rank
     //
     
-    int n = (int) Math.round(0.5 + this.percentile * indices.length / 100.0) - 1;
+    int n = (int) Math.round(0.5 + this.percentile * len / 100.0) - 1;
 
     if (!this.interpolate) {
-      if (n >= indices.length) { n--; }
-      return new Object[] { ticks[indices[n]], locations[indices[n]], elevations[indices[n]], values[indices[n]] };
+      if (n >= len) { n--; }
+      // Only the value at rank n is needed, ties are ordered by index as a stable sort would
+      int idx = SortUtil.selectIndex(indices, keys, 0, len, n, scratch.tmp(len));
+      return new Object[] { ticks[idx], locations[idx], elevations[idx], values[idx] };
     } else {
-      int m = (int) Math.floor(0.5 + this.percentile * indices.length / 100.0) - 1;
+      SortUtil.sortIndices(indices, keys, 0, len, scratch.tmp(len));
+      
+      int m = (int) Math.floor(0.5 + this.percentile * len / 100.0) - 1;
       
-      double pn = (100.0 / indices.length) * (n + 1 - 0.5D);
-      double pm = (100.0 / indices.length) * (m + 1 - 0.5D);
+      double pn = (100.0 / len) * (n + 1 - 0.5D);
+      double pm = (100.0 / len) * (m + 1 - 0.5D);
 
       if (0 == n && this.percentile < pn) {
         return new Object[] { ticks[indices[0]], locations[indices[0]], elevations[indices[0]], values[indices[0]] };
-      } else if (m == indices.length - 1 && this.percentile > pm) {
+      } else if (m == len - 1 && this.percentile > pm) {
         return new Object[] { ticks[indices[m]], locations[indices[m]], elevations[indices[m]], values[indices[m]] };
       } else if (pn == this.percentile) {
         return new Object[] { ticks[indices[n]], locations[indices[n]], elevations[indices[n]], values[indices[n]] };
       } else if (pm == this.percentile) {
         return new Object[] { ticks[indices[m]], locations[indices[m]], elevations[indices[m]], values[indices[m]] };
       } else if (pm < this.percentile && this.percentile < pn) {
-        double factor = indices.length * (this.percentile - pm) / 100.0D;
+        double factor = len * (this.percentile - pm) / 100.0D;
         
         long tick = (long) (ticks[indices[m]] + factor * (ticks[indices[n]] - ticks[indices[m]]));
         double v;
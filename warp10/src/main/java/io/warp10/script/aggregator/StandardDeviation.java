@@ -16,6 +16,7 @@
 
 package io.warp10.script.aggregator;
 
+import io.warp10.continuum.gts.GTSWindows;
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptAggregatorFunction;
@@ -24,17 +25,20 @@ import io.warp10.script.WarpScriptMapperFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptWindowedMapperFunction;
 import io.warp10.script.WarpScriptStack;
 
-public class StandardDeviation extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptReducerFunction, WarpScriptBucketizerFunction {
+public class StandardDeviation extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptReducerFunction, WarpScriptBucketizerFunction, WarpScriptWindowedMapperFunction {
   
   private final boolean forbidNulls;
   private final Variance variance;
+  private final boolean useBessel;
   
   public StandardDeviation(String name, boolean useBessel, boolean forbidNulls) {
     super(name);
     this.forbidNulls = forbidNulls;
     this.variance = new Variance("", useBessel, forbidNulls);
+    this.useBessel = useBessel;
   }
   
   public static class Builder extends NamedWarpScriptFunction implements WarpScriptStackFunction {
@@ -60,6 +64,11 @@ public class StandardDeviation extends NamedWarpScriptFunction implements WarpSc
     }    
   }
   
+  @Override
+  public Window window(GeoTimeSerie gts) {
+    return GTSWindows.variance(gts, this.useBessel, true);
+  }
+  
   @Override
   public Object apply(Object[] args) throws io.warp10.script.WarpScriptException {
     Object[] var = (Object[]) variance.apply(args); 
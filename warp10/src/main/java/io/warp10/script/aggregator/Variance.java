@@ -16,6 +16,7 @@
 
 package io.warp10.script.aggregator;
 
+import io.warp10.continuum.gts.GTSWindows;
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.NamedWarpScriptFunction;
@@ -25,9 +26,10 @@ import io.warp10.script.WarpScriptMapperFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptWindowedMapperFunction;
 import io.warp10.script.WarpScriptStack;
 
-public class Variance extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptReducerFunction, WarpScriptBucketizerFunction {
+public class Variance extends NamedWarpScriptFunction implements WarpScriptAggregatorFunction, WarpScriptMapperFunction, WarpScriptReducerFunction, WarpScriptBucketizerFunction, WarpScriptWindowedMapperFunction {
   
   private final boolean useBessel;
   private final boolean forbidNulls;
@@ -62,6 +64,11 @@ public class Variance extends NamedWarpScriptFunction implements WarpScriptAggre
     
   }
   
+  @Override
+  public Window window(GeoTimeSerie gts) {
+    return GTSWindows.variance(gts, this.useBessel, false);
+  }
+  
   @Override
   public Object apply(Object[] args) throws io.warp10.script.WarpScriptException {
     long[] ticks = (long[]) args[3];
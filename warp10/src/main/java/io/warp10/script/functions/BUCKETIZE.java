@@ -18,10 +18,12 @@ package io.warp10.script.functions;
 
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.LazyGeoTimeSerie;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptLazyAwareFunction;
 import io.warp10.script.WarpScriptStack;
 
 import java.util.ArrayList;
@@ -30,7 +32,7 @@ import java.util.List;
 /**
  * Bucketizes some GTS instances.
  */
-public class BUCKETIZE extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+public class BUCKETIZE extends NamedWarpScriptFunction implements WarpScriptStackFunction, WarpScriptLazyAwareFunction {
 
   public BUCKETIZE(String name) {
     super(name);
@@ -51,7 +53,7 @@ public class BUCKETIZE extends NamedWarpScriptFunction implements WarpScriptStac
     }
     
     for (int i = 0; i < params.size() - 4; i++) {
-      if (!(params.get(i) instanceof GeoTimeSerie) && !(params.get(i) instanceof List)) {
+      if (!(params.get(i) instanceof GeoTimeSerie) && !(params.get(i) instanceof LazyGeoTimeSerie) && !(params.get(i) instanceof List)) {
         throw new WarpScriptException(getName() + " expects a list of geo time series as first parameter.");
       }      
     }
@@ -64,18 +66,22 @@ public class BUCKETIZE extends NamedWarpScriptFunction implements WarpScriptStac
       throw new WarpScriptException(getName() + " expects lastbucket, bucketspan and bucketcount as last 3 parameters.");
     }
     
-    List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();
+    //
+    // Lazy GTS are kept as is and only decoded when bucketized
+    //
+    
+    List<Object> series = new ArrayList<Object>();
 
     
     for (int i = 0; i < params.size() - 4; i++) {
-      if (params.get(i) instanceof GeoTimeSerie) {
-        series.add((GeoTimeSerie) params.get(i));
+      if (params.get(i) instanceof GeoTimeSerie || params.get(i) instanceof LazyGeoTimeSerie) {
+        series.add(params.get(i));
       } else if (params.get(i) instanceof List) {
         for (Object o: (List) params.get(i)) {
-          if (!(o instanceof GeoTimeSerie)) {
+          if (!(o instanceof GeoTimeSerie) && !(o instanceof LazyGeoTimeSerie)) {
             throw new WarpScriptException(getName() + " expects a list of geo time series as first parameter.");
           }
-          series.add((GeoTimeSerie) o);
+          series.add(o);
         }      
       }      
     }
@@ -89,7 +95,8 @@ public class BUCKETIZE extends NamedWarpScriptFunction implements WarpScriptStac
     
     long maxbuckets = (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_MAX_BUCKETS);
     
-    for (GeoTimeSerie gts: series) {
+    for (Object o: series) {
+      GeoTimeSerie gts = o instanceof LazyGeoTimeSerie ? ((LazyGeoTimeSerie) o).decode() : (GeoTimeSerie) o;
       GeoTimeSerie b = GTSHelper.bucketize(gts, bucketspan, bucketcount, lastbucket, bucketizer, maxbuckets);
       
       bucketized.add(b);
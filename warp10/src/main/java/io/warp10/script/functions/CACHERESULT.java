@@ -0,0 +1,47 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.functions;
+
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptStackFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+/**
+ * Declare that the result of the script can be cached and served to identical requests
+ * for the given TTL (in ms), if the endpoint executing the script has a result cache.
+ * A TTL of 0 makes the result uncacheable again.
+ */
+public class CACHERESULT extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+  
+  public CACHERESULT(String name) {
+    super(name);
+  }
+  
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    Object top = stack.pop();
+    
+    if (!(top instanceof Long) || ((Long) top) < 0) {
+      throw new WarpScriptException(getName() + " expects a positive numeric (long) TTL in ms.");
+    }
+    
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_RESULT_CACHE_TTL, top);
+    
+    return stack;
+  }
+}
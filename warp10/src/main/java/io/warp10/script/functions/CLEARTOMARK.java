@@ -19,13 +19,14 @@ package io.warp10.script.functions;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptLazyAwareFunction;
 import io.warp10.script.WarpScriptStack;
 import io.warp10.script.WarpScriptStack.Mark;
 
 /**
  * Remove elements off the stack up to and including MARK
  */
-public class CLEARTOMARK extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+public class CLEARTOMARK extends NamedWarpScriptFunction implements WarpScriptStackFunction, WarpScriptLazyAwareFunction {
   
   public CLEARTOMARK(String name) {
     super(name);
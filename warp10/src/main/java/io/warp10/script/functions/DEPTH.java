@@ -19,9 +19,10 @@ package io.warp10.script.functions;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptLazyAwareFunction;
 import io.warp10.script.WarpScriptStack;
 
-public class DEPTH extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+public class DEPTH extends NamedWarpScriptFunction implements WarpScriptStackFunction, WarpScriptLazyAwareFunction {
   
   public DEPTH(String name) {
     super(name);
@@ -153,11 +153,23 @@ public class DTW extends NamedWarpScriptFunction implements WarpScriptStackFunct
   }
   
   public double compute(double[] values1, int offset1, int len1, double[] values2, int offset2, int len2, double threshold) {
+    return compute(values1, offset1, len1, values2, offset2, len2, threshold, null);
+  }
+  
+  /**
+   * Compute Dynamic Time Warping between two arrays, aborting if the threshold is exceeded
+   * 
+   * @param remaining If not null, remaining[i] is a lower bound of the cost contributed by values2[offset2 + i + 1 ... offset2 + len2 - 1],
+   *                  the computation is then aborted as soon as the cost so far plus this bound exceeds the threshold. It is ignored if len1 &gt; len2.
+   * @return The computed DTW distance or -1 if the threshold is exceeded
+   */
+  public double compute(double[] values1, int offset1, int len1, double[] values2, int offset2, int len2, double threshold, double[] remaining) {
     //
     // Make sure value1 is the shortest array
     //
     
     if (len1 > len2) {
+      remaining = null;
       double[] tmp = values1;
       values1 = values2;
       values2 = tmp;
@@ -187,6 +199,8 @@ public class DTW extends NamedWarpScriptFunction implements WarpScriptStackFunct
       
       belowThreshold = false;
       
+      double rest = null != remaining ? remaining[i] : 0.0D;
+      
       for (int j = start; j <= end; j++) {
         
         //
@@ -207,7 +221,7 @@ public class DTW extends NamedWarpScriptFunction implements WarpScriptStackFunct
         b[j] = d + Math.min(left, Math.min(bottom, sw));
         //System.out.println(i + " " + j + " " + d + " " + left + " " + bottom + " " + sw + " >>> " + b[j]);
         
-        if (!belowThreshold && (0.0D == threshold || b[j] <= threshold)) {
+        if (!belowThreshold && (0.0D == threshold || b[j] + rest <= threshold)) {
           belowThreshold = true;
         }
       }
@@ -19,9 +19,10 @@ package io.warp10.script.functions;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptLazyAwareFunction;
 import io.warp10.script.WarpScriptStack;
 
-public class ENDMAP extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+public class ENDMAP extends NamedWarpScriptFunction implements WarpScriptStackFunction, WarpScriptLazyAwareFunction {
   
   private static final COUNTTOMARK ctm = new COUNTTOMARK("");
   private static final TOMAP tm = new TOMAP("");
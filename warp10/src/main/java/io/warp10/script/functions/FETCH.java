@@ -16,30 +16,41 @@
 
 package io.warp10.script.functions;
 
+import io.warp10.WarpConfig;
 import io.warp10.WarpDist;
+import io.warp10.continuum.Configuration;
 import io.warp10.continuum.Tokens;
 import io.warp10.continuum.egress.EgressFetchHandler;
 import io.warp10.continuum.geo.GeoDirectoryClient;
 import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
 import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GTSSpillFile;
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.EncodedGeoTimeSerie;
+import io.warp10.continuum.gts.LazyGeoTimeSerie;
+import io.warp10.continuum.gts.SpilledGeoTimeSerie;
 import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.Constants;
 import io.warp10.continuum.store.DirectoryClient;
 import io.warp10.continuum.store.GTSDecoderIterator;
 import io.warp10.continuum.store.MetadataIterator;
+import io.warp10.continuum.store.RollupStoreClient;
 import io.warp10.continuum.store.StoreClient;
 import io.warp10.continuum.store.thrift.data.Metadata;
 import io.warp10.crypto.KeyStore;
 import io.warp10.crypto.SipHashInline;
 import io.warp10.quasar.token.thrift.data.ReadToken;
 import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptStackFunction;
+import io.warp10.script.StackUtils;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
 import io.warp10.sensision.Sensision;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -69,6 +80,25 @@ import com.geoxp.GeoXPLib.GeoXPShape;
  * @param timespan Width of time period to consider (in us). Timestamps at or before now - timespan will be ignored.
  * 
  * The last two parameters can be replaced by String parameters representing the end and start ISO8601 timestamps
+ * 
+ * When called with a map of parameters containing 'spill' set to true, the fetched datapoints are not decoded
+ * but spilled in their encoded form to a temporary file. The resulting series are only decoded when
+ * needed, one at a time, by BUCKETIZE, MAP or REDUCE.
+ * 
+ * When called with a map of parameters containing 'lazy' set to true, the fetched datapoints are kept
+ * on heap in their encoded form. SIZE, FIRSTTICK and LASTTICK operate on the resulting series without
+ * decoding them, BUCKETIZE, MAP and REDUCE decode them when needed.
+ * 
+ * Any other function retrieving spilled or lazy series from the stack, directly or within a list or map,
+ * gets them decoded as regular Geo Time Series. Aggregations such as min or max are not computed on the
+ * encoded form, they require the series to be decoded, possibly one at a time through MAP or BUCKETIZE.
+ * 
+ * When called with a map of parameters containing 'bucketizer' and 'bucketspan', the fetched series are
+ * bucketized as BUCKETIZE would with 'end' as the last bucket and enough buckets to cover 'timespan'.
+ * If the store maintains rollups for this bucket span and bucketizer and the buckets are aligned
+ * on them, the buckets are read from the rollups instead of being computed from the raw data. Sums of
+ * doubles may then differ in their last digits as the values are not added in the same order, and the
+ * buckets of series mixing LONG and DOUBLE values may be of the other of those types.
  */
 public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFunction {
   
@@ -95,6 +125,28 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
   private static final String PARAM_GEOOP_OUT = "out";
   private static final String PARAM_WRITE_TIMESTAMP = "wtimestamp";
   private static final String PARAM_SHOWUUID = "showuuid";
+  private static final String PARAM_SPILL = "spill";
+  private static final String PARAM_LAZY = "lazy";
+  private static final String PARAM_BUCKETIZER = "bucketizer";
+  private static final String PARAM_BUCKETSPAN = "bucketspan";
+  
+  /**
+   * Bucketizers which can be served from rollups and the name of the corresponding rollup aggregator
+   */
+  private static final Map<String,String> ROLLUP_AGGREGATORS = new HashMap<String,String>();
+  
+  static {
+    ROLLUP_AGGREGATORS.put("bucketizer.min", "min");
+    ROLLUP_AGGREGATORS.put("bucketizer.max", "max");
+    ROLLUP_AGGREGATORS.put("bucketizer.sum", "sum");
+    ROLLUP_AGGREGATORS.put("bucketizer.count", "count");
+    ROLLUP_AGGREGATORS.put("bucketizer.last", "last");
+  }
+  
+  /**
+   * Size above which the encoder of a spilled or lazy GTS is stored as a new chunk
+   */
+  private static final int CHUNK_SIZE = 1024 * 1024;
   
   public static final String POSTFETCH_HOOK = "postfetch";
   
@@ -282,13 +334,54 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
 
     metadatas = new ArrayList<Metadata>();
     
-    List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();    
+    List<Object> series = new ArrayList<Object>();    
     AtomicLong fetched = (AtomicLong) stack.getAttribute(WarpScriptStack.ATTRIBUTE_FETCH_COUNT);    
     long fetchLimit = (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_FETCH_LIMIT);
     long gtsLimit = (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_GTS_LIMIT);
 
     AtomicLong gtscount = (AtomicLong) stack.getAttribute(WarpScriptStack.ATTRIBUTE_GTS_COUNT);    
     
+    GTSSpillFile spillFile = null;
+    
+    boolean lazy = Boolean.TRUE.equals(params.get(PARAM_LAZY));
+    
+    //
+    // Determine if the series should be bucketized and if the buckets can be read from rollups
+    //
+    
+    WarpScriptBucketizerFunction bucketizer = (WarpScriptBucketizerFunction) params.get(PARAM_BUCKETIZER);
+    long bucketspan = 0L;
+    int bucketcount = 0;
+    String rollup = null;
+    
+    if (null != bucketizer) {
+      long end = (long) params.get(PARAM_END);
+      long timespan = (long) params.get(PARAM_TIMESPAN);
+      bucketspan = (long) params.get(PARAM_BUCKETSPAN);
+      
+      long count = timespan / bucketspan + (0 == timespan % bucketspan ? 0 : 1);
+      long maxbuckets = (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_MAX_BUCKETS);
+      
+      if (count > maxbuckets) {
+        throw new WarpScriptException(getName() + " bucket count (" + count + ") would exceed maximum value of " + maxbuckets);
+      }
+      
+      bucketcount = (int) count;
+      
+      if (!fromArchive && null == this.forcedType && !params.containsKey(PARAM_TYPE)) {
+        rollup = rollup(gtsStore, bucketizer, bucketspan, end, timespan);
+      }
+    }
+    
+    if (Boolean.TRUE.equals(params.get(PARAM_SPILL))) {
+      try {
+        spillFile = new GTSSpillFile(new File(WarpConfig.getProperties().getProperty(Configuration.WARPSCRIPT_FETCH_SPILL_DIR, System.getProperty("java.io.tmpdir"))));
+        StackUtils.registerCloseable(stack, spillFile);
+      } catch (IOException ioe) {
+        throw new WarpScriptException(getName() + " unable to create spill file.", ioe);
+      }
+    }
+    
     try {
       while(iter.hasNext()) {
         
@@ -372,7 +465,17 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
         
         boolean showUUID = Boolean.TRUE.equals(params.get(PARAM_SHOWUUID));
         
-        try (GTSDecoderIterator gtsiter = gtsStore.fetch(rtoken, metadatas, (long) params.get(PARAM_END), timespan, fromArchive, writeTimestamp)) {  
+        if (null != spillFile || lazy) {
+          // Have the stack decode the lazy series for the functions which do not accept them
+          stack.setAttribute(WarpScriptStack.ATTRIBUTE_LAZY_SERIES, true);
+          fetchEncoded(gtsStore, rtoken, metadatas, params, timespan, type, writeTimestamp, showUUID, spillFile, series, fetched, fetchLimit);
+          metadatas.clear();
+          continue;
+        }
+        
+        try (GTSDecoderIterator gtsiter = null != rollup
+            ? ((RollupStoreClient) gtsStore).fetchRollup(rtoken, metadatas, (long) params.get(PARAM_END), bucketcount, bucketspan, rollup)
+            : gtsStore.fetch(rtoken, metadatas, (long) params.get(PARAM_END), timespan, fromArchive, writeTimestamp)) {  
           while(gtsiter.hasNext()) {
             GTSDecoder decoder = gtsiter.next();
                     
@@ -462,7 +565,34 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
         }
       }
     }
-           
+    
+    //
+    // Bucketize the series, buckets read from rollups only need to be wrapped in a bucketized GTS
+    //
+    
+    if (null != bucketizer) {
+      long lastbucket = (long) params.get(PARAM_END);
+      long maxbuckets = (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_MAX_BUCKETS);
+      
+      for (int i = 0; i < series.size(); i++) {
+        GeoTimeSerie gts = (GeoTimeSerie) series.get(i);
+        
+        if (null != rollup) {
+          GeoTimeSerie bucketized = new GeoTimeSerie(lastbucket, bucketcount, bucketspan, gts.size());
+          bucketized.setName(gts.getName());
+          bucketized.setLabels(gts.getLabels());
+          
+          for (int j = 0; j < gts.size(); j++) {
+            GTSHelper.setValue(bucketized, GTSHelper.tickAtIndex(gts, j), GTSHelper.locationAtIndex(gts, j), GTSHelper.elevationAtIndex(gts, j), GTSHelper.valueAtIndex(gts, j), false);
+          }
+          
+          series.set(i, bucketized);
+        } else {
+          series.set(i, GTSHelper.bucketize(gts, bucketspan, bucketcount, lastbucket, bucketizer, maxbuckets));
+        }
+      }
+    }
+    
     stack.push(series);
     
     //
@@ -476,6 +606,102 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
     return stack;
   }
   
+  /**
+   * Determine if the buckets of a FETCH can be read from rollups
+   * 
+   * @return the name of the rollup aggregator to read the buckets from, or null if they must be computed from the raw data
+   */
+  static String rollup(StoreClient gtsStore, WarpScriptBucketizerFunction bucketizer, long bucketspan, long end, long timespan) {
+    String aggregator = bucketizer instanceof NamedWarpScriptFunction ? ROLLUP_AGGREGATORS.get(((NamedWarpScriptFunction) bucketizer).getName()) : null;
+    
+    if (null != aggregator && 0 == end % bucketspan && 0 == timespan % bucketspan
+        && gtsStore instanceof RollupStoreClient && ((RollupStoreClient) gtsStore).hasRollup(bucketspan, aggregator)) {
+      return aggregator;
+    }
+    
+    return null;
+  }
+  
+  /**
+   * Fetch the datapoints of 'metadatas' and keep them in their encoded form, spilled to 'spillFile'
+   * or on heap if 'spillFile' is null.
+   * The decoders are re-encoded datapoint by datapoint, no GeoTimeSerie is materialized.
+   */
+  private void fetchEncoded(StoreClient gtsStore, ReadToken rtoken, List<Metadata> metadatas, Map<String,Object> params, long timespan, TYPE type, boolean writeTimestamp, boolean showUUID, GTSSpillFile spillFile, List<Object> series, AtomicLong fetched, long fetchLimit) throws WarpScriptException {
+    
+    LazyGeoTimeSerie lazygts = null;
+    GTSEncoder encoder = null;
+    
+    try (GTSDecoderIterator gtsiter = gtsStore.fetch(rtoken, metadatas, (long) params.get(PARAM_END), timespan, fromArchive, writeTimestamp)) {
+      while(gtsiter.hasNext()) {
+        GTSDecoder decoder = gtsiter.next();
+        
+        Metadata metadata = new Metadata(decoder.getMetadata());
+        
+        //
+        // Add a .uuid attribute if instructed to do so
+        //
+        
+        if (showUUID) {
+          java.util.UUID uuid = new java.util.UUID(metadata.getClassId(), metadata.getLabelsId());
+          metadata.putToAttributes(Constants.UUID_ATTRIBUTE, uuid.toString());
+        }
+        
+        //
+        // Remove producer/owner labels
+        //
+        
+        metadata.getLabels().remove(Constants.PRODUCER_LABEL);
+        metadata.getLabels().remove(Constants.OWNER_LABEL);
+        
+        //
+        // If name and labels differ from the current GTS, start a new one
+        //
+        
+        if (null == lazygts || !lazygts.getMetadata().getName().equals(metadata.getName()) || !lazygts.getMetadata().getLabels().equals(metadata.getLabels())) {
+          if (null != lazygts) {
+            lazygts.append(encoder);
+            series.add(lazygts);
+          }
+          if (null != spillFile) {
+            lazygts = new SpilledGeoTimeSerie(spillFile, metadata, type);
+          } else {
+            lazygts = new EncodedGeoTimeSerie(metadata, type);
+          }
+          encoder = new GTSEncoder(0L);
+        }
+        
+        long count = 0L;
+        
+        while(decoder.next()) {
+          encoder.addValue(decoder.getTimestamp(), decoder.getLocation(), decoder.getElevation(), decoder.getValue());
+          count++;
+          
+          if (encoder.size() > CHUNK_SIZE) {
+            lazygts.append(encoder);
+            encoder = new GTSEncoder(0L);
+          }
+        }
+        
+        if (fetched.addAndGet(count) > fetchLimit) {
+          Map<String,String> sensisionLabels = new HashMap<String, String>();
+          sensisionLabels.put(SensisionConstants.SENSISION_LABEL_CONSUMERID, Tokens.getUUID(rtoken.getBilledId()));
+          Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_FETCHCOUNT_EXCEEDED, sensisionLabels, 1);
+          throw new WarpScriptException(getName() + " exceeded limit of " + fetchLimit + " datapoints, current count is " + fetched.get());
+        }
+      }
+      
+      if (null != lazygts) {
+        lazygts.append(encoder);
+        series.add(lazygts);
+      }
+    } catch (WarpScriptException ee) {
+      throw ee;
+    } catch (Exception e) {
+      throw new WarpScriptException(getName() + " failed to encode Geo Time Series.", e);
+    }
+  }
+  
   private Map<String,Object> paramsFromMap(WarpScriptStack stack, Map<String,Object> map) throws WarpScriptException {
     Map<String,Object> params = new HashMap<String, Object>();
     
@@ -615,6 +841,35 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
       params.put(PARAM_WRITE_TIMESTAMP, Boolean.TRUE.equals(map.get(PARAM_WRITE_TIMESTAMP)));
     }
     
+    if (map.containsKey(PARAM_SPILL)) {
+      params.put(PARAM_SPILL, Boolean.TRUE.equals(map.get(PARAM_SPILL)));
+    }
+    
+    if (map.containsKey(PARAM_LAZY)) {
+      params.put(PARAM_LAZY, Boolean.TRUE.equals(map.get(PARAM_LAZY)));
+    }
+    
+    if (map.containsKey(PARAM_BUCKETIZER)) {
+      if (!(map.get(PARAM_BUCKETIZER) instanceof WarpScriptBucketizerFunction)) {
+        throw new WarpScriptException(getName() + " Invalid type for parameter '" + PARAM_BUCKETIZER + "'.");
+      }
+      
+      if (!(map.get(PARAM_BUCKETSPAN) instanceof Long) || (long) map.get(PARAM_BUCKETSPAN) <= 0) {
+        throw new WarpScriptException(getName() + " Parameter '" + PARAM_BUCKETIZER + "' requires a positive '" + PARAM_BUCKETSPAN + "'.");
+      }
+      
+      if (!params.containsKey(PARAM_TIMESPAN)) {
+        throw new WarpScriptException(getName() + " Parameter '" + PARAM_BUCKETIZER + "' cannot be used with '" + PARAM_COUNT + "'.");
+      }
+      
+      if (Boolean.TRUE.equals(params.get(PARAM_SPILL)) || Boolean.TRUE.equals(params.get(PARAM_LAZY))) {
+        throw new WarpScriptException(getName() + " Parameter '" + PARAM_BUCKETIZER + "' cannot be used with '" + PARAM_SPILL + "' or '" + PARAM_LAZY + "'.");
+      }
+      
+      params.put(PARAM_BUCKETIZER, map.get(PARAM_BUCKETIZER));
+      params.put(PARAM_BUCKETSPAN, map.get(PARAM_BUCKETSPAN));
+    }
+    
     return params;
   }
 }
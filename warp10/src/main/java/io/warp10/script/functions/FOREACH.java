@@ -19,6 +19,7 @@ package io.warp10.script.functions;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptLazyAwareFunction;
 import io.warp10.script.WarpScriptLib;
 import io.warp10.script.WarpScriptLoopBreakException;
 import io.warp10.script.WarpScriptLoopContinueException;
@@ -37,7 +38,7 @@ import java.util.Map.Entry;
  * FOREACH
  * 
  */
-public class FOREACH extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+public class FOREACH extends NamedWarpScriptFunction implements WarpScriptStackFunction, WarpScriptLazyAwareFunction {
   
   public FOREACH(String name) {
     super(name);
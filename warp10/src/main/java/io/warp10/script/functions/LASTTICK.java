@@ -18,16 +18,18 @@ package io.warp10.script.functions;
 
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.LazyGeoTimeSerie;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptLazyAwareFunction;
 import io.warp10.script.WarpScriptStack;
 
 /**
  * Push on the stack the last tick of the GTS on top of the stack.
  * If the GTS does not have values, Long.MIN_VALUE is pushed.
  */
-public class LASTTICK extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+public class LASTTICK extends NamedWarpScriptFunction implements WarpScriptStackFunction, WarpScriptLazyAwareFunction {
   
   public LASTTICK(String name) {
     super(name);
@@ -37,6 +39,12 @@ public class LASTTICK extends NamedWarpScriptFunction implements WarpScriptStack
   public Object apply(WarpScriptStack stack) throws WarpScriptException {
     Object top = stack.pop();
 
+    if (top instanceof LazyGeoTimeSerie) {
+      // Computed from the encoded datapoints
+      stack.push(((LazyGeoTimeSerie) top).lastTick());
+      return stack;
+    }
+    
     if (!(top instanceof GeoTimeSerie)) {
       throw new WarpScriptException(getName() + " expects a Geo Time Serie on top of the stack.");
     }
@@ -18,10 +18,12 @@ package io.warp10.script.functions;
 
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.LazyGeoTimeSerie;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptMapperFunction;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptLazyAwareFunction;
 import io.warp10.script.WarpScriptStack;
 
 import java.util.ArrayList;
@@ -32,7 +34,7 @@ import java.util.Map;
 /**
  * Apply a mapper on some GTS instances
  */
-public class MAP extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+public class MAP extends NamedWarpScriptFunction implements WarpScriptStackFunction, WarpScriptLazyAwareFunction {
   
   private static final String PARAM_MAPPER = "mapper";
   private static final String PARAM_PREWINDOW = "pre";
@@ -70,7 +72,7 @@ public class MAP extends NamedWarpScriptFunction implements WarpScriptStackFunct
     int nseries = 0;
         
     for (int i = 0; i < params.size(); i++) {
-      if (!(params.get(i) instanceof GeoTimeSerie) && !(params.get(i) instanceof List)) {
+      if (!(params.get(i) instanceof GeoTimeSerie) && !(params.get(i) instanceof LazyGeoTimeSerie) && !(params.get(i) instanceof List)) {
         break;
       }
       nseries++;
@@ -148,7 +150,8 @@ public class MAP extends NamedWarpScriptFunction implements WarpScriptStackFunct
     
     Object top = stack.pop();
     
-    List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();
+    // Lazy GTS are only decoded when mapped
+    List<Object> series = new ArrayList<Object>();
     
     // top is expected to be a GTS, a list of GTS or a list of list of GTS
     if (top instanceof List) {
@@ -157,27 +160,27 @@ public class MAP extends NamedWarpScriptFunction implements WarpScriptStackFunct
           // top is a list of list, o must be a list of gts
           for (Object oo : (List) o) {
             // o must be a gts
-            if (!(oo instanceof GeoTimeSerie)) {
+            if (!(oo instanceof GeoTimeSerie) && !(oo instanceof LazyGeoTimeSerie)) {
               throw new WarpScriptException(getName() + " operates on lists of Geo Time Series.");
             } else {
-              series.add((GeoTimeSerie) oo);
+              series.add(oo);
             }
           }
         } else {
           // top is a list of gts, o must be a gts
-          if (!(o instanceof GeoTimeSerie)) {
+          if (!(o instanceof GeoTimeSerie) && !(o instanceof LazyGeoTimeSerie)) {
             throw new WarpScriptException(getName() + " operates on lists of Geo Time Series.");
           } else {
-            series.add((GeoTimeSerie) o);
+            series.add(o);
           }
         }
       }
     } else {
       // top must be a gts
-      if (!(top instanceof GeoTimeSerie)) {
+      if (!(top instanceof GeoTimeSerie) && !(top instanceof LazyGeoTimeSerie)) {
         throw new WarpScriptException(getName() + " operates on lists of Geo Time Series.");
       } else {
-        series.add((GeoTimeSerie) top);
+        series.add(top);
       }
     }
     
@@ -185,7 +188,8 @@ public class MAP extends NamedWarpScriptFunction implements WarpScriptStackFunct
     
     List<GeoTimeSerie> mapped = new ArrayList<GeoTimeSerie>();
     
-    for (GeoTimeSerie gts: series) {
+    for (Object o: series) {
+      GeoTimeSerie gts = o instanceof LazyGeoTimeSerie ? ((LazyGeoTimeSerie) o).decode() : (GeoTimeSerie) o;
       mapped.add(GTSHelper.map(gts, mapper, prewindow, postwindow, Math.abs(occurrences), occurrences < 0 ? true : false, step, overrideTick));
     }
     
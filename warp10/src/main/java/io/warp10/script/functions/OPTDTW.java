@@ -16,25 +16,84 @@
 
 package io.warp10.script.functions;
 
+import io.warp10.WarpConfig;
+import io.warp10.continuum.Configuration;
 import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptForkJoinPool;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Perform Dynamic Time Warping distance computation
  * on subsequences of an array and return the indices
  * of subsequences with minimal distance and the associated distance.
+ * 
+ * Subsequences are first checked against cheap lower bounds of their DTW distance
+ * to the query, the DTW is only computed for those whose bounds do not exceed the
+ * best distance found so far.
+ * 
+ * As DTW does not constrain the warping path, each element of a subsequence is at
+ * least as far from the query as from the closest query value. Summing those distances
+ * for the first and last elements gives the equivalent of LB_Kim, summing them for all
+ * elements gives LB_Keogh with an envelope spanning the whole query.
+ * 
+ * When 'normalize' is true, the query and each subsequence are z-normalized prior to
+ * being compared, the mean and standard deviation of the subsequences being maintained
+ * incrementally.
+ * 
+ * Sequences with more than 'warpscript.optdtw.parallel.threshold' subsequences are
+ * scanned in parallel.
  */
 public class OPTDTW extends NamedWarpScriptFunction implements WarpScriptStackFunction {
   
+  /**
+   * Number of subsequences above which the sequence is scanned in parallel, 0 to disable parallel scanning
+   */
+  private static final int PARALLEL_THRESHOLD;
+  
+  private static final int DEFAULT_PARALLEL_THRESHOLD = 65536;
+  
+  /**
+   * Relative slack applied when comparing lower bounds to the best distance, so rounding errors
+   * never discard a subsequence whose distance equals the best one
+   */
+  private static final double SLACK = 1.0E-9D;
+  
+  static {
+    int threshold = DEFAULT_PARALLEL_THRESHOLD;
+    
+    Properties props = WarpConfig.getProperties();
+    
+    if (null != props && props.containsKey(Configuration.WARPSCRIPT_OPTDTW_PARALLEL_THRESHOLD)) {
+      threshold = Integer.parseInt(props.getProperty(Configuration.WARPSCRIPT_OPTDTW_PARALLEL_THRESHOLD));
+    }
+    
+    PARALLEL_THRESHOLD = threshold;
+  }
+  
   private DTW dtw = new DTW("");
 
+  private final boolean normalize;
+  
   public OPTDTW(String name) {
     super(name);
+    this.normalize = false;
+  }
+  
+  public OPTDTW(String name, boolean normalize) {
+    super(name);
+    this.normalize = normalize;
   }
   
   @Override
@@ -75,28 +134,350 @@ public class OPTDTW extends NamedWarpScriptFunction implements WarpScriptStackFu
       throw new WarpScriptException(getName() + " expects the query list to be shorter than the sequence list.");
     }
     
-    double mindist = Double.POSITIVE_INFINITY;
+    if (0 == query.length) {
+      throw new WarpScriptException(getName() + " expects a non empty query list.");
+    }
     
     List<Integer> bestmatches = new ArrayList<Integer>();
-        
-    for (i = 0; i <= sequence.length - query.length; i++) {
-      double dist = dtw.compute(query, 0, query.length, sequence, i, query.length, mindist);
+    
+    double mindist = search(sequence, query, bestmatches);
+    
+    stack.push(bestmatches);
+    stack.push(mindist);
+
+    return stack;
+  }
+  
+  /**
+   * Find the subsequences of 'sequence' with the minimal DTW distance to 'query'.
+   * 
+   * @param sequence Sequence to scan
+   * @param query Query to look for, MUST be non empty and shorter than sequence
+   * @param bestmatches List to which the indices of the best subsequences are added, in ascending order
+   * @return The minimal distance
+   */
+  public double search(double[] sequence, double[] query, List<Integer> bestmatches) throws WarpScriptException {
+    
+    final Scanner scanner = new Scanner(sequence, query);
+    
+    int offsets = sequence.length - query.length + 1;
+    
+    if (0 == PARALLEL_THRESHOLD || offsets <= PARALLEL_THRESHOLD) {
+      Match match = scanner.scan(0, offsets);
+      bestmatches.addAll(match.offsets);
+      return match.distance;
+    }
+    
+    //
+    // Split the offsets in chunks scanned in parallel, the best distance being shared
+    // among chunks so they all benefit from the pruning
+    //
+    
+    ForkJoinPool fjp = WarpScriptForkJoinPool.getPool();
+    
+    int nchunks = fjp.getParallelism() * 4;
+    int chunk = (offsets + nchunks - 1) / nchunks;
+    
+    List<Callable<Match>> tasks = new ArrayList<Callable<Match>>();
+    
+    for (int start = 0; start < offsets; start += chunk) {
+      final int from = start;
+      final int to = Math.min(offsets, start + chunk);
+      tasks.add(new Callable<Match>() {
+        @Override
+        public Match call() throws Exception {
+          return scanner.scan(from, to);
+        }
+      });
+    }
+    
+    List<Match> matches = new ArrayList<Match>(tasks.size());
+    
+    try {
+      for (Future<Match> future: fjp.invokeAll(tasks)) {
+        matches.add(future.get());
+      }
+    } catch (InterruptedException ie) {
+      throw new WarpScriptException(getName() + " was interrupted.", ie);
+    } catch (ExecutionException ee) {
+      throw new WarpScriptException(ee.getCause());
+    }
+    
+    double mindist = Double.POSITIVE_INFINITY;
+    
+    for (Match match: matches) {
+      mindist = Math.min(mindist, match.distance);
+    }
+    
+    for (Match match: matches) {
+      if (match.distance == mindist) {
+        bestmatches.addAll(match.offsets);
+      }
+    }
+    
+    return mindist;
+  }
+  
+  /**
+   * Best distance found in a range of offsets and the offsets at which it was found
+   */
+  private static final class Match {
+    private double distance = Double.POSITIVE_INFINITY;
+    private final List<Integer> offsets = new ArrayList<Integer>();
+  }
+  
+  private final class Scanner {
+    
+    private final double[] sequence;
+    
+    /**
+     * Query, z-normalized if needed
+     */
+    private final double[] query;
+    
+    /**
+     * Sorted query values, used to find the query value closest to a subsequence element
+     */
+    private final double[] sorted;
+    
+    /**
+     * Prefix sums of the distances of the sequence elements to their closest query value,
+     * null when subsequences are normalized as those distances then depend on the subsequence
+     */
+    private final double[] bounds;
+    
+    /**
+     * Absolute slack applied to the bounds computed from the prefix sums
+     */
+    private final double slack;
+    
+    /**
+     * Best distance found so far across all chunks, as bits of a double
+     */
+    private final AtomicLong best = new AtomicLong(Double.doubleToLongBits(Double.POSITIVE_INFINITY));
+    
+    private Scanner(double[] sequence, double[] query) {
+      this.sequence = sequence;
+      this.query = normalize ? znormalize(query) : query;
+      this.sorted = Arrays.copyOf(this.query, this.query.length);
+      Arrays.sort(this.sorted);
       
-      if (dist < 0) {
-        continue;
+      if (normalize) {
+        this.bounds = null;
+        this.slack = 0.0D;
+      } else {
+        this.bounds = new double[sequence.length + 1];
+        for (int i = 0; i < sequence.length; i++) {
+          this.bounds[i + 1] = this.bounds[i] + nearest(sequence[i]);
+        }
+        // Bound on the rounding error of the difference of two prefix sums
+        this.slack = 2.0D * sequence.length * Math.ulp(this.bounds[sequence.length]);
       }
+    }
+    
+    /**
+     * Distance of a value to the closest query value
+     */
+    private double nearest(double value) {
+      int idx = Arrays.binarySearch(sorted, value);
       
-      if (dist < mindist) {
-        mindist = dist;
-        bestmatches.clear();
+      if (idx >= 0) {
+        return 0.0D;
       }
       
-      bestmatches.add(i);
+      idx = -idx - 1;
+      
+      if (0 == idx) {
+        return sorted[0] - value;
+      } else if (sorted.length == idx) {
+        return value - sorted[sorted.length - 1];
+      } else {
+        return Math.min(sorted[idx] - value, value - sorted[idx - 1]);
+      }
     }
     
-    stack.push(bestmatches);
-    stack.push(mindist);
-
-    return stack;
+    private boolean exceeds(double bound, double threshold) {
+      return bound - slack > threshold + threshold * SLACK;
+    }
+    
+    private void share(double distance) {
+      while (true) {
+        long current = best.get();
+        if (Double.longBitsToDouble(current) <= distance || best.compareAndSet(current, Double.doubleToLongBits(distance))) {
+          return;
+        }
+      }
+    }
+    
+    /**
+     * Scan the subsequences starting at offsets [from,to[
+     */
+    private Match scan(int from, int to) {
+      Match match = new Match();
+      
+      int len = query.length;
+      
+      double[] window = normalize ? new double[len] : null;
+      
+      // Distance of each subsequence element to its closest query value, then lower bound of the cost of the elements after it
+      double[] remaining = new double[len];
+      
+      double sum = 0.0D;
+      double sumsq = 0.0D;
+      
+      for (int i = from; i < to; i++) {
+        
+        double threshold = Math.min(match.distance, Double.longBitsToDouble(best.get()));
+        
+        double mean = 0.0D;
+        double sd = 1.0D;
+        
+        if (normalize) {
+          
+          //
+          // Update the sums incrementally, recomputing them periodically so rounding
+          // errors do not accumulate
+          //
+          
+          if (0 == (i - from) % len) {
+            sum = 0.0D;
+            sumsq = 0.0D;
+            for (int k = i; k < i + len; k++) {
+              sum += sequence[k];
+              sumsq += sequence[k] * sequence[k];
+            }
+          } else {
+            double out = sequence[i - 1];
+            double in = sequence[i + len - 1];
+            sum += in - out;
+            sumsq += in * in - out * out;
+          }
+          
+          mean = sum / len;
+          sd = stddev(sum, sumsq, len);
+        }
+        
+        //
+        // LB_Kim, using the first and last elements of the subsequence
+        //
+        
+        double lb = nearest((sequence[i] - mean) / sd);
+        
+        if (len > 1) {
+          lb += nearest((sequence[i + len - 1] - mean) / sd);
+        }
+        
+        if (exceeds(lb, threshold)) {
+          continue;
+        }
+        
+        //
+        // LB_Keogh, using all the elements of the subsequence
+        //
+        
+        if (null != bounds) {
+          lb = bounds[i + len] - bounds[i];
+          
+          if (exceeds(lb, threshold)) {
+            continue;
+          }
+          
+          for (int k = 0; k < len; k++) {
+            remaining[k] = bounds[i + len] - bounds[i + k + 1];
+          }
+        } else {
+          lb = 0.0D;
+          int k = 0;
+          while (k < len && !exceeds(lb, threshold)) {
+            window[k] = (sequence[i + k] - mean) / sd;
+            remaining[k] = nearest(window[k]);
+            lb += remaining[k];
+            k++;
+          }
+          
+          if (k < len || exceeds(lb, threshold)) {
+            continue;
+          }
+          
+          double rest = 0.0D;
+          for (k = len - 1; k >= 0; k--) {
+            double d = remaining[k];
+            remaining[k] = rest;
+            rest += d;
+          }
+        }
+        
+        //
+        // Compute the DTW, abandoning it as soon as the cost so far plus the bound on the
+        // cost of the remaining elements exceeds the threshold
+        //
+        
+        double dtwthreshold = threshold;
+        
+        if (0.0D != threshold) {
+          dtwthreshold = threshold + threshold * SLACK + slack;
+        }
+        
+        double dist;
+        
+        if (normalize) {
+          dist = dtw.compute(query, 0, len, window, 0, len, dtwthreshold, remaining);
+        } else {
+          dist = dtw.compute(query, 0, len, sequence, i, len, dtwthreshold, remaining);
+        }
+        
+        if (dist < 0 || dist > threshold) {
+          continue;
+        }
+        
+        if (dist < match.distance) {
+          match.distance = dist;
+          match.offsets.clear();
+          share(dist);
+        }
+        
+        match.offsets.add(i);
+      }
+      
+      return match;
+    }
+  }
+  
+  /**
+   * Standard deviation with Bessel's correction, as computed by GTSHelper.standardize, 1.0 if it is 0
+   */
+  private static double stddev(double sum, double sumsq, int n) {
+    double variance = (sumsq / n) - (sum * sum) / ((double) n * (double) n);
+    
+    if (n > 1) {
+      variance = variance * n / (n - 1.0D);
+    }
+    
+    if (variance <= 0.0D) {
+      return 1.0D;
+    }
+    
+    return Math.sqrt(variance);
+  }
+  
+  private static double[] znormalize(double[] values) {
+    double sum = 0.0D;
+    double sumsq = 0.0D;
+    
+    for (double value: values) {
+      sum += value;
+      sumsq += value * value;
+    }
+    
+    double mean = sum / values.length;
+    double sd = stddev(sum, sumsq, values.length);
+    
+    double[] normalized = new double[values.length];
+    
+    for (int i = 0; i < values.length; i++) {
+      normalized[i] = (values[i] - mean) / sd;
+    }
+    
+    return normalized;
   }
 }
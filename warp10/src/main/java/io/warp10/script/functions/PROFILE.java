@@ -0,0 +1,50 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.functions;
+
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptProfiler;
+import io.warp10.script.WarpScriptStackFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+import java.util.HashMap;
+
+/**
+ * Push onto the stack the profile recorded since PROFILING was called, as a map of function
+ * or macro name to a map of 'calls', 'time' (in ns) and 'allocated' (in bytes).
+ * Times and allocations include those of nested calls.
+ */
+public class PROFILE extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+  
+  public PROFILE(String name) {
+    super(name);
+  }
+  
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    Object profiler = stack.getAttribute(WarpScriptStack.ATTRIBUTE_PROFILER);
+    
+    if (profiler instanceof WarpScriptProfiler) {
+      stack.push(((WarpScriptProfiler) profiler).toMap());
+    } else {
+      stack.push(new HashMap<String,Object>());
+    }
+    
+    return stack;
+  }
+}
@@ -18,10 +18,12 @@ package io.warp10.script.functions;
 
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.LazyGeoTimeSerie;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptLazyAwareFunction;
 import io.warp10.script.WarpScriptStack;
 
 import java.util.ArrayList;
@@ -34,7 +36,7 @@ import java.util.List;
  * [ [GTS] [GTS] ... [labels] reducer ] REDUCE
  * 
  */
-public class REDUCE extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+public class REDUCE extends NamedWarpScriptFunction implements WarpScriptStackFunction, WarpScriptLazyAwareFunction {
   
   public REDUCE(String name) {
     super(name);
@@ -80,7 +82,14 @@ public class REDUCE extends NamedWarpScriptFunction implements WarpScriptStackFu
     Collection<String> bylabels = (Collection<String>) params.get(params.size() - 2);
 
     for (int i = 0; i < params.size() - 2; i++) {
-      series.addAll((Collection<GeoTimeSerie>) params.get(i));
+      for (Object o: (Collection<Object>) params.get(i)) {
+        // Lazy GTS need to be decoded as the reducer operates on all series of a partition at once
+        if (o instanceof LazyGeoTimeSerie) {
+          series.add(((LazyGeoTimeSerie) o).decode());
+        } else {
+          series.add((GeoTimeSerie) o);
+        }
+      }
     }    
 
     stack.push(GTSHelper.reduce((WarpScriptReducerFunction) params.get(params.size() - 1), series, bylabels));
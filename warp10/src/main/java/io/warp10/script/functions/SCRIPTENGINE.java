@@ -16,19 +16,28 @@
 
 package io.warp10.script.functions;
 
+import io.warp10.WarpConfig;
+import io.warp10.continuum.Configuration;
+import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
+import io.warp10.sensision.Sensision;
 
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Properties;
 import java.util.Set;
 
 import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineManager;
@@ -47,14 +56,73 @@ import javax.script.ScriptException;
  * 3: script
  * 2: [ input symbols ]
  * 1: [ output symbols ]
+ * 
+ * Engines are expensive to create, so an idle engine is kept on the stack and reused
+ * by the following calls of the same execution. Engines are never shared between
+ * executions, interpreters keep state (modules, globals, classes, ...) which cannot
+ * be reliably reset and which would otherwise leak from one script to another.
+ * An engine is only used by one thread at a time, each one caches the scripts it
+ * compiled, keyed by their source.
  */
 public class SCRIPTENGINE extends NamedWarpScriptFunction implements WarpScriptStackFunction {
   
+  private static final boolean REUSE;
+  private static final int CACHE_SIZE;
+  
+  private static final int DEFAULT_CACHE_SIZE = 64;
+  
+  static {
+    Properties props = WarpConfig.getProperties();
+    
+    boolean reuse = true;
+    int cachesize = DEFAULT_CACHE_SIZE;
+    
+    if (null != props && props.containsKey(Configuration.WARPSCRIPT_SCRIPTENGINE_REUSE)) {
+      reuse = "true".equals(props.getProperty(Configuration.WARPSCRIPT_SCRIPTENGINE_REUSE));
+    }
+    
+    if (null != props && props.containsKey(Configuration.WARPSCRIPT_SCRIPTENGINE_CACHE_SIZE)) {
+      cachesize = Integer.parseInt(props.getProperty(Configuration.WARPSCRIPT_SCRIPTENGINE_CACHE_SIZE));
+    }
+    
+    REUSE = reuse;
+    CACHE_SIZE = cachesize;
+  }
+  
   private final String lang;
   
+  private final Map<String,String> labels;
+  
   public SCRIPTENGINE(String name, String lang) {
     super(name);
     this.lang = lang;
+    this.labels = new HashMap<String,String>();
+    this.labels.put(SensisionConstants.SENSISION_LABEL_FUNCTION, name);
+  }
+  
+  /**
+   * Engine along with the scripts it compiled
+   */
+  private static final class PooledEngine {
+    private final ScriptEngine engine;
+    
+    /**
+     * Keys of the engine scope bindings when the engine was created
+     */
+    private final Set<String> keys;
+    
+    private final Map<String,CompiledScript> compiled = new LinkedHashMap<String,CompiledScript>(16, 0.75F, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String,CompiledScript> eldest) {
+        return size() > CACHE_SIZE;
+      }
+    };
+    
+    private PooledEngine(ScriptEngine engine) {
+      this.engine = engine;
+      Bindings bindings = engine.getBindings(ScriptContext.ENGINE_SCOPE);
+      this.keys = null != bindings ? new HashSet<String>(bindings.keySet()) : new HashSet<String>();
+    }
   }
    
   @Override
@@ -93,8 +161,12 @@ public class SCRIPTENGINE extends NamedWarpScriptFunction implements WarpScriptS
     // Create script engine
     //
         
+    PooledEngine pooled = null;
+    
     try {      
-      final ScriptEngine engine = getEngine();
+      pooled = borrow(stack);
+      
+      final ScriptEngine engine = pooled.engine;
 
       //
       // Copy symbol table from stack
@@ -108,7 +180,9 @@ public class SCRIPTENGINE extends NamedWarpScriptFunction implements WarpScriptS
         }
       }
       
-      Object result = engine.eval(script, bindings);
+      CompiledScript compiled = compile(pooled, script);
+      
+      Object result = null != compiled ? compiled.eval(bindings) : engine.eval(script, bindings);
 
       for (Entry<String,Object> entry: bindings.entrySet()) {
         if (output.isEmpty() || output.contains(entry.getKey())) {
@@ -117,16 +191,111 @@ public class SCRIPTENGINE extends NamedWarpScriptFunction implements WarpScriptS
       }
       
       stack.push(result);
+      
+      release(stack, pooled);
+      pooled = null;
     } catch (ScriptException se) {
       se.printStackTrace();
       throw new WarpScriptException(se);
     } catch (Throwable t) {
       t.printStackTrace();
       throw new WarpScriptException(t);
+    } finally {
+      //
+      // Engines which failed are not reused as their state is unknown
+      //
+      
+      if (null != pooled) {
+        Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_SCRIPTENGINE_DISCARDED, labels, 1);
+      }
     }
     
     return stack;
   }
+  
+  /**
+   * Return the idle engines kept on the stack, keyed by scripting function
+   */
+  private static Map<SCRIPTENGINE,PooledEngine> engines(WarpScriptStack stack) {
+    Map<SCRIPTENGINE,PooledEngine> engines = (Map<SCRIPTENGINE,PooledEngine>) stack.getAttribute(WarpScriptStack.ATTRIBUTE_SCRIPT_ENGINES);
+    
+    if (null == engines) {
+      engines = new HashMap<SCRIPTENGINE,PooledEngine>();
+      stack.setAttribute(WarpScriptStack.ATTRIBUTE_SCRIPT_ENGINES, engines);
+    }
+    
+    return engines;
+  }
+  
+  private PooledEngine borrow(WarpScriptStack stack) {
+    PooledEngine pooled = null;
+    
+    if (REUSE) {
+      synchronized(stack) {
+        pooled = engines(stack).remove(this);
+      }
+    }
+    
+    if (null != pooled) {
+      Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_SCRIPTENGINE_REUSED, labels, 1);
+      return pooled;
+    }
+    
+    pooled = new PooledEngine(getEngine());
+    Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_SCRIPTENGINE_CREATED, labels, 1);
+    
+    return pooled;
+  }
+  
+  private void release(WarpScriptStack stack, PooledEngine pooled) {
+    //
+    // Remove the symbols set in the engine scope so they do not leak into the next script
+    //
+    
+    Bindings bindings = pooled.engine.getBindings(ScriptContext.ENGINE_SCOPE);
+    
+    if (null != bindings) {
+      bindings.keySet().retainAll(pooled.keys);
+    }
+    
+    boolean kept = false;
+    
+    if (REUSE) {
+      synchronized(stack) {
+        Map<SCRIPTENGINE,PooledEngine> engines = engines(stack);
+        if (!engines.containsKey(this)) {
+          engines.put(this, pooled);
+          kept = true;
+        }
+      }
+    }
+    
+    if (!kept) {
+      Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_SCRIPTENGINE_DISCARDED, labels, 1);
+    }
+  }
+  
+  /**
+   * Return the compiled form of script, or null if the engine cannot compile scripts
+   */
+  private CompiledScript compile(PooledEngine pooled, String script) throws ScriptException {
+    if (!REUSE || CACHE_SIZE <= 0 || !(pooled.engine instanceof Compilable)) {
+      return null;
+    }
+    
+    CompiledScript compiled = pooled.compiled.get(script);
+    
+    if (null != compiled) {
+      Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_SCRIPTENGINE_CACHEHITS, labels, 1);
+      return compiled;
+    }
+    
+    compiled = ((Compilable) pooled.engine).compile(script);
+    pooled.compiled.put(script, compiled);
+    Sensision.update(SensisionConstants.SENSISION_CLASS_EINSTEIN_SCRIPTENGINE_COMPILATIONS, labels, 1);
+    
+    return compiled;
+  }
 
   protected ScriptEngine getEngine() {
     return new ScriptEngineManager().getEngineByName(lang);
@@ -18,9 +18,11 @@ package io.warp10.script.functions;
 
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.LazyGeoTimeSerie;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptLazyAwareFunction;
 import io.warp10.script.WarpScriptStack;
 
 import java.util.List;
@@ -29,7 +31,7 @@ import java.util.Map;
 /**
  * Pushes on the stack the size of an object (map, list or GTS). Consumes the object.
  */
-public class SIZE extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+public class SIZE extends NamedWarpScriptFunction implements WarpScriptStackFunction, WarpScriptLazyAwareFunction {
   
   public SIZE(String name) {
     super(name);
@@ -46,6 +48,8 @@ public class SIZE extends NamedWarpScriptFunction implements WarpScriptStackFunc
     } else if (obj instanceof GeoTimeSerie) {
       // Return the number of values, not nticks whichi would return the number of buckets
       stack.push((long) GTSHelper.nvalues((GeoTimeSerie) obj));
+    } else if (obj instanceof LazyGeoTimeSerie) {
+      stack.push(((LazyGeoTimeSerie) obj).size());
     } else if (obj instanceof String) {
       stack.push((long) obj.toString().length());
     } else {
@@ -17,8 +17,10 @@
 package io.warp10.script.op;
 
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptNAryFunction;
+import io.warp10.script.WarpScriptNAryKernel;
 import io.warp10.script.WarpScriptException;
 
 import java.util.Map;
@@ -26,7 +28,7 @@ import java.util.Map;
 /**
  * AND values from multiple time series. The elevation and location are cleared.
  */
-public class OpAND extends NamedWarpScriptFunction implements WarpScriptNAryFunction {
+public class OpAND extends NamedWarpScriptFunction implements WarpScriptNAryFunction, WarpScriptNAryKernel {
   
   /**
    * Should 'null' values (i.e. missing) be forbidden or ignored
@@ -77,4 +79,37 @@ public class OpAND extends NamedWarpScriptFunction implements WarpScriptNAryFunc
     
     return new Object[] { tick, location, elevation, true };
   }
+  
+  @Override
+  public TYPE getKernelType(TYPE type, int n) {
+    return TYPE.BOOLEAN == type ? TYPE.BOOLEAN : TYPE.UNDEFINED;
+  }
+  
+  @Override
+  public void apply(int len, boolean[][] present, long[][] longs, double[][] doubles, long[] lresults, double[] dresults, boolean[] defined) {
+    int n = present.length;
+    
+    for (int t = 0; t < len; t++) {
+      long result = 1L;
+      boolean undefined = false;
+      
+      for (int i = 0; i < n; i++) {
+        if (!present[i][t]) {
+          if (this.forbidNulls) {
+            undefined = true;
+            break;
+          }
+          continue;
+        }
+        
+        if (0L == longs[i][t]) {
+          result = 0L;
+          break;
+        }
+      }
+      
+      defined[t] = !undefined;
+      lresults[t] = result;
+    }
+  }
 }
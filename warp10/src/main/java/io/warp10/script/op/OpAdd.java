@@ -17,8 +17,10 @@
 package io.warp10.script.op;
 
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptNAryFunction;
+import io.warp10.script.WarpScriptNAryKernel;
 import io.warp10.script.WarpScriptException;
 
 import java.util.Map;
@@ -26,7 +28,7 @@ import java.util.Map;
 /**
  * Add values from multiple time series. The elevation and location are cleared.
  */
-public class OpAdd extends NamedWarpScriptFunction implements WarpScriptNAryFunction {
+public class OpAdd extends NamedWarpScriptFunction implements WarpScriptNAryFunction, WarpScriptNAryKernel {
   
   private final boolean forbidNulls;
   
@@ -105,4 +107,39 @@ public class OpAdd extends NamedWarpScriptFunction implements WarpScriptNAryFunc
     
     return new Object[] { tick, location, elevation, sum };
   }
+  
+  @Override
+  public TYPE getKernelType(TYPE type, int n) {
+    return TYPE.LONG == type || TYPE.DOUBLE == type ? type : TYPE.UNDEFINED;
+  }
+  
+  @Override
+  public void apply(int len, boolean[][] present, long[][] longs, double[][] doubles, long[] lresults, double[] dresults, boolean[] defined) {
+    int n = present.length;
+    
+    for (int t = 0; t < len; t++) {
+      boolean first = true;
+      boolean missing = false;
+      
+      for (int i = 0; i < n; i++) {
+        if (!present[i][t]) {
+          missing = true;
+          if (this.forbidNulls) {
+            break;
+          }
+          continue;
+        }
+        
+        if (null != longs) {
+          lresults[t] = first ? longs[i][t] : lresults[t] + longs[i][t];
+        } else {
+          dresults[t] = first ? doubles[i][t] : dresults[t] + doubles[i][t];
+        }
+        
+        first = false;
+      }
+      
+      defined[t] = !first && !(missing && this.forbidNulls);
+    }
+  }
 }
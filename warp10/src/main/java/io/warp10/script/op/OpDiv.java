@@ -17,8 +17,10 @@
 package io.warp10.script.op;
 
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptNAryFunction;
+import io.warp10.script.WarpScriptNAryKernel;
 import io.warp10.script.WarpScriptException;
 
 import java.util.Map;
@@ -26,7 +28,7 @@ import java.util.Map;
 /**
  * Perform a division from two time series. The elevation and location are cleared.
  */
-public class OpDiv extends NamedWarpScriptFunction implements WarpScriptNAryFunction {
+public class OpDiv extends NamedWarpScriptFunction implements WarpScriptNAryFunction, WarpScriptNAryKernel {
   
   public OpDiv(String name) {
     super(name);
@@ -67,4 +69,22 @@ public class OpDiv extends NamedWarpScriptFunction implements WarpScriptNAryFunc
     
     return new Object[] { tick, location, elevation, quotient };
   }
+  
+  @Override
+  public TYPE getKernelType(TYPE type, int n) {
+    return 2 == n && (TYPE.LONG == type || TYPE.DOUBLE == type) ? TYPE.DOUBLE : TYPE.UNDEFINED;
+  }
+  
+  @Override
+  public void apply(int len, boolean[][] present, long[][] longs, double[][] doubles, long[] lresults, double[] dresults, boolean[] defined) {
+    for (int t = 0; t < len; t++) {
+      defined[t] = present[0][t] && present[1][t];
+      
+      if (null != longs) {
+        dresults[t] = ((double) longs[0][t]) / ((double) longs[1][t]);
+      } else {
+        dresults[t] = doubles[0][t] / doubles[1][t];
+      }
+    }
+  }
 }
@@ -17,8 +17,10 @@
 package io.warp10.script.op;
 
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptNAryFunction;
+import io.warp10.script.WarpScriptNAryKernel;
 import io.warp10.script.WarpScriptException;
 
 import java.util.HashSet;
@@ -28,7 +30,7 @@ import java.util.Set;
 /**
  * Checks values from N time series for equality. The elevation and location are cleared.
  */
-public class OpEQ extends NamedWarpScriptFunction implements WarpScriptNAryFunction {
+public class OpEQ extends NamedWarpScriptFunction implements WarpScriptNAryFunction, WarpScriptNAryKernel {
   
   public OpEQ(String name) {
     super(name);
@@ -71,4 +73,29 @@ public class OpEQ extends NamedWarpScriptFunction implements WarpScriptNAryFunct
     
     return new Object[] { tick, location, elevation, true };
   }
+  
+  @Override
+  public TYPE getKernelType(TYPE type, int n) {
+    return TYPE.LONG == type || TYPE.DOUBLE == type || TYPE.BOOLEAN == type ? TYPE.BOOLEAN : TYPE.UNDEFINED;
+  }
+  
+  @Override
+  public void apply(int len, boolean[][] present, long[][] longs, double[][] doubles, long[] lresults, double[] dresults, boolean[] defined) {
+    int n = present.length;
+    
+    for (int t = 0; t < len; t++) {
+      boolean result = true;
+      
+      for (int i = 0; i < n; i++) {
+        // Doubles are compared on their bits, as Double.equals does
+        if (!present[i][t] || (null != longs ? longs[i][t] != longs[0][t] : Double.doubleToLongBits(doubles[i][t]) != Double.doubleToLongBits(doubles[0][t]))) {
+          result = false;
+          break;
+        }
+      }
+      
+      defined[t] = true;
+      lresults[t] = result ? 1L : 0L;
+    }
+  }
 }
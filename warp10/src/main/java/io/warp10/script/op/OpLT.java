@@ -17,8 +17,10 @@
 package io.warp10.script.op;
 
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptNAryFunction;
+import io.warp10.script.WarpScriptNAryKernel;
 import io.warp10.script.WarpScriptException;
 
 import java.util.HashSet;
@@ -28,7 +30,7 @@ import java.util.Set;
 /**
  * Checks that values from N time series are < to each other (in the order they are passed). The elevation and location are cleared.
  */
-public class OpLT extends NamedWarpScriptFunction implements WarpScriptNAryFunction {
+public class OpLT extends NamedWarpScriptFunction implements WarpScriptNAryFunction, WarpScriptNAryKernel {
   
   public OpLT(String name) {
     super(name);
@@ -78,4 +80,31 @@ public class OpLT extends NamedWarpScriptFunction implements WarpScriptNAryFunct
     
     return new Object[] { tick, location, elevation, true };
   }
+  
+  @Override
+  public TYPE getKernelType(TYPE type, int n) {
+    return TYPE.LONG == type || TYPE.DOUBLE == type ? TYPE.BOOLEAN : TYPE.UNDEFINED;
+  }
+  
+  @Override
+  public void apply(int len, boolean[][] present, long[][] longs, double[][] doubles, long[] lresults, double[] dresults, boolean[] defined) {
+    int n = present.length;
+    
+    for (int t = 0; t < len; t++) {
+      boolean result = present[0][t];
+      
+      for (int i = 1; result && i < n; i++) {
+        if (!present[i][t]) {
+          result = false;
+        } else if (null != longs) {
+          result = !(longs[i - 1][t] >= longs[i][t]);
+        } else {
+          result = !(doubles[i - 1][t] >= doubles[i][t]);
+        }
+      }
+      
+      defined[t] = true;
+      lresults[t] = result ? 1L : 0L;
+    }
+  }
 }
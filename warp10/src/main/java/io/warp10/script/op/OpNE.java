@@ -17,10 +17,13 @@
 package io.warp10.script.op;
 
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptNAryFunction;
+import io.warp10.script.WarpScriptNAryKernel;
 import io.warp10.script.WarpScriptException;
 
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -28,7 +31,7 @@ import java.util.Set;
 /**
  * Checks values from N time series for inequality. The elevation and location are cleared.
  */
-public class OpNE extends NamedWarpScriptFunction implements WarpScriptNAryFunction {
+public class OpNE extends NamedWarpScriptFunction implements WarpScriptNAryFunction, WarpScriptNAryKernel {
   
   public OpNE(String name) {
     super(name);
@@ -58,4 +61,43 @@ public class OpNE extends NamedWarpScriptFunction implements WarpScriptNAryFunct
     
     return new Object[] { tick, location, elevation, true };
   }
+  
+  @Override
+  public TYPE getKernelType(TYPE type, int n) {
+    return TYPE.LONG == type || TYPE.DOUBLE == type || TYPE.BOOLEAN == type ? TYPE.BOOLEAN : TYPE.UNDEFINED;
+  }
+  
+  @Override
+  public void apply(int len, boolean[][] present, long[][] longs, double[][] doubles, long[] lresults, double[] dresults, boolean[] defined) {
+    int n = present.length;
+    
+    long[] keys = new long[n];
+    
+    for (int t = 0; t < len; t++) {
+      boolean result = true;
+      
+      for (int i = 0; i < n; i++) {
+        if (!present[i][t]) {
+          result = false;
+          break;
+        }
+        // Doubles are compared on their bits, as Double.equals does
+        keys[i] = null != longs ? longs[i][t] : Double.doubleToLongBits(doubles[i][t]);
+      }
+      
+      if (result) {
+        Arrays.sort(keys);
+        
+        for (int i = 1; i < n; i++) {
+          if (keys[i] == keys[i - 1]) {
+            result = false;
+            break;
+          }
+        }
+      }
+      
+      defined[t] = true;
+      lresults[t] = result ? 1L : 0L;
+    }
+  }
 }
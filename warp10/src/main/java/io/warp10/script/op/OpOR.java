@@ -17,8 +17,10 @@
 package io.warp10.script.op;
 
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptNAryFunction;
+import io.warp10.script.WarpScriptNAryKernel;
 import io.warp10.script.WarpScriptException;
 
 import java.util.Map;
@@ -26,7 +28,7 @@ import java.util.Map;
 /**
  * OR values from multiple time series. The elevation and location are cleared.
  */
-public class OpOR extends NamedWarpScriptFunction implements WarpScriptNAryFunction {
+public class OpOR extends NamedWarpScriptFunction implements WarpScriptNAryFunction, WarpScriptNAryKernel {
   
   /**
    * Should we ignore nulls (false) or forbid them (true)
@@ -72,4 +74,37 @@ public class OpOR extends NamedWarpScriptFunction implements WarpScriptNAryFunct
     
     return new Object[] { tick, location, elevation, false };
   }
+  
+  @Override
+  public TYPE getKernelType(TYPE type, int n) {
+    return TYPE.BOOLEAN == type ? TYPE.BOOLEAN : TYPE.UNDEFINED;
+  }
+  
+  @Override
+  public void apply(int len, boolean[][] present, long[][] longs, double[][] doubles, long[] lresults, double[] dresults, boolean[] defined) {
+    int n = present.length;
+    
+    for (int t = 0; t < len; t++) {
+      long result = 0L;
+      boolean undefined = false;
+      
+      for (int i = 0; i < n; i++) {
+        if (!present[i][t]) {
+          if (this.forbidNulls) {
+            undefined = true;
+            break;
+          }
+          continue;
+        }
+        
+        if (1L == longs[i][t]) {
+          result = 1L;
+          break;
+        }
+      }
+      
+      defined[t] = !undefined;
+      lresults[t] = result;
+    }
+  }
 }
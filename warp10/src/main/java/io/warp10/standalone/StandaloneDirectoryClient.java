@@ -216,10 +216,10 @@ public class StandaloneDirectoryClient implements DirectoryClient {
               }
               
               //
-              // Internalize Strings
+              // Store labels and attributes in their compact form
               //
               
-              GTSHelper.internalizeStrings(metadata);
+              GTSHelper.compactLabels(metadata);
 
               synchronized(metadatas) {
                 if (!metadatas.containsKey(metadata.getName())) {
@@ -646,6 +646,14 @@ public class StandaloneDirectoryClient implements DirectoryClient {
         //this.db.put(bytes, serialized);
         store(bytes, serialized);
       }
+      
+      //
+      // Cache a compact copy, 'metadata' belongs to the caller
+      //
+      
+      metadata = new Metadata(metadata);
+      GTSHelper.compactLabels(metadata);
+      
       synchronized (metadatas) {
         if (!metadatas.containsKey(metadata.getName())) {
           metadatas.put(metadata.getName(), (Map) new MapMaker().concurrencyLevel(64).makeMap());
@@ -666,6 +674,9 @@ public class StandaloneDirectoryClient implements DirectoryClient {
     }
   }
   
+  /**
+   * @return The cached Metadata of the GTS, its labels and attributes cannot be modified
+   */
   public Metadata getMetadataById(BigInteger id) {
     return this.metadatasById.get(id);
   }
@@ -16,6 +16,7 @@
 
 package io.warp10.standalone;
 
+import io.warp10.WarpConfig;
 import io.warp10.continuum.Configuration;
 import io.warp10.continuum.MetadataUtils;
 import io.warp10.continuum.ThrottlingManager;
@@ -24,9 +25,11 @@ import io.warp10.continuum.Tokens;
 import io.warp10.continuum.WarpException;
 import io.warp10.continuum.gts.GTSEncoder;
 import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GTSWrapperHelper;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.Constants;
 import io.warp10.continuum.store.StoreClient;
+import io.warp10.continuum.store.thrift.data.GTSWrapper;
 import io.warp10.continuum.store.thrift.data.Metadata;
 import io.warp10.crypto.KeyStore;
 import io.warp10.crypto.SipHashInline;
@@ -34,18 +37,22 @@ import io.warp10.quasar.token.thrift.data.WriteToken;
 import io.warp10.script.WarpScriptException;
 import io.warp10.sensision.Sensision;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.text.ParseException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.zip.GZIPInputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.thrift.protocol.TProtocol;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
@@ -70,6 +77,11 @@ public class StandaloneIngressHandler extends AbstractHandler {
   
   private final long[] classKeyLongs;
   private final long[] labelsKeyLongs;
+  
+  /**
+   * Maximum size of the strings and binaries of the GTSWrapper pushed to the update endpoint
+   */
+  private final long maxWrapperSize;
     
   public StandaloneIngressHandler(KeyStore keystore, StandaloneDirectoryClient directoryClient, StoreClient storeClient) {
     this.keyStore = keystore;
@@ -81,6 +93,14 @@ public class StandaloneIngressHandler extends AbstractHandler {
     
     this.labelsKey = this.keyStore.getKey(KeyStore.SIPHASH_LABELS);
     this.labelsKeyLongs = SipHashInline.getKey(this.labelsKey);
+    
+    Properties props = WarpConfig.getProperties();
+    
+    if (null != props && null != props.getProperty(Configuration.INGRESS_WRAPPER_MAXSIZE)) {
+      this.maxWrapperSize = Long.parseLong(props.getProperty(Configuration.INGRESS_WRAPPER_MAXSIZE));
+    } else {
+      this.maxWrapperSize = GTSWrapperHelper.DEFAULT_WRAPPER_MAXSIZE;
+    }
   }
   
   @Override
@@ -162,6 +182,55 @@ public class StandaloneIngressHandler extends AbstractHandler {
         extraLabels.remove(Constants.APPLICATION_LABEL);
       }
       
+      //
+      // Pre-encoded GTSWrapper stream, the wrapped encoders are checked and stored without being parsed
+      //
+      
+      if (Constants.GTS_WRAPPER_CONTENT_TYPE.equals(request.getHeader("Content-Type"))) {
+        BufferedInputStream in = new BufferedInputStream(request.getInputStream());
+        TProtocol protocol = GTSWrapperHelper.getWrapperProtocol(in, this.maxWrapperSize);
+        
+        while(true) {
+          GTSWrapper wrapper = GTSWrapperHelper.readWrapper(in, protocol);
+          
+          if (null == wrapper) {
+            break;
+          }
+          
+          List<GTSEncoder> encoders = GTSWrapperHelper.fromGTSWrapperToGTSEncoders(wrapper, extraLabels, Long.MAX_VALUE, ENCODER_SIZE_THRESHOLD);
+          
+          int chunk = 0;
+          
+          for (GTSEncoder encoder: encoders) {
+            encoder.setClassId(GTSHelper.classId(classKeyLongs, encoder.getName()));
+            encoder.setLabelsId(GTSHelper.labelsId(labelsKeyLongs, encoder.getMetadata().getLabels()));
+
+            ThrottlingManager.checkMADS(encoder.getMetadata(), producer, owner, application, encoder.getClassId(), encoder.getLabelsId());
+            ThrottlingManager.checkDDP(encoder.getMetadata(), producer, owner, application, (int) encoder.getCount());
+            
+            if (0 == chunk) {
+              Metadata metadata = new Metadata(encoder.getMetadata());
+              metadata.setSource(Configuration.INGRESS_METADATA_SOURCE);
+              this.directoryClient.register(metadata);
+            }
+            
+            if (update) {
+              this.storeClient.store(encoder);
+            } else {
+              this.storeClient.archive(chunk, encoder);
+            }
+            
+            chunk++;
+            count += encoder.getCount();
+          }
+        }
+        
+        in.close();
+        
+        response.setStatus(HttpServletResponse.SC_OK);
+        return;
+      }
+      
       //
       // Determine if content if gzipped
       //
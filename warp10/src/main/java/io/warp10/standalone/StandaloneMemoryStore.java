@@ -37,9 +37,13 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.regex.Pattern;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
@@ -60,6 +64,18 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
   private static final String STANDALONE_MEMORY_STORE_LOAD = "in.memory.load";
   private static final String STANDALONE_MEMORY_STORE_DUMP = "in.memory.dump";
   private static final String STANDALONE_MEMORY_GC_PERIOD = "in.memory.gcperiod";
+  private static final String STANDALONE_MEMORY_INDEX_INTERVAL = "in.memory.index.interval";
+  
+  /**
+   * Prefix of the TTL policies, 'in.memory.ttl.NAME = TTL:CLASS_REGEXP', which are
+   * checked in the order of their names
+   */
+  private static final String STANDALONE_MEMORY_TTL_PREFIX = "in.memory.ttl.";
+  
+  /**
+   * Maximum number of class names whose TTL is cached
+   */
+  private static final int MAX_CACHED_CLASS_TTLS = 100000;
   
   //private final ConcurrentHashMap<BigInteger,GTSEncoder> series;
   private final Map<BigInteger,GTSEncoder> series;
@@ -91,6 +107,23 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
    */
   private boolean ephemeral = false;
   
+  /**
+   * Number of datapoints between two checkpoints of the sparse index maintained by each encoder,
+   * 0 to disable the index
+   */
+  private final int indexInterval;
+  
+  /**
+   * TTL policies per class name pattern
+   */
+  private final Map<Pattern,Long> ttlPolicies = new LinkedHashMap<Pattern,Long>();
+  
+  /**
+   * TTL per class name, as determined by the policies, -1 if no policy applies.
+   * This is only accessed by the janitor thread.
+   */
+  private final Map<String,Long> classTTLs = new HashMap<String,Long>();
+  
   public StandaloneMemoryStore(KeyStore keystore, long timespan, long highwatermark, long lowwatermark) {
     this.keystore = keystore;
     this.aesKey = this.keystore.getKey(KeyStore.AES_LEVELDB_DATA);
@@ -99,6 +132,34 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
     this.timespan = timespan;
     this.highwatermark = highwatermark;
     this.lowwatermark = lowwatermark;
+    this.indexInterval = Integer.parseInt(WarpConfig.getProperties().getProperty(STANDALONE_MEMORY_INDEX_INTERVAL, "512"));
+    
+    List<String> policies = new ArrayList<String>();
+    
+    for (String name: WarpConfig.getProperties().stringPropertyNames()) {
+      if (name.startsWith(STANDALONE_MEMORY_TTL_PREFIX)) {
+        policies.add(name);
+      }
+    }
+    
+    Collections.sort(policies);
+    
+    for (String name: policies) {
+      String policy = WarpConfig.getProperties().getProperty(name);
+      int colon = policy.indexOf(':');
+      
+      if (colon <= 0) {
+        throw new RuntimeException("Invalid TTL policy '" + name + "', expected TTL:CLASS_REGEXP.");
+      }
+      
+      long ttl = Long.parseLong(policy.substring(0, colon).trim());
+      
+      if (ttl < 0) {
+        throw new RuntimeException("Invalid TTL for policy '" + name + "'.");
+      }
+      
+      this.ttlPolicies.put(Pattern.compile(policy.substring(colon + 1).trim()), ttl);
+    }
     
     //
     // Add a shutdown hook to dump the memory store on exit
@@ -217,12 +278,25 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
                             
               encoder = decoder.getCompatibleEncoder(0L);
 
+              //
+              // When retrieving ticks within a range, skip the chunks of datapoints which all lie before the start timestamp
+              //
+              
+              if (timespan >= 0) {
+                decoder.seek(now - timespan + 1);
+              }
+              
+              boolean ordered = decoder.isOrdered();
+              
               while(decoder.next()) {
                 //
-                // Ignore ticks after 'now'
+                // Ignore ticks after 'now', if ticks are in order there are no more ticks to consider
                 //
                 
                 if (decoder.getTimestamp() > now) {
+                  if (ordered) {
+                    break;
+                  }
                   continue;
                 }
                 
@@ -353,6 +427,7 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
       
       if (null == memencoder || this.ephemeral) {
         memencoder = new GTSEncoder(0L, this.aesKey);
+        memencoder.setIndexInterval(this.indexInterval);
         // We're among trusted friends, use safeSetMetadata...
         if (null != meta) {
           memencoder.safeSetMetadata(meta);
@@ -436,10 +511,30 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
         
         long now = TimeSource.getTime();
         
+        //
+        // If a TTL applies to the GTS, expire the datapoints older than the TTL. This drops whole
+        // chunks of datapoints and only re-encodes the boundaries when possible.
+        //
+        
+        long depth = this.timespan;
+        
+        long ttl = ttl(metadatas.get(idx), encoder);
+        
+        if (ttl >= 0) {
+          depth = ttl;
+          
+          synchronized (encoder) {
+            try {
+              datapoints += encoder.delete(Long.MIN_VALUE, now - ttl);
+            } catch (IOException ioe) {
+            }
+          }
+        }
+        
         //
         // Check each encoder for the following conditions:
         //
-        // The last recorded data was more than 'timespan' ago
+        // The last recorded data was more than 'timespan' (or TTL) ago
         // The encoder size has exceeded 'highwatermark'
         //
         // If one of those conditions is met, encoder size will be reduced.
@@ -448,7 +543,7 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
         // blocking any possible update
         //
               
-        if (now - encoder.getLastTimestamp() > this.timespan) {
+        if (now - encoder.getLastTimestamp() > depth) {
           
           synchronized (encoder) {
             GTSDecoder decoder = encoder.getDecoder(true);
@@ -460,7 +555,7 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
             while (decoder.next()) {
               skipped++;
               // Stop when reaching the first timestamp which is still within timespan
-              if (decoder.getTimestamp() > now - this.timespan) {
+              if (decoder.getTimestamp() > now - depth) {
                 keeplastskipped = true;
                 break;
               }
@@ -494,7 +589,7 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
             
             while (decoder.next()) {
               skipped++;
-              if (decoder.getTimestamp() > now - this.timespan) {
+              if (decoder.getTimestamp() > now - depth) {
                 keeplastskipped = true;
                 break;
               }
@@ -574,10 +669,6 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
   
   @Override
   public long delete(WriteToken token, Metadata metadata, long start, long end) throws IOException {
-    if (Long.MIN_VALUE != start || Long.MAX_VALUE != end) {
-      throw new IOException("MemoryStore only supports deleting complete Geo Time Series.");
-    }
-    
     //
     // Regen classId/labelsId
     //
@@ -614,11 +705,75 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
 
     BigInteger clslbls = new BigInteger(bytes);
 
-    synchronized(this.series) {
-      this.series.remove(clslbls);
+    if (Long.MIN_VALUE == start && Long.MAX_VALUE == end) {
+      synchronized(this.series) {
+        this.series.remove(clslbls);
+      }
+      
+      return 0L;
+    }
+    
+    //
+    // Remove the datapoints in [start,end], empty encoders are removed by the janitor
+    //
+    
+    GTSEncoder encoder = this.series.get(clslbls);
+    
+    if (null == encoder) {
+      return 0L;
+    }
+    
+    synchronized(encoder) {
+      return encoder.delete(start, end);
+    }
+  }
+  
+  /**
+   * Return the TTL of a GTS, from its '.ttl' attribute or else from the first policy
+   * matching its class name, or -1 if it has none.
+   */
+  private long ttl(BigInteger id, GTSEncoder encoder) {
+    Metadata metadata = null != this.directoryClient ? this.directoryClient.getMetadataById(id) : null;
+    
+    if (null == metadata) {
+      metadata = encoder.getMetadata();
+    }
+    
+    if (metadata.getAttributesSize() > 0 && metadata.getAttributes().containsKey(Constants.TTL_ATTRIBUTE)) {
+      try {
+        long ttl = Long.parseLong(metadata.getAttributes().get(Constants.TTL_ATTRIBUTE));
+        if (ttl >= 0) {
+          return ttl;
+        }
+      } catch (NumberFormatException nfe) {
+        // Ignore invalid TTLs
+      }
+    }
+    
+    if (this.ttlPolicies.isEmpty() || null == metadata.getName()) {
+      return -1L;
+    }
+    
+    Long ttl = this.classTTLs.get(metadata.getName());
+    
+    if (null == ttl) {
+      ttl = -1L;
+      
+      for (Entry<Pattern,Long> policy: this.ttlPolicies.entrySet()) {
+        if (policy.getKey().matcher(metadata.getName()).matches()) {
+          ttl = policy.getValue();
+          break;
+        }
+      }
+      
+      if (this.classTTLs.size() >= MAX_CACHED_CLASS_TTLS) {
+        this.classTTLs.clear();
+      }
+      
+      this.classTTLs.put(metadata.getName(), ttl);
     }
     
-    return 0L;
+    return ttl;
   }
   
   public void addPlasmaHandler(StandalonePlasmaHandlerInterface plasmaHandler) {
@@ -0,0 +1,857 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.Store;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.crypto.KeyStore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.DBIterator;
+import org.iq80.leveldb.WriteBatch;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Pre-aggregated (rollup) series maintained by the standalone backend.
+ *
+ * For each configured bucket span and aggregator, the datapoints stored via StandaloneStoreClient
+ * are aggregated into buckets whose end timestamps are multiples of the bucket span, i.e. the buckets
+ * BUCKETIZE produces when 'lastbucket' lies on a bucket span boundary.
+ *
+ * Each bucket is stored in LevelDB under a key made of
+ *
+ * Store.HBASE_ROLLUP_DATA_KEY_PREFIX + classId + labelsId + bucketspan + aggregator + (Long.MAX_VALUE - bucketend)
+ *
+ * and its value is a single encoded datapoint holding the aggregated value with the tick, location and
+ * elevation of the datapoint the aggregator would pick (the latest one for 'sum' and 'count').
+ *
+ * Rollups are updated as datapoints are stored, the raw datapoints and the rollups being written in the
+ * same batch. Buckets containing datapoints which overwrite an existing tick are rebuilt from the raw data,
+ * as are the buckets affected by a deletion. When the rollup configuration differs from the one the rollups were built with,
+ * they are rebuilt from the raw data in the background and are not used until this is done.
+ */
+public class StandaloneRollups extends Thread {
+
+  /**
+   * Supported aggregators, their index is used in the row keys
+   */
+  public static final String AGGREGATOR_MIN = "min";
+  public static final String AGGREGATOR_MAX = "max";
+  public static final String AGGREGATOR_SUM = "sum";
+  public static final String AGGREGATOR_COUNT = "count";
+  public static final String AGGREGATOR_LAST = "last";
+
+  private static final String[] AGGREGATORS = { AGGREGATOR_MIN, AGGREGATOR_MAX, AGGREGATOR_SUM, AGGREGATOR_COUNT, AGGREGATOR_LAST };
+
+  private static final int MIN = 0;
+  private static final int MAX = 1;
+  private static final int SUM = 2;
+  private static final int COUNT = 3;
+  private static final int LAST = 4;
+
+  /**
+   * Key under which the configuration the rollups were built with is stored
+   */
+  private static final byte[] CONFIG_KEY = Store.HBASE_ROLLUP_DATA_KEY_PREFIX;
+
+  private static final int KEY_LENGTH = Store.HBASE_ROLLUP_DATA_KEY_PREFIX.length + 8 + 8 + 8 + 1 + 8;
+
+  /**
+   * Number of pending mutations above which a rebuild flushes its write batch
+   */
+  private static final int MAX_BATCH_SIZE = 10000;
+
+  /**
+   * Number of GTS per lock whose latest stored tick is tracked
+   */
+  private static final int MAX_TRACKED_GTS = 1024;
+
+  private final DB db;
+
+  private final byte[] aesKey;
+
+  private final long[] spans;
+
+  private final int[] aggregators;
+
+  private final String config;
+
+  /**
+   * Pending range deletions, whose datapoints are ignored when rebuilding
+   */
+  private final StandaloneTombstones tombstones;
+
+  /**
+   * Locks serializing updates and rebuilds of the rollups of a given GTS
+   */
+  private final Object[] locks = new Object[256];
+
+  /**
+   * Latest stored tick of recently updated GTS, one map per lock, guarded by that lock. Ticks above it
+   * cannot overwrite a stored datapoint so they are not looked up in LevelDB. Deletions only lower the
+   * actual latest tick, so the tracked one remains an upper bound.
+   */
+  private final Map<UUID,Long>[] lastticks = new Map[locks.length];
+
+  /**
+   * Flag indicating the rollups are consistent with the raw data and can be used
+   */
+  private volatile boolean ready = false;
+
+  /**
+   * A datapoint of a rollup
+   */
+  private static final class Cell {
+    private long tick;
+    private long location;
+    private long elevation;
+    private Object value;
+
+    private Cell(long tick, long location, long elevation, Object value) {
+      this.tick = tick;
+      this.location = location;
+      this.elevation = elevation;
+      this.value = value;
+    }
+  }
+
+  /**
+   * @param tombstones Pending range deletions, or null
+   * @param spans Comma separated list of bucket spans, in time units
+   * @param aggregators Comma separated list of aggregators, or null for all supported ones
+   */
+  public StandaloneRollups(DB db, KeyStore keystore, StandaloneTombstones tombstones, String spans, String aggregators) {
+    this.db = db;
+    this.tombstones = tombstones;
+    this.aesKey = keystore.getKey(KeyStore.AES_LEVELDB_DATA);
+
+    String[] tokens = spans.split(",");
+    this.spans = new long[tokens.length];
+
+    for (int i = 0; i < tokens.length; i++) {
+      this.spans[i] = Long.parseLong(tokens[i].trim());
+      if (this.spans[i] <= 0) {
+        throw new RuntimeException("Invalid rollup bucket span " + this.spans[i]);
+      }
+    }
+
+    Arrays.sort(this.spans);
+
+    if (null == aggregators) {
+      this.aggregators = new int[] { MIN, MAX, SUM, COUNT, LAST };
+    } else {
+      tokens = aggregators.split(",");
+      this.aggregators = new int[tokens.length];
+      for (int i = 0; i < tokens.length; i++) {
+        this.aggregators[i] = Arrays.asList(AGGREGATORS).indexOf(tokens[i].trim());
+        if (this.aggregators[i] < 0) {
+          throw new RuntimeException("Unsupported rollup aggregator '" + tokens[i].trim() + "'");
+        }
+      }
+      Arrays.sort(this.aggregators);
+    }
+
+    StringBuilder sb = new StringBuilder();
+    sb.append(Arrays.toString(this.spans));
+    sb.append(Arrays.toString(this.aggregators));
+    this.config = sb.toString();
+
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+      lastticks[i] = new LinkedHashMap<UUID,Long>(16, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(java.util.Map.Entry<UUID,Long> eldest) {
+          return this.size() > MAX_TRACKED_GTS;
+        }
+      };
+    }
+
+    //
+    // If the rollups were built with the same configuration they can be used right away,
+    // otherwise rebuild them in the background
+    //
+
+    byte[] built = db.get(CONFIG_KEY);
+
+    if (null != built && this.config.equals(new String(built, Charsets.UTF_8))) {
+      this.ready = true;
+    } else {
+      this.setDaemon(true);
+      this.setName("[StandaloneRollups Builder]");
+      this.start();
+    }
+  }
+
+  /**
+   * Remove the marker of built rollups, so they are rebuilt when rollups are enabled again.
+   * This MUST be called when rollups are not maintained.
+   */
+  public static void disable(DB db) {
+    db.delete(CONFIG_KEY);
+  }
+
+  /**
+   * @return true if the rollups are consistent with the raw data
+   */
+  public boolean isReady() {
+    return this.ready;
+  }
+
+  /**
+   * @return true if buckets of 'bucketspan' aggregated with 'aggregator' can be served from the rollups
+   */
+  public boolean covers(long bucketspan, String aggregator) {
+    if (!this.ready || Arrays.binarySearch(this.spans, bucketspan) < 0) {
+      return false;
+    }
+    int agg = Arrays.asList(AGGREGATORS).indexOf(aggregator);
+    return agg >= 0 && Arrays.binarySearch(this.aggregators, agg) >= 0;
+  }
+
+  /**
+   * Store the raw datapoints of 'encoder' and update the rollups accordingly. Datapoints are first
+   * aggregated per bucket so each bucket is read and written once.
+   *
+   * The raw datapoints and the updated buckets are written in a single batch while holding the lock
+   * of the GTS, so rebuilds and concurrent updates see both or none of them. Datapoints which overwrite
+   * a stored tick, or which appear several times in 'encoder', would be accounted for twice, the
+   * buckets they fall into are rebuilt from the raw data instead. Only the ticks at or before the latest
+   * stored tick of the GTS are looked up to detect overwrites.
+   *
+   * @param kvs Raw data keys and values of the datapoints of 'encoder'. Pending writes of the same
+   *            GTS MUST have been flushed.
+   */
+  public void store(GTSEncoder encoder, List<byte[][]> kvs) throws IOException {
+
+    //
+    // Aggregate the datapoints of 'encoder', one map of bucket end to cell per span and aggregator
+    //
+
+    Map<Long,Cell>[] buckets = new Map[spans.length * aggregators.length];
+
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new HashMap<Long,Cell>();
+    }
+
+    GTSDecoder decoder = encoder.getDecoder(true);
+
+    while(decoder.next()) {
+      aggregate(buckets, decoder.getTimestamp(), decoder.getLocation(), decoder.getElevation(), decoder.getValue());
+    }
+
+    //
+    // Merge the aggregated cells with the stored ones
+    //
+
+    synchronized(lock(encoder.getClassId(), encoder.getLabelsId())) {
+
+      //
+      // Identify the ticks which were already stored or appear more than once
+      //
+
+      Set<Long> ticks = new HashSet<Long>();
+      Set<Long>[] dirty = null;
+
+      long lasttick = lasttick(encoder.getClassId(), encoder.getLabelsId());
+      long maxtick = lasttick;
+
+      for (byte[][] kv: kvs) {
+        long tick = Long.MAX_VALUE - ByteBuffer.wrap(kv[0]).order(ByteOrder.BIG_ENDIAN).getLong(Store.HBASE_RAW_DATA_KEY_PREFIX.length + 8 + 8);
+
+        if (tick > maxtick) {
+          maxtick = tick;
+        }
+
+        if (ticks.add(tick) && (tick > lasttick || null == db.get(kv[0]))) {
+          continue;
+        }
+
+        if (null == dirty) {
+          dirty = new Set[spans.length];
+          for (int s = 0; s < spans.length; s++) {
+            dirty[s] = new TreeSet<Long>();
+          }
+        }
+
+        for (int s = 0; s < spans.length; s++) {
+          dirty[s].add(bucketend(tick, spans[s]));
+        }
+      }
+
+      WriteBatch batch = db.createWriteBatch();
+
+      try {
+        for (byte[][] kv: kvs) {
+          batch.put(kv[0], kv[1]);
+        }
+
+        for (int s = 0; s < spans.length; s++) {
+          for (int a = 0; a < aggregators.length; a++) {
+            for (Entry<Long,Cell> entry: buckets[s * aggregators.length + a].entrySet()) {
+              long bucketend = entry.getKey();
+              byte[] key = key(encoder.getClassId(), encoder.getLabelsId(), spans[s], aggregators[a], bucketend);
+              Cell cell = entry.getValue();
+
+              byte[] stored = db.get(key);
+
+              if (null != stored) {
+                Cell current = decode(bucketend, stored);
+                cell = merge(aggregators[a], current, cell);
+              }
+
+              batch.put(key, encode(bucketend, cell));
+            }
+          }
+        }
+
+        db.write(batch);
+      } finally {
+        batch.close();
+      }
+
+      lastticks[lockindex(encoder.getClassId(), encoder.getLabelsId())].put(new UUID(encoder.getClassId(), encoder.getLabelsId()), maxtick);
+
+      if (null != dirty) {
+        for (int s = 0; s < spans.length; s++) {
+          for (long bucketend: dirty[s]) {
+            rebuild(encoder.getClassId(), encoder.getLabelsId(), spans[s], bucketend, bucketend);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Rebuild from the raw data the rollup buckets of a GTS which overlap [start,end]
+   */
+  public void rebuild(long classId, long labelsId, long start, long end) throws IOException {
+    synchronized(lock(classId, labelsId)) {
+      for (long span: spans) {
+        rebuild(classId, labelsId, span, start, end);
+      }
+    }
+  }
+
+  private void rebuild(long classId, long labelsId, long span, long start, long end) throws IOException {
+
+    //
+    // Compute the first and last affected buckets and the range of raw data they cover
+    //
+
+    long firstbucket = bucketend(start, span);
+    long lastbucket = end > Long.MAX_VALUE - span ? Long.MAX_VALUE : bucketend(end, span);
+    long from = firstbucket < Long.MIN_VALUE + span ? Long.MIN_VALUE : firstbucket - span + 1;
+
+    WriteBatch batch = db.createWriteBatch();
+    int pending = 0;
+
+    DBIterator iterator = db.iterator();
+
+    try {
+      //
+      // Remove the affected buckets
+      //
+
+      for (int agg: aggregators) {
+        byte[] startkey = key(classId, labelsId, span, agg, lastbucket);
+        byte[] stopkey = key(classId, labelsId, span, agg, firstbucket);
+
+        iterator.seek(startkey);
+
+        while(iterator.hasNext()) {
+          byte[] key = iterator.next().getKey();
+
+          if (Bytes.compareTo(key, stopkey) > 0) {
+            break;
+          }
+
+          batch.delete(key);
+
+          if (++pending >= MAX_BATCH_SIZE) {
+            db.write(batch);
+            batch.close();
+            batch = db.createWriteBatch();
+            pending = 0;
+          }
+        }
+      }
+
+      //
+      // Aggregate the raw data, scanned from the most recent tick. A bucket is complete
+      // as soon as a tick from an older bucket is encountered.
+      //
+
+      byte[] startkey = rawkey(classId, labelsId, lastbucket);
+      byte[] stopkey = rawkey(classId, labelsId, from);
+
+      iterator.seek(startkey);
+
+      Map<Long,Cell>[] buckets = new Map[aggregators.length];
+
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new HashMap<Long,Cell>();
+      }
+
+      long current = Long.MIN_VALUE;
+      boolean empty = true;
+
+      long[][] deleted = null == tombstones ? null : tombstones.get(classId, labelsId);
+
+      while(iterator.hasNext()) {
+        Entry<byte[],byte[]> kv = iterator.next();
+
+        if (Bytes.compareTo(kv.getKey(), stopkey) > 0) {
+          break;
+        }
+
+        ByteBuffer bb = ByteBuffer.wrap(kv.getKey()).order(ByteOrder.BIG_ENDIAN);
+        bb.position(Store.HBASE_RAW_DATA_KEY_PREFIX.length + 8 + 8);
+        long basets = Long.MAX_VALUE - bb.getLong();
+
+        GTSDecoder decoder = new GTSDecoder(basets, aesKey, ByteBuffer.wrap(kv.getValue()));
+
+        while(decoder.next()) {
+          if (null != deleted && null != StandaloneTombstones.covering(deleted, decoder.getTimestamp())) {
+            continue;
+          }
+
+          long bucketend = bucketend(decoder.getTimestamp(), span);
+
+          if (!empty && bucketend != current) {
+            pending += flush(batch, classId, labelsId, span, buckets);
+          }
+
+          current = bucketend;
+          empty = false;
+
+          for (int a = 0; a < aggregators.length; a++) {
+            add(buckets[a], aggregators[a], bucketend, decoder.getTimestamp(), decoder.getLocation(), decoder.getElevation(), decoder.getValue());
+          }
+        }
+
+        if (pending >= MAX_BATCH_SIZE) {
+          db.write(batch);
+          batch.close();
+          batch = db.createWriteBatch();
+          pending = 0;
+        }
+      }
+
+      flush(batch, classId, labelsId, span, buckets);
+
+      db.write(batch);
+    } finally {
+      batch.close();
+      iterator.close();
+    }
+  }
+
+  /**
+   * Add the aggregated cells to 'batch' and clear them
+   *
+   * @return the number of cells added
+   */
+  private int flush(WriteBatch batch, long classId, long labelsId, long span, Map<Long,Cell>[] buckets) {
+    int count = 0;
+
+    for (int a = 0; a < aggregators.length; a++) {
+      for (Entry<Long,Cell> entry: buckets[a].entrySet()) {
+        batch.put(key(classId, labelsId, span, aggregators[a], entry.getKey()), encode(entry.getKey(), entry.getValue()));
+        count++;
+      }
+      buckets[a].clear();
+    }
+
+    return count;
+  }
+
+  /**
+   * Rebuild the rollups of all GTS from the raw data
+   */
+  @Override
+  public void run() {
+    try {
+      //
+      // Remove the existing rollups. Rollups updated concurrently are rebuilt below.
+      //
+
+      DBIterator iterator = db.iterator();
+
+      try {
+        iterator.seek(Store.HBASE_ROLLUP_DATA_KEY_PREFIX);
+
+        WriteBatch batch = db.createWriteBatch();
+        int pending = 0;
+
+        try {
+          while(iterator.hasNext()) {
+            byte[] key = iterator.next().getKey();
+
+            if (0 != Bytes.compareTo(key, 0, Store.HBASE_ROLLUP_DATA_KEY_PREFIX.length, Store.HBASE_ROLLUP_DATA_KEY_PREFIX, 0, Store.HBASE_ROLLUP_DATA_KEY_PREFIX.length)) {
+              break;
+            }
+
+            batch.delete(key);
+
+            if (++pending >= MAX_BATCH_SIZE) {
+              db.write(batch);
+              batch.close();
+              batch = db.createWriteBatch();
+              pending = 0;
+            }
+          }
+
+          db.write(batch);
+        } finally {
+          batch.close();
+        }
+
+        //
+        // Rebuild the rollups of each GTS with raw data
+        //
+
+        byte[] seekto = Store.HBASE_RAW_DATA_KEY_PREFIX;
+
+        while(true) {
+          iterator.seek(seekto);
+
+          if (!iterator.hasNext()) {
+            break;
+          }
+
+          byte[] key = iterator.next().getKey();
+
+          if (key.length < Store.HBASE_RAW_DATA_KEY_PREFIX.length + 8 + 8 || 0 != Bytes.compareTo(key, 0, Store.HBASE_RAW_DATA_KEY_PREFIX.length, Store.HBASE_RAW_DATA_KEY_PREFIX, 0, Store.HBASE_RAW_DATA_KEY_PREFIX.length)) {
+            break;
+          }
+
+          ByteBuffer bb = ByteBuffer.wrap(key).order(ByteOrder.BIG_ENDIAN);
+          bb.position(Store.HBASE_RAW_DATA_KEY_PREFIX.length);
+          long classId = bb.getLong();
+          long labelsId = bb.getLong();
+
+          rebuild(classId, labelsId, Long.MIN_VALUE, Long.MAX_VALUE);
+
+          //
+          // Skip to the next GTS
+          //
+
+          seekto = rawkey(classId, labelsId, Long.MIN_VALUE);
+          seekto = Arrays.copyOf(seekto, seekto.length + 1);
+        }
+      } finally {
+        iterator.close();
+      }
+
+      db.put(CONFIG_KEY, this.config.getBytes(Charsets.UTF_8));
+      this.ready = true;
+    } catch (Throwable t) {
+      t.printStackTrace();
+    }
+  }
+
+  /**
+   * Return an iterator over the buckets of the given rollup, one decoder per GTS with buckets
+   * ending in ]lastbucket - bucketcount * bucketspan, lastbucket]. The datapoints of the decoders
+   * are at the end timestamps of the buckets.
+   */
+  public GTSDecoderIterator fetch(final List<Metadata> metadatas, final long lastbucket, final int bucketcount, final long bucketspan, final String aggregator) {
+
+    final int agg = Arrays.asList(AGGREGATORS).indexOf(aggregator);
+    final long firstbucket = lastbucket - (bucketcount - 1) * bucketspan;
+    final DBIterator iterator = db.iterator();
+
+    return new GTSDecoderIterator() {
+
+      private int idx = 0;
+
+      private GTSDecoder decoder = null;
+
+      @Override
+      public boolean hasNext() {
+        while(null == decoder && idx < metadatas.size()) {
+          Metadata metadata = metadatas.get(idx++);
+
+          byte[] startkey = key(metadata.getClassId(), metadata.getLabelsId(), bucketspan, agg, lastbucket);
+          byte[] stopkey = key(metadata.getClassId(), metadata.getLabelsId(), bucketspan, agg, firstbucket);
+
+          iterator.seek(startkey);
+
+          GTSEncoder encoder = new GTSEncoder(0L);
+
+          while(iterator.hasNext()) {
+            Entry<byte[],byte[]> kv = iterator.next();
+
+            if (Bytes.compareTo(kv.getKey(), stopkey) > 0) {
+              break;
+            }
+
+            ByteBuffer bb = ByteBuffer.wrap(kv.getKey()).order(ByteOrder.BIG_ENDIAN);
+            bb.position(KEY_LENGTH - 8);
+            long bucketend = Long.MAX_VALUE - bb.getLong();
+
+            Cell cell = decode(bucketend, kv.getValue());
+
+            try {
+              encoder.addValue(bucketend, cell.location, cell.elevation, cell.value);
+            } catch (IOException ioe) {
+              throw new RuntimeException(ioe);
+            }
+          }
+
+          if (encoder.getCount() > 0) {
+            encoder.setMetadata(metadata);
+            decoder = encoder.getDecoder();
+          }
+        }
+
+        return null != decoder;
+      }
+
+      @Override
+      public GTSDecoder next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        GTSDecoder next = decoder;
+        decoder = null;
+        return next;
+      }
+
+      @Override
+      public void remove() {
+      }
+
+      @Override
+      public void close() throws Exception {
+        iterator.close();
+      }
+    };
+  }
+
+  /**
+   * Aggregate a datapoint in the cells of all spans and aggregators
+   */
+  private void aggregate(Map<Long,Cell>[] buckets, long tick, long location, long elevation, Object value) {
+    for (int s = 0; s < spans.length; s++) {
+      long bucketend = bucketend(tick, spans[s]);
+      for (int a = 0; a < aggregators.length; a++) {
+        add(buckets[s * aggregators.length + a], aggregators[a], bucketend, tick, location, elevation, value);
+      }
+    }
+  }
+
+  private static void add(Map<Long,Cell> cells, int agg, long bucketend, long tick, long location, long elevation, Object value) {
+    //
+    // Sums are only defined for numeric values
+    //
+
+    if (SUM == agg && !(value instanceof Long) && !(value instanceof Double)) {
+      return;
+    }
+
+    Cell cell = new Cell(tick, location, elevation, COUNT == agg ? (Object) 1L : value);
+    Cell current = cells.get(bucketend);
+
+    if (null == current) {
+      cells.put(bucketend, cell);
+    } else {
+      cells.put(bucketend, merge(agg, current, cell));
+    }
+  }
+
+  /**
+   * Merge two cells of the same bucket, using the same rules as the bucketizers
+   */
+  private static Cell merge(int agg, Cell current, Cell cell) {
+    switch (agg) {
+      case SUM:
+      case COUNT:
+        if (current.value instanceof Long) {
+          current.value = ((Long) current.value) + ((Number) cell.value).longValue();
+        } else {
+          current.value = ((Number) current.value).doubleValue() + ((Number) cell.value).doubleValue();
+        }
+        if (cell.tick > current.tick) {
+          current.tick = cell.tick;
+          current.location = cell.location;
+          current.elevation = cell.elevation;
+        }
+        return current;
+      case LAST:
+        return cell.tick > current.tick ? cell : current;
+      case MIN:
+      case MAX:
+        int cmp = compare(current.value, cell.value);
+        if (MIN == agg) {
+          cmp = -cmp;
+        }
+        if (cmp < 0 || (0 == cmp && cell.tick < current.tick)) {
+          // Keep the type of the current value
+          if (current.value instanceof Long && cell.value instanceof Number) {
+            cell.value = ((Number) cell.value).longValue();
+          } else if (current.value instanceof Double && cell.value instanceof Number) {
+            cell.value = ((Number) cell.value).doubleValue();
+          }
+          return cell;
+        }
+        return current;
+      default:
+        return current;
+    }
+  }
+
+  /**
+   * Compare two values as Min/Max do, i.e. numbers using the type of 'current', strings lexicographically
+   * and booleans with false before true. Values which cannot be compared are considered equal.
+   */
+  private static int compare(Object current, Object value) {
+    if (current instanceof Long && value instanceof Number) {
+      return Long.compare((Long) current, ((Number) value).longValue());
+    } else if (current instanceof Double && value instanceof Number) {
+      return Double.compare((Double) current, ((Number) value).doubleValue());
+    } else if (current instanceof String && value instanceof String) {
+      return ((String) current).compareTo((String) value);
+    } else if (current instanceof Boolean && value instanceof Boolean) {
+      return ((Boolean) current).compareTo((Boolean) value);
+    } else {
+      return 0;
+    }
+  }
+
+  /**
+   * Return the end of the bucket of 'tick', i.e. the lowest multiple of 'span' at or after 'tick'
+   */
+  static long bucketend(long tick, long span) {
+    long mod = tick % span;
+
+    if (mod < 0) {
+      mod += span;
+    }
+
+    return 0 == mod ? tick : tick - mod + span;
+  }
+
+  private Object lock(long classId, long labelsId) {
+    return locks[lockindex(classId, labelsId)];
+  }
+
+  private int lockindex(long classId, long labelsId) {
+    return (int) ((classId ^ labelsId) & (locks.length - 1));
+  }
+
+  /**
+   * Return the latest stored tick of a GTS, or Long.MIN_VALUE if it has no raw data. The lock of the GTS MUST be held.
+   */
+  private long lasttick(long classId, long labelsId) throws IOException {
+    UUID id = new UUID(classId, labelsId);
+    Map<UUID,Long> ticks = lastticks[lockindex(classId, labelsId)];
+
+    Long lasttick = ticks.get(id);
+
+    if (null != lasttick) {
+      return lasttick;
+    }
+
+    //
+    // Raw data are sorted by decreasing tick, the first key of the GTS holds its latest tick
+    //
+
+    byte[] prefix = rawkey(classId, labelsId, Long.MAX_VALUE);
+    int prefixlen = Store.HBASE_RAW_DATA_KEY_PREFIX.length + 8 + 8;
+
+    long tick = Long.MIN_VALUE;
+
+    DBIterator iterator = db.iterator();
+
+    try {
+      iterator.seek(prefix);
+
+      if (iterator.hasNext()) {
+        byte[] key = iterator.next().getKey();
+
+        if (key.length >= prefixlen + 8 && 0 == Bytes.compareTo(key, 0, prefixlen, prefix, 0, prefixlen)) {
+          tick = Long.MAX_VALUE - ByteBuffer.wrap(key).order(ByteOrder.BIG_ENDIAN).getLong(prefixlen);
+        }
+      }
+    } finally {
+      iterator.close();
+    }
+
+    ticks.put(id, tick);
+
+    return tick;
+  }
+
+  private byte[] encode(long bucketend, Cell cell) {
+    GTSEncoder encoder = new GTSEncoder(bucketend, aesKey);
+    try {
+      encoder.addValue(cell.tick, cell.location, cell.elevation, cell.value);
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+    return encoder.getBytes();
+  }
+
+  private Cell decode(long bucketend, byte[] value) {
+    GTSDecoder decoder = new GTSDecoder(bucketend, aesKey, ByteBuffer.wrap(value));
+    decoder.next();
+    return new Cell(decoder.getTimestamp(), decoder.getLocation(), decoder.getElevation(), decoder.getValue());
+  }
+
+  private static byte[] key(long classId, long labelsId, long span, int agg, long bucketend) {
+    byte[] key = new byte[KEY_LENGTH];
+    ByteBuffer bb = ByteBuffer.wrap(key).order(ByteOrder.BIG_ENDIAN);
+    bb.put(Store.HBASE_ROLLUP_DATA_KEY_PREFIX);
+    bb.putLong(classId);
+    bb.putLong(labelsId);
+    bb.putLong(span);
+    bb.put((byte) agg);
+    bb.putLong(Long.MAX_VALUE - bucketend);
+    return key;
+  }
+
+  private static byte[] rawkey(long classId, long labelsId, long timestamp) {
+    byte[] key = new byte[Store.HBASE_RAW_DATA_KEY_PREFIX.length + 8 + 8 + 8];
+    ByteBuffer bb = ByteBuffer.wrap(key).order(ByteOrder.BIG_ENDIAN);
+    bb.put(Store.HBASE_RAW_DATA_KEY_PREFIX);
+    bb.putLong(classId);
+    bb.putLong(labelsId);
+    bb.putLong(Long.MAX_VALUE - timestamp);
+    return key;
+  }
+}
@@ -25,6 +25,7 @@ import io.warp10.continuum.gts.MetadataIdComparator;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.Constants;
 import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.RollupStoreClient;
 import io.warp10.continuum.store.Store;
 import io.warp10.continuum.store.StoreClient;
 import io.warp10.continuum.store.thrift.data.Metadata;
@@ -37,6 +38,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -50,7 +52,7 @@ import org.iq80.leveldb.DB;
 import org.iq80.leveldb.DBIterator;
 import org.iq80.leveldb.WriteBatch;
 
-public class StandaloneStoreClient implements StoreClient {
+public class StandaloneStoreClient implements StoreClient, RollupStoreClient {
   
   /**
    * This determines how often we will perform merges when retrieving
@@ -65,6 +67,20 @@ public class StandaloneStoreClient implements StoreClient {
   
   private final List<StandalonePlasmaHandlerInterface> plasmaHandlers;
   
+  /**
+   * Pre-aggregated rollups, null if none are configured
+   */
+  private final StandaloneRollups rollups;
+  
+  /**
+   * Pending range deletions, purged in the background
+   */
+  private final StandaloneTombstones tombstones;
+  
+  private static final String DEFAULT_DELETE_PURGE_RATE = "0";
+  
+  private static final String DEFAULT_DELETE_PURGE_BATCHSIZE = "10000";
+  
   public StandaloneStoreClient(DB db, KeyStore keystore, Properties properties) {
     this.db = db;
     this.keystore = keystore;
@@ -72,6 +88,41 @@ public class StandaloneStoreClient implements StoreClient {
     this.plasmaHandlers = new ArrayList<StandalonePlasmaHandlerInterface>();
     
     MAX_ENCODER_SIZE = Long.valueOf(properties.getProperty(Configuration.STANDALONE_MAX_ENCODER_SIZE, DEFAULT_MAX_ENCODER_SIZE));
+    
+    long purgeRate = Long.parseLong(properties.getProperty(Configuration.STANDALONE_DELETE_PURGE_RATE, DEFAULT_DELETE_PURGE_RATE));
+    int purgeBatchSize = Integer.parseInt(properties.getProperty(Configuration.STANDALONE_DELETE_PURGE_BATCHSIZE, DEFAULT_DELETE_PURGE_BATCHSIZE));
+    
+    this.tombstones = new StandaloneTombstones(db, purgeRate, purgeBatchSize);
+    
+    if (null != properties.getProperty(Configuration.STANDALONE_ROLLUPS)) {
+      this.rollups = new StandaloneRollups(db, keystore, this.tombstones, properties.getProperty(Configuration.STANDALONE_ROLLUPS), properties.getProperty(Configuration.STANDALONE_ROLLUPS_AGGREGATORS));
+    } else {
+      // Rollups will need to be rebuilt if they are enabled later
+      StandaloneRollups.disable(db);
+      this.rollups = null;
+    }
+  }
+  
+  @Override
+  public boolean hasRollup(long bucketspan, String aggregator) {
+    return null != this.rollups && this.rollups.covers(bucketspan, aggregator);
+  }
+  
+  @Override
+  public GTSDecoderIterator fetchRollup(ReadToken token, List<Metadata> metadatas, long lastbucket, int bucketcount, long bucketspan, String aggregator) throws IOException {
+    if (!hasRollup(bucketspan, aggregator)) {
+      throw new IOException("No rollup available for bucket span " + bucketspan + " and aggregator '" + aggregator + "'.");
+    }
+    
+    Map<String,String> labels = new HashMap<String,String>();
+    
+    if (null != token && null != token.getAppName()) {
+      labels.put(SensisionConstants.SENSISION_LABEL_APPLICATION, token.getAppName());
+    }
+    
+    Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_COUNT, labels, 1);
+
+    return this.rollups.fetch(metadatas, lastbucket, bucketcount, bucketspan, aggregator);
   }
   
   @Override
@@ -115,11 +166,44 @@ public class StandaloneStoreClient implements StoreClient {
        */ 
       long nvalues = Long.MAX_VALUE;
       
+      /**
+       * Pending range deletions of the current GTS
+       */
+      long[][] deleted = null;
+      
       @Override
       public void close() throws Exception {
         iterator.close();
       }
       
+      /**
+       * If the datapoint at 'key' is covered by a pending range deletion, seek past the
+       * deleted range and return true.
+       */
+      private boolean skipDeleted(byte[] key) {
+        if (null == deleted) {
+          return false;
+        }
+        
+        ByteBuffer bb = ByteBuffer.wrap(key).order(ByteOrder.BIG_ENDIAN);
+        bb.position(Store.HBASE_RAW_DATA_KEY_PREFIX.length + 8 + 8);
+        
+        long[] range = StandaloneTombstones.covering(deleted, Long.MAX_VALUE - bb.getLong());
+        
+        if (null == range) {
+          return false;
+        }
+        
+        if (Long.MIN_VALUE == range[0]) {
+          // Nothing left for this GTS, seek right after the end of the scan
+          iterator.seek(Arrays.copyOf(stoprow, stoprow.length + 1));
+        } else {
+          iterator.seek(StandaloneTombstones.rawkey(metadatas.get(idx).getClassId(), metadatas.get(idx).getLabelsId(), range[0] - 1));
+        }
+        
+        return true;
+      }
+      
       @Override
       public void remove() {        
       }
@@ -141,6 +225,10 @@ public class StandaloneStoreClient implements StoreClient {
             break;
           }
           
+          if (skipDeleted(kv.getKey())) {
+            continue;
+          }
+          
           ByteBuffer bb = ByteBuffer.wrap(kv.getKey()).order(ByteOrder.BIG_ENDIAN);
           
           if (fromArchive) {
@@ -260,6 +348,8 @@ public class StandaloneStoreClient implements StoreClient {
             // If the next key is over the range, nullify startrow
             if (Bytes.compareTo(kv.getKey(), stoprow) > 0) {
               startrow = null;
+            } else if (skipDeleted(kv.getKey())) {
+              continue;
             } else {
               //
               // If we are time based or value count based with values left to read, return true
@@ -294,6 +384,8 @@ public class StandaloneStoreClient implements StoreClient {
               bb.putLong(metadatas.get(idx).getClassId());
               bb.putLong(metadatas.get(idx).getLabelsId());              
               bb.putLong(0xffffffffffffffffL);
+              
+              deleted = null;
             } else {
               startrow = new byte[Store.HBASE_RAW_DATA_KEY_PREFIX.length + 8 + 8 + 8];
               ByteBuffer bb = ByteBuffer.wrap(startrow).order(ByteOrder.BIG_ENDIAN);
@@ -318,6 +410,8 @@ public class StandaloneStoreClient implements StoreClient {
               } else {
                 bb.putLong(0xffffffffffffffffL);
               }
+              
+              deleted = tombstones.get(metadatas.get(idx).getClassId(), metadatas.get(idx).getLabelsId());
             }            
           }
 
@@ -390,7 +484,14 @@ public class StandaloneStoreClient implements StoreClient {
     
     List<byte[][]> kvs = new ArrayList<byte[][]>();
     
+    long[] ticks = new long[16];
+    
     while(decoder.next()) {
+      if (kvs.size() == ticks.length) {
+        ticks = Arrays.copyOf(ticks, ticks.length * 2);
+      }
+      ticks[kvs.size()] = decoder.getTimestamp();
+      
       ByteBuffer bb = ByteBuffer.wrap(new byte[Store.HBASE_RAW_DATA_KEY_PREFIX.length + 8 + 8 + 8]).order(ByteOrder.BIG_ENDIAN);
       bb.put(Store.HBASE_RAW_DATA_KEY_PREFIX);
       bb.putLong(encoder.getClassId());
@@ -406,7 +507,28 @@ public class StandaloneStoreClient implements StoreClient {
       kvs.add(new byte[][] { bb.array(), value });
     }
     
-    store(kvs);
+    //
+    // Exclude the new datapoints from the pending deletions, otherwise they would be hidden
+    // or purged
+    //
+    
+    if (!kvs.isEmpty() && null != this.tombstones.get(encoder.getClassId(), encoder.getLabelsId())) {
+      ticks = Arrays.copyOf(ticks, kvs.size());
+      Arrays.sort(ticks);
+      this.tombstones.resolve(encoder.getClassId(), encoder.getLabelsId(), ticks);
+    }
+    
+    if (null != this.rollups) {
+      //
+      // The raw datapoints are written along with the rollups, flush the pending writes first
+      // so the rollups can tell which ticks are overwritten
+      //
+      
+      store((List<byte[][]>) null);
+      this.rollups.store(encoder, kvs);
+    } else {
+      store(kvs);
+    }
     
     for (StandalonePlasmaHandlerInterface plasmaHandler: this.plasmaHandlers) {
       if (plasmaHandler.hasSubscriptions()) {
@@ -525,51 +647,22 @@ public class StandaloneStoreClient implements StoreClient {
     metadata.setClassId(GTSHelper.classId(this.keystore.getKey(KeyStore.SIPHASH_CLASS), metadata.getName()));
 
     //
-    // Retrieve an iterator
+    // Record a tombstone for [start,end], the datapoints are ignored by fetches right away
+    // and removed in the background. The returned count is that of the datapoints the
+    // tombstone covered when it was recorded, progress of the removal is reported by the
+    // purged datapoints metric.
     //
     
-    DBIterator iterator = this.db.iterator();
+    long count = this.tombstones.add(metadata.getClassId(), metadata.getLabelsId(), start, end);
     
     //
-    // Seek the most recent key
+    // Recompute the rollup buckets which contained deleted datapoints
     //
     
-    // 128BITS
-    byte[] bend = new byte[Store.HBASE_RAW_DATA_KEY_PREFIX.length + 8 + 8 + 8];
-    ByteBuffer bb = ByteBuffer.wrap(bend).order(ByteOrder.BIG_ENDIAN);
-    bb.put(Store.HBASE_RAW_DATA_KEY_PREFIX);
-    bb.putLong(metadata.getClassId());
-    bb.putLong(metadata.getLabelsId());
-    bb.putLong(Long.MAX_VALUE - end);
-
-    iterator.seek(bend);
-    
-    byte[] bstart = new byte[bend.length];
-    bb = ByteBuffer.wrap(bstart).order(ByteOrder.BIG_ENDIAN);
-    bb.put(Store.HBASE_RAW_DATA_KEY_PREFIX);
-    bb.putLong(metadata.getClassId());
-    bb.putLong(metadata.getLabelsId());
-    bb.putLong(Long.MAX_VALUE - start);
-    
-    //
-    // Scan the iterator, deleteing keys if they are between start and end
-    //
-    
-    long count = 0L;
-    
-    while (iterator.hasNext()) {
-      Entry<byte[],byte[]> entry = iterator.next();
-      
-      if (Bytes.compareTo(entry.getKey(), bend) >= 0 && Bytes.compareTo(entry.getKey(), bstart) <= 0) {
-        this.db.delete(entry.getKey());
-        count++;
-      } else {
-        break;
-      }
+    if (null != this.rollups) {
+      this.rollups.rebuild(metadata.getClassId(), metadata.getLabelsId(), start, end);
     }
     
-    iterator.close();
-    
     return count;
   }
   
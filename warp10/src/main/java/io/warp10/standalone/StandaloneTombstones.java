@@ -0,0 +1,516 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import io.warp10.continuum.sensision.SensisionConstants;
+import io.warp10.continuum.store.Store;
+import io.warp10.sensision.Sensision;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.DBIterator;
+import org.iq80.leveldb.WriteBatch;
+
+/**
+ * Range tombstones of the standalone backend.
+ *
+ * Deleting a range of datapoints only records a tombstone, which readers honor immediately by
+ * skipping the datapoints it covers. The datapoints are then physically removed in the background,
+ * in large write batches and at a configurable rate, after which the tombstone is dropped.
+ *
+ * Tombstones are persisted under Store.HBASE_TOMBSTONE_KEY_PREFIX + classId + labelsId + start + end
+ * so pending purges resume after a restart.
+ *
+ * Storing datapoints in a range covered by a tombstone splits it around the stored ticks, so the
+ * new datapoints are neither hidden nor purged. The parts of the tombstone which no longer cover
+ * any datapoint are dropped, the others are left to the purger. A tombstone therefore never covers
+ * a datapoint written after it was recorded.
+ */
+public class StandaloneTombstones extends Thread {
+
+  private static final int KEY_LENGTH = Store.HBASE_TOMBSTONE_KEY_PREFIX.length + 8 + 8 + 8 + 8;
+
+  private static final int RAW_KEY_LENGTH = Store.HBASE_RAW_DATA_KEY_PREFIX.length + 8 + 8 + 8;
+
+  private final DB db;
+
+  /**
+   * Maximum number of datapoints purged per second, 0 for no limit
+   */
+  private final long rate;
+
+  private final int batchsize;
+
+  /**
+   * Pending tombstones per GTS, each one as { start, end }. Arrays are replaced, never modified.
+   */
+  private final Map<UUID,long[][]> tombstones = new ConcurrentHashMap<UUID,long[][]>();
+
+  /**
+   * Locks serializing the changes to the tombstones of a given GTS
+   */
+  private final Object[] locks = new Object[256];
+
+  public StandaloneTombstones(DB db, long rate, int batchsize) {
+    this.db = db;
+    this.rate = rate;
+    this.batchsize = batchsize;
+
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+    }
+
+    //
+    // Load the tombstones of a previous run
+    //
+
+    DBIterator iterator = db.iterator();
+
+    try {
+      iterator.seek(Store.HBASE_TOMBSTONE_KEY_PREFIX);
+
+      while(iterator.hasNext()) {
+        byte[] key = iterator.next().getKey();
+
+        if (KEY_LENGTH != key.length || 0 != Bytes.compareTo(key, 0, Store.HBASE_TOMBSTONE_KEY_PREFIX.length, Store.HBASE_TOMBSTONE_KEY_PREFIX, 0, Store.HBASE_TOMBSTONE_KEY_PREFIX.length)) {
+          break;
+        }
+
+        ByteBuffer bb = ByteBuffer.wrap(key).order(ByteOrder.BIG_ENDIAN);
+        bb.position(Store.HBASE_TOMBSTONE_KEY_PREFIX.length);
+        UUID id = new UUID(bb.getLong(), bb.getLong());
+        long[] range = new long[] { bb.getLong(), bb.getLong() };
+
+        long[][] ranges = tombstones.get(id);
+        ranges = null == ranges ? new long[][] { range } : append(ranges, range);
+        tombstones.put(id, ranges);
+      }
+    } finally {
+      try {
+        iterator.close();
+      } catch (IOException ioe) {
+      }
+    }
+
+    this.setDaemon(true);
+    this.setName("[StandaloneTombstones Purger]");
+    this.start();
+  }
+
+  /**
+   * Record a tombstone for the datapoints of a GTS in [start,end]
+   *
+   * @return the number of datapoints the tombstone deletes, i.e. those in [start,end] not already
+   *         covered by a pending tombstone
+   */
+  public long add(long classId, long labelsId, long start, long end) throws IOException {
+    UUID id = new UUID(classId, labelsId);
+    long[] range = new long[] { start, end };
+
+    //
+    // Count the datapoints in the range before recording the tombstone, so the purger does not
+    // remove them while they are counted. The scan is done without the lock of the GTS so it does
+    // not hold back the datapoints being stored meanwhile, the count is therefore approximate
+    // under concurrent writes. The standalone backend stores one datapoint per key.
+    //
+
+    long[][] pending = get(classId, labelsId);
+
+    long count = 0L;
+
+    byte[] stopkey = rawkey(classId, labelsId, start);
+
+    DBIterator iterator = db.iterator();
+
+    try {
+      iterator.seek(rawkey(classId, labelsId, end));
+
+      while(iterator.hasNext()) {
+        byte[] key = iterator.next().getKey();
+
+        if (Bytes.compareTo(key, stopkey) > 0) {
+          break;
+        }
+
+        if (null != pending) {
+          long tick = Long.MAX_VALUE - ByteBuffer.wrap(key).order(ByteOrder.BIG_ENDIAN).getLong(RAW_KEY_LENGTH - 8);
+          if (null != covering(pending, tick)) {
+            continue;
+          }
+        }
+
+        count++;
+      }
+    } finally {
+      iterator.close();
+    }
+
+    synchronized(lock(classId, labelsId)) {
+      db.put(key(classId, labelsId, range), new byte[0]);
+
+      long[][] ranges = tombstones.get(id);
+      tombstones.put(id, null == ranges ? new long[][] { range } : append(ranges, range));
+    }
+
+    synchronized(this) {
+      this.notify();
+    }
+
+    return count;
+  }
+
+  /**
+   * @return the pending tombstones of a GTS, or null if there are none
+   */
+  public long[][] get(long classId, long labelsId) {
+    if (tombstones.isEmpty()) {
+      return null;
+    }
+    return tombstones.get(new UUID(classId, labelsId));
+  }
+
+  /**
+   * @return the first of 'ranges' which covers 'tick', or null if none does
+   */
+  public static long[] covering(long[][] ranges, long tick) {
+    if (null == ranges) {
+      return null;
+    }
+
+    for (long[] range: ranges) {
+      if (tick >= range[0] && tick <= range[1]) {
+        return range;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Exclude ticks about to be stored from the tombstones of a GTS. The tombstones which cover
+   * some of the ticks are replaced by the parts of their range between those ticks, the parts
+   * which do not cover any datapoint are dropped. Datapoints at the ticks are overwritten by
+   * the store, so no datapoint is removed here. This MUST be called before storing the ticks.
+   *
+   * @param ticks Ticks about to be stored, in ascending order
+   */
+  public void resolve(long classId, long labelsId, long[] ticks) throws IOException {
+    if (0 == ticks.length || null == get(classId, labelsId)) {
+      return;
+    }
+
+    UUID id = new UUID(classId, labelsId);
+
+    synchronized(lock(classId, labelsId)) {
+      long[][] ranges = tombstones.get(id);
+
+      if (null == ranges) {
+        return;
+      }
+
+      List<long[]> remaining = new ArrayList<long[]>(ranges.length);
+      WriteBatch batch = null;
+
+      try {
+        for (long[] range: ranges) {
+          // Index of the first tick in the range
+          int idx = Arrays.binarySearch(ticks, range[0]);
+
+          if (idx < 0) {
+            idx = -idx - 1;
+          } else {
+            // Ticks may be duplicated, start from the first one
+            while (idx > 0 && ticks[idx - 1] == range[0]) {
+              idx--;
+            }
+          }
+
+          if (idx == ticks.length || ticks[idx] > range[1]) {
+            remaining.add(range);
+            continue;
+          }
+
+          if (null == batch) {
+            batch = db.createWriteBatch();
+          }
+
+          batch.delete(key(classId, labelsId, range));
+
+          long lo = range[0];
+          boolean open = true;
+
+          while (idx < ticks.length && ticks[idx] <= range[1]) {
+            long tick = ticks[idx++];
+
+            if (tick < lo) {
+              continue;
+            }
+
+            if (tick > lo) {
+              split(classId, labelsId, lo, tick - 1, remaining, batch);
+            }
+
+            if (tick == range[1]) {
+              open = false;
+              break;
+            }
+
+            lo = tick + 1;
+          }
+
+          if (open) {
+            split(classId, labelsId, lo, range[1], remaining, batch);
+          }
+        }
+
+        if (null == batch) {
+          return;
+        }
+
+        db.write(batch);
+      } finally {
+        if (null != batch) {
+          batch.close();
+        }
+      }
+
+      if (remaining.isEmpty()) {
+        tombstones.remove(id);
+      } else {
+        tombstones.put(id, remaining.toArray(new long[remaining.size()][]));
+      }
+    }
+  }
+
+  /**
+   * Keep the part [start,end] of a split tombstone if it still covers datapoints
+   */
+  private void split(long classId, long labelsId, long start, long end, List<long[]> remaining, WriteBatch batch) throws IOException {
+    DBIterator iterator = db.iterator();
+
+    try {
+      iterator.seek(rawkey(classId, labelsId, end));
+
+      if (!iterator.hasNext() || Bytes.compareTo(iterator.next().getKey(), rawkey(classId, labelsId, start)) > 0) {
+        return;
+      }
+    } finally {
+      iterator.close();
+    }
+
+    long[] range = new long[] { start, end };
+    remaining.add(range);
+    batch.put(key(classId, labelsId, range), new byte[0]);
+  }
+
+  /**
+   * Remove the datapoints covered by a tombstone, then the tombstone itself. The purge stops
+   * if the tombstone is split meanwhile, its parts are purged later on.
+   *
+   * @return the number of datapoints removed
+   */
+  private long purge(long classId, long labelsId, long[] range) {
+    UUID id = new UUID(classId, labelsId);
+
+    // Keys are sorted by decreasing timestamp
+    byte[] seekto = rawkey(classId, labelsId, range[1]);
+    byte[] stopkey = rawkey(classId, labelsId, range[0]);
+
+    long purged = 0L;
+    boolean done = false;
+
+    while(!done) {
+      int count = 0;
+
+      //
+      // Each batch is written while holding the lock of the GTS, so a concurrent 'resolve' either
+      // sees the datapoints it removed or prevents the removal of the ticks it stores
+      //
+
+      synchronized(lock(classId, labelsId)) {
+        long[][] ranges = tombstones.get(id);
+
+        if (null == ranges || !contains(ranges, range)) {
+          return purged;
+        }
+
+        DBIterator iterator = db.iterator();
+        WriteBatch batch = db.createWriteBatch();
+
+        try {
+          iterator.seek(seekto);
+
+          while(count < batchsize && iterator.hasNext()) {
+            byte[] key = iterator.next().getKey();
+
+            if (Bytes.compareTo(key, stopkey) > 0) {
+              break;
+            }
+
+            batch.delete(key);
+            count++;
+            seekto = key;
+          }
+
+          done = count < batchsize;
+
+          if (done) {
+            batch.delete(key(classId, labelsId, range));
+            long[][] remaining = remove(ranges, range);
+            if (0 == remaining.length) {
+              tombstones.remove(id);
+            } else {
+              tombstones.put(id, remaining);
+            }
+          }
+
+          db.write(batch);
+        } finally {
+          try {
+            batch.close();
+            iterator.close();
+          } catch (IOException ioe) {
+          }
+        }
+      }
+
+      purged += count;
+
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_DELETE_PURGED, Sensision.EMPTY_LABELS, count);
+
+      if (rate > 0 && count > 0) {
+        try {
+          Thread.sleep(count * 1000L / rate);
+        } catch (InterruptedException ie) {
+        }
+      }
+    }
+
+    return purged;
+  }
+
+  @Override
+  public void run() {
+    while(true) {
+      try {
+        Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_DELETE_TOMBSTONES, Sensision.EMPTY_LABELS, count());
+
+        Entry<UUID,long[][]> next = null;
+
+        for (Entry<UUID,long[][]> entry: tombstones.entrySet()) {
+          next = entry;
+          break;
+        }
+
+        if (null == next) {
+          synchronized(this) {
+            if (tombstones.isEmpty()) {
+              this.wait(60000L);
+            }
+          }
+          continue;
+        }
+
+        long classId = next.getKey().getMostSignificantBits();
+        long labelsId = next.getKey().getLeastSignificantBits();
+
+        for (long[] range: next.getValue()) {
+          purge(classId, labelsId, range);
+        }
+      } catch (Throwable t) {
+        t.printStackTrace();
+        try {
+          Thread.sleep(1000L);
+        } catch (InterruptedException ie) {
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the number of pending tombstones
+   */
+  public long count() {
+    long count = 0L;
+    for (long[][] ranges: tombstones.values()) {
+      count += ranges.length;
+    }
+    return count;
+  }
+
+  private Object lock(long classId, long labelsId) {
+    return locks[(int) ((classId ^ labelsId) & (locks.length - 1))];
+  }
+
+  private static boolean contains(long[][] ranges, long[] range) {
+    for (long[] r: ranges) {
+      if (r == range) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static long[][] append(long[][] ranges, long[] range) {
+    long[][] appended = Arrays.copyOf(ranges, ranges.length + 1);
+    appended[ranges.length] = range;
+    return appended;
+  }
+
+  private static long[][] remove(long[][] ranges, long[] range) {
+    long[][] remaining = new long[ranges.length - 1][];
+    int idx = 0;
+    for (long[] r: ranges) {
+      if (r != range) {
+        remaining[idx++] = r;
+      }
+    }
+    return remaining;
+  }
+
+  private static byte[] key(long classId, long labelsId, long[] range) {
+    byte[] key = new byte[KEY_LENGTH];
+    ByteBuffer bb = ByteBuffer.wrap(key).order(ByteOrder.BIG_ENDIAN);
+    bb.put(Store.HBASE_TOMBSTONE_KEY_PREFIX);
+    bb.putLong(classId);
+    bb.putLong(labelsId);
+    bb.putLong(range[0]);
+    bb.putLong(range[1]);
+    return key;
+  }
+
+  static byte[] rawkey(long classId, long labelsId, long timestamp) {
+    byte[] key = new byte[RAW_KEY_LENGTH];
+    ByteBuffer bb = ByteBuffer.wrap(key).order(ByteOrder.BIG_ENDIAN);
+    bb.put(Store.HBASE_RAW_DATA_KEY_PREFIX);
+    bb.putLong(classId);
+    bb.putLong(labelsId);
+    bb.putLong(Long.MAX_VALUE - timestamp);
+    return key;
+  }
+}
@@ -0,0 +1,273 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.Constants;
+import io.warp10.continuum.store.Directory;
+import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.crypto.CryptoUtils;
+import io.warp10.crypto.KeyStore;
+import io.warp10.crypto.UnsecureKeyStore;
+import io.warp10.quasar.token.thrift.data.ReadToken;
+import io.warp10.standalone.StandaloneDirectoryClient;
+import io.warp10.standalone.StandaloneStoreClient;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.Options;
+import org.iq80.leveldb.impl.Iq80DBFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+public class BulkImportTest {
+
+  private static final String CLASS = "bulkimport.test";
+
+  private File dir;
+  private KeyStore keystore;
+  private Map<String,String> extraLabels;
+
+  @BeforeClass
+  public static void init() throws Exception {
+    // The directory reads its configuration from WarpConfig
+    if (null == WarpConfig.getProperties()) {
+      File config = File.createTempFile("bulkimport", ".conf");
+      config.deleteOnExit();
+      write(config, Configuration.WARP_TIME_UNITS + " = us");
+      WarpConfig.setProperties(config.getAbsolutePath());
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    dir = Files.createTempDirectory("bulkimport").toFile();
+
+    keystore = new UnsecureKeyStore();
+    keystore.setKey(KeyStore.SIPHASH_CLASS, key(16, 1));
+    keystore.setKey(KeyStore.SIPHASH_LABELS, key(16, 2));
+    keystore.setKey(KeyStore.AES_LEVELDB_DATA, key(32, 3));
+    keystore.setKey(KeyStore.AES_LEVELDB_METADATA, key(32, 4));
+
+    extraLabels = new HashMap<String,String>();
+    extraLabels.put(Constants.PRODUCER_LABEL, "producer");
+    extraLabels.put(Constants.OWNER_LABEL, "owner");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Iq80DBFactory.factory.destroy(dir, new Options());
+  }
+
+  private static byte[] key(int length, int seed) {
+    byte[] key = new byte[length];
+    for (int i = 0; i < length; i++) {
+      key[i] = (byte) (seed * 31 + i);
+    }
+    return key;
+  }
+
+  private static void write(File file, String... lines) throws Exception {
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), Charsets.UTF_8);
+    try {
+      for (String line: lines) {
+        writer.write(line);
+        writer.write("\n");
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  private File input(String... lines) throws Exception {
+    File file = File.createTempFile("bulkimport", ".txt", dir.getParentFile());
+    file.deleteOnExit();
+    write(file, lines);
+    return file;
+  }
+
+  private Metadata metadata(String host) {
+    Map<String,String> labels = new HashMap<String,String>(extraLabels);
+    labels.put("host", host);
+
+    Metadata metadata = new Metadata();
+    metadata.setName(CLASS);
+    metadata.setLabels(labels);
+    metadata.setClassId(GTSHelper.classId(keystore.getKey(KeyStore.SIPHASH_CLASS), CLASS));
+    metadata.setLabelsId(GTSHelper.labelsId(keystore.getKey(KeyStore.SIPHASH_LABELS), labels));
+    return metadata;
+  }
+
+  private static byte[] metadataKey(Metadata metadata) {
+    byte[] key = new byte[Directory.HBASE_METADATA_KEY_PREFIX.length + 16];
+    ByteBuffer bb = ByteBuffer.wrap(key).order(ByteOrder.BIG_ENDIAN);
+    bb.put(Directory.HBASE_METADATA_KEY_PREFIX);
+    bb.putLong(metadata.getClassId());
+    bb.putLong(metadata.getLabelsId());
+    return key;
+  }
+
+  private void importLevelDB(File... inputs) throws Exception {
+    List<String> paths = new ArrayList<String>();
+    for (File input: inputs) {
+      paths.add(input.getAbsolutePath());
+    }
+
+    BulkImport bi = new BulkImport(keystore, false, extraLabels);
+    BulkImport.importLevelDB(bi, keystore, new Properties(), dir.getAbsolutePath(), paths, false, 1024 * 1024L);
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+
+    //
+    // Register GTS 'a' beforehand with an attribute, as a running instance would have
+    //
+
+    Metadata existing = metadata("a");
+    existing.setAttributes(new HashMap<String,String>());
+    existing.getAttributes().put("attr", "kept");
+
+    byte[] existingValue = CryptoUtils.wrap(keystore.getKey(KeyStore.AES_LEVELDB_METADATA), new TSerializer(new TCompactProtocol.Factory()).serialize(existing));
+
+    DB db = Iq80DBFactory.factory.open(dir, new Options().createIfMissing(true));
+    db.put(metadataKey(existing), existingValue);
+    db.close();
+
+    //
+    // Import two inputs, with ticks duplicated within and across inputs
+    //
+
+    File first = input(
+        "1000// " + CLASS + "{host=a} 1",
+        "2000// " + CLASS + "{host=a} 2",
+        "=3000/48.0:-4.5/100 3",
+        "2000// " + CLASS + "{host=a} 20",
+        "",
+        "1000// " + CLASS + "{host=b} 'x'");
+
+    File second = input(
+        "3000// " + CLASS + "{host=a} 30",
+        "4000// " + CLASS + "{host=a} 4",
+        "500// " + CLASS + "{host=b} 'y'");
+
+    importLevelDB(first, second);
+
+    db = Iq80DBFactory.factory.open(dir, new Options());
+
+    try {
+      // The Metadata of known GTS is not overwritten
+      Assert.assertTrue(Arrays.equals(existingValue, db.get(metadataKey(existing))));
+
+      //
+      // The directory loads the imported Metadata
+      //
+
+      StandaloneDirectoryClient directory = new StandaloneDirectoryClient(db, keystore);
+
+      List<Map<String,String>> selectors = new ArrayList<Map<String,String>>();
+      selectors.add(new HashMap<String,String>());
+
+      List<Metadata> metadatas = directory.find(Arrays.asList("=" + CLASS), selectors);
+
+      Collections.sort(metadatas, new Comparator<Metadata>() {
+        @Override
+        public int compare(Metadata o1, Metadata o2) {
+          return o1.getLabels().get("host").compareTo(o2.getLabels().get("host"));
+        }
+      });
+
+      Assert.assertEquals(2, metadatas.size());
+
+      Assert.assertEquals(metadata("a").getLabels(), metadatas.get(0).getLabels());
+      Assert.assertEquals("kept", metadatas.get(0).getAttributes().get("attr"));
+
+      Assert.assertEquals(metadata("b").getLabels(), metadatas.get(1).getLabels());
+      Assert.assertEquals(metadata("b").getLabelsId(), metadatas.get(1).getLabelsId());
+      Assert.assertTrue(metadatas.get(1).getAttributes().isEmpty());
+
+      //
+      // The datapoints are fetched back, a single value is kept per tick
+      //
+
+      StandaloneStoreClient store = new StandaloneStoreClient(db, keystore, new Properties());
+
+      GTSDecoderIterator iter = store.fetch(new ReadToken(), metadatas, Long.MAX_VALUE, -1000L, false, false);
+
+      Map<String,List<Long>> ticks = new HashMap<String,List<Long>>();
+      Map<String,List<Object>> values = new HashMap<String,List<Object>>();
+
+      while(iter.hasNext()) {
+        GTSDecoder decoder = iter.next();
+        String host = decoder.getMetadata().getLabels().get("host");
+
+        if (!ticks.containsKey(host)) {
+          ticks.put(host, new ArrayList<Long>());
+          values.put(host, new ArrayList<Object>());
+        }
+
+        while(decoder.next()) {
+          ticks.get(host).add(decoder.getTimestamp());
+          values.get(host).add(decoder.getValue());
+
+          if (3000L == decoder.getTimestamp() && GeoTimeSerie.NO_LOCATION != decoder.getLocation()) {
+            Assert.assertEquals(100L, decoder.getElevation());
+          }
+        }
+      }
+
+      iter.close();
+
+      Assert.assertEquals(Arrays.asList(4000L, 3000L, 2000L, 1000L), ticks.get("a"));
+      Assert.assertEquals(4L, values.get("a").get(0));
+      Assert.assertTrue(Arrays.asList(3L, 30L).contains(values.get("a").get(1)));
+      Assert.assertTrue(Arrays.asList(2L, 20L).contains(values.get("a").get(2)));
+      Assert.assertEquals(1L, values.get("a").get(3));
+
+      Assert.assertEquals(Arrays.asList(1000L, 500L), ticks.get("b"));
+      Assert.assertEquals(Arrays.asList((Object) "x", "y"), values.get("b"));
+    } finally {
+      db.close();
+    }
+  }
+}
@@ -0,0 +1,153 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import kafka.producer.KeyedMessage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class KafkaProducerPipelineTest {
+
+  /**
+   * Stub producer recording the messages it was asked to send, optionally
+   * blocking or failing on demand
+   */
+  private static class StubSender implements KafkaProducerPipeline.Sender {
+    private final List<String> sent = new ArrayList<String>();
+    private volatile CountDownLatch gate = null;
+    private final AtomicBoolean fail = new AtomicBoolean(false);
+
+    @Override
+    public void send(List<KeyedMessage<byte[], byte[]>> messages) throws Exception {
+      CountDownLatch latch = this.gate;
+      if (null != latch) {
+        latch.await();
+      }
+      if (this.fail.get()) {
+        throw new Exception("Stub failure.");
+      }
+      synchronized(this.sent) {
+        for (KeyedMessage<byte[], byte[]> message: messages) {
+          this.sent.add(new String(message.message(), "UTF-8"));
+        }
+      }
+    }
+  }
+
+  private static KeyedMessage<byte[],byte[]> message(String key, String value) throws Exception {
+    return new KeyedMessage<byte[],byte[]>("topic", key.getBytes("UTF-8"), value.getBytes("UTF-8"));
+  }
+
+  @Test
+  public void testOrderPerKey() throws Exception {
+    StubSender sender = new StubSender();
+    KafkaProducerPipeline pipeline = new KafkaProducerPipeline("test", sender, 4, 16, 64, "test.send");
+
+    KafkaProducerPipeline.Ack ack = new KafkaProducerPipeline.Ack();
+
+    for (int i = 0; i < 100; i++) {
+      pipeline.submit(message("key", Integer.toString(i)), ack);
+    }
+
+    ack.await(10000L);
+
+    Assert.assertEquals(0, ack.getPending());
+    Assert.assertEquals(100, sender.sent.size());
+
+    for (int i = 0; i < 100; i++) {
+      Assert.assertEquals(Integer.toString(i), sender.sent.get(i));
+    }
+  }
+
+  @Test
+  public void testTimedOutRequestDoesNotLeak() throws Exception {
+    StubSender sender = new StubSender();
+    KafkaProducerPipeline pipeline = new KafkaProducerPipeline("test", sender, 1, 16, 1024, "test.send");
+
+    //
+    // First request: the sender is blocked then fails, the request times out
+    //
+
+    CountDownLatch gate = new CountDownLatch(1);
+    sender.gate = gate;
+    sender.fail.set(true);
+
+    KafkaProducerPipeline.Ack first = new KafkaProducerPipeline.Ack();
+    pipeline.submit(message("a", "first"), first);
+
+    try {
+      first.await(50L);
+      Assert.fail("Expected a timeout.");
+    } catch (IOException ioe) {
+      // Expected
+    }
+
+    Assert.assertEquals(1, first.getPending());
+
+    //
+    // Second request uses its own Ack, the late failure of the first request
+    // must not be reported to it
+    //
+
+    KafkaProducerPipeline.Ack second = new KafkaProducerPipeline.Ack();
+
+    gate.countDown();
+
+    // Wait for the first batch to be processed
+    long deadline = System.currentTimeMillis() + 10000L;
+    while (first.getPending() > 0 && System.currentTimeMillis() < deadline) {
+      TimeUnit.MILLISECONDS.sleep(1L);
+    }
+    Assert.assertEquals(0, first.getPending());
+
+    sender.gate = null;
+    sender.fail.set(false);
+
+    pipeline.submit(message("a", "second"), second);
+    second.await(10000L);
+
+    Assert.assertEquals(0, second.getPending());
+    Assert.assertEquals(1, sender.sent.size());
+    Assert.assertEquals("second", sender.sent.get(0));
+  }
+
+  @Test
+  public void testSendFailure() throws Exception {
+    StubSender sender = new StubSender();
+    sender.fail.set(true);
+    KafkaProducerPipeline pipeline = new KafkaProducerPipeline("test", sender, 2, 16, 1024, "test.send");
+
+    KafkaProducerPipeline.Ack ack = new KafkaProducerPipeline.Ack();
+    pipeline.submit(message("a", "x"), ack);
+    pipeline.submit(message("b", "y"), ack);
+
+    try {
+      ack.await(10000L);
+      Assert.fail("Expected a send failure.");
+    } catch (IOException ioe) {
+      Assert.assertEquals(0, ack.getPending());
+    }
+  }
+}
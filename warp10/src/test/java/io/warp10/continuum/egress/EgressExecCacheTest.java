@@ -0,0 +1,206 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.egress;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EgressExecCacheTest {
+
+  private static final long HOUR = 3600000L;
+
+  private static String key(int i) {
+    return EgressExecCache.key("/api/v0/exec", "script" + i);
+  }
+
+  @Test
+  public void testKey() {
+    Assert.assertEquals(EgressExecCache.key("/a", "script"), EgressExecCache.key("/a", "script"));
+    Assert.assertFalse(EgressExecCache.key("/a", "script").equals(EgressExecCache.key("/b", "script")));
+    Assert.assertFalse(EgressExecCache.key("/a", "script").equals(EgressExecCache.key("/a", "script2")));
+    Assert.assertFalse(EgressExecCache.key(null, "script").equals(EgressExecCache.key("/a", "script")));
+  }
+
+  @Test
+  public void testLRU() {
+    // Entries of 100 bytes take 356 bytes, 14 of them fit
+    EgressExecCache cache = new EgressExecCache(5000L, HOUR, 1000L);
+
+    long now = System.currentTimeMillis();
+
+    for (int i = 0; i < 14; i++) {
+      cache.put(key(i), HOUR, now, new byte[100]);
+    }
+
+    for (int i = 0; i < 14; i++) {
+      Assert.assertNotNull(cache.get(key(i)));
+    }
+
+    // Access key 0 so key 1 is the least recently used
+    cache.get(key(0));
+
+    cache.put(key(14), HOUR, now, new byte[100]);
+
+    Assert.assertTrue(cache.isCacheable(key(0)));
+    Assert.assertFalse(cache.isCacheable(key(1)));
+    Assert.assertTrue(cache.isCacheable(key(2)));
+    Assert.assertTrue(cache.isCacheable(key(14)));
+
+    // Replacing a result only accounts for the size difference, 300 bytes evict a single entry
+    cache.put(key(2), HOUR, now, new byte[400]);
+
+    Assert.assertEquals(400, cache.get(key(2)).length);
+    Assert.assertFalse(cache.isCacheable(key(3)));
+    Assert.assertTrue(cache.isCacheable(key(4)));
+
+    // Shrinking a result frees room, no eviction needed
+    cache.put(key(2), HOUR, now, new byte[10]);
+    cache.put(key(15), HOUR, now, new byte[100]);
+
+    for (int i = 4; i <= 15; i++) {
+      Assert.assertTrue(Integer.toString(i), cache.isCacheable(key(i)));
+    }
+  }
+
+  @Test
+  public void testExpiry() {
+    EgressExecCache cache = new EgressExecCache(1000000L, HOUR, 1000L);
+
+    long now = System.currentTimeMillis();
+    long period = now - (now % HOUR);
+
+    //
+    // Results expire at the end of the period they were produced in, not TTL after
+    //
+
+    cache.put(key(0), HOUR, period - 1L, new byte[1]);
+    Assert.assertNull(cache.get(key(0)));
+    // Expired results still flag the request as cacheable
+    Assert.assertTrue(cache.isCacheable(key(0)));
+
+    cache.put(key(1), HOUR, period, new byte[1]);
+    Assert.assertNotNull(cache.get(key(1)));
+
+    // TTLs are capped to the maximum TTL
+    EgressExecCache capped = new EgressExecCache(1000000L, 1000L, 1000L);
+    capped.put(key(2), HOUR, now - (now % 1000L) - 1L, new byte[1]);
+    Assert.assertNull(capped.get(key(2)));
+    Assert.assertTrue(capped.isCacheable(key(2)));
+
+    // Null TTLs are not cached
+    cache.put(key(3), 0L, now, new byte[1]);
+    Assert.assertFalse(cache.isCacheable(key(3)));
+  }
+
+  @Test
+  public void testOversized() {
+    EgressExecCache cache = new EgressExecCache(5000L, HOUR, 1000L);
+
+    long now = System.currentTimeMillis();
+
+    for (int i = 0; i < 10; i++) {
+      cache.put(key(i), HOUR, now, new byte[100]);
+    }
+
+    // Results above a tenth of the cache are not kept, the request is only flagged as cacheable
+    cache.put(key(10), HOUR, now, new byte[501]);
+
+    Assert.assertNull(cache.get(key(10)));
+    Assert.assertTrue(cache.isCacheable(key(10)));
+
+    for (int i = 0; i < 10; i++) {
+      Assert.assertNotNull(cache.get(key(i)));
+    }
+
+    cache.put(key(11), HOUR, now, new byte[500]);
+    Assert.assertNotNull(cache.get(key(11)));
+  }
+
+  @Test
+  public void testLeadFollow() throws Exception {
+    final EgressExecCache cache = new EgressExecCache(1000000L, HOUR, 10000L);
+
+    Assert.assertNull(cache.follow(key(0)));
+
+    EgressExecCache.Flight flight = cache.lead(key(0));
+
+    Assert.assertNotNull(flight);
+    Assert.assertNull(cache.lead(key(0)));
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    try {
+      Future<byte[]> follower = executor.submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws Exception {
+          return cache.follow(key(0));
+        }
+      });
+
+      Thread.sleep(50L);
+      Assert.assertFalse(follower.isDone());
+
+      byte[] result = new byte[] { 42 };
+      cache.complete(key(0), flight, result);
+
+      Assert.assertSame(result, follower.get(10000L, TimeUnit.MILLISECONDS));
+
+      // The request can be led again once completed
+      flight = cache.lead(key(0));
+      Assert.assertNotNull(flight);
+
+      // A failed execution releases the followers without a result
+      follower = executor.submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws Exception {
+          return cache.follow(key(0));
+        }
+      });
+
+      Thread.sleep(50L);
+      cache.complete(key(0), flight, null);
+
+      Assert.assertNull(follower.get(10000L, TimeUnit.MILLISECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testFollowTimeout() throws Exception {
+    EgressExecCache cache = new EgressExecCache(1000000L, HOUR, 100L);
+
+    EgressExecCache.Flight flight = cache.lead(key(0));
+
+    long nanos = System.nanoTime();
+    Assert.assertNull(cache.follow(key(0)));
+    nanos = System.nanoTime() - nanos;
+
+    Assert.assertTrue(nanos >= TimeUnit.MILLISECONDS.toNanos(100L));
+    Assert.assertTrue(nanos < TimeUnit.MILLISECONDS.toNanos(10000L));
+
+    // The leader completing late is harmless
+    cache.complete(key(0), flight, new byte[1]);
+    Assert.assertNotNull(cache.lead(key(0)));
+  }
+}
@@ -0,0 +1,228 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.egress;
+
+import io.warp10.continuum.egress.EgressMobiusHandler.Execution;
+import io.warp10.continuum.store.StoreClient;
+import io.warp10.script.WarpScriptStack.Macro;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EgressMobiusHandlerTest {
+
+  private static final String SCRIPT = "<% NOW %> 1000 EVERY";
+
+  private static final String OTHER_SCRIPT = "<% 'other' %> 1000 EVERY";
+
+  /**
+   * @return a Session only usable as a map key
+   */
+  private static Session session() {
+    return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class[] { Session.class }, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if ("hashCode".equals(method.getName())) {
+          return System.identityHashCode(proxy);
+        } else if ("equals".equals(method.getName())) {
+          return proxy == args[0];
+        } else if ("toString".equals(method.getName())) {
+          return "session@" + System.identityHashCode(proxy);
+        }
+        throw new UnsupportedOperationException();
+      }
+    });
+  }
+
+  private static Execution attach(Session session, String script) {
+    synchronized(EgressMobiusHandler.executions) {
+      return EgressMobiusHandler.attach(session, script, new Macro(), null);
+    }
+  }
+
+  /**
+   * Simulate the scheduler picking the next run
+   */
+  private static Execution poll() {
+    synchronized(EgressMobiusHandler.executions) {
+      Execution execution = EgressMobiusHandler.scheduledRuns.poll();
+      Assert.assertTrue(execution.scheduled);
+      execution.scheduled = false;
+      return execution;
+    }
+  }
+
+  private static List<Session> complete(Execution execution, long now, Long every) {
+    synchronized(EgressMobiusHandler.executions) {
+      return EgressMobiusHandler.complete(execution, now, every);
+    }
+  }
+
+  @Before
+  public void setUp() {
+    EgressMobiusHandler.scheduledRuns.clear();
+    EgressMobiusHandler.executions.clear();
+    EgressMobiusHandler.shared.clear();
+  }
+
+  @Test
+  public void testShare() {
+    Session session1 = session();
+    Session session2 = session();
+    Session session3 = session();
+
+    Execution execution = attach(session1, SCRIPT);
+
+    Assert.assertTrue(execution.scheduled);
+    Assert.assertEquals(1, EgressMobiusHandler.scheduledRuns.size());
+    Assert.assertNull(execution.storeClient);
+
+    // Sessions submitting the same script share the execution, which stays scheduled once
+    Assert.assertSame(execution, attach(session2, SCRIPT));
+    Assert.assertEquals(1, EgressMobiusHandler.scheduledRuns.size());
+    Assert.assertEquals(new HashSet<Session>(Arrays.asList(session1, session2)), execution.sessions);
+
+    // Another script gets its own execution
+    Execution other = attach(session3, OTHER_SCRIPT);
+    Assert.assertNotSame(execution, other);
+    Assert.assertEquals(2, EgressMobiusHandler.scheduledRuns.size());
+
+    // The execution is running, a new session will get the result of the current run
+    Assert.assertSame(execution, poll());
+    Session session4 = session();
+    Assert.assertSame(execution, attach(session4, SCRIPT));
+    Assert.assertFalse(execution.scheduled);
+
+    List<Session> sessions = complete(execution, 0L, 1000L);
+    Assert.assertEquals(3, sessions.size());
+    Assert.assertTrue(execution.scheduled);
+    Assert.assertEquals(1000L, execution.deadline);
+
+    // A session joining a scheduled execution makes it run now
+    Session session5 = session();
+    Assert.assertSame(execution, attach(session5, SCRIPT));
+    Assert.assertTrue(execution.deadline > 1000L);
+    Assert.assertEquals(2, EgressMobiusHandler.scheduledRuns.size());
+  }
+
+  @Test
+  public void testDetach() {
+    Session session1 = session();
+    Session session2 = session();
+
+    Execution execution = attach(session1, SCRIPT);
+    attach(session2, SCRIPT);
+
+    synchronized(EgressMobiusHandler.executions) {
+      EgressMobiusHandler.detach(session1);
+      // Detaching twice is harmless
+      EgressMobiusHandler.detach(session1);
+    }
+
+    Assert.assertTrue(execution.scheduled);
+    Assert.assertSame(execution, EgressMobiusHandler.shared.get(SCRIPT));
+
+    // Submitting another script detaches the session from its execution, which is dropped
+    Execution other = attach(session2, OTHER_SCRIPT);
+
+    Assert.assertTrue(execution.sessions.isEmpty());
+    Assert.assertFalse(execution.scheduled);
+    Assert.assertNull(execution.script);
+    Assert.assertNull(EgressMobiusHandler.shared.get(SCRIPT));
+    Assert.assertEquals(Arrays.asList(other), Arrays.asList(EgressMobiusHandler.scheduledRuns.toArray()));
+    Assert.assertSame(other, EgressMobiusHandler.executions.get(session2));
+    Assert.assertEquals(1, EgressMobiusHandler.executions.size());
+
+    // A run completing after all its sessions left is not rescheduled
+    Assert.assertSame(other, poll());
+
+    synchronized(EgressMobiusHandler.executions) {
+      EgressMobiusHandler.detach(session2);
+    }
+
+    Assert.assertTrue(complete(other, 0L, 1000L).isEmpty());
+    Assert.assertFalse(other.scheduled);
+    Assert.assertTrue(EgressMobiusHandler.scheduledRuns.isEmpty());
+    Assert.assertTrue(EgressMobiusHandler.shared.isEmpty());
+    Assert.assertTrue(EgressMobiusHandler.executions.isEmpty());
+  }
+
+  @Test
+  public void testUnshare() {
+    Session session1 = session();
+    Session session2 = session();
+    Session session3 = session();
+
+    // An execution which stored a context can no longer be joined
+    Execution execution = attach(session1, SCRIPT);
+    poll();
+    execution.context = "context";
+
+    Assert.assertEquals(Arrays.asList(session1), complete(execution, 0L, 1000L));
+    Assert.assertTrue(execution.scheduled);
+    Assert.assertNull(execution.script);
+
+    Execution execution2 = attach(session2, SCRIPT);
+    Assert.assertNotSame(execution, execution2);
+    Assert.assertSame(execution2, EgressMobiusHandler.shared.get(SCRIPT));
+
+    // Detaching the last session of the unshared execution does not unshare the new one
+    synchronized(EgressMobiusHandler.executions) {
+      EgressMobiusHandler.detach(session1);
+    }
+
+    Assert.assertSame(execution2, EgressMobiusHandler.shared.get(SCRIPT));
+
+    // An execution which is not run again can no longer be joined
+    Assert.assertSame(execution2, poll());
+    Assert.assertEquals(Arrays.asList(session2), complete(execution2, 0L, null));
+    Assert.assertFalse(execution2.scheduled);
+    Assert.assertNull(EgressMobiusHandler.shared.get(SCRIPT));
+
+    Execution execution3 = attach(session3, SCRIPT);
+    Assert.assertNotSame(execution2, execution3);
+    Assert.assertTrue(execution3.scheduled);
+  }
+
+  @Test
+  public void testIncremental() {
+    StoreClient store = new IncrementalStoreClient(null);
+
+    Session session1 = session();
+    Session session2 = session();
+
+    Execution execution;
+
+    synchronized(EgressMobiusHandler.executions) {
+      execution = EgressMobiusHandler.attach(session1, SCRIPT, new Macro(), store);
+      Assert.assertSame(execution, EgressMobiusHandler.attach(session2, SCRIPT, new Macro(), store));
+    }
+
+    // Each execution has its own cache
+    Assert.assertNotNull(execution.storeClient);
+    Assert.assertNotSame(store, execution.storeClient);
+  }
+}
@@ -0,0 +1,409 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.egress;
+
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.StoreClient;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.quasar.token.thrift.data.ReadToken;
+import io.warp10.quasar.token.thrift.data.WriteToken;
+import io.warp10.standalone.StandalonePlasmaHandlerInterface;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IncrementalStoreClientTest {
+
+  private static final Comparator<long[]> TICK_DESC = new Comparator<long[]>() {
+    @Override
+    public int compare(long[] a, long[] b) {
+      return Long.compare(b[0], a[0]);
+    }
+  };
+
+  /**
+   * In memory StoreClient, datapoints at the same tick are returned in the order they were stored
+   */
+  private static class MemoryStoreClient implements StoreClient {
+    private final Map<String,List<long[]>> series = new LinkedHashMap<String,List<long[]>>();
+
+    /**
+     * Timespans of the fetches performed
+     */
+    private final List<Long> fetches = new ArrayList<Long>();
+
+    private void add(String name, long tick, long value) {
+      List<long[]> datapoints = series.get(name);
+      if (null == datapoints) {
+        datapoints = new ArrayList<long[]>();
+        series.put(name, datapoints);
+      }
+      datapoints.add(new long[] { tick, value });
+    }
+
+    @Override
+    public GTSDecoderIterator fetch(ReadToken token, List<Metadata> metadatas, long now, long timespan, boolean fromArchive, boolean writeTimestamp) throws IOException {
+      fetches.add(timespan);
+
+      final List<GTSDecoder> decoders = new ArrayList<GTSDecoder>();
+
+      for (Metadata metadata: metadatas) {
+        if (!series.containsKey(metadata.getName())) {
+          continue;
+        }
+
+        List<long[]> datapoints = new ArrayList<long[]>();
+
+        for (long[] datapoint: series.get(metadata.getName())) {
+          if (datapoint[0] <= now && (timespan < 0 || datapoint[0] > now - timespan)) {
+            datapoints.add(datapoint);
+          }
+        }
+
+        // Stable sort, ties keep the order they were stored in
+        Collections.sort(datapoints, TICK_DESC);
+
+        if (timespan < 0 && datapoints.size() > -timespan) {
+          datapoints = datapoints.subList(0, (int) -timespan);
+        }
+
+        GTSEncoder encoder = new GTSEncoder(0L);
+        encoder.setMetadata(metadata);
+
+        for (long[] datapoint: datapoints) {
+          encoder.addValue(datapoint[0], GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, datapoint[1]);
+        }
+
+        decoders.add(encoder.getDecoder(true));
+      }
+
+      return new GTSDecoderIterator() {
+        private final Iterator<GTSDecoder> iter = decoders.iterator();
+
+        @Override
+        public boolean hasNext() {
+          return iter.hasNext();
+        }
+
+        @Override
+        public GTSDecoder next() {
+          return iter.next();
+        }
+
+        @Override
+        public void remove() {
+        }
+
+        @Override
+        public void close() throws Exception {
+        }
+      };
+    }
+
+    @Override
+    public void store(GTSEncoder encoder) throws IOException {
+    }
+
+    @Override
+    public void archive(int chunk, GTSEncoder encoder) throws IOException {
+    }
+
+    @Override
+    public long delete(WriteToken token, Metadata metadata, long start, long end) throws IOException {
+      return series.remove(metadata.getName()).size();
+    }
+
+    @Override
+    public void addPlasmaHandler(StandalonePlasmaHandlerInterface handler) {
+    }
+  }
+
+  private static List<Metadata> metadatas(String... names) {
+    List<Metadata> metadatas = new ArrayList<Metadata>();
+
+    for (String name: names) {
+      Metadata metadata = new Metadata();
+      metadata.setName(name);
+      metadata.setLabels(new HashMap<String,String>());
+      metadata.setClassId(name.hashCode());
+      metadata.setLabelsId(0L);
+      metadatas.add(metadata);
+    }
+
+    return metadatas;
+  }
+
+  /**
+   * @return the datapoints of each series as fetched, sorted by decreasing tick, ties in the order they were returned
+   */
+  private static Map<String,List<String>> read(GTSDecoderIterator iter) throws Exception {
+    Map<String,List<String>> series = new HashMap<String,List<String>>();
+
+    while (iter.hasNext()) {
+      GTSDecoder decoder = iter.next();
+
+      List<long[]> datapoints = new ArrayList<long[]>();
+
+      while (decoder.next()) {
+        datapoints.add(new long[] { decoder.getTimestamp(), ((Number) decoder.getValue()).longValue() });
+      }
+
+      Collections.sort(datapoints, TICK_DESC);
+
+      List<String> values = new ArrayList<String>();
+
+      for (long[] datapoint: datapoints) {
+        values.add(datapoint[0] + "=" + datapoint[1]);
+      }
+
+      Assert.assertNull(series.put(decoder.getMetadata().getName(), values));
+    }
+
+    iter.close();
+
+    return series;
+  }
+
+  /**
+   * Run an incremental fetch and check that it returns what a full fetch returns
+   */
+  private static Map<String,List<String>> check(MemoryStoreClient store, IncrementalStoreClient client, List<Metadata> metadatas, long now, long timespan) throws Exception {
+    Map<String,List<String>> expected = read(store.fetch(null, metadatas, now, timespan, false, false));
+    // Do not record the reference fetch
+    store.fetches.remove(store.fetches.size() - 1);
+
+    Map<String,List<String>> fetched = read(client.fetch(null, metadatas, now, timespan, false, false));
+    client.commit();
+
+    Assert.assertEquals(expected, fetched);
+
+    return fetched;
+  }
+
+  @Test
+  public void testTimespan() throws Exception {
+    MemoryStoreClient store = new MemoryStoreClient();
+    IncrementalStoreClient client = new IncrementalStoreClient(store);
+
+    List<Metadata> metadatas = metadatas("a", "b");
+
+    long tick = 0L;
+
+    for (long now = 1000L; now < 3000L; now += 70L) {
+      // Datapoints up to and past 'now', in order
+      for (; tick < now + 50L; tick += 7L) {
+        store.add("a", tick, tick);
+        if (0 == tick % 3) {
+          store.add("b", tick, -tick);
+        }
+      }
+
+      Map<String,List<String>> fetched = check(store, client, metadatas, now, 500L);
+      Assert.assertFalse(fetched.get("a").isEmpty());
+    }
+
+    // Only the first fetch was a full one
+    Assert.assertEquals(Long.valueOf(500L), store.fetches.get(0));
+    for (int i = 1; i < store.fetches.size(); i++) {
+      Assert.assertEquals(Long.valueOf(70L), store.fetches.get(i));
+    }
+  }
+
+  @Test
+  public void testInvalidation() throws Exception {
+    MemoryStoreClient store = new MemoryStoreClient();
+    IncrementalStoreClient client = new IncrementalStoreClient(store);
+
+    List<Metadata> metadatas = metadatas("a");
+
+    for (long tick = 0L; tick < 2000L; tick += 10L) {
+      store.add("a", tick, tick);
+    }
+
+    check(store, client, metadatas, 1000L, 100L);
+    // The previous fetch is more than 'timespan' ago, nothing can be reused
+    check(store, client, metadatas, 1100L, 100L);
+    check(store, client, metadatas, 1199L, 100L);
+    check(store, client, metadatas, 1250L, 100L);
+    // Going back in time
+    check(store, client, metadatas, 1240L, 100L);
+    check(store, client, metadatas, 1240L, 100L);
+
+    Assert.assertEquals(Arrays.asList(100L, 100L, 99L, 51L, 100L), store.fetches);
+  }
+
+  @Test
+  public void testCount() throws Exception {
+    MemoryStoreClient store = new MemoryStoreClient();
+    IncrementalStoreClient client = new IncrementalStoreClient(store);
+
+    List<Metadata> metadatas = metadatas("a", "b");
+
+    // Fewer datapoints than requested
+    store.add("b", 50L, 0L);
+
+    // Several datapoints at the lowest tick to return
+    store.add("a", 100L, 1L);
+    store.add("a", 100L, 2L);
+    store.add("a", 100L, 3L);
+    store.add("a", 110L, 4L);
+    store.add("a", 120L, 5L);
+
+    Map<String,List<String>> fetched = check(store, client, metadatas, 120L, -4L);
+    Assert.assertEquals(Arrays.asList("120=5", "110=4", "100=1", "100=2"), fetched.get("a"));
+    Assert.assertEquals(Arrays.asList("50=0"), fetched.get("b"));
+
+    store.add("a", 130L, 6L);
+
+    fetched = check(store, client, metadatas, 130L, -4L);
+    Assert.assertEquals(Arrays.asList("130=6", "120=5", "110=4", "100=1"), fetched.get("a"));
+
+    // More datapoints at the same tick than requested
+    for (long value = 7L; value < 13L; value++) {
+      store.add("a", 140L, value);
+    }
+
+    fetched = check(store, client, metadatas, 140L, -4L);
+    Assert.assertEquals(Arrays.asList("140=7", "140=8", "140=9", "140=10"), fetched.get("a"));
+
+    // Nothing new
+    check(store, client, metadatas, 150L, -4L);
+
+    for (long tick = 160L; tick < 1000L; tick += 3L) {
+      store.add("a", tick, tick);
+      store.add("b", tick, tick);
+      check(store, client, metadatas, tick + 1L, -4L);
+      check(store, client, metadatas, tick + 1L, -100L);
+    }
+
+    // Count based fetches are always incremental
+    Assert.assertEquals(Long.valueOf(-4L), store.fetches.get(0));
+    Assert.assertEquals(Long.valueOf(10L), store.fetches.get(1));
+  }
+
+  @Test
+  public void testMerge() throws Exception {
+    MemoryStoreClient store = new MemoryStoreClient();
+    IncrementalStoreClient client = new IncrementalStoreClient(store);
+
+    List<Metadata> metadatas = metadatas("a");
+
+    for (long tick = 0L; tick < 100L; tick++) {
+      store.add("a", tick, tick);
+    }
+
+    Map<String,List<String>> expected = read(store.fetch(null, metadatas, 99L, 50L, false, false));
+
+    // The series returned by a run are not modified by the following ones
+    GTSDecoderIterator iter = client.fetch(null, metadatas, 99L, 50L, false, false);
+    client.commit();
+
+    store.add("a", 100L, 100L);
+    check(store, client, metadatas, 100L, 50L);
+    store.add("a", 101L, 101L);
+    check(store, client, metadatas, 101L, 50L);
+
+    Assert.assertEquals(expected, read(iter));
+
+    // The same series fetched with another timespan during the same run
+    store.add("a", 102L, 102L);
+    Map<String,List<String>> shortspan = read(store.fetch(null, metadatas, 102L, 10L, false, false));
+    Map<String,List<String>> longspan = read(store.fetch(null, metadatas, 102L, 50L, false, false));
+    Assert.assertEquals(shortspan, read(client.fetch(null, metadatas, 102L, 10L, false, false)));
+    Assert.assertEquals(longspan, read(client.fetch(null, metadatas, 102L, 50L, false, false)));
+    client.commit();
+
+    // Metadata of the returned series is the one requested
+    metadatas.get(0).putToAttributes("attr", "value");
+    iter = client.fetch(null, metadatas, 102L, 10L, false, false);
+    Assert.assertEquals(metadatas.get(0), iter.next().getMetadata());
+  }
+
+  @Test
+  public void testVanished() throws Exception {
+    MemoryStoreClient store = new MemoryStoreClient();
+    IncrementalStoreClient client = new IncrementalStoreClient(store);
+
+    for (long tick = 0L; tick < 100L; tick++) {
+      store.add("a", tick, tick);
+      store.add("b", tick, tick);
+    }
+
+    for (long timespan: new long[] { 1000L, -10L }) {
+      check(store, client, metadatas("a", "b"), 100L, timespan);
+
+      // 'b' is deleted, it is no longer returned by FIND, its cached series is evicted by commit
+      store.delete(null, metadatas("b").get(0), Long.MIN_VALUE, Long.MAX_VALUE);
+      check(store, client, metadatas("a"), 101L, timespan);
+
+      // 'b' is created again, with datapoints before the previous fetches
+      for (long tick = 50L; tick < 102L; tick++) {
+        store.add("b", tick, -tick);
+      }
+
+      check(store, client, metadatas("a", "b"), 102L, timespan);
+
+      // A series fetched but absent from the store
+      check(store, client, metadatas("a", "b", "c"), 103L, timespan);
+
+      store.add("a", 104L, 104L);
+      store.add("c", 104L, 104L);
+      check(store, client, metadatas("a", "b", "c"), 104L, timespan);
+
+      store.series.clear();
+
+      for (long tick = 0L; tick < 100L; tick++) {
+        store.add("a", tick, tick);
+        store.add("b", tick, tick);
+      }
+
+      // Nothing was fetched, evict everything
+      client.commit();
+    }
+  }
+
+  @Test
+  public void testUnbounded() throws Exception {
+    MemoryStoreClient store = new MemoryStoreClient();
+    IncrementalStoreClient client = new IncrementalStoreClient(store);
+
+    List<Metadata> metadatas = metadatas("a");
+    store.add("a", 0L, 0L);
+
+    // Fetches without an explicit end or from the archive are passed as is
+    client.fetch(null, metadatas, Long.MAX_VALUE, 10L, false, false);
+    client.fetch(null, metadatas, Long.MAX_VALUE, 10L, false, false);
+    client.fetch(null, metadatas, 1000L, 10L, true, false);
+    client.fetch(null, metadatas, 1000L, 10L, true, false);
+
+    Assert.assertEquals(Arrays.asList(10L, 10L, 10L, 10L), store.fetches);
+  }
+}
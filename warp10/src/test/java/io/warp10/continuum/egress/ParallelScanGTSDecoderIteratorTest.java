@@ -0,0 +1,433 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.egress;
+
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.Store;
+import io.warp10.continuum.store.thrift.data.Metadata;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParallelScanGTSDecoderIteratorTest {
+
+  private static final byte[] COLFAM = "v".getBytes();
+  private static final TableName TABLE = TableName.valueOf("continuum");
+
+  private static final int NGTS = 10;
+  private static final int NTICKS = 50;
+
+  /**
+   * In memory table serving the rows in the range of the scans, filters are ignored.
+   * Each row holds two cells, with values 'ts' and '-ts'. Scanners can be made to
+   * fail or to block on demand.
+   */
+  private static class FakeTable implements InvocationHandler {
+    private final NavigableMap<byte[], Result> rows = new TreeMap<byte[], Result>(Bytes.BYTES_COMPARATOR);
+
+    private final AtomicInteger tables = new AtomicInteger(0);
+    private final AtomicInteger scanners = new AtomicInteger(0);
+    private final AtomicInteger results = new AtomicInteger(0);
+
+    /**
+     * Number of results returned by scanners before one of them fails, negative to never fail
+     */
+    private volatile int failAfter = -1;
+
+    /**
+     * Number of scanner failures left
+     */
+    private final AtomicInteger failures = new AtomicInteger(0);
+
+    /**
+     * Latch scanners wait on before returning their first result
+     */
+    private volatile CountDownLatch gate = null;
+    private final CountDownLatch blocked = new CountDownLatch(1);
+
+    private FakeTable() {
+      for (int i = 0; i < NGTS; i++) {
+        for (long ts = 0; ts < NTICKS; ts++) {
+          byte[] row = rowkey(metadata(i), ts);
+          List<Cell> cells = new ArrayList<Cell>();
+          cells.add(new KeyValue(row, COLFAM, "a".getBytes(), ts, encode(ts, ts)));
+          cells.add(new KeyValue(row, COLFAM, "b".getBytes(), ts, encode(ts, -ts)));
+          rows.put(row, Result.create(cells));
+        }
+      }
+    }
+
+    private Connection connection() {
+      return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Connection.class }, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if ("getTable".equals(method.getName())) {
+        tables.incrementAndGet();
+        return Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { Table.class }, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if ("getScanner".equals(method.getName())) {
+              return scanner((Scan) args[0]);
+            } else if ("close".equals(method.getName())) {
+              tables.decrementAndGet();
+              return null;
+            }
+            throw new UnsupportedOperationException(method.getName());
+          }
+        });
+      }
+      throw new UnsupportedOperationException(method.getName());
+    }
+
+    private ResultScanner scanner(Scan scan) {
+      scanners.incrementAndGet();
+
+      final Iterator<Result> iter = rows.subMap(scan.getStartRow(), true, scan.getStopRow(), false).values().iterator();
+
+      final Iterator<Result> failing = new Iterator<Result>() {
+        @Override
+        public boolean hasNext() {
+          CountDownLatch latch = gate;
+          if (null != latch) {
+            blocked.countDown();
+            try {
+              latch.await();
+            } catch (InterruptedException ie) {
+              throw new RuntimeException(ie);
+            }
+          }
+          // HBase scanners report IO errors as RuntimeExceptions from their iterator
+          if (results.get() >= failAfter && failAfter >= 0 && failures.getAndDecrement() > 0) {
+            throw new RuntimeException(new IOException("Scanner failure."));
+          }
+          return iter.hasNext();
+        }
+
+        @Override
+        public Result next() {
+          results.incrementAndGet();
+          return iter.next();
+        }
+
+        @Override
+        public void remove() {
+        }
+      };
+
+      return (ResultScanner) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { ResultScanner.class }, new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+          if ("iterator".equals(method.getName())) {
+            return failing;
+          } else if ("close".equals(method.getName())) {
+            scanners.decrementAndGet();
+            return null;
+          }
+          throw new UnsupportedOperationException(method.getName());
+        }
+      });
+    }
+  }
+
+  private static Metadata metadata(int i) {
+    Metadata metadata = new Metadata();
+    metadata.setName("gts");
+    metadata.setLabels(new HashMap<String,String>());
+    metadata.setClassId(i + 1);
+    metadata.setLabelsId(42L);
+    return metadata;
+  }
+
+  private static List<Metadata> metadatas() {
+    List<Metadata> metadatas = new ArrayList<Metadata>();
+    for (int i = 0; i < NGTS; i++) {
+      metadatas.add(metadata(i));
+    }
+    return metadatas;
+  }
+
+  private static byte[] rowkey(Metadata metadata, long ts) {
+    byte[] row = new byte[Store.HBASE_RAW_DATA_KEY_PREFIX.length + 24];
+    ByteBuffer bb = ByteBuffer.wrap(row).order(ByteOrder.BIG_ENDIAN);
+    bb.put(Store.HBASE_RAW_DATA_KEY_PREFIX);
+    bb.putLong(metadata.getClassId());
+    bb.putLong(metadata.getLabelsId());
+    bb.putLong(Long.MAX_VALUE - ts);
+    return row;
+  }
+
+  private static byte[] encode(long ts, long value) {
+    try {
+      GTSEncoder encoder = new GTSEncoder(ts);
+      encoder.addValue(ts, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, value);
+      return encoder.getBytes();
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+
+  /**
+   * Region start keys, the second and third regions start in the middle of a GTS
+   */
+  private static byte[][] regions() {
+    return new byte[][] {
+      new byte[0],
+      rowkey(metadata(3), NTICKS / 2),
+      rowkey(metadata(4), NTICKS / 3),
+      rowkey(metadata(8), Long.MAX_VALUE),
+    };
+  }
+
+  /**
+   * @return the datapoints of the GTS fetched with 'now' and 'timespan', as 'ts:value' per classId
+   */
+  private static Map<Long,List<String>> expected(long now, long timespan) {
+    Map<Long,List<String>> expected = new TreeMap<Long,List<String>>();
+
+    for (int i = 0; i < NGTS; i++) {
+      List<String> values = new ArrayList<String>();
+      for (long ts = NTICKS - 1; ts >= 0; ts--) {
+        if (ts > now || (timespan >= 0 && ts <= now - timespan)) {
+          continue;
+        }
+        for (long value: new long[] { ts, -ts }) {
+          if (timespan < 0 && values.size() >= -timespan) {
+            break;
+          }
+          values.add(ts + ":" + value);
+        }
+      }
+      if (!values.isEmpty()) {
+        expected.put(metadata(i).getClassId(), values);
+      }
+    }
+
+    return expected;
+  }
+
+  /**
+   * Read all the decoders, checking they are returned in the order of the metadatas
+   */
+  private static Map<Long,List<String>> read(ParallelScanGTSDecoderIterator iter) throws Exception {
+    Map<Long,List<String>> fetched = new TreeMap<Long,List<String>>();
+
+    long last = Long.MIN_VALUE;
+
+    while(iter.hasNext()) {
+      GTSDecoder decoder = iter.next();
+      long classId = decoder.getMetadata().getClassId();
+
+      Assert.assertTrue(classId >= last);
+      last = classId;
+
+      List<String> values = fetched.get(classId);
+      if (null == values) {
+        values = new ArrayList<String>();
+        fetched.put(classId, values);
+      }
+
+      while(decoder.next()) {
+        values.add(decoder.getTimestamp() + ":" + decoder.getValue());
+      }
+    }
+
+    iter.close();
+
+    return fetched;
+  }
+
+  private static ParallelScanGTSDecoderIterator iterator(FakeTable table, long now, long timespan, boolean useFilter, ExecutorService executor, int parallelism, long buffer) {
+    return new ParallelScanGTSDecoderIterator(null, metadatas(), now, timespan, false, false, table.connection(), TABLE, COLFAM, null, false, useFilter, regions(), executor, parallelism, buffer);
+  }
+
+  private static void shutdown(ExecutorService executor) throws Exception {
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(10000L, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testGetRegion() {
+    byte[][] startKeys = new byte[][] { new byte[0], "b".getBytes(), "d".getBytes() };
+
+    Assert.assertEquals(0, ParallelScanGTSDecoderIterator.getRegion(null, "a".getBytes()));
+    Assert.assertEquals(0, ParallelScanGTSDecoderIterator.getRegion(new byte[][] { new byte[0] }, "a".getBytes()));
+
+    Assert.assertEquals(0, ParallelScanGTSDecoderIterator.getRegion(startKeys, new byte[0]));
+    Assert.assertEquals(0, ParallelScanGTSDecoderIterator.getRegion(startKeys, "a".getBytes()));
+    Assert.assertEquals(1, ParallelScanGTSDecoderIterator.getRegion(startKeys, "b".getBytes()));
+    Assert.assertEquals(1, ParallelScanGTSDecoderIterator.getRegion(startKeys, "c".getBytes()));
+    Assert.assertEquals(1, ParallelScanGTSDecoderIterator.getRegion(startKeys, "czzz".getBytes()));
+    Assert.assertEquals(2, ParallelScanGTSDecoderIterator.getRegion(startKeys, "d".getBytes()));
+    Assert.assertEquals(2, ParallelScanGTSDecoderIterator.getRegion(startKeys, "z".getBytes()));
+  }
+
+  @Test
+  public void testFetch() throws Exception {
+    FakeTable table = new FakeTable();
+
+    long[][] ranges = new long[][] { { Long.MAX_VALUE, -1000L }, { Long.MAX_VALUE, -7L }, { 30L, 10L }, { 30L, -3L } };
+
+    for (long[] range: ranges) {
+      for (boolean useFilter: new boolean[] { false, true }) {
+        for (int parallelism: new int[] { 1, 3, 16 }) {
+          // Unbounded buffer, then tasks interrupted after each chunk and resumed by the reader
+          for (long buffer: new long[] { Long.MAX_VALUE, 1L }) {
+            ExecutorService executor = Executors.newFixedThreadPool(2);
+            String context = range[0] + "/" + range[1] + " filter=" + useFilter + " parallelism=" + parallelism + " buffer=" + buffer;
+            Assert.assertEquals(context, expected(range[0], range[1]), read(iterator(table, range[0], range[1], useFilter, executor, parallelism, buffer)));
+            shutdown(executor);
+            Assert.assertEquals(context, 0, table.tables.get());
+            Assert.assertEquals(context, 0, table.scanners.get());
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testRejected() throws Exception {
+    FakeTable table = new FakeTable();
+
+    // Every region is scanned by the reader
+    ExecutorService executor = Executors.newFixedThreadPool(1);
+    executor.shutdown();
+
+    for (boolean useFilter: new boolean[] { false, true }) {
+      Assert.assertEquals(expected(Long.MAX_VALUE, -1000L), read(iterator(table, Long.MAX_VALUE, -1000L, useFilter, executor, 4, Long.MAX_VALUE)));
+      Assert.assertEquals(0, table.tables.get());
+      Assert.assertEquals(0, table.scanners.get());
+    }
+  }
+
+  @Test
+  public void testResumeAfterError() throws Exception {
+    for (boolean useFilter: new boolean[] { false, true }) {
+      for (int failAfter: new int[] { 0, 1, 17, 60, 420 }) {
+        FakeTable table = new FakeTable();
+        table.failAfter = failAfter;
+        table.failures.set(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Assert.assertEquals(expected(Long.MAX_VALUE, -1000L), read(iterator(table, Long.MAX_VALUE, -1000L, useFilter, executor, 2, Long.MAX_VALUE)));
+        shutdown(executor);
+
+        Assert.assertTrue(table.failures.get() < 1);
+        Assert.assertEquals(0, table.tables.get());
+        Assert.assertEquals(0, table.scanners.get());
+      }
+    }
+  }
+
+  @Test
+  public void testRepeatedError() throws Exception {
+    FakeTable table = new FakeTable();
+    table.failAfter = 0;
+    table.failures.set(Integer.MAX_VALUE);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    ParallelScanGTSDecoderIterator iter = iterator(table, Long.MAX_VALUE, -1000L, false, executor, 2, Long.MAX_VALUE);
+
+    try {
+      iter.hasNext();
+      Assert.fail("Expected the scan failure to be reported.");
+    } catch (RuntimeException re) {
+      // Expected
+    }
+
+    iter.close();
+    shutdown(executor);
+
+    Assert.assertEquals(0, table.tables.get());
+    Assert.assertEquals(0, table.scanners.get());
+  }
+
+  @Test
+  public void testClose() throws Exception {
+    FakeTable table = new FakeTable();
+    table.gate = new CountDownLatch(1);
+
+    ExecutorService executor = Executors.newFixedThreadPool(1);
+
+    ParallelScanGTSDecoderIterator iter = iterator(table, Long.MAX_VALUE, -1000L, false, executor, 2, Long.MAX_VALUE);
+
+    // Wait for the first region scan to block, the second one is queued
+    Assert.assertTrue(table.blocked.await(10000L, TimeUnit.MILLISECONDS));
+
+    iter.close();
+
+    table.gate.countDown();
+
+    shutdown(executor);
+
+    // The running scan stopped after its current step, the queued one never ran
+    Assert.assertEquals(1, table.results.get());
+    Assert.assertEquals(0, table.tables.get());
+    Assert.assertEquals(0, table.scanners.get());
+  }
+
+  @Test
+  public void testCloseWhileReading() throws Exception {
+    FakeTable table = new FakeTable();
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    ParallelScanGTSDecoderIterator iter = iterator(table, Long.MAX_VALUE, -1000L, true, executor, 2, 1L);
+
+    Assert.assertTrue(iter.hasNext());
+    Assert.assertEquals(metadata(0).getClassId(), iter.next().getMetadata().getClassId());
+
+    iter.close();
+    shutdown(executor);
+
+    Assert.assertEquals(0, table.tables.get());
+    Assert.assertEquals(0, table.scanners.get());
+  }
+}
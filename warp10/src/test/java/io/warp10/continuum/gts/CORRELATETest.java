@@ -0,0 +1,187 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CORRELATETest {
+
+  private static final long BUCKETSPAN = 10L;
+
+  private static final double EPSILON = 1e-9;
+
+  private final Random random = new Random(42L);
+
+  private final CORRELATE correlate = new CORRELATE("CORRELATE");
+
+  private double[] values(int n) {
+    double[] values = new double[n];
+    for (int i = 0; i < n; i++) {
+      values[i] = random.nextGaussian() * 100.0D + 1000.0D;
+    }
+    return values;
+  }
+
+  /**
+   * @return a bucketized and filled GTS with 'n' random values, the last bucket being 'lastbucket'
+   */
+  private GeoTimeSerie gts(String name, long lastbucket, int n, boolean longs) {
+    GeoTimeSerie gts = new GeoTimeSerie(lastbucket, n, BUCKETSPAN, n);
+    gts.setName(name);
+    gts.getMetadata().putToLabels("label", name);
+    gts.getMetadata().putToAttributes("attr", name);
+
+    // Add the values in reverse order so the GTS needs to be sorted
+    for (int i = n - 1; i >= 0; i--) {
+      long tick = lastbucket - i * BUCKETSPAN;
+      if (longs) {
+        GTSHelper.setValue(gts, tick, (long) (random.nextGaussian() * 100.0D));
+      } else {
+        GTSHelper.setValue(gts, tick, random.nextGaussian() * 100.0D + 1000.0D);
+      }
+    }
+
+    return gts;
+  }
+
+  private static List<Long> lags(long from, long to) {
+    List<Long> lags = new ArrayList<Long>();
+    for (long lag = from; lag <= to; lag++) {
+      lags.add(lag * BUCKETSPAN);
+    }
+    return lags;
+  }
+
+  /**
+   * Compare the correlations computed by CORRELATE with those of the tick matching path
+   */
+  private void check(GeoTimeSerie gts, List<GeoTimeSerie> candidates, List<Long> offsets) throws Exception {
+    List<GeoTimeSerie> results = correlate.correlate(gts, candidates, offsets);
+
+    Assert.assertEquals(candidates.size(), results.size());
+
+    for (int i = 0; i < candidates.size(); i++) {
+      GeoTimeSerie expected = new GeoTimeSerie(offsets.size());
+      correlate.correlateTicks(gts, candidates.get(i), offsets, expected);
+
+      GeoTimeSerie result = results.get(i);
+
+      // The full metadata of the candidate is kept
+      Assert.assertEquals(candidates.get(i).getMetadata(), result.getMetadata());
+      Assert.assertEquals(expected.values, result.values);
+
+      for (int j = 0; j < expected.values; j++) {
+        Assert.assertEquals(GTSHelper.tickAtIndex(expected, j), GTSHelper.tickAtIndex(result, j));
+        double exp = ((Number) GTSHelper.valueAtIndex(expected, j)).doubleValue();
+        double val = ((Number) GTSHelper.valueAtIndex(result, j)).doubleValue();
+        Assert.assertEquals("offset " + GTSHelper.tickAtIndex(expected, j), exp, val, EPSILON * Math.max(1.0D, Math.abs(exp)));
+      }
+    }
+  }
+
+  @Test
+  public void testCrossSums() throws Exception {
+    //
+    // Lengths around the powers of 2 used as FFT length, including lengths whose
+    // sum minus 1 is exactly a power of 2
+    //
+
+    int[][] lengths = new int[][] {
+      { 1, 1 }, { 1, 2 }, { 2, 1 }, { 2, 2 }, { 3, 2 }, { 7, 10 }, { 16, 17 }, { 17, 16 }, { 16, 16 },
+      { 32, 33 }, { 33, 33 }, { 100, 29 }, { 29, 100 }, { 64, 65 }, { 128, 1 }, { 1, 128 }, { 255, 258 },
+    };
+
+    for (int[] n: lengths) {
+      double[] a = values(n[0]);
+      double[] b = values(n[1]);
+
+      int fftlen = Integer.highestOneBit(a.length + b.length - 1);
+      if (fftlen < a.length + b.length - 1) {
+        fftlen <<= 1;
+      }
+
+      double[] sums = CORRELATE.crossSums(a, b, fftlen);
+
+      Assert.assertEquals(fftlen, sums.length);
+
+      for (int s = -(a.length - 1); s < b.length; s++) {
+        double expected = 0.0D;
+        for (int i = Math.max(0, -s); i < Math.min(a.length, b.length - s); i++) {
+          expected += a[i] * b[i + s];
+        }
+        double sum = sums[s < 0 ? fftlen + s : s];
+        Assert.assertEquals(n[0] + "x" + n[1] + " shift " + s, expected, sum, EPSILON * a.length * 1e6);
+      }
+    }
+  }
+
+  @Test
+  public void testDirect() throws Exception {
+    // Few lags, the cross sums are computed directly
+    for (int n: new int[] { 2, 3, 10, 100 }) {
+      GeoTimeSerie gts = gts("a", 10000L, n, false);
+      List<GeoTimeSerie> candidates = new ArrayList<GeoTimeSerie>();
+      candidates.add(gts("b", 10000L + 3 * BUCKETSPAN, n + 5, false));
+      check(gts, candidates, lags(-2L, 2L));
+    }
+  }
+
+  @Test
+  public void testFFT() throws Exception {
+    //
+    // All lags, the cross sums are computed with an FFT. nA + nB - 1 is a power of 2
+    // for (64, 65), one more than a power of 2 for (64, 66) and one less for (64, 64)
+    //
+
+    int[][] lengths = new int[][] { { 64, 64 }, { 64, 65 }, { 64, 66 }, { 100, 100 }, { 100, 29 }, { 29, 100 }, { 300, 257 } };
+
+    for (int[] n: lengths) {
+      GeoTimeSerie gts = gts("a", 100000L, n[0], false);
+      List<GeoTimeSerie> candidates = new ArrayList<GeoTimeSerie>();
+      candidates.add(gts("b", 100000L - 7 * BUCKETSPAN, n[1], true));
+
+      // Lags past both ends yield 0
+      check(gts, candidates, lags(-(n[1] + 10L), n[0] + 10L));
+    }
+  }
+
+  @Test
+  public void testParallel() throws Exception {
+    GeoTimeSerie gts = gts("a", 100000L, 200, false);
+
+    List<GeoTimeSerie> candidates = new ArrayList<GeoTimeSerie>();
+
+    for (int i = 0; i < 16; i++) {
+      candidates.add(gts("b" + i, 100000L + (i - 8) * BUCKETSPAN * 5, 50 + i * 20, 0 == i % 2));
+    }
+
+    // Autocorrelation is one of the candidates
+    candidates.add(gts);
+
+    // Many lags (FFT) then few lags (direct)
+    check(gts, candidates, lags(-300L, 300L));
+    check(gts, candidates, lags(-3L, 3L));
+
+    // Values are standardized with Bessel's correction then averaged, so the autocorrelation at lag 0 is (n - 1) / n
+    Assert.assertEquals(199.0D / 200.0D, ((Number) GTSHelper.valueAtIndex(correlate.correlate(gts, candidates, lags(0L, 0L)).get(16), 0)).doubleValue(), EPSILON);
+  }
+}
@@ -0,0 +1,82 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Not part of the default test run, use 'gradle warp10:benchmark'
+ */
+public class CompactLabelsBenchmark {
+
+  private static long used() {
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+    }
+    return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+  }
+
+  @Test
+  public void testHeapPerSeries_perf() {
+    int n = 200000;
+
+    //
+    // Series of 10 classes sharing the same 20000 label sets of 5 labels, as hosts and
+    // instances reporting several metrics would
+    //
+
+    List<Map<String,String>> series = new ArrayList<Map<String,String>>(n);
+
+    long before = used();
+
+    for (int i = 0; i < n; i++) {
+      series.add(labels(i % (n / 10)));
+    }
+
+    long hashmaps = used() - before;
+
+    List<Map<String,String>> compact = new ArrayList<Map<String,String>>(n);
+
+    before = used();
+
+    for (int i = 0; i < n; i++) {
+      compact.add(CompactLabels.of(series.get(i)));
+    }
+
+    long compacts = used() - before;
+
+    Assert.assertEquals(series, compact);
+
+    System.out.println("labels of " + n + " series: HashMap " + (hashmaps / n) + " bytes per series, CompactLabels " + (compacts / n) + " bytes per series");
+  }
+
+  private static Map<String,String> labels(int i) {
+    Map<String,String> labels = new HashMap<String,String>();
+    labels.put("host", ("host-" + (i / 100)).intern());
+    labels.put("dc", ("dc-" + (i % 4)).intern());
+    labels.put("rack", ("rack-" + (i % 40)).intern());
+    labels.put("instance", ("instance-" + i).intern());
+    labels.put("env", "prod");
+    return labels;
+  }
+}
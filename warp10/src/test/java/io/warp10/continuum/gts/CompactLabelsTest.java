@@ -0,0 +1,186 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompactLabelsTest {
+
+  private static Map<String,String> labels(Random prng, int n) {
+    Map<String,String> labels = new HashMap<String,String>();
+
+    for (int i = 0; i < n; i++) {
+      labels.put("label" + prng.nextInt(20), "value" + prng.nextInt(1000));
+    }
+
+    return labels;
+  }
+  
+  private static Map<String,String> labels(String app, String container) {
+    Map<String,String> labels = new HashMap<String,String>();
+    labels.put("app", app);
+    labels.put("container", container);
+    return labels;
+  }
+  
+  /**
+   * Wait for the instances dropped by the caller to be collected and the dictionary to shrink to 'expected' strings
+   */
+  private static boolean reclaimed(int expected) throws InterruptedException {
+    for (int i = 0; i < 100; i++) {
+      System.gc();
+      // Reclamation happens on the next call to 'of'
+      CompactLabels.of(Collections.singletonMap("reclaim", "reclaim"));
+      if (CompactLabels.dictionarySize() <= expected) {
+        return true;
+      }
+      Thread.sleep(10L);
+    }
+    return false;
+  }
+
+  @Test
+  public void testMap() {
+    Random prng = new Random(0L);
+
+    for (int i = 0; i < 1000; i++) {
+      Map<String,String> labels = labels(prng, prng.nextInt(10));
+      CompactLabels compact = CompactLabels.of(labels);
+
+      Assert.assertEquals(labels, compact);
+      Assert.assertEquals(compact, labels);
+      Assert.assertEquals(labels.hashCode(), compact.hashCode());
+      Assert.assertEquals(labels.size(), compact.size());
+
+      for (Entry<String,String> entry: labels.entrySet()) {
+        Assert.assertTrue(compact.containsKey(entry.getKey()));
+        Assert.assertEquals(entry.getValue(), compact.get(entry.getKey()));
+      }
+
+      Assert.assertFalse(compact.containsKey("unknown"));
+      Assert.assertNull(compact.get("label20"));
+      Assert.assertEquals(labels, new HashMap<String,String>(compact));
+
+      // Identical label sets share the same instance
+      Assert.assertSame(compact, CompactLabels.of(new HashMap<String,String>(labels)));
+    }
+  }
+
+  @Test
+  public void testReclaim() throws Exception {
+    // Keeps the strings used by 'reclaimed' in the dictionary
+    CompactLabels probe = CompactLabels.of(Collections.singletonMap("reclaim", "reclaim"));
+    CompactLabels kept = CompactLabels.of(labels("app", "kept"));
+    
+    int size = CompactLabels.dictionarySize();
+    
+    List<CompactLabels> churned = new ArrayList<CompactLabels>();
+    
+    for (int i = 0; i < 1000; i++) {
+      churned.add(CompactLabels.of(labels("app", "churned-" + i)));
+    }
+    
+    Assert.assertTrue(CompactLabels.dictionarySize() >= size + 1000);
+    
+    // Values of the series which are gone are removed from the dictionary
+    churned.clear();
+    Assert.assertTrue("dictionary not reclaimed", reclaimed(size));
+    
+    // Reclaimed codes are reused without altering the live instances
+    List<Map<String,String>> reused = new ArrayList<Map<String,String>>();
+    
+    for (int i = 0; i < 1000; i++) {
+      Map<String,String> labels = labels("app", "reused-" + i);
+      churned.add(CompactLabels.of(labels));
+      reused.add(labels);
+    }
+    
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertEquals(reused.get(i), churned.get(i));
+      Assert.assertEquals(reused.get(i).hashCode(), churned.get(i).hashCode());
+      Assert.assertEquals("reused-" + i, churned.get(i).get("container"));
+    }
+    
+    Assert.assertEquals(labels("app", "kept"), kept);
+    Assert.assertEquals("kept", kept.get("container"));
+    Assert.assertNull(kept.get("churned-0"));
+    Assert.assertEquals("reclaim", probe.get("reclaim"));
+    
+    // A label set seen again after reclamation is interned anew
+    Assert.assertEquals(labels("app", "churned-0"), CompactLabels.of(labels("app", "churned-0")));
+  }
+  
+  @Test
+  public void testConcurrentChurn() throws Exception {
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    
+    Thread[] threads = new Thread[4];
+    
+    for (int t = 0; t < threads.length; t++) {
+      final String app = "app-" + t;
+      
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            CompactLabels kept = CompactLabels.of(labels(app, "kept"));
+            
+            for (int i = 0; i < 50000; i++) {
+              Map<String,String> labels = labels(app, app + "-container-" + i);
+              CompactLabels compact = CompactLabels.of(labels);
+              
+              Assert.assertEquals(labels, compact);
+              Assert.assertEquals(labels.get("container"), compact.get("container"));
+              
+              if (0 == i % 1000) {
+                Assert.assertEquals(labels(app, "kept"), kept);
+              }
+            }
+          } catch (Throwable t) {
+            error.compareAndSet(null, t);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    
+    for (Thread thread: threads) {
+      thread.join();
+    }
+    
+    if (null != error.get()) {
+      throw new AssertionError(error.get());
+    }
+  }
+  
+  @Test(expected = UnsupportedOperationException.class)
+  public void testImmutable() {
+    Map<String,String> labels = new HashMap<String,String>();
+    labels.put("a", "b");
+    CompactLabels.of(labels).put("c", "d");
+  }
+}
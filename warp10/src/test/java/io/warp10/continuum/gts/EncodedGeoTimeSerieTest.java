@@ -0,0 +1,65 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import io.warp10.continuum.store.thrift.data.Metadata;
+
+import java.util.HashMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EncodedGeoTimeSerieTest {
+
+  @Test
+  public void testLazyAccess() throws Exception {
+    Metadata metadata = new Metadata();
+    metadata.setName("foo");
+    metadata.setLabels(new HashMap<String,String>());
+
+    EncodedGeoTimeSerie lazy = new EncodedGeoTimeSerie(metadata, null);
+
+    Assert.assertEquals(0L, lazy.size());
+    Assert.assertEquals(Long.MAX_VALUE, lazy.firstTick());
+    Assert.assertEquals(Long.MIN_VALUE, lazy.lastTick());
+
+    // Two chunks, ticks are not in order
+    for (int chunk = 0; chunk < 2; chunk++) {
+      GTSEncoder encoder = new GTSEncoder(0L);
+      for (int i = 0; i < 1000; i++) {
+        long tick = (i * 7919L) % 1000L + chunk * 1000L;
+        encoder.addValue(tick, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, tick * 2L);
+      }
+      lazy.append(encoder);
+    }
+
+    Assert.assertEquals(2000L, lazy.size());
+    Assert.assertEquals(0L, lazy.firstTick());
+    Assert.assertEquals(1999L, lazy.lastTick());
+
+    GeoTimeSerie gts = lazy.decode();
+
+    Assert.assertEquals(2000, gts.size());
+    Assert.assertEquals("foo", gts.getName());
+    Assert.assertEquals(0L, GTSHelper.firsttick(gts));
+    Assert.assertEquals(1999L, GTSHelper.lasttick(gts));
+
+    for (int i = 0; i < gts.size(); i++) {
+      Assert.assertEquals(GTSHelper.tickAtIndex(gts, i) * 2L, ((Number) GTSHelper.valueAtIndex(gts, i)).longValue());
+    }
+  }
+}
@@ -25,6 +25,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -401,4 +402,53 @@ public class GTSDecoderTest {
     
     Assert.assertEquals(19, encoder.size());    
   }  
+  
+  @Test
+  public void testDecoder_seek() throws Exception {
+    Random prng = new Random(0L);
+    
+    for (boolean ordered: new boolean[] { true, false }) {
+      GTSEncoder encoder = new GTSEncoder(0L);
+      encoder.setIndexInterval(16);
+      
+      long tick = 0L;
+      
+      for (int i = 0; i < 10000; i++) {
+        tick = ordered ? tick + prng.nextInt(10) : prng.nextInt(100000);
+        encoder.addValue(tick, 0 == i % 3 ? GeoTimeSerie.NO_LOCATION : prng.nextLong(), GeoTimeSerie.NO_ELEVATION, 0 == i % 2 ? (Object) prng.nextDouble() : (Object) ("v" + prng.nextInt(5)));
+      }
+      
+      for (int q = 0; q < 100; q++) {
+        long from = prng.nextInt(ordered ? (int) tick : 100000);
+        
+        GTSDecoder full = encoder.getDecoder(true);
+        GTSDecoder seeking = encoder.getDecoder(true);
+        
+        Assert.assertTrue(seeking.seek(from));
+        Assert.assertEquals(ordered, seeking.isOrdered());
+        Assert.assertTrue(seeking.getRemainingSize() <= full.getRemainingSize());
+        
+        // The datapoints at or after 'from' must be identical
+        StringBuilder expected = new StringBuilder();
+        StringBuilder actual = new StringBuilder();
+        
+        while(full.next()) {
+          if (full.getTimestamp() >= from) {
+            expected.append(full.getTimestamp()).append(" ").append(full.getLocation()).append(" ").append(full.getValue()).append("\n");
+          }
+        }
+        
+        while(seeking.next()) {
+          if (seeking.getTimestamp() >= from) {
+            actual.append(seeking.getTimestamp()).append(" ").append(seeking.getLocation()).append(" ").append(seeking.getValue()).append("\n");
+          }
+        }
+        
+        Assert.assertEquals(expected.toString(), actual.toString());
+        
+        // seek is only possible before the first call to 'next'
+        Assert.assertFalse(seeking.seek(from));
+      }
+    }
+  }
 }
@@ -613,4 +613,62 @@ public class GTSEncoderTest {
     Assert.assertEquals(1.0D, decoder.getTimestamp(), 0.000000000001D);
     Assert.assertEquals("1", decoder.getValue().toString());
   }
+
+  @Test
+  public void testDelete_range() throws Exception {
+    GTSEncoder encoder = new GTSEncoder(0L);
+    encoder.setIndexInterval(16);
+    
+    for (long i = 0; i < 1000; i++) {
+      encoder.addValue(i, GeoTimeSerie.NO_LOCATION, i % 3, 0 == i % 2 ? (Object) (i * 7) : (Object) ("v" + i));
+    }
+    
+    // Nothing in range
+    Assert.assertEquals(0L, encoder.delete(2000L, 3000L));
+    
+    Assert.assertEquals(301L, encoder.delete(100L, 400L));
+    Assert.assertEquals(50L, encoder.delete(Long.MIN_VALUE, 49L));
+    Assert.assertEquals(649L, encoder.getCount());
+    
+    // Datapoints added after a deletion are delta encoded against the right state
+    encoder.addValue(1000L, GeoTimeSerie.NO_LOCATION, 1L, 1000L * 7);
+    
+    GTSDecoder decoder = encoder.getDecoder();
+    
+    long expected = 50L;
+    
+    while (decoder.next()) {
+      Assert.assertEquals(expected, decoder.getTimestamp());
+      Assert.assertEquals(expected % 3, decoder.getElevation());
+      Assert.assertEquals(0 == expected % 2 ? (Object) (expected * 7) : (Object) ("v" + expected), decoder.getValue());
+      expected = 99L == expected ? 401L : expected + 1;
+    }
+    
+    Assert.assertEquals(1001L, expected);
+    
+    //
+    // Out of order datapoints
+    //
+    
+    encoder = new GTSEncoder(0L);
+    encoder.setIndexInterval(4);
+    
+    for (long i = 0; i < 100; i++) {
+      encoder.addValue((i * 37) % 100, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, i);
+    }
+    
+    Assert.assertEquals(20L, encoder.delete(40L, 59L));
+    
+    decoder = encoder.getDecoder();
+    
+    int count = 0;
+    
+    while (decoder.next()) {
+      Assert.assertTrue(decoder.getTimestamp() < 40L || decoder.getTimestamp() > 59L);
+      Assert.assertEquals((decoder.getTimestamp() * 73) % 100, ((Number) decoder.getValue()).longValue());
+      count++;
+    }
+    
+    Assert.assertEquals(80, count);
+  }
 }
@@ -0,0 +1,45 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Not part of the default test run, use 'gradle warp10:benchmark'
+ */
+public class GTSSorterBenchmark {
+
+  @Test
+  public void testSort_perf() {
+    int n = 1000000;
+
+    for (int layout = GTSSorterTest.RANDOM; layout <= GTSSorterTest.NEARLY_SORTED; layout++) {
+      GeoTimeSerie gts = GTSSorterTest.generate(layout, n, layout);
+
+      long nano = System.nanoTime();
+      GTSHelper.sort(gts);
+      nano = System.nanoTime() - nano;
+
+      System.out.println("sort " + GTSSorterTest.LAYOUTS[layout] + " " + n + " values: " + (nano / 1000000.0D) + " ms");
+
+      for (int i = 1; i < n; i++) {
+        Assert.assertTrue(GTSHelper.tickAtIndex(gts, i - 1) <= GTSHelper.tickAtIndex(gts, i));
+      }
+    }
+  }
+}
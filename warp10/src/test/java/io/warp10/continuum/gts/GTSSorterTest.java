@@ -0,0 +1,119 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GTSSorterTest {
+
+  static final int RANDOM = 0;
+  static final int SORTED = 1;
+  static final int REVERSED = 2;
+  static final int NEARLY_SORTED = 3;
+
+  static final String[] LAYOUTS = { "random", "sorted", "reversed", "nearly sorted" };
+
+  static GeoTimeSerie generate(int layout, int n, long seed) {
+    Random prng = new Random(seed);
+
+    GeoTimeSerie gts = new GeoTimeSerie(n);
+
+    for (int i = 0; i < n; i++) {
+      long tick;
+
+      if (RANDOM == layout) {
+        tick = prng.nextInt(n);
+      } else if (SORTED == layout) {
+        tick = i;
+      } else if (REVERSED == layout) {
+        tick = n - i;
+      } else {
+        // One tick out of 100 is out of order
+        tick = 0 == prng.nextInt(100) ? prng.nextInt(n) : i;
+      }
+
+      GTSHelper.setValue(gts, tick, prng.nextInt(16), GeoTimeSerie.NO_ELEVATION, tick * 2L, false);
+    }
+
+    return gts;
+  }
+
+  @Test
+  public void testSort() {
+    for (int layout = RANDOM; layout <= NEARLY_SORTED; layout++) {
+      for (boolean reversed: new boolean[] { false, true }) {
+        GeoTimeSerie gts = generate(layout, 10000, layout);
+
+        long[] expected = new long[gts.size()];
+        for (int i = 0; i < expected.length; i++) {
+          expected[i] = GTSHelper.tickAtIndex(gts, i);
+        }
+        Arrays.sort(expected);
+
+        GTSHelper.sort(gts, reversed);
+
+        for (int i = 0; i < expected.length; i++) {
+          long tick = GTSHelper.tickAtIndex(gts, i);
+          Assert.assertEquals(expected[reversed ? expected.length - 1 - i : i], tick);
+          Assert.assertEquals(tick * 2L, ((Number) GTSHelper.valueAtIndex(gts, i)).longValue());
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testValueSort() {
+    Random prng = new Random(0L);
+
+    GeoTimeSerie gts = new GeoTimeSerie();
+
+    for (int i = 0; i < 10000; i++) {
+      GTSHelper.setValue(gts, prng.nextInt(100000), GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, prng.nextInt(20) - 10.5D, false);
+    }
+
+    GTSHelper.valueSort(gts);
+
+    for (int i = 1; i < gts.size(); i++) {
+      double prev = ((Number) GTSHelper.valueAtIndex(gts, i - 1)).doubleValue();
+      double cur = ((Number) GTSHelper.valueAtIndex(gts, i)).doubleValue();
+      Assert.assertTrue(prev <= cur);
+      if (prev == cur) {
+        Assert.assertTrue(GTSHelper.tickAtIndex(gts, i - 1) <= GTSHelper.tickAtIndex(gts, i));
+      }
+    }
+  }
+
+  @Test
+  public void testLocationSort() {
+    GeoTimeSerie gts = generate(RANDOM, 10000, 42L);
+
+    GTSHelper.locationSort(gts, true);
+
+    for (int i = 1; i < gts.size(); i++) {
+      long prev = GTSHelper.locationAtIndex(gts, i - 1);
+      long cur = GTSHelper.locationAtIndex(gts, i);
+      Assert.assertTrue(prev >= cur);
+      if (prev == cur) {
+        Assert.assertTrue(GTSHelper.tickAtIndex(gts, i - 1) >= GTSHelper.tickAtIndex(gts, i));
+      }
+    }
+  }
+}
@@ -0,0 +1,153 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import io.warp10.script.WarpScriptWindowedMapperFunction.Window;
+import io.warp10.script.aggregator.Variance;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GTSWindowsTest {
+
+  /**
+   * Two pass variance of the values in [lo,hi[
+   */
+  private static double variance(GeoTimeSerie gts, int lo, int hi, boolean useBessel) {
+    int n = hi - lo;
+    double sum = 0.0D;
+    for (int i = lo; i < hi; i++) {
+      sum += ((Number) GTSHelper.valueAtIndex(gts, i)).doubleValue();
+    }
+    double mean = sum / n;
+    double m2 = 0.0D;
+    for (int i = lo; i < hi; i++) {
+      double delta = ((Number) GTSHelper.valueAtIndex(gts, i)).doubleValue() - mean;
+      m2 += delta * delta;
+    }
+    return useBessel && n > 1 ? m2 / (n - 1) : m2 / n;
+  }
+
+  /**
+   * Apply the per tick aggregator to the values in [lo,hi[
+   */
+  private static double aggregate(Variance variance, GeoTimeSerie gts, int lo, int hi) throws Exception {
+    int n = hi - lo;
+    long[] ticks = new long[n];
+    long[] locations = new long[n];
+    long[] elevations = new long[n];
+    Object[] values = new Object[n];
+
+    for (int i = 0; i < n; i++) {
+      ticks[i] = GTSHelper.tickAtIndex(gts, lo + i);
+      locations[i] = GeoTimeSerie.NO_LOCATION;
+      elevations[i] = GeoTimeSerie.NO_ELEVATION;
+      values[i] = GTSHelper.valueAtIndex(gts, lo + i);
+    }
+
+    Object[] result = (Object[]) variance.apply(new Object[] { 0L, null, null, ticks, locations, elevations, values, null });
+
+    return ((Number) result[3]).doubleValue();
+  }
+
+  /**
+   * Slide a window of 'width' values over the GTS and check each result with 'check'
+   */
+  private static void slide(GeoTimeSerie gts, int width, boolean useBessel, double relerr, Variance aggregator) throws Exception {
+    Window window = GTSWindows.variance(gts, useBessel, false);
+
+    int lo = 0;
+
+    for (int hi = 1; hi <= gts.size(); hi++) {
+      window.enter(hi - 1);
+      if (hi - lo > width) {
+        window.leave(lo++);
+      }
+
+      double windowed = ((Number) window.apply(GTSHelper.tickAtIndex(gts, hi - 1), lo, hi)[3]).doubleValue();
+      double expected = null != aggregator ? aggregate(aggregator, gts, lo, hi) : variance(gts, lo, hi, useBessel);
+
+      Assert.assertTrue("negative variance " + windowed, windowed >= 0.0D);
+      Assert.assertEquals("window [" + lo + "," + hi + "[", expected, windowed, relerr * Math.max(1.0D, Math.abs(expected)));
+    }
+  }
+
+  @Test
+  public void testVariance_perTick() throws Exception {
+    Random prng = new Random(42L);
+
+    GeoTimeSerie gts = new GeoTimeSerie();
+    for (int i = 0; i < 10000; i++) {
+      GTSHelper.setValue(gts, i, prng.nextGaussian() * 10.0D);
+    }
+
+    slide(gts, 100, true, 1e-9, new Variance("VAR", true, false));
+    slide(gts, 37, false, 1e-9, new Variance("VAR", false, false));
+
+    GeoTimeSerie lgts = new GeoTimeSerie();
+    for (int i = 0; i < 10000; i++) {
+      GTSHelper.setValue(lgts, i, (long) prng.nextInt(1000));
+    }
+
+    slide(lgts, 50, true, 1e-9, new Variance("VAR", true, false));
+  }
+
+  @Test
+  public void testVariance_largeMean() throws Exception {
+    Random prng = new Random(42L);
+
+    //
+    // Values with a small spread around a large mean, E[X^2] - E[X]^2 loses
+    // all significant digits on those
+    //
+
+    GeoTimeSerie gts = new GeoTimeSerie();
+    for (int i = 0; i < 20000; i++) {
+      GTSHelper.setValue(gts, i, 1e9 + prng.nextGaussian() * 1e-3);
+    }
+
+    slide(gts, 100, true, 1e-6, null);
+    slide(gts, 1000, false, 1e-6, null);
+  }
+
+  @Test
+  public void testVariance_constant() throws Exception {
+    GeoTimeSerie gts = new GeoTimeSerie();
+    for (int i = 0; i < 1000; i++) {
+      GTSHelper.setValue(gts, i, i < 500 ? 0.1D : 1e12 + 0.1D);
+    }
+
+    Window window = GTSWindows.variance(gts, false, true);
+
+    int lo = 0;
+
+    for (int hi = 1; hi <= gts.size(); hi++) {
+      window.enter(hi - 1);
+      if (hi - lo > 10) {
+        window.leave(lo++);
+      }
+      double stddev = ((Number) window.apply(hi - 1, lo, hi)[3]).doubleValue();
+      Assert.assertFalse(Double.isNaN(stddev));
+      // Windows with a single value have a null spread
+      if (hi - 1 < 500 || lo >= 500) {
+        Assert.assertEquals(0.0D, stddev, 1e-3);
+      }
+    }
+  }
+}
@@ -0,0 +1,395 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import io.warp10.continuum.store.thrift.data.GTSWrapper;
+import io.warp10.continuum.store.thrift.data.Metadata;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolException;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.TIOStreamTransport;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.geoxp.GeoXPLib;
+
+public class GTSWrapperHelperTest {
+
+  private static final long MAXSIZE = 1000000L;
+
+  private static Metadata metadata(String name) {
+    Metadata metadata = new Metadata();
+    metadata.setName(name);
+    metadata.setLabels(new HashMap<String,String>());
+    metadata.getLabels().put("label", "value");
+    return metadata;
+  }
+
+  /**
+   * @return an encoder with 'n' datapoints of all types, some of them with a location and an elevation
+   */
+  private static GTSEncoder encoder(long base, int n) throws IOException {
+    GTSEncoder encoder = new GTSEncoder(base);
+    encoder.setMetadata(metadata("class"));
+
+    for (int i = 0; i < n; i++) {
+      long location = 0 == i % 3 ? GeoXPLib.toGeoXPPoint(48.0 + i / 1000.0, -4.5) : GeoTimeSerie.NO_LOCATION;
+      long elevation = 0 == i % 5 ? i * 10L : GeoTimeSerie.NO_ELEVATION;
+
+      Object value;
+
+      switch (i % 4) {
+        case 0:
+          value = (long) i;
+          break;
+        case 1:
+          value = i / 3.0D;
+          break;
+        case 2:
+          value = 0 == i % 8;
+          break;
+        default:
+          value = "value" + i;
+      }
+
+      encoder.addValue(base + i * 1000L, location, elevation, value);
+    }
+
+    return encoder;
+  }
+
+  /**
+   * @return the datapoints of 'encoders' as strings, in order
+   */
+  private static List<String> datapoints(List<GTSEncoder> encoders) {
+    List<String> datapoints = new ArrayList<String>();
+
+    for (GTSEncoder encoder: encoders) {
+      GTSDecoder decoder = encoder.getDecoder(true);
+      while (decoder.next()) {
+        datapoints.add(decoder.getTimestamp() + "/" + decoder.getLocation() + "/" + decoder.getElevation() + "/" + decoder.getValue());
+      }
+    }
+
+    return datapoints;
+  }
+
+  private static List<String> datapoints(GTSEncoder encoder) {
+    return datapoints(Arrays.asList(encoder));
+  }
+
+  private static byte[] serialize(GTSWrapper... wrappers) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    TSerializer serializer = new TSerializer(new TCompactProtocol.Factory());
+
+    for (GTSWrapper wrapper: wrappers) {
+      out.write(serializer.serialize(wrapper));
+    }
+
+    return out.toByteArray();
+  }
+
+  private static List<GTSWrapper> read(byte[] data, long maxsize) throws IOException {
+    BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(data));
+    TProtocol protocol = GTSWrapperHelper.getWrapperProtocol(in, maxsize);
+
+    List<GTSWrapper> wrappers = new ArrayList<GTSWrapper>();
+    GTSWrapper wrapper;
+
+    while (null != (wrapper = GTSWrapperHelper.readWrapper(in, protocol))) {
+      wrappers.add(wrapper);
+    }
+
+    return wrappers;
+  }
+
+  /**
+   * Check that reading 'data' is rejected by the protocol
+   */
+  private static TProtocolException assertInvalid(byte[] data, long maxsize) throws Exception {
+    try {
+      read(data, maxsize);
+    } catch (IOException ioe) {
+      Assert.assertTrue(ioe.getCause() instanceof TProtocolException);
+      return (TProtocolException) ioe.getCause();
+    }
+    Assert.fail();
+    return null;
+  }
+
+  @Test
+  public void testReadWrapper() throws Exception {
+    GTSWrapper plain = GTSWrapperHelper.fromGTSEncoderToGTSWrapper(encoder(0L, 100), false);
+    GTSWrapper compressed = GTSWrapperHelper.fromGTSEncoderToGTSWrapper(encoder(1000L, 100), true);
+    GTSWrapper empty = new GTSWrapper();
+    empty.setMetadata(metadata("empty"));
+
+    List<GTSWrapper> wrappers = read(serialize(plain, compressed, empty), MAXSIZE);
+
+    Assert.assertEquals(Arrays.asList(plain, compressed, empty), wrappers);
+    Assert.assertEquals(0, read(new byte[0], MAXSIZE).size());
+  }
+
+  @Test
+  public void testReadWrapper_truncated() throws Exception {
+    byte[] data = serialize(GTSWrapperHelper.fromGTSEncoderToGTSWrapper(encoder(0L, 100), false));
+
+    // Truncated in the middle of the encoded content and right before the end of the struct
+    for (int len: new int[] { data.length / 2, data.length - 1 }) {
+      try {
+        read(Arrays.copyOf(data, len), MAXSIZE);
+        Assert.fail();
+      } catch (IOException ioe) {
+        Assert.assertEquals("Invalid GTSWrapper.", ioe.getMessage());
+      }
+    }
+  }
+
+  @Test
+  public void testReadWrapper_corrupt() throws Exception {
+    byte[] data = serialize(GTSWrapperHelper.fromGTSEncoderToGTSWrapper(encoder(0L, 10), false));
+
+    // Field header with an unknown type
+    data[0] = (byte) 0x1e;
+
+    try {
+      read(data, MAXSIZE);
+      Assert.fail();
+    } catch (IOException ioe) {
+      Assert.assertTrue(ioe.getCause() instanceof TProtocolException);
+    }
+  }
+
+  @Test
+  public void testReadWrapper_maxsize() throws Exception {
+    GTSEncoder encoder = encoder(0L, 1000);
+    byte[] data = serialize(GTSWrapperHelper.fromGTSEncoderToGTSWrapper(encoder, false));
+
+    Assert.assertEquals(1, read(data, encoder.size()).size());
+    assertInvalid(data, encoder.size() - 1);
+  }
+
+  @Test
+  public void testReadWrapper_hugeLength() throws Exception {
+    //
+    // A wrapper whose encoded content claims to be 1GB long, the read must fail
+    // before the buffer for the content is allocated
+    //
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    TProtocol protocol = new TCompactProtocol(new TIOStreamTransport(out));
+    protocol.writeStructBegin(new TStruct("GTSWrapper"));
+    protocol.writeFieldBegin(new TField("encoded", TType.STRING, (short) 7));
+    protocol.writeI16((short) 0);
+
+    byte[] data = out.toByteArray();
+    // Replace the zigzag encoded i16 with the varint length 1 << 30
+    data = Arrays.copyOf(data, data.length - 1 + 5);
+    System.arraycopy(new byte[] { (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x04 }, 0, data, data.length - 5, 5);
+
+    assertInvalid(data, MAXSIZE);
+  }
+
+  @Test
+  public void testReadWrapper_hugeContainer() throws Exception {
+    GTSWrapper wrapper = new GTSWrapper();
+    wrapper.setMetadata(metadata("class"));
+
+    for (int i = 0; i < 8192; i++) {
+      wrapper.getMetadata().putToAttributes("a" + i, "");
+    }
+
+    Assert.assertEquals(1, read(serialize(wrapper), MAXSIZE).size());
+
+    wrapper.getMetadata().putToAttributes("one", "more");
+
+    Assert.assertEquals(TProtocolException.SIZE_LIMIT, assertInvalid(serialize(wrapper), MAXSIZE).getType());
+  }
+
+  @Test
+  public void testToEncoders() throws Exception {
+    GTSEncoder encoder = encoder(0L, 100);
+    GTSWrapper wrapper = GTSWrapperHelper.fromGTSEncoderToGTSWrapper(encoder, false);
+
+    List<GTSEncoder> encoders = GTSWrapperHelper.fromGTSWrapperToGTSEncoders(wrapper, null, Long.MAX_VALUE, MAXSIZE);
+
+    // The content is reused as is
+    Assert.assertEquals(1, encoders.size());
+    Assert.assertEquals(0L, encoders.get(0).getBaseTimestamp());
+    Assert.assertEquals(100L, encoders.get(0).getCount());
+    Assert.assertArrayEquals(encoder.getBytes(), encoders.get(0).getBytes());
+    Assert.assertEquals(encoder.getMetadata(), encoders.get(0).getMetadata());
+    Assert.assertEquals(datapoints(encoder), datapoints(encoders));
+  }
+
+  @Test
+  public void testToEncoders_base() throws Exception {
+    GTSEncoder encoder = encoder(1234567L, 100);
+
+    for (boolean compress: new boolean[] { false, true }) {
+      GTSWrapper wrapper = GTSWrapperHelper.fromGTSEncoderToGTSWrapper(encoder, compress);
+      Assert.assertEquals(1234567L, wrapper.getBase());
+
+      List<GTSEncoder> encoders = GTSWrapperHelper.fromGTSWrapperToGTSEncoders(wrapper, null, Long.MAX_VALUE, MAXSIZE);
+
+      // The content was re-encoded relative to 0
+      Assert.assertEquals(1, encoders.size());
+      Assert.assertEquals(0L, encoders.get(0).getBaseTimestamp());
+      Assert.assertEquals(datapoints(encoder), datapoints(encoders));
+    }
+  }
+
+  @Test
+  public void testToEncoders_maxsize() throws Exception {
+    GTSEncoder encoder = encoder(0L, 10000);
+    GTSWrapper wrapper = GTSWrapperHelper.fromGTSEncoderToGTSWrapper(encoder, true);
+
+    long maxsize = 1000L;
+
+    List<GTSEncoder> encoders = GTSWrapperHelper.fromGTSWrapperToGTSEncoders(wrapper, null, Long.MAX_VALUE, maxsize);
+
+    Assert.assertTrue(encoders.size() > 10);
+
+    for (GTSEncoder chunk: encoders) {
+      Assert.assertEquals(0L, chunk.getBaseTimestamp());
+      Assert.assertEquals(encoder.getMetadata(), chunk.getMetadata());
+      // A chunk is closed once it exceeds maxsize, so it can only exceed it by a single datapoint
+      Assert.assertTrue(chunk.size() <= maxsize + 64);
+    }
+
+    Assert.assertEquals(datapoints(encoder), datapoints(encoders));
+  }
+
+  @Test
+  public void testToEncoders_extraLabels() throws Exception {
+    GTSEncoder encoder = encoder(0L, 10);
+    encoder.getMetadata().getLabels().put("removed", "x");
+    encoder.getMetadata().getLabels().put("replaced", "x");
+    encoder.getMetadata().setAttributes(new HashMap<String,String>());
+    encoder.getMetadata().getAttributes().put("attr", "x");
+
+    GTSWrapper wrapper = GTSWrapperHelper.fromGTSEncoderToGTSWrapper(encoder, false);
+
+    Map<String,String> extraLabels = new HashMap<String,String>();
+    extraLabels.put("removed", null);
+    extraLabels.put("replaced", "y");
+    extraLabels.put("added", "z");
+
+    List<GTSEncoder> encoders = GTSWrapperHelper.fromGTSWrapperToGTSEncoders(wrapper, extraLabels, Long.MAX_VALUE, MAXSIZE);
+
+    Map<String,String> expected = new HashMap<String,String>();
+    expected.put("label", "value");
+    expected.put("replaced", "y");
+    expected.put("added", "z");
+
+    Assert.assertEquals(1, encoders.size());
+    Assert.assertEquals("class", encoders.get(0).getMetadata().getName());
+    Assert.assertEquals(expected, encoders.get(0).getMetadata().getLabels());
+    // Attributes are not ingested
+    Assert.assertEquals(0, encoders.get(0).getMetadata().getAttributesSize());
+    // The wrapper is left untouched
+    Assert.assertEquals("x", wrapper.getMetadata().getLabels().get("removed"));
+  }
+
+  @Test
+  public void testToEncoders_rejected() throws Exception {
+    GTSWrapper wrapper = GTSWrapperHelper.fromGTSEncoderToGTSWrapper(encoder(0L, 10), false);
+
+    GTSWrapper noname = new GTSWrapper(wrapper);
+    noname.getMetadata().unsetName();
+
+    GTSWrapper nometadata = new GTSWrapper(wrapper);
+    nometadata.unsetMetadata();
+
+    for (GTSWrapper invalid: new GTSWrapper[] { noname, nometadata }) {
+      try {
+        GTSWrapperHelper.fromGTSWrapperToGTSEncoders(invalid, null, Long.MAX_VALUE, MAXSIZE);
+        Assert.fail();
+      } catch (IOException ioe) {
+        Assert.assertEquals("Missing GTS name in GTSWrapper.", ioe.getMessage());
+      }
+    }
+
+    GTSWrapper encrypted = new GTSWrapper(wrapper);
+    encrypted.setKey(new byte[32]);
+
+    try {
+      GTSWrapperHelper.fromGTSWrapperToGTSEncoders(encrypted, null, Long.MAX_VALUE, MAXSIZE);
+      Assert.fail();
+    } catch (IOException ioe) {
+      Assert.assertEquals("Encrypted GTSWrapper cannot be ingested.", ioe.getMessage());
+    }
+  }
+
+  @Test
+  public void testToEncoders_corrupt() throws Exception {
+    GTSWrapper wrapper = GTSWrapperHelper.fromGTSEncoderToGTSWrapper(encoder(0L, 100), false);
+    byte[] encoded = wrapper.getEncoded();
+
+    // Content truncated in the middle of a datapoint
+    wrapper.setEncoded(Arrays.copyOf(encoded, encoded.length - 3));
+
+    try {
+      GTSWrapperHelper.fromGTSWrapperToGTSEncoders(wrapper, null, Long.MAX_VALUE, MAXSIZE);
+      Assert.fail();
+    } catch (IOException ioe) {
+      Assert.assertEquals("Invalid GTSWrapper content.", ioe.getMessage());
+    }
+
+    // Compressed content which is not gzip
+    wrapper.setEncoded(ByteBuffer.wrap(encoded));
+    wrapper.setCompressed(true);
+
+    try {
+      GTSWrapperHelper.fromGTSWrapperToGTSEncoders(wrapper, null, Long.MAX_VALUE, MAXSIZE);
+      Assert.fail();
+    } catch (IOException ioe) {
+      Assert.assertEquals("Invalid GTSWrapper content.", ioe.getMessage());
+    }
+  }
+
+  @Test
+  public void testToEncoders_valueSize() throws Exception {
+    GTSWrapper wrapper = GTSWrapperHelper.fromGTSEncoderToGTSWrapper(encoder(0L, 100), false);
+
+    // Longest STRING value is 'value99'
+    Assert.assertEquals(1, GTSWrapperHelper.fromGTSWrapperToGTSEncoders(wrapper, null, 7L, MAXSIZE).size());
+
+    try {
+      GTSWrapperHelper.fromGTSWrapperToGTSEncoders(wrapper, null, 6L, MAXSIZE);
+      Assert.fail();
+    } catch (IOException ioe) {
+      Assert.assertTrue(ioe.getMessage().startsWith("Value too large"));
+    }
+  }
+}
@@ -0,0 +1,87 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Not part of the default test run, use 'gradle warp10:benchmark'
+ */
+public class MappedFileCustomBufferBenchmark {
+
+  private static final int DATAPOINTS = 5000000;
+
+  private static final int ROUNDS = 5;
+
+  private static File encode() throws IOException {
+    Random random = new Random(42L);
+
+    GTSEncoder encoder = new GTSEncoder(0L);
+
+    // Doubles are stored raw so the decoders mostly exercise getLong/getDouble
+    for (int i = 0; i < DATAPOINTS; i++) {
+      encoder.addValue(i * 1000L + random.nextInt(1000), GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, random.nextDouble());
+    }
+
+    File file = File.createTempFile("mappedbench", ".gts");
+
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(encoder.getBytes());
+    }
+
+    return file;
+  }
+
+  private static long decode(CustomBuffer buffer) {
+    GTSDecoder decoder = new CustomBufferBasedGTSDecoder(0L, buffer);
+
+    long count = 0L;
+
+    while (decoder.next()) {
+      count++;
+    }
+
+    return count;
+  }
+
+  @Test
+  public void testDecode_perf() throws Exception {
+    File file = encode();
+
+    try {
+      for (int round = 0; round < ROUNDS; round++) {
+        long nano = System.nanoTime();
+        Assert.assertEquals(DATAPOINTS, decode(new FileBasedCustomBuffer(file.getAbsolutePath(), 65536)));
+        long filebased = System.nanoTime() - nano;
+
+        nano = System.nanoTime();
+        Assert.assertEquals(DATAPOINTS, decode(new MappedFileCustomBuffer(file.getAbsolutePath())));
+        long mapped = System.nanoTime() - nano;
+
+        System.out.println("decode " + DATAPOINTS + " values (" + file.length() + " bytes): FileBasedCustomBuffer " + (filebased / 1000000.0D) + " ms, MappedFileCustomBuffer " + (mapped / 1000000.0D) + " ms");
+      }
+    } finally {
+      file.delete();
+    }
+  }
+}
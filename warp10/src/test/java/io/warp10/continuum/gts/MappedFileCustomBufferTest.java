@@ -0,0 +1,269 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedFileCustomBufferTest {
+
+  /**
+   * Segments of 16 bytes so most reads straddle a segment boundary
+   */
+  private static final int SEGMENT_BITS = 4;
+
+  private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+
+  private File file;
+
+  private byte[] content;
+
+  @Before
+  public void setUp() throws Exception {
+    content = new byte[1000];
+    new Random(42L).nextBytes(content);
+    file = write(content);
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  private static File write(byte[] data) throws IOException {
+    File f = File.createTempFile("mappedtest", ".bin");
+    try (FileOutputStream out = new FileOutputStream(f)) {
+      out.write(data);
+    }
+    return f;
+  }
+
+  private MappedFileCustomBuffer buffer(long start, long length) throws IOException {
+    return new MappedFileCustomBuffer(file.getAbsolutePath(), start, length, SEGMENT_BITS);
+  }
+
+  @Test
+  public void testGet() throws Exception {
+    int start = 3;
+
+    MappedFileCustomBuffer buffer = buffer(start, Long.MAX_VALUE);
+
+    Assert.assertEquals(content.length - start, buffer.remaining());
+
+    for (int i = start; i < content.length; i++) {
+      Assert.assertEquals(content[i], buffer.get());
+    }
+
+    Assert.assertFalse(buffer.hasRemaining());
+
+    try {
+      buffer.get();
+      Assert.fail();
+    } catch (BufferUnderflowException bue) {
+    }
+
+    //
+    // Bulk reads spanning several segments
+    //
+
+    buffer.setPosition(5L);
+
+    byte[] dst = new byte[SEGMENT_SIZE * 3 + 7];
+    buffer.get(dst, 2, dst.length - 2);
+
+    Assert.assertArrayEquals(Arrays.copyOfRange(content, start + 5, start + 5 + dst.length - 2), Arrays.copyOfRange(dst, 2, dst.length));
+    Assert.assertEquals(5L + dst.length - 2, buffer.getPosition());
+
+    buffer.setPosition(buffer.getPosition() + buffer.remaining() - 1);
+
+    try {
+      buffer.get(new byte[2]);
+      Assert.fail();
+    } catch (BufferUnderflowException bue) {
+    }
+  }
+
+  @Test
+  public void testGetLongGetDouble() throws Exception {
+    int start = 5;
+    int length = 300;
+
+    for (ByteOrder order: new ByteOrder[] { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN }) {
+      MappedFileCustomBuffer buffer = buffer(start, length);
+      buffer.order(order);
+
+      ByteBuffer expected = ByteBuffer.wrap(content, start, length).slice().order(order);
+
+      //
+      // Every offset within a segment, including those where the value straddles two segments
+      //
+
+      for (int position = 0; position <= length - 8; position++) {
+        buffer.setPosition(position);
+        Assert.assertEquals(order + " @" + position, expected.getLong(position), buffer.getLong());
+        Assert.assertEquals(position + 8L, buffer.getPosition());
+
+        buffer.setPosition(position);
+        Assert.assertEquals(Double.doubleToRawLongBits(expected.getDouble(position)), Double.doubleToRawLongBits(buffer.getDouble()));
+      }
+
+      // Consecutive reads across the whole window
+      buffer.setPosition(1L);
+      for (int position = 1; position <= length - 8; position += 8) {
+        Assert.assertEquals(expected.getLong(position), buffer.getLong());
+      }
+
+      // Not enough data left for a long, the position is unchanged
+      buffer.setPosition(length - 7);
+
+      try {
+        buffer.getLong();
+        Assert.fail();
+      } catch (BufferUnderflowException bue) {
+      }
+
+      Assert.assertEquals(length - 7, buffer.getPosition());
+    }
+  }
+
+  @Test
+  public void testInsert() throws Exception {
+    MappedFileCustomBuffer buffer = buffer(0L, content.length);
+
+    buffer.setPosition(SEGMENT_SIZE - 2);
+
+    // A long made of inserted data and of data from two segments
+    byte[] inserted = new byte[] { 1, 2, 3 };
+    buffer.insert(inserted, 0, inserted.length);
+
+    Assert.assertEquals(content.length - SEGMENT_SIZE + 2 + inserted.length, buffer.remaining());
+
+    byte[] expected = new byte[8];
+    System.arraycopy(inserted, 0, expected, 0, inserted.length);
+    System.arraycopy(content, SEGMENT_SIZE - 2, expected, inserted.length, 8 - inserted.length);
+
+    Assert.assertEquals(ByteBuffer.wrap(expected).getLong(), buffer.getLong());
+    Assert.assertEquals(SEGMENT_SIZE + 3, buffer.getPosition());
+
+    // Data inserted while previously inserted data remains is read first
+    buffer.insert(new byte[] { 4 }, 0, 1);
+    buffer.insert(new byte[] { 5 }, 0, 1);
+
+    Assert.assertEquals(5, buffer.get());
+    Assert.assertEquals(4, buffer.get());
+    Assert.assertEquals(content[SEGMENT_SIZE + 3], buffer.get());
+
+    // Moving discards inserted data
+    buffer.insert(new byte[] { 6 }, 0, 1);
+    buffer.setPosition(0L);
+    Assert.assertEquals(content[0], buffer.get());
+  }
+
+  @Test
+  public void testAsByteBuffer() throws Exception {
+    MappedFileCustomBuffer buffer = buffer(0L, content.length);
+
+    buffer.setPosition(SEGMENT_SIZE + 3);
+
+    // Only the remaining data of the current segment is exposed
+    ByteBuffer bb = buffer.asByteBuffer();
+    Assert.assertEquals(SEGMENT_SIZE - 3, bb.remaining());
+    Assert.assertEquals(content[SEGMENT_SIZE + 3], bb.get(0));
+  }
+
+  @Test
+  public void testWindow() throws Exception {
+    // The length is truncated to the file size
+    Assert.assertEquals(10L, buffer(content.length - 10, 100L).remaining());
+    Assert.assertEquals(0L, buffer(content.length, 100L).remaining());
+
+    try {
+      buffer(content.length + 1, 1L);
+      Assert.fail();
+    } catch (IOException ioe) {
+    }
+
+    // The default segment size
+    MappedFileCustomBuffer buffer = new MappedFileCustomBuffer(file.getAbsolutePath(), 100L, 50L);
+    Assert.assertEquals(50L, buffer.remaining());
+    buffer.setPosition(42L);
+    Assert.assertEquals(ByteBuffer.wrap(content).getLong(142), buffer.getLong());
+  }
+
+  @Test
+  public void testDecoder() throws Exception {
+    Random random = new Random(42L);
+
+    GTSEncoder encoder = new GTSEncoder(0L);
+
+    for (int i = 0; i < 1000; i++) {
+      switch (i % 4) {
+        case 0:
+          encoder.addValue(i * 1000L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, random.nextLong());
+          break;
+        case 1:
+          encoder.addValue(i * 1000L, random.nextLong() >>> 1, random.nextInt(), random.nextDouble());
+          break;
+        case 2:
+          encoder.addValue(i * 1000L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, "value" + i);
+          break;
+        default:
+          encoder.addValue(i * 1000L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 0 == random.nextInt(2));
+      }
+    }
+
+    byte[] encoded = encoder.getBytes();
+
+    // Put the encoded data in the middle of a file
+    byte[] data = new byte[encoded.length + 37];
+    System.arraycopy(encoded, 0, data, 11, encoded.length);
+
+    File f = write(data);
+
+    try {
+      GTSDecoder expected = new GTSDecoder(0L, ByteBuffer.wrap(encoded));
+      GTSDecoder decoder = new CustomBufferBasedGTSDecoder(0L, new MappedFileCustomBuffer(f.getAbsolutePath(), 11L, encoded.length, SEGMENT_BITS));
+
+      int count = 0;
+
+      while (expected.next()) {
+        Assert.assertTrue(decoder.next());
+        Assert.assertEquals(expected.getTimestamp(), decoder.getTimestamp());
+        Assert.assertEquals(expected.getLocation(), decoder.getLocation());
+        Assert.assertEquals(expected.getElevation(), decoder.getElevation());
+        Assert.assertEquals(expected.getValue(), decoder.getValue());
+        count++;
+      }
+
+      Assert.assertFalse(decoder.next());
+      Assert.assertEquals(1000, count);
+    } finally {
+      f.delete();
+    }
+  }
+}
@@ -0,0 +1,169 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OrderStatisticsTest {
+
+  /**
+   * Generate a GTS with many ties, LONG or DOUBLE
+   */
+  private static GeoTimeSerie generate(Random prng, int n, boolean doubles) {
+    GeoTimeSerie gts = new GeoTimeSerie(n);
+
+    for (int i = 0; i < n; i++) {
+      if (doubles) {
+        GTSHelper.setValue(gts, i, (prng.nextInt(11) - 5) * 0.5D);
+      } else {
+        GTSHelper.setValue(gts, i, (long) prng.nextInt(7));
+      }
+    }
+
+    return gts;
+  }
+
+  private static double value(GeoTimeSerie gts, int idx) {
+    return ((Number) GTSHelper.valueAtIndex(gts, idx)).doubleValue();
+  }
+
+  /**
+   * Check all order statistics against a sort of the values still present
+   */
+  private static void check(OrderStatistics stats, GeoTimeSerie gts, List<Integer> present) {
+    int n = present.size();
+
+    Assert.assertEquals(n, stats.size());
+
+    double[] sorted = new double[n];
+
+    for (int i = 0; i < n; i++) {
+      sorted[i] = value(gts, present.get(i));
+    }
+
+    Arrays.sort(sorted);
+
+    //
+    // kthRank
+    //
+
+    for (int k = 0; k < n; k++) {
+      Assert.assertEquals(0, Double.compare(sorted[k], stats.kth(k)));
+    }
+
+    double median = 0 == n % 2 ? (sorted[n / 2] + sorted[n / 2 - 1]) / 2.0D : sorted[n / 2];
+
+    Assert.assertEquals(median, stats.median(), 0.0D);
+
+    //
+    // kthDeviation for every k
+    //
+
+    double[] deviations = new double[n];
+
+    for (int i = 0; i < n; i++) {
+      deviations[i] = Math.abs(sorted[i] - median);
+    }
+
+    Arrays.sort(deviations);
+
+    int split = stats.count(stats.lowerBound(median));
+
+    for (int k = 0; k < n; k++) {
+      Assert.assertEquals("k=" + k, deviations[k], stats.kthDeviation(median, split, k), 0.0D);
+    }
+
+    double mad = 0 == n % 2 ? (deviations[n / 2] + deviations[n / 2 - 1]) / 2.0D : deviations[n / 2];
+
+    Assert.assertEquals(mad, stats.medianAbsoluteDeviation(median), 0.0D);
+
+    //
+    // farthest, ties are broken by returning the lowest index
+    //
+
+    for (double center: new double[] { median, sorted[0], sorted[n - 1], 0.25D }) {
+      int expected = -1;
+      double farthest = -1.0D;
+
+      for (int idx: present) {
+        double deviation = Math.abs(value(gts, idx) - center);
+        if (deviation > farthest || (deviation == farthest && idx < expected)) {
+          farthest = deviation;
+          expected = idx;
+        }
+      }
+
+      Assert.assertEquals(expected, stats.farthest(center));
+    }
+  }
+
+  @Test
+  public void testRemovals() {
+    Random prng = new Random(0L);
+
+    for (int iter = 0; iter < 500; iter++) {
+      int n = 1 + prng.nextInt(40);
+      GeoTimeSerie gts = generate(prng, n, 0 == iter % 2);
+
+      OrderStatistics stats = new OrderStatistics(gts);
+
+      List<Integer> present = new ArrayList<Integer>();
+
+      for (int i = 0; i < n; i++) {
+        present.add(i);
+        Assert.assertEquals(value(gts, i), stats.value(i), 0.0D);
+      }
+
+      Collections.shuffle(present, prng);
+
+      while (!present.isEmpty()) {
+        check(stats, gts, present);
+        stats.remove(present.remove(present.size() - 1));
+      }
+
+      Assert.assertEquals(0, stats.size());
+    }
+  }
+
+  @Test
+  public void testMedian() {
+    Random prng = new Random(1L);
+
+    for (int iter = 0; iter < 1000; iter++) {
+      int n = 1 + prng.nextInt(100);
+      double[] values = new double[n];
+
+      for (int i = 0; i < n; i++) {
+        values[i] = prng.nextInt(10) - 5;
+      }
+
+      double[] sorted = values.clone();
+      Arrays.sort(sorted);
+
+      double expected = 0 == n % 2 ? (sorted[n / 2] + sorted[n / 2 - 1]) / 2.0D : sorted[n / 2];
+
+      Assert.assertEquals(expected, OrderStatistics.median(values, n), 0.0D);
+    }
+  }
+}
@@ -0,0 +1,240 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.script.MemoryWarpScriptStack;
+import io.warp10.script.StackUtils;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SpilledGeoTimeSerieTest {
+
+  private static final int SERIES = 3;
+
+  private static final int DATAPOINTS = 5000;
+
+  /**
+   * Number of datapoints per appended encoder, so series span several chunks of the spill file
+   */
+  private static final int CHUNK = 700;
+
+  private File dir;
+
+  private GTSSpillFile file;
+
+  private List<GeoTimeSerie> heap;
+
+  private List<Object> spilled;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = Files.createTempDirectory("spilltest").toFile();
+    file = new GTSSpillFile(dir);
+
+    heap = new ArrayList<GeoTimeSerie>();
+    spilled = new ArrayList<Object>();
+
+    Random random = new Random(42L);
+
+    //
+    // Chunks of the series are interleaved in the spill file
+    //
+
+    GTSEncoder[] encoders = new GTSEncoder[SERIES];
+
+    for (int s = 0; s < SERIES; s++) {
+      Metadata metadata = new Metadata();
+      metadata.setName("spilled");
+      metadata.setLabels(new HashMap<String,String>());
+      metadata.putToLabels("series", Integer.toString(s));
+      metadata.setAttributes(new HashMap<String,String>());
+
+      GeoTimeSerie gts = new GeoTimeSerie();
+      gts.setMetadata(metadata);
+      heap.add(gts);
+      spilled.add(new SpilledGeoTimeSerie(file, new Metadata(metadata), null));
+      encoders[s] = new GTSEncoder(0L);
+    }
+
+    for (int i = 0; i < DATAPOINTS; i++) {
+      for (int s = 0; s < SERIES; s++) {
+        // Ticks are not in order and some datapoints have a location and elevation
+        long tick = ((i * 7919L) % DATAPOINTS) * 10L;
+        long location = 0 == i % 3 ? random.nextLong() >>> 1 : GeoTimeSerie.NO_LOCATION;
+        long elevation = 0 == i % 5 ? (long) random.nextInt(10000) : GeoTimeSerie.NO_ELEVATION;
+        double value = random.nextGaussian() * 100.0D;
+
+        encoders[s].addValue(tick, location, elevation, value);
+        GTSHelper.setValue(heap.get(s), tick, location, elevation, value, false);
+
+        if (encoders[s].getCount() == CHUNK) {
+          ((SpilledGeoTimeSerie) spilled.get(s)).append(encoders[s]);
+          encoders[s] = new GTSEncoder(0L);
+        }
+      }
+    }
+
+    for (int s = 0; s < SERIES; s++) {
+      ((SpilledGeoTimeSerie) spilled.get(s)).append(encoders[s]);
+    }
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    file.close();
+    for (File f: dir.listFiles()) {
+      f.delete();
+    }
+    dir.delete();
+  }
+
+  private static void assertSameGTS(GeoTimeSerie expected, GeoTimeSerie actual) {
+    GTSHelper.sort(expected);
+    GTSHelper.sort(actual);
+
+    Assert.assertEquals(expected.getMetadata(), actual.getMetadata());
+    Assert.assertEquals(expected.getType(), actual.getType());
+    Assert.assertEquals(expected.size(), actual.size());
+
+    for (int i = 0; i < expected.size(); i++) {
+      Assert.assertEquals(GTSHelper.tickAtIndex(expected, i), GTSHelper.tickAtIndex(actual, i));
+      Assert.assertEquals(GTSHelper.locationAtIndex(expected, i), GTSHelper.locationAtIndex(actual, i));
+      Assert.assertEquals(GTSHelper.elevationAtIndex(expected, i), GTSHelper.elevationAtIndex(actual, i));
+      Assert.assertEquals(GTSHelper.valueAtIndex(expected, i), GTSHelper.valueAtIndex(actual, i));
+    }
+  }
+
+  private static void assertSameGTS(List<Object> expected, List<Object> actual) {
+    Assert.assertEquals(expected.size(), actual.size());
+
+    for (int i = 0; i < expected.size(); i++) {
+      assertSameGTS((GeoTimeSerie) expected.get(i), (GeoTimeSerie) actual.get(i));
+    }
+  }
+
+  /**
+   * Run 'script' with the series stored in the 'series' symbol and return the result
+   */
+  private static List<Object> exec(List<?> series, String script) throws Exception {
+    WarpScriptStack stack = new MemoryWarpScriptStack(null, null, new Properties());
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_LAZY_SERIES, true);
+    stack.store("series", series);
+
+    stack.exec(script);
+
+    Assert.assertEquals(1, stack.depth());
+    return (List<Object>) stack.pop();
+  }
+
+  @Test
+  public void testDecode() throws Exception {
+    for (int s = 0; s < SERIES; s++) {
+      SpilledGeoTimeSerie gts = (SpilledGeoTimeSerie) spilled.get(s);
+
+      Assert.assertEquals(DATAPOINTS, gts.size());
+      Assert.assertEquals(0L, gts.firstTick());
+      Assert.assertEquals((DATAPOINTS - 1) * 10L, gts.lastTick());
+
+      // Decode twice, the spilled data is not consumed
+      assertSameGTS(heap.get(s), gts.decode());
+      assertSameGTS(heap.get(s), gts.decode());
+    }
+
+    Assert.assertTrue(file.size() > 0L);
+    Assert.assertEquals(file.size(), new File(file.getPath()).length());
+  }
+
+  @Test
+  public void testBucketize() throws Exception {
+    String script = "[ $series bucketizer.sum " + (DATAPOINTS * 10L) + " 1000 0 ] BUCKETIZE";
+    assertSameGTS(exec(heap, script), exec(spilled, script));
+
+    // The series were not decoded in place
+    for (Object gts: spilled) {
+      Assert.assertTrue(gts instanceof SpilledGeoTimeSerie);
+    }
+  }
+
+  @Test
+  public void testMap() throws Exception {
+    String script = "[ $series mapper.sum 2 1 0 ] MAP";
+    assertSameGTS(exec(heap, script), exec(spilled, script));
+
+    for (Object gts: spilled) {
+      Assert.assertTrue(gts instanceof SpilledGeoTimeSerie);
+    }
+  }
+
+  @Test
+  public void testReduce() throws Exception {
+    String script = "[ [ $series bucketizer.last " + (DATAPOINTS * 10L) + " 10 0 ] BUCKETIZE [] reducer.sum ] REDUCE";
+    assertSameGTS(exec(heap, script), exec(spilled, script));
+
+    script = "[ $series [ 'series' ] reducer.max ] REDUCE";
+    List<Object> reduced = exec(spilled, script);
+    Assert.assertEquals(SERIES, reduced.size());
+    assertSameGTS(exec(heap, script), reduced);
+  }
+
+  @Test
+  public void testCloseResources() throws Exception {
+    WarpScriptStack stack = new MemoryWarpScriptStack(null, null, new Properties());
+
+    GTSSpillFile other = new GTSSpillFile(dir);
+
+    StackUtils.registerCloseable(stack, file);
+    StackUtils.registerCloseable(stack, other);
+
+    Assert.assertEquals(2, dir.listFiles().length);
+
+    StackUtils.closeResources(stack);
+
+    Assert.assertEquals(0, dir.listFiles().length);
+    Assert.assertNull(stack.getAttribute(WarpScriptStack.ATTRIBUTE_CLOSEABLES));
+
+    // Closing again is harmless
+    StackUtils.closeResources(stack);
+    file.close();
+
+    try {
+      file.append(new GTSEncoder(0L));
+      Assert.fail();
+    } catch (IOException ioe) {
+    }
+
+    try {
+      ((SpilledGeoTimeSerie) spilled.get(0)).decode();
+      Assert.fail();
+    } catch (WarpScriptException wse) {
+    }
+  }
+}
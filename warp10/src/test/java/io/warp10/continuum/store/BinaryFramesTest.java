@@ -0,0 +1,201 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BinaryFramesTest {
+
+  private static final int RECORDS = 20;
+
+  private final Random random = new Random(42L);
+
+  private byte[] bytes(int len) {
+    byte[] bytes = new byte[len];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  /**
+   * @return RECORDS records of 3 fields of growing sizes, the second field of every other record is empty
+   */
+  private byte[][][] records() {
+    byte[][][] records = new byte[RECORDS][][];
+
+    for (int i = 0; i < RECORDS; i++) {
+      records[i] = new byte[][] { bytes(1 + i), bytes(0 == i % 2 ? 0 : 8), bytes(i * i * 10) };
+    }
+
+    return records;
+  }
+
+  private static DataInputStream input(byte[] data, int len) {
+    return new DataInputStream(new ByteArrayInputStream(data, 0, len));
+  }
+
+  /**
+   * Read records of 3 fields until END, checking them against 'records'
+   */
+  private static void check(byte[][][] records, DataInputStream in) throws IOException {
+    byte[] buf = new byte[4];
+
+    for (int i = 0; ; i++) {
+      int len = BinaryFrames.readLength(in);
+
+      if (BinaryFrames.END == len) {
+        Assert.assertEquals(records.length, i);
+        break;
+      }
+
+      for (int field = 0; field < 3; field++) {
+        if (field > 0) {
+          len = BinaryFrames.readLength(in);
+        }
+
+        byte[] previous = buf;
+        buf = BinaryFrames.read(in, len, buf);
+
+        // The buffer is only replaced when too small
+        if (len <= previous.length) {
+          Assert.assertSame(previous, buf);
+        } else {
+          Assert.assertTrue(buf.length >= len);
+        }
+
+        Assert.assertArrayEquals(records[i][field], Arrays.copyOf(buf, len));
+      }
+    }
+  }
+
+  @Test
+  public void testWrapperRecords() throws Exception {
+    byte[][][] records = records();
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+
+    for (byte[][] record: records) {
+      BinaryFrames.writeWrapper(out, record[0], record[1], record[2]);
+    }
+
+    BinaryFrames.writeEnd(out);
+    out.flush();
+
+    byte[] data = baos.toByteArray();
+
+    DataInputStream in = input(data, data.length);
+    check(records, in);
+
+    // Nothing follows the end marker
+    Assert.assertEquals(-1, in.read());
+
+    // An empty response only contains the end marker
+    Assert.assertArrayEquals(new byte[] { -1, -1, -1, -1 }, Arrays.copyOfRange(data, data.length - 4, data.length));
+    check(new byte[0][][], input(Arrays.copyOfRange(data, data.length - 4, data.length), 4));
+  }
+
+  @Test
+  public void testSplitRecords() throws Exception {
+    byte[][][] records = records();
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+
+    for (byte[][] record: records) {
+      BinaryFrames.writeSplit(out, record[0], record[1], record[2]);
+    }
+
+    BinaryFrames.writeEnd(out);
+    out.flush();
+
+    check(records, input(baos.toByteArray(), baos.size()));
+
+    // Partial arrays
+    baos.reset();
+    BinaryFrames.write(out, records[3][2], 5, 7);
+    out.flush();
+
+    DataInputStream in = input(baos.toByteArray(), baos.size());
+    Assert.assertEquals(7, BinaryFrames.readLength(in));
+    Assert.assertArrayEquals(Arrays.copyOfRange(records[3][2], 5, 12), BinaryFrames.read(in, 7, new byte[7]));
+  }
+
+  @Test
+  public void testTruncated() throws Exception {
+    byte[][][] records = records();
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+
+    for (byte[][] record: records) {
+      BinaryFrames.writeWrapper(out, record[0], record[1], record[2]);
+    }
+
+    BinaryFrames.writeEnd(out);
+    out.flush();
+
+    byte[] data = baos.toByteArray();
+
+    //
+    // Cutting the stream anywhere, including between records or within the end marker,
+    // is detected
+    //
+
+    for (int len = 0; len < data.length; len++) {
+      try {
+        check(records, input(data, len));
+        Assert.fail("Truncation at " + len + " was not detected.");
+      } catch (EOFException eofe) {
+      }
+    }
+  }
+
+  @Test
+  public void testInvalidLength() throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+    out.writeInt(-2);
+    out.flush();
+
+    try {
+      BinaryFrames.readLength(input(baos.toByteArray(), baos.size()));
+      Assert.fail();
+    } catch (EOFException eofe) {
+      Assert.fail();
+    } catch (IOException ioe) {
+    }
+
+    // END can not be used as the length of a field
+    try {
+      BinaryFrames.read(input(new byte[8], 8), BinaryFrames.END, new byte[8]);
+      Assert.fail();
+    } catch (EOFException eofe) {
+      Assert.fail();
+    } catch (IOException ioe) {
+    }
+  }
+}
@@ -0,0 +1,115 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.hadoop;
+
+import io.warp10.continuum.store.BinaryFrames;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class Warp10InputSplitTest {
+
+  private static Warp10InputSplit roundtrip(Warp10InputSplit split) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+    split.write(out);
+    // Something written after the split must not be consumed by readFields
+    out.writeInt(42);
+    out.flush();
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+    Warp10InputSplit read = new Warp10InputSplit();
+    read.readFields(in);
+    Assert.assertEquals(42, in.readInt());
+
+    return read;
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    Warp10InputSplit split = new Warp10InputSplit();
+
+    // Fetchers of different lengths
+    split.addEntry("10.0.0.1", "split1");
+    split.addEntry("10.0.0.1", "split2");
+    split.addEntry("192.168.100.200", "split3");
+    split.addFetcher("fallback");
+    split.build();
+
+    Warp10InputSplit read = roundtrip(split);
+
+    Assert.assertArrayEquals(new String[] { "10.0.0.1", "192.168.100.200", "fallback" }, read.getLocations());
+    Assert.assertArrayEquals(split.getBytes(), read.getBytes());
+
+    // A split read back can be written again
+    Assert.assertArrayEquals(split.getBytes(), roundtrip(read).getBytes());
+  }
+
+  @Test
+  public void testBinaryEntries() throws Exception {
+    Warp10InputSplit split = new Warp10InputSplit();
+
+    byte[][] entries = new byte[][] { new byte[] { 1, 2, 3 }, new byte[0], new byte[1000] };
+
+    for (byte[] entry: entries) {
+      split.addEntry("fetcher", entry);
+    }
+
+    split.build();
+
+    Warp10InputSplit read = roundtrip(split);
+
+    Assert.assertArrayEquals(new String[] { "fetcher" }, read.getLocations());
+
+    // The entries are gzipped frames as read by the fetch endpoint
+    DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(read.getBytes())));
+
+    for (byte[] entry: entries) {
+      int len = BinaryFrames.readLength(in);
+      Assert.assertArrayEquals(entry, BinaryFrames.read(in, len, new byte[len]));
+    }
+
+    Assert.assertEquals(-1, in.read());
+  }
+
+  @Test
+  public void testIncomplete() throws Exception {
+    Warp10InputSplit split = new Warp10InputSplit();
+    split.addEntry("fetcher", "split");
+
+    try {
+      split.write(new DataOutputStream(new ByteArrayOutputStream()));
+      Assert.fail();
+    } catch (IOException ioe) {
+    }
+
+    split.build();
+
+    try {
+      split.addEntry("fetcher", "split");
+      Assert.fail();
+    } catch (RuntimeException re) {
+    }
+  }
+}
@@ -0,0 +1,153 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.hadoop;
+
+import io.warp10.continuum.store.BinaryFrames;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class Warp10RecordReaderTest {
+
+  private final Random random = new Random(42L);
+
+  private byte[] bytes(int len) {
+    byte[] bytes = new byte[len];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  /**
+   * Encode records as the sfetch endpoint does in binary mode
+   */
+  private static byte[] encode(byte[][] keys, byte[][] wrappers, boolean end) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+
+    for (int i = 0; i < keys.length; i++) {
+      // Signed and unsigned wrappers
+      byte[] mac = 0 == i % 2 ? new byte[8] : new byte[0];
+      BinaryFrames.writeWrapper(out, keys[i], mac, wrappers[i]);
+    }
+
+    if (end) {
+      BinaryFrames.writeEnd(out);
+    }
+
+    out.flush();
+
+    return baos.toByteArray();
+  }
+
+  private static Warp10RecordReader reader(byte[] data, int len) {
+    return new Warp10RecordReader(new DataInputStream(new ByteArrayInputStream(data, 0, len)));
+  }
+
+  @Test
+  public void testNextFrame() throws Exception {
+    int n = 10;
+
+    byte[][] keys = new byte[n][];
+    byte[][] wrappers = new byte[n][];
+
+    for (int i = 0; i < n; i++) {
+      keys[i] = ("0123456789abcdef" + i).getBytes("US-ASCII");
+      // Sizes going up and down so the value buffer is both grown and reused
+      wrappers[i] = bytes(0 == i % 2 ? 100 * (i + 1) : 10);
+    }
+
+    byte[] data = encode(keys, wrappers, true);
+
+    Warp10RecordReader reader = reader(data, data.length);
+
+    Text key = reader.createKey();
+    BytesWritable value = reader.createValue();
+
+    byte[] buffer = null;
+
+    for (int i = 0; i < n; i++) {
+      Assert.assertTrue(reader.next(key, value));
+      Assert.assertEquals(new String(keys[i], "US-ASCII"), key.toString());
+      Assert.assertEquals(wrappers[i].length, value.getLength());
+      Assert.assertArrayEquals(wrappers[i], Arrays.copyOf(value.getBytes(), value.getLength()));
+
+      // A smaller value reuses the buffer
+      if (null != buffer && value.getLength() <= buffer.length) {
+        Assert.assertSame(buffer, value.getBytes());
+      }
+
+      buffer = value.getBytes();
+      Assert.assertEquals(i + 1, reader.getPos());
+    }
+
+    Assert.assertFalse(reader.next(key, value));
+
+    reader.close();
+  }
+
+  @Test
+  public void testTruncated() throws Exception {
+    byte[][] keys = new byte[][] { "key0".getBytes("US-ASCII"), "key1".getBytes("US-ASCII") };
+    byte[][] wrappers = new byte[][] { bytes(50), bytes(60) };
+
+    byte[] data = encode(keys, wrappers, true);
+
+    //
+    // Whatever the cut, the reader fails instead of returning fewer records
+    //
+
+    for (int len = 0; len < data.length; len++) {
+      Warp10RecordReader reader = reader(data, len);
+
+      Text key = new Text();
+      BytesWritable value = new BytesWritable();
+
+      try {
+        while (reader.next(key, value)) {
+        }
+        Assert.fail("Truncation at " + len + " was not detected.");
+      } catch (IOException ioe) {
+      }
+    }
+
+    // A response without the end marker is truncated too
+    byte[] unterminated = encode(keys, wrappers, false);
+    Warp10RecordReader reader = reader(unterminated, unterminated.length);
+
+    Text key = new Text();
+    BytesWritable value = new BytesWritable();
+
+    Assert.assertTrue(reader.next(key, value));
+    Assert.assertTrue(reader.next(key, value));
+
+    try {
+      reader.next(key, value);
+      Assert.fail();
+    } catch (IOException ioe) {
+    }
+  }
+}
@@ -0,0 +1,95 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package io.warp10.script;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Not part of the default test run, use 'gradle warp10:benchmark'
+ */
+public class HyperLogLogPlusBenchmark {
+
+  private static final int VALUES = 20000000;
+
+  private static final int ROUNDS = 3;
+
+  @Test
+  public void testAggregate_perf() throws Exception {
+    for (int round = 0; round < ROUNDS; round++) {
+      // Starts SPARSE and switches to NORMAL
+      HyperLogLogPlus hllp = new HyperLogLogPlus(14, 25);
+
+      long nano = System.nanoTime();
+      for (int i = 0; i < VALUES; i++) {
+        hllp.aggregate(HyperLogLogPlusTest.hash(i));
+      }
+      nano = System.nanoTime() - nano;
+
+      Assert.assertEquals(VALUES, hllp.cardinality(), VALUES * 0.05D);
+
+      System.out.println("aggregate " + VALUES + " values, 1 thread: " + (nano / 1000000.0D) + " ms, " + (VALUES * 1000.0D / nano) + " M values/s");
+    }
+  }
+
+  @Test
+  public void testConcurrentAggregate_perf() throws Exception {
+    for (final int threads: new int[] { 2, 4, 8 }) {
+      for (int round = 0; round < ROUNDS; round++) {
+        final HyperLogLogPlus hllp = new HyperLogLogPlus(14, 25);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> workers = new ArrayList<Thread>();
+
+        for (int t = 0; t < threads; t++) {
+          final int thread = t;
+          Thread worker = new Thread() {
+            @Override
+            public void run() {
+              try {
+                start.await();
+                for (int i = thread; i < VALUES; i += threads) {
+                  hllp.aggregate(HyperLogLogPlusTest.hash(i));
+                }
+              } catch (Exception e) {
+                throw new RuntimeException(e);
+              }
+            }
+          };
+          worker.start();
+          workers.add(worker);
+        }
+
+        long nano = System.nanoTime();
+        start.countDown();
+        for (Thread worker: workers) {
+          worker.join();
+        }
+        nano = System.nanoTime() - nano;
+
+        Assert.assertEquals(VALUES, hllp.cardinality(), VALUES * 0.05D);
+
+        System.out.println("aggregate " + VALUES + " values, " + threads + " threads sharing an estimator: " + (nano / 1000000.0D) + " ms, " + (VALUES * 1000.0D / nano) + " M values/s");
+      }
+    }
+  }
+}
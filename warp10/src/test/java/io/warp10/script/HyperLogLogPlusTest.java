@@ -0,0 +1,290 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+
+package io.warp10.script;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HyperLogLogPlusTest {
+
+  /**
+   * Sketches serialized by HyperLogLogPlus before the registers were moved to an AtomicIntegerArray,
+   * with an init time of 0. Each entry is p, p', number of aggregated values and the estimate the
+   * sketch gave at the time.
+   */
+  private static final Object[][] BASELINE = new Object[][] {
+    { 10, 25, 50, 44L,
+      "FgATChMZERVYGI8B1KDZAaDoG4TNiQHC7gbO4KsB9IMM7JfwAaiioQH60vMCsMU5iuHOAdKNUprFDNLvbbTQPIT/0wHGhU32" +
+      "uG3oxByCsH6wrjPu8TCCUPDwb76TO9isbqTTHcq0PujUuwGoowjM5wiwqQzAoRKylAeKhl6MkhH6iC6qlAbc42X6+Y4ByLis" +
+      "Aci5a9bPIpDBzgEA" },
+    { 10, 25, 400, 345L,
+      "FgATChMZEjjhAh+LCAAAAAAAAABFUjFuBCEMNKwVbUFBpCtSkryAJ7DZFCnvCXkKuSj9PelO97HM2LBBaNcY2zMeIyKrNJEo" +
+      "EpL0VbAWxSdgX6TAavTxPJZeb9PT1F0Vpw/zdD8m4Z6ro87J6ijhbOXdfg/5j2wzPuob6gyUXHtG+NckAEol6rg1AtnIZJms" +
+      "Qhr2IoSL/LKRoPaVc58ezwUBnXYUty3roKTkvxgcchsDG+yWEJB/PWal98cJsFh8nzRmd2wDWZsFbKbtDWYa0Ef7QUpPk4ec" +
+      "/bZrbcwrd4xJXcwg+tzk2gVXEO0gXKy7ckAHgzgmCP6NarDx3chETjD7NG9MrKgWIB2HVQ9tWSSVb2qQL9PVxxQqyu6Snxwi" +
+      "GbpOzNV7xK53voTyCQFNeURcJtVofXUDcjUW5z+eTROq9+oTWUyl7YXxEARXfH4r5R3rRAl9jlBbXTQ5b1QjOLP4B8bzoSEA" +
+      "AwAAEQA=" },
+    { 10, 25, 5000, 4522L,
+      "FgATChMZEji8BB+LCAAAAAAAAAAdkj2S2zAMhW0Ju0GBAtphocIFObPFFimoG1CivZN0dE4g3WCdE9j62y03N8gVcoNIlO1r" +
+      "BUrDATkPBPA94CXFYqvsqOo+rzw2B6U98KL+XOnYUpli2TIPEG7QeHavUHr4jLvQkfYvtiU90LHHH0Bmr9ygfkduWrIDh0gn" +
+      "T/qDwsQ2gjm/uB4LSd+inciNcNqrQuKIrmfnFTsw36nq6DTmb4uqetIzcYd24brl4LlJ6JjyKd3ZK7qKs4r4vjslaO5YDmy+" +
+      "8H8xGcRaciO5/qu9PtsKzQzZgcLI2SPVN7IjNRPYEQsA3VFYUAqtZ+SiI3tjt5B9R5bRenIz2RTtK5h056Ky8dlO6oi5SVVZ" +
+      "KZOKAOoBbY+hY/mtSPOzBBEtcFVRXZJtwc06tCRdZQm93YknDpIy6nJA44UwZR7CBDwSzxjeWYCchcle4GjzDesZG4+isQc2" +
+      "iTIJlwkeI+sZt3ssPf8CKrrNzwqeDmQOkD2QnQXFTncohXSlBF3h0c2YJVA8iJVcVlikVFaCK9d3PA9qfXkk3fLnXVBsbCQT" +
+      "xUfNMS8OrCdwN7StyraieT7PufAxqfTGYrEeVnphVoUH87gROIJUx/ytR7OhJkE94dpVj1o4XGUEKD7EINaHlYmgE+OEgPuQ" +
+      "TeCnFPgv25bdheqImXi6z41HvciwQliu5AaWq0GS9kpZnmkd0HqWEs6LeKf7davDHk2S2xnsZaOFkiReMAi6bmWiZV2Xf5NB" +
+      "enwAAwAAEQA=" },
+    { 12, 20, 3000, 2688L,
+      "FgATDBMUEjirDB+LCAAAAAAAAABFVkGS2zYQHJDYDaqCw9Clgw46UFV+ADYvAKm1c1V+sE/IE0jJ63wnT9Bq1/9Kd4N2ZNcW" +
+      "RQGDmZ7uHtho0WoqS3Sz8at5SDaZzWZdtMXw7HOyS/QTnlOt0UJ6uh6elmhmjn9Tts4smFXTh+/tbiFge/KQzT677ew986dL" +
+      "9slttYL1ll5S4iY9W831ZF51ED4Ii0/NZ/x68XLBs/vCIL4mpnrDRsdB1iezPKxcHuYD0vZvZqcd6sKyMiGfOCFD1BKxN458" +
+      "o+3XiDIDq8gsdsrjm9tDeqlII1vcK6IWc0Hqfs81mF+U3rIV66uS7+2ld6UdeeJqT8/IIVmXz68/YamIw4exj3jwYGPYlx5v" +
+      "VFRbVZVhjWMQ8sGJDRbc+PUJffnALhMOyZ4Z1W9pYBArD5G1KDEe9A5kFPVtZzETpcA4QRHDTWvQxCUW7CKGdkbrK7BNrE6n" +
+      "jGjP7VexwiEeSoh/WAphtB8xPMaz7caT+z0PWFwTwtY1HVFsTWfseEt2Q0V2Ro0fdu6ArTp+Aez4T1jKghOxzAeRaDSm6mhZ" +
+      "R8qFiyMBEEYUzUh4mXiQ9TsRDy93WDyuDEhAQmuKFXyZSCR/IGitm6w65PJ9N1gCVtgykHW7wsg8ugQ/1wwQCkOl82ss1+jv" +
+      "zHmcbESoK0ET+eNRUHvYG953yhMBVVQNEYAgBycORlTtM+nUxbHLx8fDphTmKTI0KKrQruQbuOQnZGKfWEUqt6YUFnicfFiU" +
+      "gjEZ3ziMXru9ptKKfaZ+R8itcguB7XhE+NlNE23GbyQwIhzfrHyNaLd3whlYoZtI7M026q4JxFZusaVdgHlvtYvDkpQNjuYR" +
+      "aPEYROnW63dgwkzH2fyuGq9JmSNhI9tvklLk0aoxkyS9QENA8La2yE0mXAkhhPVgX2hTFEnM+gmGsx/M6Q8hITK106cny6Vr" +
+      "7GVMn8T8kDbHI9tZ2jjnEbS8RfuN7GVFKHZGEfQQ1Dv2m/ZHNjqdJ+gU8O43xVU5p9S98bDKHCZYShrYcWMV3KI4LJb1Iiy1" +
+      "c0qlxYHwuwyB2NqWsRx7hzaFWKDE0MoRtOf2Xe2Yz9bQKXmkc0IRlYqITsX5MezPlkCGZix068fMctjKJPuN46z48FKZHmG/" +
+      "sOqWLcgFWPS+7WKXyRO4kO3+RYRO5ARnljR2pCYewkyVcU3gS6leLb7ti+iL6uwfoO14+SIh0D9n8acnx2gFRvbaR9yksVDX" +
+      "LtI2jg1oHzZe6F1eJSgaVw7rrluBAFtJ9DRZZAV5kGlD4OWS5QlYc6inVN+45i9o6g5uq5UYXrLHMgmK5UBkGs+ZcC5zgyVp" +
+      "TNC9C9llrUDXxAQs3iwXZthxF/Tra0a9aD35PAvM2U3ztyrCKDcYO21UU1zAol/d0tyAHAvyLvuuMmfHRDBZ6LFqSW0mg/KB" +
+      "G7rDQ0vXzAdNcb/KCf+UrbGWPfyzwPy7DJLDGMPM2jn6l3R89jMEkuz8RWCSPAdS/dWLHNjfBH7TKQ6dI9aPd87NWmXXqJd7" +
+      "cwEH8OaiGXSRlUH4c3a5PeBqY4iW1ctmqy0Yr4HDy6/EH5Lh9aCqF7CvD148HPlv/HTT3Ae8ui0wCKY/SbVuXsrPRcF7a67O" +
+      "LY8ZlxCXEyJ/KJp/cSKCdynguN7C80/3viRO3WUjf+URICTy0fSRyXN8QHSrk0vg+S02oOgYCuMneYJslrOs25wTUIQpDVNz" +
+      "Y1yfMFboyb/wKTh3cRoj+HIXFQUaf8VN4xEjab/drxZTPgnfXqwlJnrfGm1iu2b83Vhd7dgYAj6HXJsA28UMh3b7gl0nbVxp" +
+      "IMfQyBA3ZwtRR0ihd1bBptcmQ6TT7IX08M05dz5xIhT2KPNShIsZpi1vj/HJJIRZtwtqIU1Vswwixb0UFc2cquWB1xjG7OVp" +
+      "nSxi4cMnnNil8Sb5YO/p/0sCm15dOZB4uC1wzk7WzEp+rsF6pf/wavrws62V/sZ2P291qTSRnxjucFcsPwgCm6UbC3/6glZm" +
+      "WhC8cRI5g1U4A+45gbOjTU9+7qLiTcB26iCMEWJBPg+0CBhIaLxF/D5/muPQmbduNqsJuXGS2cmcMW0RE6cP+P3aGvQfKrPu" +
+      "GgAMAAARAA==" },
+    { 8, 8, 2000, 1712L,
+      "FgATCBMIEji/AR+LCAAAAAAAAAANyr2twjAQAGAJ7KcrrrjiChcpnA0uTGDjBFHaG5ANwgZgOZHYghXeCvmjfSM92k8fuZ3d" +
+      "ApJJJtVoiiu4C/YdyIeaA/aKh5G/7ifjXyiF/IhJ81/BNKKsqtbUa7QLug/87lUT0Le2/2FZMAVzfnLMWE/mVMhtGGeSAjKj" +
+      "V3Q/k90xXcBu4EZ+f1tHj4BxMzbz84g+wJBNarme1E1DXCl16K+VzHQKVZ0htjyUf8nPcUnAAAAAEQA=" },
+    { 11, 11, 20000, 17286L,
+      "FgATCxMLEjjRCB+LCAAAAAAAAAAdVD2O20YUjkVSO7BfgCfgFVNMMVxskcIFZ6uUMyKltVNx9gSicwHRJ1iJlBTAjZ0TxLmB" +
+      "bxCLlOw4PlQ+GlAhQJr3vt/Hi29UD8r37K/se3Elu4puE8lPtu05VBwz9if8pPyFi4Hvex0HjkupD8oO9P5i4oMJD+SvElOK" +
+      "FwkVxZJ3JT2meG6KkdtBvcGQXruM7ch1/0tI7tol+0EVB+VSjtjbSehNU1Jx4O2/4kd5k/LfFW/P5FayWel8zc1c3NoUe9q9" +
+      "kzyRep+G4ednlXFHmydFKF+G6mUd7upRNoDag4jkNxITyjMJmQISV3HY85uRn66cv6L6qIqOnwZqX3M94InUgHe2TcXLjP7M" +
+      "7vyB870ErDthO7sHDNegEGfkRgISe9Wus2HFIWM3I6xrS4qJAjzbcRjo917nPb1NqHlBeUpupsNM5ZkKJx0OVIy0KXXodQPd" +
+      "ZrKDmCezWfOHEzWJiamOz6gZKayNe9DFSZo1DKK4LPxZwsUCvF8ShA2VDX9w6JRL9MclhRnBkebBLh70bsUQMJS6+G7sReJo" +
+      "/UhNz9u9LNaQhYvP8tTDNQ3808aEPiS66ATuLCt2Hb3NqDgTdjnEADatJC6VHzVy8jaT4ij2QGDq1nyb8SLV/ww86daRP9m4" +
+      "lrqTx5LD5a4+sh04z2yYYQ5tOm3/Y+QnrBRiVg8SEsLnPvuh7TuFpW6U/Cst12Q71R7MYi9/Yfg36zs8MRH09xLnkBG5Mi6l" +
+      "7YGdN6FXoZv0DEcVu1/rq4RprzSp9idzPzfbUdyMG2Ry0PbCmx8xiCv+PBlE7rVuRxUPZAcVkOGeigt9TCcw/krbEaNU+4o2" +
+      "oymOnF84lAqCtyUjTs0M+VFhReGGXKlRGQc6FbUJuYHDjf408gL/HFLbawADhmLU9zfGX6hNJfYUO/u0VyGzzZzgUUiMO8AX" +
+      "grlxLps9I4Eho4Ce3nCYpw1cm/zFFlVcp6qilTFluPzpIvfJNLOdU7Mil3ADpw4GLc7TKUhuoGaQLcgelbsi1YwJTQevdVtp" +
+      "P6T+TMuUXW8dmCZUf0dbJxl3mY77Yrkyy9RENPFoQ4L64InKrypfKbsjhArJdwl6N9EB/ZhKjaSBY0bxbIE5L8mX3ELYszT9" +
+      "FDmPJyn5jtHBz6hVwggDXCjOOESUI4T49Yu4k4RUARscxBY7YaanTvnrdEPyRMe1LnAEwLeiXLFLoAkSImGcDl0IUk8qWUzb" +
+      "ob8pVJ1QBYVuagj1/ovZjYwVOCb1xbgb2E1oH7pfDOSRt9/uIOAWFxJSzKQ5Ao+0M45r5Wa4Tup+Dmym/q6hOcDbUdCFMCJd" +
+      "i5+Q1Rm7i/aloGjT90y2X2UBsit9r3AqX9aDfUzID+yeU6xQIu2Ousl08xre2XzJcW6QRoTHXzUqVn8hd0CWJLzgWxzYOe86" +
+      "aefSVCY8x2U2mwtt9sZ1Os4Zit0+mEccw+R/UxOk0wAGAAARAA==" },
+    { 4, 4, 100, 66L,
+      "FgATBBMEEjgMCEBDEFDBFGDBDFDFEgA=" },
+    { 18, 25, 200, 175L,
+      "FgATEhMZERXeAhiJBMH+udMKnIDx1AGAgKhZjeHx+wLmmBGS1gHopwmM7Ae26xqaCIbgG4LWD4CxRoLGM+77AdTyBN7DJbaj" +
+      "Aeb2NPzDE8CkFpiaJvSDDLr9VMq9CoD8Vv7fBNYM2PcczNED8KoUiHPgl2Hs5wK2nQLkujak8AGW5wHS4gekvwaOnEe4/Q2o" +
+      "iRPGgwHKkiGakh2wnReUlXC6qxKghCDOgwTMkhqg6gPYigLsvRme5CW6vjvglybEqybUxSC6NcCIRdSxAr7TCprFDKiBF+7+" +
+      "F4TgBJT/E9ahHM7uCe7LNqQSovIFgotJqvAMvMoJnLl03t0f7v4d+qgPzpwIqJxl5NEDhPMYqPEh6o0TlL4SxuYK3uAB3L0f" +
+      "5usC9qwGgNUBir8I2O8Qzv8ZlIIglIwFxuMLglDcaeDoFuiwRMb/A4buD76TO9isbrTEHP6jBKqgJYiKFYp1qNcdiNckws8F" +
+      "iPAOqvwL1Mog8EeA2DeoowiwzQHeCtoM5IIHgrsCru4JgjK+7xHuzgPExQOKhl6o/QTklAyAuA/60B6qlAaQhQW4qxzingay" +
+      "lD6q0A/mxQ7WpAbQswSUUZ6mJIL7NJCZDMi4rAGI8Dj0sgTOuyb+2gfw2Q2kwxPCsgHK7An4uz+ivhW2rz2ClBH0liHQ2Aas" +
+      "iQfmgAeK8AfY/BiSCqCHA8jdAsSXBLyXGu3D1IAHAA==" },
+  };
+
+  /**
+   * Mix 'x' into a 64 bits hash (splitmix64 finalizer)
+   */
+  static long hash(long x) {
+    x += 0x9E3779B97F4A7C15L;
+    x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+    x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+    return x ^ (x >>> 31);
+  }
+
+  /**
+   * Values used for the baseline sketches, one value in 4 is a duplicate
+   */
+  static long value(int i) {
+    return hash(0 == i % 4 ? i / 2 : i);
+  }
+
+  private static HyperLogLogPlus sequential(int p, int pprime, int n) throws Exception {
+    HyperLogLogPlus hllp = new HyperLogLogPlus(p, pprime);
+    for (int i = 0; i < n; i++) {
+      hllp.aggregate(value(i));
+    }
+    hllp.setInitTime(0L);
+    return hllp;
+  }
+
+  @Test
+  public void testBaselineSketches() throws Exception {
+    for (Object[] sketch: BASELINE) {
+      int p = (int) sketch[0];
+      int pprime = (int) sketch[1];
+      int n = (int) sketch[2];
+      long estimate = (long) sketch[3];
+      byte[] bytes = Base64.decodeBase64((String) sketch[4]);
+
+      String msg = "p=" + p + " p'=" + pprime + " n=" + n;
+
+      HyperLogLogPlus hllp = HyperLogLogPlus.fromBytes(bytes);
+
+      Assert.assertEquals(msg, p, hllp.getP());
+      Assert.assertEquals(msg, pprime, hllp.getPPrime());
+      Assert.assertEquals(msg, estimate, hllp.cardinality());
+
+      // Serializing again yields the same bytes
+      Assert.assertArrayEquals(msg, bytes, hllp.toBytes());
+
+      // Aggregating the same values yields the same sketch
+      HyperLogLogPlus fresh = sequential(p, pprime, n);
+      Assert.assertArrayEquals(msg, bytes, fresh.toBytes());
+      Assert.assertEquals(msg, estimate, fresh.cardinality());
+
+      // Values already accounted for are not new
+      for (int i = 0; i < n; i++) {
+        Assert.assertFalse(msg, hllp.isNew(value(i)));
+      }
+    }
+  }
+
+  @Test
+  public void testBaselineFuse() throws Exception {
+    // Fusing a baseline SPARSE sketch into a baseline NORMAL one with the same p
+    HyperLogLogPlus sparse = HyperLogLogPlus.fromBytes(Base64.decodeBase64((String) BASELINE[0][4]));
+    HyperLogLogPlus normal = HyperLogLogPlus.fromBytes(Base64.decodeBase64((String) BASELINE[2][4]));
+
+    normal.fuse(sparse);
+
+    // The values of the SPARSE sketch are a subset of those of the NORMAL one
+    Assert.assertEquals((long) BASELINE[2][3], normal.cardinality());
+  }
+
+  /**
+   * Run 'threads' threads calling 'task' with their number once they are all started
+   */
+  private static void run(int threads, final Task task) throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Throwable> errors = new ArrayList<Throwable>();
+
+    List<Thread> workers = new ArrayList<Thread>();
+
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      Thread worker = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            task.run(thread);
+          } catch (Throwable th) {
+            synchronized(errors) {
+              errors.add(th);
+            }
+          }
+        }
+      };
+      worker.start();
+      workers.add(worker);
+    }
+
+    start.countDown();
+
+    for (Thread worker: workers) {
+      worker.join();
+    }
+
+    if (!errors.isEmpty()) {
+      throw new AssertionError(errors.get(0));
+    }
+  }
+
+  private static interface Task {
+    public void run(int thread) throws Exception;
+  }
+
+  @Test
+  public void testConcurrentAggregate() throws Exception {
+    final int n = 200000;
+    final int threads = 8;
+
+    // Starting SPARSE so the switch to NORMAL happens while other threads aggregate, then NORMAL from the start
+    int[][] configs = new int[][] { { 14, 25 }, { 12, 12 } };
+
+    for (int[] config: configs) {
+      for (int round = 0; round < 5; round++) {
+        final HyperLogLogPlus shared = new HyperLogLogPlus(config[0], config[1]);
+
+        run(threads, new Task() {
+          @Override
+          public void run(int thread) throws Exception {
+            for (int i = thread; i < n; i += threads) {
+              shared.aggregate(value(i));
+            }
+          }
+        });
+
+        shared.setInitTime(0L);
+
+        HyperLogLogPlus expected = sequential(config[0], config[1], n);
+
+        Assert.assertArrayEquals(expected.toBytes(), shared.toBytes());
+        Assert.assertEquals(expected.cardinality(), shared.cardinality());
+      }
+    }
+  }
+
+  @Test
+  public void testConcurrentFuse() throws Exception {
+    final int n = 200000;
+    final int threads = 4;
+
+    final HyperLogLogPlus shared = new HyperLogLogPlus(14, 25);
+    shared.toNormal();
+
+    // Each thread aggregates into its own estimator, fuses it into the shared one and starts a new one
+    run(threads, new Task() {
+      @Override
+      public void run(int thread) throws Exception {
+        HyperLogLogPlus local = new HyperLogLogPlus(14, 25);
+        for (int i = thread; i < n; i += threads) {
+          local.aggregate(value(i));
+          if (0 == i % 10000) {
+            shared.fuse(local);
+            local = new HyperLogLogPlus(14, 25);
+          }
+        }
+        shared.fuse(local);
+      }
+    });
+
+    shared.setInitTime(0L);
+
+    HyperLogLogPlus expected = sequential(14, 25, n);
+
+    Assert.assertArrayEquals(expected.toBytes(), shared.toBytes());
+    Assert.assertEquals(expected.cardinality(), shared.cardinality());
+  }
+}
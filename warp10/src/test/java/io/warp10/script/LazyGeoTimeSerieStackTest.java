@@ -0,0 +1,145 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.continuum.gts.EncodedGeoTimeSerie;
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.LazyGeoTimeSerie;
+import io.warp10.continuum.store.thrift.data.Metadata;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LazyGeoTimeSerieStackTest {
+
+  private static LazyGeoTimeSerie lazy(int n) throws Exception {
+    Metadata metadata = new Metadata();
+    metadata.setName("lazy");
+    metadata.setLabels(new HashMap<String,String>());
+    metadata.setAttributes(new HashMap<String,String>());
+
+    GTSEncoder encoder = new GTSEncoder(0L);
+    for (int i = 0; i < n; i++) {
+      encoder.addValue(i, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, (long) i);
+    }
+
+    LazyGeoTimeSerie gts = new EncodedGeoTimeSerie(metadata, null);
+    gts.append(encoder);
+
+    return gts;
+  }
+
+  private static WarpScriptStack stack() {
+    WarpScriptStack stack = new MemoryWarpScriptStack(null, null, new Properties());
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_LAZY_SERIES, true);
+    return stack;
+  }
+
+  @Test
+  public void testLazyAwareFunctions() throws Exception {
+    WarpScriptStack stack = stack();
+
+    LazyGeoTimeSerie gts = lazy(10);
+    stack.push(gts);
+
+    stack.exec("DUP SWAP DROP SIZE");
+    Assert.assertEquals(1, stack.depth());
+    Assert.assertEquals(10L, stack.pop());
+
+    // Retrieving it from outside of a function decodes it
+    stack.push(gts);
+    Assert.assertTrue(stack.pop() instanceof GeoTimeSerie);
+  }
+
+  @Test
+  public void testMaterialization() throws Exception {
+    WarpScriptStack stack = stack();
+
+    List<Object> series = new ArrayList<Object>();
+    series.add(lazy(3));
+    stack.push(series);
+
+    // GET does not accept lazy GTS, the list content is decoded in place
+    stack.exec("DUP 0 GET");
+
+    Object gts = stack.pop();
+    Assert.assertTrue(gts instanceof GeoTimeSerie);
+    Assert.assertEquals(3, ((GeoTimeSerie) gts).size());
+    Assert.assertSame(gts, series.get(0));
+  }
+
+  @Test
+  public void testJSON() throws Exception {
+    WarpScriptStack stack = new MemoryWarpScriptStack(null, null, new Properties());
+    stack.push(lazy(2));
+
+    StringWriter sw = new StringWriter();
+    PrintWriter pw = new PrintWriter(sw);
+    StackUtils.toJSON(pw, stack);
+    pw.flush();
+
+    Assert.assertTrue(sw.toString(), sw.toString().startsWith("[{\"c\":\"lazy\""));
+  }
+
+  @Test
+  public void testJSONDecodeError() throws Exception {
+    Metadata metadata = new Metadata();
+    metadata.setName("broken");
+    metadata.setLabels(new HashMap<String,String>());
+
+    // A lazy GTS whose content can no longer be read, e.g. a spilled GTS whose file was deleted
+    LazyGeoTimeSerie broken = new LazyGeoTimeSerie(metadata, null) {
+      @Override
+      protected void store(GTSEncoder encoder) throws IOException {}
+
+      @Override
+      protected int chunks() {
+        return 1;
+      }
+
+      @Override
+      protected GTSDecoder decoder(int chunk) throws IOException {
+        throw new IOException("Unreadable.");
+      }
+    };
+
+    // Serialized directly or decoded when retrieved from the stack, the error is reported
+    for (WarpScriptStack stack: new WarpScriptStack[] { new MemoryWarpScriptStack(null, null, new Properties()), stack() }) {
+      List<Object> list = new ArrayList<Object>();
+      list.add(broken);
+      stack.push(list);
+
+      PrintWriter pw = new PrintWriter(new StringWriter());
+
+      try {
+        StackUtils.toJSON(pw, stack);
+        Assert.fail();
+      } catch (WarpScriptException wse) {
+      }
+    }
+  }
+}
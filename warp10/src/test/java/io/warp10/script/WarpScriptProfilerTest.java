@@ -0,0 +1,144 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WarpScriptProfilerTest {
+
+  private static WarpScriptStack stack() {
+    return new MemoryWarpScriptStack(null, null, new Properties());
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String,Object> profile(WarpScriptStack stack) throws Exception {
+    stack.exec("PROFILE");
+    return (Map<String,Object>) stack.pop();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static long stat(Map<String,Object> profile, String name, String key) {
+    Map<String,Object> stats = (Map<String,Object>) profile.get(name);
+    return null == stats ? 0L : ((Number) stats.get(key)).longValue();
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    WarpScriptStack stack = stack();
+
+    // No profile without PROFILING
+    stack.exec("1 2 + DROP NOPROFILING");
+    Assert.assertTrue(profile(stack).isEmpty());
+    Assert.assertNull(stack.getAttribute(WarpScriptStack.ATTRIBUTE_PROFILER));
+    Assert.assertEquals(0, stack.depth());
+  }
+
+  @Test
+  public void testProfiling() throws Exception {
+    WarpScriptStack stack = stack();
+
+    stack.exec("<% 1 + %> 'inc' STORE");
+    stack.exec("PROFILING 1 2 + @inc DROP");
+
+    Map<String,Object> profile = profile(stack);
+
+    Assert.assertEquals(2L, stat(profile, "+", WarpScriptProfiler.KEY_CALLS));
+    Assert.assertEquals(1L, stat(profile, "@inc", WarpScriptProfiler.KEY_CALLS));
+    Assert.assertEquals(1L, stat(profile, "DROP", WarpScriptProfiler.KEY_CALLS));
+    // The definition of the macro was not profiled
+    Assert.assertEquals(0L, stat(profile, "STORE", WarpScriptProfiler.KEY_CALLS));
+
+    // Calls to macros are timed
+    Assert.assertTrue(stat(profile, "@inc", WarpScriptProfiler.KEY_TIME) > 0L);
+    Assert.assertEquals(0, stack.depth());
+  }
+
+  @Test
+  public void testNesting() throws Exception {
+    WarpScriptStack stack = stack();
+
+    stack.exec("<% 1 + %> 'inner' STORE <% @inner @inner %> 'outer' STORE");
+    stack.exec("PROFILING 0 @outer @outer DROP");
+
+    Map<String,Object> profile = profile(stack);
+
+    Assert.assertEquals(2L, stat(profile, "@outer", WarpScriptProfiler.KEY_CALLS));
+    Assert.assertEquals(4L, stat(profile, "@inner", WarpScriptProfiler.KEY_CALLS));
+    Assert.assertEquals(4L, stat(profile, "+", WarpScriptProfiler.KEY_CALLS));
+
+    Assert.assertTrue(stat(profile, "@outer", WarpScriptProfiler.KEY_TIME) >= stat(profile, "@inner", WarpScriptProfiler.KEY_TIME));
+    Assert.assertTrue(stat(profile, "@inner", WarpScriptProfiler.KEY_TIME) >= stat(profile, "+", WarpScriptProfiler.KEY_TIME));
+  }
+
+  @Test
+  public void testNoProfiling() throws Exception {
+    WarpScriptStack stack = stack();
+
+    stack.exec("PROFILING 1 1 + NOPROFILING 1 + 1 + PROFILING 1 + DROP");
+
+    Map<String,Object> profile = profile(stack);
+
+    // Calls made while suspended are not recorded, the profile is resumed
+    Assert.assertEquals(2L, stat(profile, "+", WarpScriptProfiler.KEY_CALLS));
+    Assert.assertEquals(1L, stat(profile, "DROP", WarpScriptProfiler.KEY_CALLS));
+
+    // PROFILE does not reset the profile
+    Assert.assertEquals(2L, stat(profile(stack), "+", WarpScriptProfiler.KEY_CALLS));
+  }
+
+  @Test
+  public void testExport() throws Exception {
+    Assert.assertEquals("+", WarpScriptProfiler.getExportName("+"));
+    Assert.assertEquals("FETCH", WarpScriptProfiler.getExportName("FETCH"));
+    Assert.assertEquals(WarpScriptProfiler.EXPORT_MACROS, WarpScriptProfiler.getExportName("@my/macro"));
+    Assert.assertEquals(WarpScriptProfiler.EXPORT_UDFS, WarpScriptProfiler.getExportName("UDF com.example.Function"));
+    Assert.assertEquals(WarpScriptProfiler.EXPORT_OTHERS, WarpScriptProfiler.getExportName("com.example.Function"));
+
+    WarpScriptProfiler profiler = new WarpScriptProfiler();
+
+    profiler.record("+", 10L, 1L);
+    profiler.record("+", 10L, 1L);
+    profiler.record("@a", 100L, 10L);
+    profiler.record("@b", 200L, 20L);
+    profiler.record("UDF com.example.A", 1000L, 100L);
+    profiler.record("UDF com.example.B", 2000L, 200L);
+    profiler.record("com.example.Function", 5L, 0L);
+
+    Map<String,Object> exported = profiler.toExportMap();
+
+    Assert.assertEquals(4, exported.size());
+
+    Assert.assertEquals(2L, stat(exported, "+", WarpScriptProfiler.KEY_CALLS));
+    Assert.assertEquals(20L, stat(exported, "+", WarpScriptProfiler.KEY_TIME));
+
+    Assert.assertEquals(2L, stat(exported, WarpScriptProfiler.EXPORT_MACROS, WarpScriptProfiler.KEY_CALLS));
+    Assert.assertEquals(300L, stat(exported, WarpScriptProfiler.EXPORT_MACROS, WarpScriptProfiler.KEY_TIME));
+    Assert.assertEquals(30L, stat(exported, WarpScriptProfiler.EXPORT_MACROS, WarpScriptProfiler.KEY_ALLOCATED));
+
+    Assert.assertEquals(2L, stat(exported, WarpScriptProfiler.EXPORT_UDFS, WarpScriptProfiler.KEY_CALLS));
+    Assert.assertEquals(3000L, stat(exported, WarpScriptProfiler.EXPORT_UDFS, WarpScriptProfiler.KEY_TIME));
+
+    Assert.assertEquals(1L, stat(exported, WarpScriptProfiler.EXPORT_OTHERS, WarpScriptProfiler.KEY_CALLS));
+
+    // The profile returned by PROFILE keeps the detail
+    Assert.assertEquals(6, profiler.toMap().size());
+  }
+}
@@ -0,0 +1,68 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.aggregator;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Not part of the default test run, use 'gradle warp10:benchmark'
+ */
+public class PercentileBenchmark {
+
+  @Test
+  public void testAllocations_perf() throws Exception {
+    com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    int n = 1000;
+    int buckets = 10000;
+
+    Random prng = new Random(2L);
+    long[] ticks = new long[n];
+    Object[] values = new Object[n];
+
+    for (int i = 0; i < n; i++) {
+      ticks[i] = i;
+      values[i] = prng.nextGaussian();
+    }
+
+    Percentile percentile = new Percentile("p", 95.0D, false);
+    Median median = new Median("median");
+
+    Object[] args = PercentileTest.args(ticks, values);
+
+    for (int i = 0; i < buckets; i++) {
+      percentile.apply(args);
+      median.apply(args);
+    }
+
+    long nano = System.nanoTime();
+    long bytes = bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+
+    for (int i = 0; i < buckets; i++) {
+      percentile.apply(args);
+      median.apply(args);
+    }
+
+    bytes = bean.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytes;
+    nano = System.nanoTime() - nano;
+
+    System.out.println("percentile+median " + buckets + " buckets of " + n + " values: " + (nano / 1000000.0D) + " ms, " + (bytes / buckets) + " bytes allocated per bucket");
+  }
+}
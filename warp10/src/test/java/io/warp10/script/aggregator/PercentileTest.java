@@ -0,0 +1,96 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.aggregator;
+
+import io.warp10.continuum.gts.GeoTimeSerie;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PercentileTest {
+
+  static Object[] args(long[] ticks, Object[] values) {
+    long[] locations = new long[ticks.length];
+    long[] elevations = new long[ticks.length];
+    Arrays.fill(locations, GeoTimeSerie.NO_LOCATION);
+    Arrays.fill(elevations, GeoTimeSerie.NO_ELEVATION);
+    return new Object[] { 0L, 0L, null, ticks, locations, elevations, values };
+  }
+
+  @Test
+  public void testPercentile() throws Exception {
+    Random prng = new Random(0L);
+
+    for (int n = 1; n < 200; n++) {
+      long[] ticks = new long[n];
+      Object[] values = new Object[n];
+      double[] sorted = new double[n];
+
+      for (int i = 0; i < n; i++) {
+        ticks[i] = i;
+        values[i] = (double) prng.nextInt(n);
+        sorted[i] = (double) values[i];
+      }
+
+      Arrays.sort(sorted);
+
+      for (double p: new double[] { 0.0D, 10.0D, 50.0D, 90.0D, 100.0D }) {
+        int rank = Math.min(n - 1, (int) Math.round(0.5 + p * n / 100.0) - 1);
+        Object[] result = (Object[]) new Percentile("p", p, false).apply(args(ticks, values.clone()));
+        Assert.assertEquals(sorted[rank], (double) result[3], 0.0D);
+        // Equal values are ranked by tick, as a stable sort would
+        int occurrence = rank;
+        while (occurrence > 0 && sorted[occurrence - 1] == sorted[rank]) {
+          occurrence--;
+        }
+        occurrence = rank - occurrence;
+        for (int i = 0; i < n; i++) {
+          if (sorted[rank] == (double) values[i] && 0 == occurrence--) {
+            Assert.assertEquals((long) i, (long) result[0]);
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testMedian() throws Exception {
+    Random prng = new Random(1L);
+
+    for (int n = 1; n < 200; n++) {
+      long[] ticks = new long[n];
+      Object[] values = new Object[n];
+      long[] sorted = new long[n];
+
+      for (int i = 0; i < n; i++) {
+        ticks[i] = i;
+        values[i] = (long) prng.nextInt(1000);
+        sorted[i] = (long) values[i];
+      }
+
+      Arrays.sort(sorted);
+
+      long expected = 0 == n % 2 ? (sorted[n / 2] + sorted[n / 2 - 1]) / 2L : sorted[n / 2];
+      Object[] result = (Object[]) new Median("median").apply(args(ticks, values));
+      Assert.assertEquals(expected, (long) result[3]);
+    }
+  }
+}
@@ -0,0 +1,108 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.functions;
+
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.RollupStoreClient;
+import io.warp10.continuum.store.StoreClient;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.quasar.token.thrift.data.ReadToken;
+import io.warp10.quasar.token.thrift.data.WriteToken;
+import io.warp10.script.aggregator.Mean;
+import io.warp10.script.aggregator.Min;
+import io.warp10.script.aggregator.Sum;
+import io.warp10.standalone.StandalonePlasmaHandlerInterface;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FETCHTest {
+
+  /**
+   * Store maintaining 'min' rollups for a bucket span of 10
+   */
+  private static class RollupStore implements StoreClient, RollupStoreClient {
+    @Override
+    public boolean hasRollup(long bucketspan, String aggregator) {
+      return 10L == bucketspan && "min".equals(aggregator);
+    }
+
+    @Override
+    public GTSDecoderIterator fetchRollup(ReadToken token, List<Metadata> metadatas, long lastbucket, int bucketcount, long bucketspan, String aggregator) throws IOException {
+      throw new IOException("Unsupported.");
+    }
+
+    @Override
+    public void store(GTSEncoder encoder) throws IOException {}
+
+    @Override
+    public void archive(int chunk, GTSEncoder encoder) throws IOException {}
+
+    @Override
+    public long delete(WriteToken token, Metadata metadata, long start, long end) throws IOException {
+      return 0L;
+    }
+
+    @Override
+    public GTSDecoderIterator fetch(ReadToken token, List<Metadata> metadatas, long now, long timespan, boolean fromArchive, boolean writeTimestamp) throws IOException {
+      throw new IOException("Unsupported.");
+    }
+
+    @Override
+    public void addPlasmaHandler(StandalonePlasmaHandlerInterface handler) {}
+  }
+
+  @Test
+  public void testRollupPlanner() {
+    StoreClient store = new RollupStore();
+    Min min = new Min("bucketizer.min", true);
+
+    // Aligned buckets of a maintained span and aggregator
+    Assert.assertEquals("min", FETCH.rollup(store, min, 10L, 1000L, 100L));
+    Assert.assertEquals("min", FETCH.rollup(store, min, 10L, -1000L, 10L));
+
+    // Span which is not maintained
+    Assert.assertNull(FETCH.rollup(store, min, 20L, 1000L, 100L));
+
+    // Last bucket or timespan not aligned on the span
+    Assert.assertNull(FETCH.rollup(store, min, 10L, 1005L, 100L));
+    Assert.assertNull(FETCH.rollup(store, min, 10L, 1000L, 105L));
+
+    // Aggregator which is not maintained or has no rollup equivalent
+    Assert.assertNull(FETCH.rollup(store, new Sum("bucketizer.sum", true), 10L, 1000L, 100L));
+    Assert.assertNull(FETCH.rollup(store, new Mean("bucketizer.mean", false), 10L, 1000L, 100L));
+
+    // Same aggregator registered under another name, e.g. a variant with different null handling
+    Assert.assertNull(FETCH.rollup(store, new Min("bucketizer.min.forbid-nulls", false), 10L, 1000L, 100L));
+  }
+
+  @Test
+  public void testRollupPlanner_noRollups() throws Exception {
+    StoreClient store = new RollupStore() {
+      @Override
+      public boolean hasRollup(long bucketspan, String aggregator) {
+        return false;
+      }
+    };
+
+    Assert.assertNull(FETCH.rollup(store, new Min("bucketizer.min", true), 10L, 1000L, 100L));
+  }
+}
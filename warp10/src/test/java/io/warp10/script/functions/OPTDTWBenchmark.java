@@ -0,0 +1,63 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.functions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Not part of the default test run, use 'gradle warp10:benchmark'
+ */
+public class OPTDTWBenchmark {
+
+  @Test
+  public void testSearch_perf() throws Exception {
+    Random prng = new Random(42L);
+    Random walk = new Random(42L);
+
+    double[] sequence = new double[1000000];
+    double value = 0.0D;
+    for (int i = 0; i < sequence.length; i++) {
+      value += walk.nextGaussian();
+      sequence[i] = value;
+    }
+
+    int start = 500000;
+
+    double[] query = Arrays.copyOfRange(sequence, start, start + 64);
+    for (int i = 0; i < query.length; i++) {
+      query[i] += prng.nextGaussian() * 0.1D;
+    }
+
+    for (OPTDTW optdtw: new OPTDTW[] { new OPTDTW("OPTDTW"), new OPTDTW("ZOPTDTW", true) }) {
+      List<Integer> bestmatches = new ArrayList<Integer>();
+
+      long nano = System.nanoTime();
+      double mindist = optdtw.search(sequence, query, bestmatches);
+      nano = System.nanoTime() - nano;
+
+      System.out.println(optdtw.getName() + " over " + sequence.length + " values: " + (nano / 1000000.0D) + " ms, distance " + mindist + " at " + bestmatches);
+
+      Assert.assertEquals(Arrays.asList(start), bestmatches);
+    }
+  }
+}
@@ -0,0 +1,180 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.functions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OPTDTWTest {
+
+  private static double[] randomWalk(int n, long seed) {
+    Random prng = new Random(seed);
+
+    double[] values = new double[n];
+    double value = 0.0D;
+
+    for (int i = 0; i < n; i++) {
+      value += prng.nextGaussian();
+      values[i] = value;
+    }
+
+    return values;
+  }
+
+  @Test
+  public void testSearch() throws Exception {
+    DTW dtw = new DTW("");
+    OPTDTW optdtw = new OPTDTW("OPTDTW");
+
+    Random prng = new Random(0L);
+
+    for (int iter = 0; iter < 100; iter++) {
+      double[] sequence = randomWalk(100 + prng.nextInt(1000), iter);
+      int len = 1 + prng.nextInt(20);
+      int start = prng.nextInt(sequence.length - len);
+
+      double[] query = Arrays.copyOfRange(sequence, start, start + len);
+      for (int i = 0; i < len; i++) {
+        query[i] += prng.nextGaussian() * 0.1D;
+      }
+
+      //
+      // Compute the expected result by running DTW on every subsequence
+      //
+
+      double expected = Double.POSITIVE_INFINITY;
+      List<Integer> expectedmatches = new ArrayList<Integer>();
+
+      for (int i = 0; i <= sequence.length - len; i++) {
+        double dist = dtw.compute(query, 0, len, sequence, i, len, 0.0D);
+        if (dist < expected) {
+          expected = dist;
+          expectedmatches.clear();
+        }
+        if (dist == expected) {
+          expectedmatches.add(i);
+        }
+      }
+
+      List<Integer> bestmatches = new ArrayList<Integer>();
+      double mindist = optdtw.search(sequence, query, bestmatches);
+
+      Assert.assertEquals(expected, mindist, 0.0D);
+      Assert.assertEquals(expectedmatches, bestmatches);
+    }
+  }
+
+  /**
+   * z-normalize values the way OPTDTW does, using the standard deviation with
+   * Bessel's correction or 1.0 if it is 0
+   */
+  private static double[] znormalize(double[] values, int from, int len) {
+    double sum = 0.0D;
+    double sumsq = 0.0D;
+
+    for (int i = from; i < from + len; i++) {
+      sum += values[i];
+      sumsq += values[i] * values[i];
+    }
+
+    double mean = sum / len;
+    double variance = (sumsq / len) - (sum * sum) / ((double) len * (double) len);
+
+    if (len > 1) {
+      variance = variance * len / (len - 1.0D);
+    }
+
+    double sd = variance <= 0.0D ? 1.0D : Math.sqrt(variance);
+
+    double[] normalized = new double[len];
+
+    for (int i = 0; i < len; i++) {
+      normalized[i] = (values[from + i] - mean) / sd;
+    }
+
+    return normalized;
+  }
+
+  @Test
+  public void testSearch_normalized() throws Exception {
+    DTW dtw = new DTW("");
+    OPTDTW optdtw = new OPTDTW("ZOPTDTW", true);
+
+    Random prng = new Random(0L);
+
+    for (int iter = 0; iter < 500; iter++) {
+      double[] sequence = randomWalk(10 + prng.nextInt(100), iter);
+
+      // Add flat segments so the null standard deviation case is covered
+      if (0 == iter % 5) {
+        int from = prng.nextInt(sequence.length / 2);
+        for (int i = from; i < from + sequence.length / 4; i++) {
+          sequence[i] = sequence[from];
+        }
+      }
+
+      int len = 1 + prng.nextInt(Math.min(20, sequence.length - 1));
+      int start = prng.nextInt(sequence.length - len + 1);
+
+      double[] query = Arrays.copyOfRange(sequence, start, start + len);
+      for (int i = 0; i < len; i++) {
+        query[i] = query[i] * 3.0D + 10.0D + prng.nextGaussian() * 0.1D;
+      }
+
+      double[] znquery = znormalize(query, 0, len);
+
+      //
+      // Compute the distance of every subsequence
+      //
+
+      double[] distances = new double[sequence.length - len + 1];
+      double expected = Double.POSITIVE_INFINITY;
+
+      for (int i = 0; i < distances.length; i++) {
+        distances[i] = dtw.compute(znquery, 0, len, znormalize(sequence, i, len), 0, len, 0.0D);
+        expected = Math.min(expected, distances[i]);
+      }
+
+      List<Integer> bestmatches = new ArrayList<Integer>();
+      double mindist = optdtw.search(sequence, query, bestmatches);
+
+      //
+      // Subsequences are normalized using incrementally maintained sums, so distances
+      // may differ from the reference in their last bits
+      //
+
+      double tolerance = 1e-9D * Math.max(1.0D, expected);
+
+      Assert.assertEquals(expected, mindist, tolerance);
+      Assert.assertFalse(bestmatches.isEmpty());
+
+      for (int i = 0; i < distances.length; i++) {
+        if (distances[i] > expected + tolerance) {
+          Assert.assertFalse("offset " + i, bestmatches.contains(i));
+        }
+      }
+      for (int i: bestmatches) {
+        Assert.assertEquals(expected, distances[i], tolerance);
+      }
+    }
+  }
+}
@@ -0,0 +1,149 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.functions;
+
+import io.warp10.script.MemoryWarpScriptStack;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+import java.io.Reader;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SCRIPTENGINETest {
+
+  /**
+   * Engine with interpreter level state which survives across evaluations,
+   * as modules or globals do in real interpreters. 'set' stores a value,
+   * 'get' returns it, 'fail' throws.
+   */
+  private static class StatefulEngine extends AbstractScriptEngine {
+    private String state = null;
+
+    @Override
+    public Object eval(String script, ScriptContext context) throws ScriptException {
+      if ("fail".equals(script)) {
+        throw new ScriptException("failure");
+      } else if (script.startsWith("set ")) {
+        this.state = script.substring(4);
+        return null;
+      } else {
+        return this.state;
+      }
+    }
+
+    @Override
+    public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+      throw new ScriptException("Unsupported.");
+    }
+
+    @Override
+    public Bindings createBindings() {
+      return new SimpleBindings();
+    }
+
+    @Override
+    public ScriptEngineFactory getFactory() {
+      return null;
+    }
+  }
+
+  private static class TestEngine extends SCRIPTENGINE {
+    private final AtomicInteger created = new AtomicInteger(0);
+
+    private TestEngine() {
+      super("TEST", "test");
+    }
+
+    @Override
+    protected ScriptEngine getEngine() {
+      created.incrementAndGet();
+      return new StatefulEngine();
+    }
+  }
+
+  private static Object run(SCRIPTENGINE function, WarpScriptStack stack, String script) throws WarpScriptException {
+    stack.push(script);
+    function.apply(stack);
+    return stack.pop();
+  }
+
+  @Test
+  public void testIsolation() throws Exception {
+    TestEngine function = new TestEngine();
+
+    WarpScriptStack first = new MemoryWarpScriptStack(null, null, new Properties());
+    WarpScriptStack second = new MemoryWarpScriptStack(null, null, new Properties());
+
+    run(function, first, "set secret");
+
+    // The engine is reused within the execution
+    Assert.assertEquals("secret", run(function, first, "get"));
+    Assert.assertEquals(1, function.created.get());
+
+    // but never seen by another execution
+    Assert.assertNull(run(function, second, "get"));
+    Assert.assertEquals(2, function.created.get());
+
+    // not even once the first execution is done with it
+    Assert.assertNull(run(function, new MemoryWarpScriptStack(null, null, new Properties()), "get"));
+    Assert.assertEquals(3, function.created.get());
+  }
+
+  @Test
+  public void testFailedEngineIsDiscarded() throws Exception {
+    TestEngine function = new TestEngine();
+
+    WarpScriptStack stack = new MemoryWarpScriptStack(null, null, new Properties());
+
+    run(function, stack, "set value");
+
+    try {
+      run(function, stack, "fail");
+      Assert.fail("Expected the script to fail.");
+    } catch (WarpScriptException wse) {
+      // Expected
+    }
+
+    Assert.assertNull(run(function, stack, "get"));
+    Assert.assertEquals(2, function.created.get());
+  }
+
+  @Test
+  public void testFunctionsDoNotShareEngines() throws Exception {
+    TestEngine f1 = new TestEngine();
+    TestEngine f2 = new TestEngine();
+
+    WarpScriptStack stack = new MemoryWarpScriptStack(null, null, new Properties());
+
+    run(f1, stack, "set f1");
+
+    Assert.assertNull(run(f2, stack, "get"));
+    Assert.assertEquals("f1", run(f1, stack, "get"));
+  }
+}
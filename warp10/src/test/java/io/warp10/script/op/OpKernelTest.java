@@ -0,0 +1,137 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.op;
+
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptNAryFunction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Check that the primitive kernels of the ops produce the same results as their per tick implementation
+ */
+public class OpKernelTest {
+
+  private static final double[] DOUBLES = { 0.0D, -0.0D, 1.5D, 2.0D, Double.NaN };
+
+  private static GeoTimeSerie generate(Random prng, TYPE type, int n) {
+    GeoTimeSerie gts = new GeoTimeSerie(n);
+
+    for (int i = 0; i < n; i++) {
+      // Leave gaps so the series are not aligned
+      if (0 == prng.nextInt(3)) {
+        continue;
+      }
+
+      Object value;
+
+      if (TYPE.LONG == type) {
+        value = (long) prng.nextInt(4);
+      } else if (TYPE.DOUBLE == type) {
+        value = DOUBLES[prng.nextInt(DOUBLES.length)];
+      } else {
+        value = prng.nextBoolean();
+      }
+
+      GTSHelper.setValue(gts, i, value);
+    }
+
+    return gts;
+  }
+
+  private static GeoTimeSerie apply(final WarpScriptNAryFunction function, boolean kernel, List<GeoTimeSerie> series) throws WarpScriptException {
+    WarpScriptNAryFunction f = function;
+
+    if (!kernel) {
+      // Hide the kernel so the function is called for each tick
+      f = new WarpScriptNAryFunction() {
+        @Override
+        public Object apply(Object[] args) throws WarpScriptException {
+          return function.apply(args);
+        }
+      };
+    }
+
+    List<GeoTimeSerie>[] subseries = new List[series.size()];
+
+    for (int i = 0; i < series.size(); i++) {
+      subseries[i] = new ArrayList<GeoTimeSerie>();
+      subseries[i].add(series.get(i).clone());
+    }
+
+    return GTSHelper.applyNAryFunction(f, new HashMap<String,String>(), subseries);
+  }
+
+  private static void check(WarpScriptNAryFunction function, TYPE type, int nseries, long seed) throws WarpScriptException {
+    Random prng = new Random(seed);
+
+    List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();
+
+    for (int i = 0; i < nseries; i++) {
+      series.add(generate(prng, type, 1000));
+    }
+
+    GeoTimeSerie expected = apply(function, false, series);
+    GeoTimeSerie actual = apply(function, true, series);
+
+    String msg = function.toString() + " " + type + " x" + nseries;
+
+    Assert.assertEquals(msg, expected.size(), actual.size());
+    Assert.assertEquals(msg, expected.getType(), actual.getType());
+
+    for (int i = 0; i < expected.size(); i++) {
+      Assert.assertEquals(msg, GTSHelper.tickAtIndex(expected, i), GTSHelper.tickAtIndex(actual, i));
+      Assert.assertEquals(msg, GTSHelper.valueAtIndex(expected, i), GTSHelper.valueAtIndex(actual, i));
+    }
+  }
+
+  @Test
+  public void testKernels() throws Exception {
+    WarpScriptNAryFunction[] numeric = new WarpScriptNAryFunction[] {
+      new OpAdd("op.add", true), new OpAdd("op.add.ignore-nulls", false),
+      new OpMul("op.mul", true), new OpMul("op.mul.ignore-nulls", false),
+      new OpSub("op.sub"), new OpDiv("op.div"),
+      new OpEQ("op.eq"), new OpNE("op.ne"),
+      new OpLT("op.lt"), new OpLE("op.le"), new OpGT("op.gt"), new OpGE("op.ge"),
+    };
+
+    WarpScriptNAryFunction[] logical = new WarpScriptNAryFunction[] {
+      new OpAND("op.and", true), new OpAND("op.and.ignore-nulls", false),
+      new OpOR("op.or", true), new OpOR("op.or.ignore-nulls", false),
+      new OpEQ("op.eq"), new OpNE("op.ne"),
+    };
+
+    for (int n = 1; n <= 4; n++) {
+      for (WarpScriptNAryFunction function: numeric) {
+        check(function, TYPE.LONG, n, n);
+        check(function, TYPE.DOUBLE, n, n);
+      }
+      for (WarpScriptNAryFunction function: logical) {
+        check(function, TYPE.BOOLEAN, n, n);
+      }
+    }
+  }
+}
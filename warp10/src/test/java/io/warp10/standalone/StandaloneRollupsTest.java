@@ -0,0 +1,365 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.Store;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.crypto.KeyStore;
+import io.warp10.crypto.UnsecureKeyStore;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.DBIterator;
+import org.iq80.leveldb.Options;
+import org.iq80.leveldb.impl.Iq80DBFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StandaloneRollupsTest {
+
+  private static final long CLASSID = 42L;
+  private static final long LABELSID = 43L;
+
+  private static final long[] SPANS = { 10L, 100L };
+  private static final String[] AGGREGATORS = { "min", "max", "sum", "count", "last" };
+
+  private File dir;
+  private DB db;
+  private KeyStore keystore;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = Files.createTempDirectory("rollups").toFile();
+    db = Iq80DBFactory.factory.open(dir, new Options().createIfMissing(true));
+    keystore = new UnsecureKeyStore();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    db.close();
+    Iq80DBFactory.factory.destroy(dir, new Options());
+  }
+
+  private StandaloneRollups rollups() throws Exception {
+    StandaloneRollups rollups = new StandaloneRollups(db, keystore, null, "10,100", null);
+    rollups.join(10000L);
+    Assert.assertTrue(rollups.isReady());
+    return rollups;
+  }
+
+  private static byte[] rawkey(long tick) {
+    ByteBuffer bb = ByteBuffer.wrap(new byte[Store.HBASE_RAW_DATA_KEY_PREFIX.length + 8 + 8 + 8]).order(ByteOrder.BIG_ENDIAN);
+    bb.put(Store.HBASE_RAW_DATA_KEY_PREFIX);
+    bb.putLong(CLASSID);
+    bb.putLong(LABELSID);
+    bb.putLong(Long.MAX_VALUE - tick);
+    return bb.array();
+  }
+
+  /**
+   * Store datapoints as StandaloneStoreClient does
+   */
+  private static void store(StandaloneRollups rollups, long[] ticks, long[] values) throws Exception {
+    GTSEncoder encoder = new GTSEncoder(0L);
+    encoder.setClassId(CLASSID);
+    encoder.setLabelsId(LABELSID);
+
+    List<byte[][]> kvs = new ArrayList<byte[][]>();
+
+    for (int i = 0; i < ticks.length; i++) {
+      encoder.addValue(ticks[i], GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, values[i]);
+
+      GTSEncoder enc = new GTSEncoder(ticks[i]);
+      enc.addValue(ticks[i], GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, values[i]);
+      kvs.add(new byte[][] { rawkey(ticks[i]), enc.getBytes() });
+    }
+
+    rollups.store(encoder, kvs);
+  }
+
+  /**
+   * Aggregate the raw data of the GTS, which is the reference the rollups must match
+   */
+  private Map<Long,Long> expected(long span, String aggregator) throws Exception {
+    Map<Long,Long> buckets = new HashMap<Long,Long>();
+    Map<Long,Long> lastticks = new HashMap<Long,Long>();
+
+    DBIterator iterator = db.iterator();
+    iterator.seek(rawkey(Long.MAX_VALUE));
+
+    while(iterator.hasNext()) {
+      Entry<byte[],byte[]> kv = iterator.next();
+
+      if (kv.getKey()[0] != Store.HBASE_RAW_DATA_KEY_PREFIX[0]) {
+        break;
+      }
+
+      long tick = Long.MAX_VALUE - ByteBuffer.wrap(kv.getKey()).getLong(Store.HBASE_RAW_DATA_KEY_PREFIX.length + 16);
+      GTSDecoder decoder = new GTSDecoder(tick, ByteBuffer.wrap(kv.getValue()));
+      decoder.next();
+      long value = ((Number) decoder.getValue()).longValue();
+
+      long bucketend = StandaloneRollups.bucketend(tick, span);
+      Long current = buckets.get(bucketend);
+
+      if ("min".equals(aggregator)) {
+        buckets.put(bucketend, null == current ? value : Math.min(current, value));
+      } else if ("max".equals(aggregator)) {
+        buckets.put(bucketend, null == current ? value : Math.max(current, value));
+      } else if ("sum".equals(aggregator)) {
+        buckets.put(bucketend, null == current ? value : current + value);
+      } else if ("count".equals(aggregator)) {
+        buckets.put(bucketend, null == current ? 1L : current + 1L);
+      } else if (null == lastticks.get(bucketend) || tick > lastticks.get(bucketend)) {
+        buckets.put(bucketend, value);
+        lastticks.put(bucketend, tick);
+      }
+    }
+
+    iterator.close();
+
+    return buckets;
+  }
+
+  private static Map<Long,Long> fetch(StandaloneRollups rollups, long span, String aggregator) throws Exception {
+    Metadata metadata = new Metadata();
+    metadata.setClassId(CLASSID);
+    metadata.setLabelsId(LABELSID);
+
+    Map<Long,Long> buckets = new HashMap<Long,Long>();
+
+    GTSDecoderIterator iter = rollups.fetch(Arrays.asList(metadata), 100000L, (int) (200000L / span), span, aggregator);
+
+    while(iter.hasNext()) {
+      GTSDecoder decoder = iter.next();
+      while(decoder.next()) {
+        buckets.put(decoder.getTimestamp(), ((Number) decoder.getValue()).longValue());
+      }
+    }
+
+    iter.close();
+
+    return buckets;
+  }
+
+  private void check(StandaloneRollups rollups) throws Exception {
+    for (long span: SPANS) {
+      for (String aggregator: AGGREGATORS) {
+        Assert.assertEquals(span + " " + aggregator, expected(span, aggregator), fetch(rollups, span, aggregator));
+      }
+    }
+  }
+
+  @Test
+  public void testStore() throws Exception {
+    StandaloneRollups rollups = rollups();
+
+    Random prng = new Random(0L);
+
+    for (int i = 0; i < 200; i++) {
+      int n = 1 + prng.nextInt(20);
+      long[] ticks = new long[n];
+      long[] values = new long[n];
+
+      for (int j = 0; j < n; j++) {
+        // Narrow range of ticks so existing ticks and ticks repeated within an encoder are rewritten
+        ticks[j] = prng.nextInt(1000) - 500;
+        values[j] = prng.nextInt(2000) - 1000;
+      }
+
+      store(rollups, ticks, values);
+    }
+
+    check(rollups);
+  }
+
+  @Test
+  public void testOverwrite() throws Exception {
+    StandaloneRollups rollups = rollups();
+
+    store(rollups, new long[] { 1L, 2L }, new long[] { 10L, 5L });
+    store(rollups, new long[] { 1L }, new long[] { 3L });
+    store(rollups, new long[] { 2L, 2L }, new long[] { 7L, 8L });
+
+    // Ticks 1 and 2 hold 3 and 8
+    Assert.assertEquals(Long.valueOf(11L), fetch(rollups, 10L, "sum").get(10L));
+    Assert.assertEquals(Long.valueOf(2L), fetch(rollups, 10L, "count").get(10L));
+    Assert.assertEquals(Long.valueOf(3L), fetch(rollups, 10L, "min").get(10L));
+    Assert.assertEquals(Long.valueOf(8L), fetch(rollups, 10L, "max").get(10L));
+    Assert.assertEquals(Long.valueOf(8L), fetch(rollups, 10L, "last").get(10L));
+
+    check(rollups);
+  }
+
+  /**
+   * @return a DB delegating to 'db' which counts the lookups of raw data keys in 'lookups'
+   */
+  private static DB counting(final DB db, final AtomicInteger lookups) {
+    return (DB) Proxy.newProxyInstance(DB.class.getClassLoader(), new Class[] { DB.class }, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if ("get".equals(method.getName()) && ((byte[]) args[0])[0] == Store.HBASE_RAW_DATA_KEY_PREFIX[0]) {
+          lookups.incrementAndGet();
+        }
+        try {
+          return method.invoke(db, args);
+        } catch (InvocationTargetException ite) {
+          throw ite.getCause();
+        }
+      }
+    });
+  }
+
+  @Test
+  public void testLastTick() throws Exception {
+    AtomicInteger lookups = new AtomicInteger();
+
+    StandaloneRollups rollups = new StandaloneRollups(counting(db, lookups), keystore, null, "10,100", null);
+    rollups.join(10000L);
+
+    // Appending after the latest stored tick does not look up the raw data
+    store(rollups, new long[] { 100L, 105L, 110L }, new long[] { 1L, 2L, 3L });
+    store(rollups, new long[] { 111L, 150L }, new long[] { 4L, 5L });
+    Assert.assertEquals(0, lookups.get());
+
+    // Ticks at or before the latest one are looked up and overwrites are detected
+    store(rollups, new long[] { 150L, 120L, 200L }, new long[] { 6L, 7L, 8L });
+    Assert.assertEquals(2, lookups.get());
+    Assert.assertEquals(Long.valueOf(6L), fetch(rollups, 10L, "last").get(150L));
+    Assert.assertEquals(Long.valueOf(6L), fetch(rollups, 100L, "count").get(200L));
+
+    check(rollups);
+
+    //
+    // The latest tick of GTS not tracked yet is read from the raw data
+    //
+
+    lookups.set(0);
+    rollups = new StandaloneRollups(counting(db, lookups), keystore, null, "10,100", null);
+
+    store(rollups, new long[] { 105L, 201L }, new long[] { 9L, 10L });
+    Assert.assertEquals(1, lookups.get());
+    Assert.assertEquals(Long.valueOf(2L), fetch(rollups, 10L, "count").get(110L));
+    Assert.assertEquals(Long.valueOf(12L), fetch(rollups, 10L, "sum").get(110L));
+
+    // Removing the latest raw data leaves an upper bound, older ticks are still looked up
+    db.delete(rawkey(201L));
+    db.delete(rawkey(200L));
+    rollups.rebuild(CLASSID, LABELSID, 200L, 201L);
+
+    store(rollups, new long[] { 150L }, new long[] { 11L });
+    Assert.assertEquals(2, lookups.get());
+
+    check(rollups);
+  }
+
+  @Test
+  public void testRebuild() throws Exception {
+    StandaloneRollups rollups = rollups();
+
+    Random prng = new Random(1L);
+
+    long[] ticks = new long[500];
+    long[] values = new long[500];
+    for (int i = 0; i < ticks.length; i++) {
+      ticks[i] = i * 3L - 700L;
+      values[i] = prng.nextInt(100);
+    }
+
+    store(rollups, ticks, values);
+
+    // Remove some raw data and rebuild the affected buckets
+    for (long tick = -155L; tick <= 42L; tick++) {
+      db.delete(rawkey(tick));
+    }
+
+    rollups.rebuild(CLASSID, LABELSID, -155L, 42L);
+
+    check(rollups);
+
+    //
+    // Rollups built with another configuration are rebuilt from the raw data
+    //
+
+    db.put(Store.HBASE_ROLLUP_DATA_KEY_PREFIX, "other".getBytes("UTF-8"));
+    check(rollups());
+  }
+
+  @Test
+  public void testConcurrentStores() throws Exception {
+    final StandaloneRollups rollups = rollups();
+
+    List<Thread> threads = new ArrayList<Thread>();
+    final List<Throwable> errors = new ArrayList<Throwable>();
+
+    for (int t = 0; t < 4; t++) {
+      final Random prng = new Random(t);
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 100; i++) {
+              long[] ticks = new long[10];
+              long[] values = new long[10];
+              for (int j = 0; j < ticks.length; j++) {
+                ticks[j] = prng.nextInt(300);
+                values[j] = prng.nextInt(100);
+              }
+              store(rollups, ticks, values);
+            }
+          } catch (Throwable e) {
+            synchronized(errors) {
+              errors.add(e);
+            }
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+
+    for (Thread thread: threads) {
+      thread.join();
+    }
+
+    Assert.assertTrue(errors.toString(), errors.isEmpty());
+
+    check(rollups);
+  }
+}
@@ -0,0 +1,275 @@
+//
+//   Copyright 2016  Cityzen Data
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import io.warp10.continuum.Configuration;
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.Store;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.crypto.KeyStore;
+import io.warp10.crypto.UnsecureKeyStore;
+import io.warp10.quasar.token.thrift.data.ReadToken;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.DBIterator;
+import org.iq80.leveldb.Options;
+import org.iq80.leveldb.impl.Iq80DBFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StandaloneTombstonesTest {
+
+  private File dir;
+  private DB db;
+  private KeyStore keystore;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = Files.createTempDirectory("tombstones").toFile();
+    db = Iq80DBFactory.factory.open(dir, new Options().createIfMissing(true));
+    keystore = new UnsecureKeyStore();
+    keystore.setKey(KeyStore.SIPHASH_CLASS, new byte[16]);
+    keystore.setKey(KeyStore.SIPHASH_LABELS, new byte[16]);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    db.close();
+    Iq80DBFactory.factory.destroy(dir, new Options());
+  }
+
+  /**
+   * @param slow Purge one datapoint per second so tombstones stay pending during the test
+   */
+  private StandaloneStoreClient client(boolean slow) {
+    Properties properties = new Properties();
+    properties.setProperty(Configuration.STANDALONE_DELETE_PURGE_RATE, slow ? "1" : "0");
+    properties.setProperty(Configuration.STANDALONE_DELETE_PURGE_BATCHSIZE, slow ? "1" : "10");
+    return new StandaloneStoreClient(db, keystore, properties);
+  }
+
+  private Metadata metadata() {
+    Map<String,String> labels = new HashMap<String,String>();
+    labels.put("label", "value");
+
+    Metadata metadata = new Metadata();
+    metadata.setName("class");
+    metadata.setLabels(labels);
+    metadata.setAttributes(new HashMap<String,String>());
+    metadata.setClassId(GTSHelper.classId(keystore.getKey(KeyStore.SIPHASH_CLASS), metadata.getName()));
+    metadata.setLabelsId(GTSHelper.labelsId(keystore.getKey(KeyStore.SIPHASH_LABELS), metadata.getLabels()));
+    return metadata;
+  }
+
+  private void store(StandaloneStoreClient client, long from, long to) throws Exception {
+    GTSEncoder encoder = new GTSEncoder(0L);
+    encoder.setMetadata(metadata());
+
+    for (long tick = from; tick <= to; tick++) {
+      encoder.addValue(tick, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, tick);
+    }
+
+    client.store(encoder);
+    // Flush the pending writes
+    client.store((GTSEncoder) null);
+  }
+
+  private List<Long> fetch(StandaloneStoreClient client) throws Exception {
+    List<Metadata> metadatas = new ArrayList<Metadata>();
+    metadatas.add(metadata());
+
+    List<Long> ticks = new ArrayList<Long>();
+
+    GTSDecoderIterator iter = client.fetch(new ReadToken(), metadatas, Long.MAX_VALUE, -1000000L, false, false);
+
+    while(iter.hasNext()) {
+      GTSDecoder decoder = iter.next();
+      while(decoder.next()) {
+        ticks.add(decoder.getTimestamp());
+      }
+    }
+
+    iter.close();
+
+    return ticks;
+  }
+
+  /**
+   * @return the ticks in [from,to] in decreasing order, as fetched
+   */
+  private static List<Long> ticks(long from, long to) {
+    List<Long> ticks = new ArrayList<Long>();
+    for (long tick = to; tick >= from; tick--) {
+      ticks.add(tick);
+    }
+    return ticks;
+  }
+
+  private int count(byte[] prefix) throws Exception {
+    int count = 0;
+    DBIterator iterator = db.iterator();
+    iterator.seek(prefix);
+    while(iterator.hasNext() && iterator.next().getKey()[0] == prefix[0]) {
+      count++;
+    }
+    iterator.close();
+    return count;
+  }
+
+  @Test
+  public void testDeleteCount() throws Exception {
+    StandaloneStoreClient client = client(true);
+
+    store(client, 0L, 99L);
+
+    Assert.assertEquals(10L, client.delete(null, metadata(), 10L, 19L));
+    // Datapoints already deleted are not counted twice
+    Assert.assertEquals(10L, client.delete(null, metadata(), 15L, 29L));
+    Assert.assertEquals(0L, client.delete(null, metadata(), 200L, 300L));
+    Assert.assertEquals(10L, client.delete(null, metadata(), Long.MIN_VALUE, 9L));
+  }
+
+  @Test
+  public void testFetchSkipsDeleted() throws Exception {
+    StandaloneStoreClient client = client(true);
+
+    store(client, 0L, 99L);
+
+    client.delete(null, metadata(), 10L, 59L);
+    client.delete(null, metadata(), Long.MIN_VALUE, 4L);
+    client.delete(null, metadata(), 90L, 90L);
+
+    // The tombstones are still pending
+    Assert.assertEquals(3, count(Store.HBASE_TOMBSTONE_KEY_PREFIX));
+
+    List<Long> expected = ticks(91L, 99L);
+    expected.addAll(ticks(60L, 89L));
+    expected.addAll(ticks(5L, 9L));
+
+    Assert.assertEquals(expected, fetch(client));
+
+    // Tombstones are reloaded when the store is reopened
+    Assert.assertEquals(expected, fetch(client(true)));
+  }
+
+  @Test
+  public void testPurge() throws Exception {
+    StandaloneStoreClient client = client(false);
+
+    store(client, 0L, 99L);
+
+    Assert.assertEquals(60L, client.delete(null, metadata(), 20L, 79L));
+
+    long deadline = System.currentTimeMillis() + 10000L;
+
+    while(count(Store.HBASE_TOMBSTONE_KEY_PREFIX) > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10L);
+    }
+
+    Assert.assertEquals(0, count(Store.HBASE_TOMBSTONE_KEY_PREFIX));
+    Assert.assertEquals(40, count(Store.HBASE_RAW_DATA_KEY_PREFIX));
+
+    List<Long> expected = ticks(80L, 99L);
+    expected.addAll(ticks(0L, 19L));
+
+    Assert.assertEquals(expected, fetch(client));
+  }
+
+  @Test
+  public void testStoreInDeletedRange() throws Exception {
+    StandaloneStoreClient client = client(true);
+
+    store(client, 0L, 99L);
+
+    client.delete(null, metadata(), 0L, 99L);
+
+    // Storing in the deleted range splits the tombstone around the stored tick
+    store(client, 50L, 50L);
+
+    Assert.assertEquals(2, count(Store.HBASE_TOMBSTONE_KEY_PREFIX));
+    Assert.assertEquals(ticks(50L, 50L), fetch(client));
+
+    // Datapoints at the bounds of a tombstone
+    store(client, 0L, 0L);
+    store(client, 99L, 99L);
+
+    Assert.assertEquals(2, count(Store.HBASE_TOMBSTONE_KEY_PREFIX));
+
+    List<Long> expected = ticks(99L, 99L);
+    expected.addAll(ticks(50L, 50L));
+    expected.addAll(ticks(0L, 0L));
+
+    Assert.assertEquals(expected, fetch(client));
+    Assert.assertEquals(expected, fetch(client(true)));
+  }
+
+  @Test
+  public void testStoreAfterDeleteAll() throws Exception {
+    StandaloneStoreClient client = client(true);
+
+    store(client, 0L, 99L);
+
+    client.delete(null, metadata(), Long.MIN_VALUE, Long.MAX_VALUE);
+
+    // The part of the tombstone past the history of the series covers nothing and is dropped
+    store(client, 200L, 209L);
+    store(client, 210L, 219L);
+
+    Assert.assertEquals(1, count(Store.HBASE_TOMBSTONE_KEY_PREFIX));
+    Assert.assertEquals(ticks(200L, 219L), fetch(client));
+  }
+
+  @Test
+  public void testPurgeKeepsNewDatapoints() throws Exception {
+    StandaloneStoreClient client = client(false);
+
+    store(client, 0L, 999L);
+
+    client.delete(null, metadata(), 0L, 999L);
+
+    store(client, 500L, 500L);
+    store(client, 2000L, 2000L);
+
+    long deadline = System.currentTimeMillis() + 10000L;
+
+    while(count(Store.HBASE_TOMBSTONE_KEY_PREFIX) > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10L);
+    }
+
+    Assert.assertEquals(0, count(Store.HBASE_TOMBSTONE_KEY_PREFIX));
+    Assert.assertEquals(2, count(Store.HBASE_RAW_DATA_KEY_PREFIX));
+
+    List<Long> expected = ticks(2000L, 2000L);
+    expected.addAll(ticks(500L, 500L));
+
+    Assert.assertEquals(expected, fetch(client));
+  }
+}